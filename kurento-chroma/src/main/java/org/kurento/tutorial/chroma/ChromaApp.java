@@ -17,7 +17,10 @@
 
 package org.kurento.tutorial.chroma;
 
+import java.io.IOException;
+
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.assets.AssetCache;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -44,6 +47,12 @@ public class ChromaApp implements WebSocketConfigurer {
     return new ChromaHandler();
   }
 
+  @Bean
+  public AssetCache assetCache() throws IOException {
+    return new AssetCache(System.getProperty("app.server.url", DEFAULT_APP_SERVER_URL),
+        "mario.jpg");
+  }
+
   @Bean
   public KurentoClient kurentoClient() {
     return KurentoClient.create();
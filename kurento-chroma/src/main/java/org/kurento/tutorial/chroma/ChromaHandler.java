@@ -29,6 +29,7 @@ import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 import org.kurento.module.chroma.ChromaFilter;
 import org.kurento.module.chroma.WindowParam;
+import org.kurento.tutorial.assets.AssetCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -57,6 +58,9 @@ public class ChromaHandler extends TextWebSocketHandler {
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private AssetCache assets;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -122,9 +126,7 @@ public class ChromaHandler extends TextWebSocketHandler {
 
       ChromaFilter chromaFilter = new ChromaFilter.Builder(pipeline, new WindowParam(5, 5, 40, 40))
       .build();
-      //String appServerUrl = System.getProperty("app.server.url", ChromaApp.DEFAULT_APP_SERVER_URL);
-      String appServerUrl = "http://files.openvidu.io";
-      chromaFilter.setBackground(appServerUrl + "/img/mario.jpg");
+      chromaFilter.setBackground(assets.getUrl("mario.jpg"));
 
       webRtcEndpoint.connect(chromaFilter);
       chromaFilter.connect(webRtcEndpoint);
@@ -17,12 +17,20 @@
 
 package org.kurento.demo;
 
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 
 import org.kurento.commons.ClassPath;
 import org.slf4j.Logger;
@@ -39,33 +47,127 @@ public class ConfigurationReader {
   private static final Logger log = LoggerFactory.getLogger(ConfigurationReader.class);
   private static final Gson gson = new GsonBuilder().create();
 
-  private JsonObject configFile;
+  // Editors usually write a file in several steps, so wait for them to finish before reading it
+  private static final long RELOAD_DELAY_MS = Long.getLong("config.reloadDelayMs", 500);
+
+  /**
+   * Receives the new configuration when the configuration file changes. It throws a
+   * {@link RuntimeException} to reject an invalid configuration, which is then not kept.
+   */
+  public interface Listener {
+    void onChange(JsonObject config);
+  }
+
+  private final Path configFilePath;
+  private volatile JsonObject configFile;
+  private WatchService watchService;
 
   public ConfigurationReader(String configFileName) throws IOException {
 
     String configFile = ClassPath.get(configFileName).toString();
 
-    Path configFilePath = Paths.get(configFile);
+    this.configFilePath = Paths.get(configFile);
 
-    if (configFilePath == null) {
+    if (this.configFilePath == null) {
       log.debug("File not found {}", configFileName);
     }
 
+    this.configFile = read();
+  }
+
+  private JsonObject read() {
     try (JsonReader reader = new JsonReader(
-        Files.newBufferedReader(configFilePath, StandardCharsets.UTF_8))) {
+        Files.newBufferedReader(this.configFilePath, StandardCharsets.UTF_8))) {
       reader.setLenient(true);
-      this.configFile = gson.fromJson(reader, JsonObject.class);
+      return gson.fromJson(reader, JsonObject.class);
 
     } catch (NoSuchFileException e) {
-      log.warn("Configuration file {} not found", configFilePath);
+      log.warn("Configuration file {} not found", this.configFilePath);
     } catch (IOException e) {
-      log.error("Error opening config file {}", configFilePath, e);
+      log.error("Error opening config file {}", this.configFilePath, e);
     } catch (JsonParseException e) {
-      log.error("Error parsing configuration file {}", configFilePath, e);
+      log.error("Error parsing configuration file {}", this.configFilePath, e);
     }
+    return null;
   }
 
   public JsonObject getConfig() {
     return this.configFile;
   }
+
+  /**
+   * Watches the configuration file, and calls the listener each time it changes to a valid
+   * configuration. Files that can't be read or parsed, or that the listener rejects, are ignored,
+   * keeping the previous configuration.
+   */
+  public synchronized void watch(final Listener listener) throws IOException {
+    if (this.watchService != null) {
+      throw new IllegalStateException("Configuration file already watched");
+    }
+    if (this.configFilePath.getFileSystem() != FileSystems.getDefault()) {
+      log.info("Configuration file {} is not in the file system, so it won't be reloaded",
+          this.configFilePath);
+      return;
+    }
+
+    final Path dir = this.configFilePath.toAbsolutePath().getParent();
+    final Path fileName = this.configFilePath.getFileName();
+    this.watchService = dir.getFileSystem().newWatchService();
+    dir.register(this.watchService, ENTRY_CREATE, ENTRY_MODIFY);
+
+    final WatchService service = this.watchService;
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            WatchKey key = service.take();
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+              changed |= fileName.equals(event.context());
+            }
+            key.reset();
+            if (changed) {
+              // Wait for the writes to settle, and merge their events into a single reload
+              Thread.sleep(RELOAD_DELAY_MS);
+              WatchKey pending;
+              while ((pending = service.poll()) != null) {
+                pending.pollEvents();
+                pending.reset();
+              }
+              reload(listener);
+            }
+          }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+          log.debug("Stopped watching configuration file {}",
+              ConfigurationReader.this.configFilePath);
+        }
+      }
+    }, "config-watcher");
+    thread.setDaemon(true);
+    thread.start();
+    log.info("Watching configuration file {} for changes", this.configFilePath);
+  }
+
+  private void reload(Listener listener) {
+    JsonObject config = read();
+    if (config == null || config.equals(this.configFile)) {
+      return;
+    }
+    log.info("Configuration file {} changed", this.configFilePath);
+    try {
+      listener.onChange(config);
+      this.configFile = config;
+    } catch (RuntimeException e) {
+      log.error("Error applying configuration file {}, keeping the previous configuration",
+          this.configFilePath, e);
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    if (this.watchService != null) {
+      this.watchService.close();
+      this.watchService = null;
+    }
+  }
 }
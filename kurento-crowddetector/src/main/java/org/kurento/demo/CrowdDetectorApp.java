@@ -22,6 +22,7 @@ import java.io.IOException;
 import org.kurento.client.KurentoClient;
 import org.kurento.orion.OrionConnector;
 import org.kurento.orion.OrionConnectorConfiguration;
+import org.kurento.orion.OrionQueryCache;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -60,7 +61,17 @@ public class CrowdDetectorApp implements WebSocketConfigurer {
 
   @Bean
   public OrionConnectorConfiguration orionConnectorConfiguration() {
-    return new OrionConnectorConfiguration();
+    OrionConnectorConfiguration config = new OrionConnectorConfiguration();
+    config.setNotificationHost(System.getProperty("orion.notificationHost"));
+    config.setNotificationPort(
+        Integer.getInteger("orion.notificationPort", config.getNotificationPort()));
+    config.setCacheTtl(Long.getLong("orion.cacheTtlMs", config.getCacheTtl()));
+    return config;
+  }
+
+  @Bean
+  public OrionQueryCache orionQueryCache() {
+    return new OrionQueryCache();
   }
 
   @Bean
@@ -69,8 +80,8 @@ public class CrowdDetectorApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public Pipeline pipeline() {
-    return new Pipeline();
+  public FeedManager feedManager() {
+    return new FeedManager();
   }
 
   @Bean
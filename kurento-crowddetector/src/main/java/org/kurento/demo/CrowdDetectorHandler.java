@@ -18,6 +18,10 @@
 package org.kurento.demo;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
@@ -28,6 +32,7 @@ import org.kurento.jsonrpc.JsonUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
@@ -49,7 +54,26 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
   private static final Gson gson = new GsonBuilder().create();
 
   @Autowired
-  private Pipeline pipeline;
+  private FeedManager feeds;
+
+  @Autowired
+  private RoiAnalytics analytics;
+
+  // Sessions receiving the ROI statistics
+  private final ConcurrentHashMap<String, WebSocketSession> viewers = new ConcurrentHashMap<>();
+
+  // Feed watched by each session
+  private final ConcurrentHashMap<String, Pipeline> viewerFeeds = new ConcurrentHashMap<>();
+
+  @PostConstruct
+  private void init() {
+    this.analytics.addListener(new RoiAnalytics.Listener() {
+      @Override
+      public void onStats(Map<String, Object> stats) {
+        sendAnalytics(stats);
+      }
+    });
+  }
 
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
@@ -66,16 +90,21 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
         }
         break;
 
-      case "stop":
-        this.pipeline.removeWebRtcEndpoint(session.getId());
+      case "stop": {
+        this.viewers.remove(session.getId());
+        Pipeline pipeline = this.viewerFeeds.remove(session.getId());
+        if (pipeline != null) {
+          pipeline.removeWebRtcEndpoint(session.getId());
+        }
         break;
+      }
 
       case "updateFeed":
-        updateFeed(jsonMessage);
+        updateFeed(getFeed(session), jsonMessage);
         break;
 
       case "changeProcessingWidth":
-        changeProcessingWidth(jsonMessage.get("width").getAsInt());
+        changeProcessingWidth(getFeed(session), jsonMessage.get("width").getAsInt());
         break;
 
       case "onIceCandidate": {
@@ -83,7 +112,7 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
 
         IceCandidate cand = new IceCandidate(candidate.get("candidate").getAsString(),
             candidate.get("sdpMid").getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-        this.pipeline.addCandidate(cand, session.getId());
+        getFeed(session).addCandidate(cand, session.getId());
         break;
       }
 
@@ -95,9 +124,18 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
 
   private void start(final WebSocketSession session, JsonObject jsonMessage) throws IOException {
 
-    updateFeed(jsonMessage);
+    JsonElement feedIdJson = jsonMessage.get("feedId");
+    String feedId = (feedIdJson != null) ? feedIdJson.getAsString() : null;
+    Pipeline pipeline = this.feeds.getFeed(feedId);
+    if (pipeline == null) {
+      sendError(session, "Unknown feed " + feedId);
+      return;
+    }
+    this.viewerFeeds.put(session.getId(), pipeline);
+
+    updateFeed(pipeline, jsonMessage);
 
-    if (this.pipeline.getPlayerEndpoint() == null) {
+    if (pipeline.getPlayerEndpoint() == null) {
       try {
         JsonObject response = new JsonObject();
         response.addProperty("id", "noPlayer");
@@ -108,7 +146,7 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
       return;
     }
 
-    if (!this.pipeline.isPlaying()) {
+    if (!pipeline.isPlaying()) {
       try {
         JsonObject response = new JsonObject();
         response.addProperty("id", "noPlaying");
@@ -119,7 +157,7 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
       return;
     }
 
-    MediaPipeline mediaPipeline = this.pipeline.getPipeline();
+    MediaPipeline mediaPipeline = pipeline.getPipeline();
 
     WebRtcEndpoint webRtcEndpoint = new WebRtcEndpoint.Builder(mediaPipeline).build();
 
@@ -140,9 +178,9 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
       }
     });
 
-    this.pipeline.setWebRtcEndpoint(session.getId(), webRtcEndpoint);
+    pipeline.setWebRtcEndpoint(session.getId(), webRtcEndpoint);
 
-    this.pipeline.getCrowdDetectorFilter().connect(webRtcEndpoint);
+    pipeline.getOutput().connect(webRtcEndpoint);
 
     // SDP negotiation (offer and answer)
     String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
@@ -152,14 +190,50 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
     JsonObject response = new JsonObject();
     response.addProperty("id", "startResponse");
     response.addProperty("sdpAnswer", sdpAnswer);
-    String feedUrl = this.pipeline.getFeedUrl();
-    log.info("Using feed URL {}", feedUrl);
+    String feedUrl = pipeline.getFeedUrl();
+    log.info("Using feed {} with URL {}", pipeline.getFeedId(), feedUrl);
+    response.addProperty("feedId", pipeline.getFeedId());
+    response.add("feeds", gson.toJsonTree(this.feeds.getFeedIds()));
     response.addProperty("feedUrl", feedUrl);
-    response.addProperty("rois", gson.toJson(this.pipeline.getRois()));
+    response.addProperty("rois", gson.toJson(pipeline.getRois()));
     synchronized (session) {
       session.sendMessage(new TextMessage(response.toString()));
     }
     webRtcEndpoint.gatherCandidates();
+
+    this.viewers.put(session.getId(), session);
+  }
+
+  @Override
+  public void afterConnectionClosed(WebSocketSession session, CloseStatus status)
+      throws Exception {
+    this.viewers.remove(session.getId());
+    Pipeline pipeline = this.viewerFeeds.remove(session.getId());
+    if (pipeline != null) {
+      pipeline.removeWebRtcEndpoint(session.getId());
+    }
+  }
+
+  private Pipeline getFeed(WebSocketSession session) {
+    Pipeline pipeline = this.viewerFeeds.get(session.getId());
+    return (pipeline != null) ? pipeline : this.feeds.getFeed(null);
+  }
+
+  private void sendAnalytics(Map<String, Object> stats) {
+    JsonObject message = new JsonObject();
+    message.addProperty("id", "analytics");
+    message.add("rois", gson.toJsonTree(stats));
+    TextMessage textMessage = new TextMessage(message.toString());
+
+    for (WebSocketSession session : this.viewers.values()) {
+      try {
+        synchronized (session) {
+          session.sendMessage(textMessage);
+        }
+      } catch (IOException e) {
+        log.debug("Could not send analytics to session {}: {}", session.getId(), e.getMessage());
+      }
+    }
   }
 
   private static void sendError(WebSocketSession session, String message) {
@@ -173,7 +247,7 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
     }
   }
 
-  private void updateFeed(JsonObject jsonMessage) {
+  private void updateFeed(Pipeline pipeline, JsonObject jsonMessage) {
 
     JsonElement feedUrlJson = jsonMessage.get("feedUrl");
     if (feedUrlJson == null) {
@@ -181,11 +255,11 @@ public class CrowdDetectorHandler extends TextWebSocketHandler {
     } else {
       String feedUrl = feedUrlJson.getAsString();
       log.debug("Updating video feed");
-      this.pipeline.setFeedUrl(feedUrl);
+      pipeline.setFeedUrl(feedUrl);
     }
   }
 
-  private void changeProcessingWidth(int width) {
-    this.pipeline.getCrowdDetectorFilter().setProcessingWidth(width);
+  private void changeProcessingWidth(Pipeline pipeline, int width) {
+    pipeline.setProcessingWidth(width);
   }
 }
@@ -21,6 +21,7 @@ import static com.google.common.collect.Lists.newArrayListWithCapacity;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.kurento.module.crowddetector.CrowdDetectorDirectionEvent;
 import org.kurento.module.crowddetector.CrowdDetectorFluidityEvent;
@@ -29,6 +30,7 @@ import org.kurento.module.crowddetector.RegionOfInterest;
 import org.kurento.orion.OrionConnector;
 import org.kurento.orion.entities.OrionAttribute;
 import org.kurento.orion.entities.OrionContextElement;
+import org.kurento.orion.entities.OrionEntityTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 
 /**
@@ -42,22 +44,59 @@ public class CrowdDetectorOrionPublisher {
   public static final String PERCENTAGE_ATTR = "Percentage";
   public static final String DIRECTION_ATTR = "Direction";
 
+  private static final String[] LEVEL_ATTRS = { LEVEL_ATTR, PERCENTAGE_ATTR };
+  private static final String[] LEVEL_ATTR_TYPES =
+      { Integer.class.getSimpleName(), Float.class.getSimpleName() };
+  private static final String[] DIRECTION_ATTRS = { DIRECTION_ATTR };
+  private static final String[] DIRECTION_ATTR_TYPES = { Float.class.getSimpleName() };
+
   @Autowired
   private OrionConnector orionConnector;
 
+  @Autowired
+  private OrionPublishQueue publishQueue;
+
+  // Templates of the context elements of each ROI, so events are published without building them
+  private final ConcurrentHashMap<String, OrionEntityTemplate> directionTemplates =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, OrionEntityTemplate> fluidityTemplates =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, OrionEntityTemplate> occupancyTemplates =
+      new ConcurrentHashMap<>();
+
   public void publishEvent(CrowdDetectorDirectionEvent event) {
-    OrionContextElement contextElement = directionEventToContextElement(event);
-    this.orionConnector.updateContextElements(contextElement);
+    OrionEntityTemplate template = getTemplate(this.directionTemplates,
+        CrowdDetectorDirectionEvent.class, event.getRoiID(), DIRECTION_ATTRS, DIRECTION_ATTR_TYPES);
+    this.publishQueue.offer(template, 0, event.getDirectionAngle());
   }
 
   public void publishEvent(CrowdDetectorFluidityEvent event) {
-    OrionContextElement contextElement = fluidityEventToContextElement(event);
-    this.orionConnector.updateContextElements(contextElement);
+    OrionEntityTemplate template = getTemplate(this.fluidityTemplates,
+        CrowdDetectorFluidityEvent.class, event.getRoiID(), LEVEL_ATTRS, LEVEL_ATTR_TYPES);
+    this.publishQueue.offer(template, 0, event.getFluidityLevel());
+    this.publishQueue.offer(template, 1, event.getFluidityPercentage());
   }
 
   public void publishEvent(CrowdDetectorOccupancyEvent event) {
-    OrionContextElement contextElement = occupancyEventToContextElement(event);
-    this.orionConnector.updateContextElements(contextElement);
+    OrionEntityTemplate template = getTemplate(this.occupancyTemplates,
+        CrowdDetectorOccupancyEvent.class, event.getRoiID(), LEVEL_ATTRS, LEVEL_ATTR_TYPES);
+    this.publishQueue.offer(template, 0, event.getOccupancyLevel());
+    this.publishQueue.offer(template, 1, event.getOccupancyPercentage());
+  }
+
+  private static OrionEntityTemplate getTemplate(
+      ConcurrentHashMap<String, OrionEntityTemplate> templates, Class<?> eventClass, String roiId,
+      String[] attributes, String[] attributeTypes) {
+    OrionEntityTemplate template = templates.get(roiId);
+    if (template == null) {
+      OrionEntityTemplate newTemplate =
+          new OrionEntityTemplate(eventClass.getSimpleName(), roiId, attributes, attributeTypes);
+      template = templates.putIfAbsent(roiId, newTemplate);
+      if (template == null) {
+        template = newTemplate;
+      }
+    }
+    return template;
   }
 
   public void registerRoisInOrion(Collection<RegionOfInterest> rois) {
@@ -74,6 +113,23 @@ public class CrowdDetectorOrionPublisher {
         .registerContextElements(events.toArray(new OrionContextElement[events.size()]));
   }
 
+  public void unregisterRoisFromOrion(Collection<RegionOfInterest> rois) {
+
+    List<OrionContextElement> events = newArrayListWithCapacity(rois.size());
+
+    for (RegionOfInterest roi : rois) {
+      this.directionTemplates.remove(roi.getId());
+      this.fluidityTemplates.remove(roi.getId());
+      this.occupancyTemplates.remove(roi.getId());
+      events.add(occupancyEventToContextElement(roi.getId()));
+      events.add(directionEventToContextElement(roi.getId()));
+      events.add(fluidityEventToContextElement(roi.getId()));
+    }
+
+    this.orionConnector
+        .deleteContextElements(events.toArray(new OrionContextElement[events.size()]));
+  }
+
   private static OrionContextElement occupancyEventToContextElement(String roiId) {
     OrionContextElement contextElement = new OrionContextElement();
 
@@ -91,23 +147,6 @@ public class CrowdDetectorOrionPublisher {
     return contextElement;
   }
 
-  private static OrionContextElement occupancyEventToContextElement(
-      CrowdDetectorOccupancyEvent event) {
-    OrionContextElement contextElement = new OrionContextElement();
-
-    contextElement.setId(event.getRoiID());
-    contextElement.setType(event.getClass().getSimpleName());
-
-    OrionAttribute<Integer> attrLevel =
-        new OrionAttribute<>(LEVEL_ATTR, Integer.class.getSimpleName(), event.getOccupancyLevel());
-    OrionAttribute<Float> attrPercentage = new OrionAttribute<>(PERCENTAGE_ATTR,
-        Float.class.getSimpleName(), event.getOccupancyPercentage());
-    contextElement.getAttributes().add(attrLevel);
-    contextElement.getAttributes().add(attrPercentage);
-
-    return contextElement;
-  }
-
   private static OrionContextElement fluidityEventToContextElement(String roiId) {
     OrionContextElement contextElement = new OrionContextElement();
 
@@ -125,23 +164,6 @@ public class CrowdDetectorOrionPublisher {
     return contextElement;
   }
 
-  private static OrionContextElement fluidityEventToContextElement(
-      CrowdDetectorFluidityEvent event) {
-    OrionContextElement contextElement = new OrionContextElement();
-
-    contextElement.setId(event.getRoiID());
-    contextElement.setType(event.getClass().getSimpleName());
-
-    OrionAttribute<Integer> attrLevel =
-        new OrionAttribute<>(LEVEL_ATTR, Integer.class.getSimpleName(), event.getFluidityLevel());
-    OrionAttribute<Float> attrPercentage = new OrionAttribute<>(PERCENTAGE_ATTR,
-        Float.class.getSimpleName(), event.getFluidityPercentage());
-    contextElement.getAttributes().add(attrLevel);
-    contextElement.getAttributes().add(attrPercentage);
-
-    return contextElement;
-  }
-
   private static OrionContextElement directionEventToContextElement(String roiId) {
     OrionContextElement contextElement = new OrionContextElement();
 
@@ -156,18 +178,4 @@ public class CrowdDetectorOrionPublisher {
     return contextElement;
   }
 
-  private static OrionContextElement directionEventToContextElement(
-      CrowdDetectorDirectionEvent event) {
-    OrionContextElement contextElement = new OrionContextElement();
-
-    contextElement.setId(event.getRoiID());
-    contextElement.setType(event.getClass().getSimpleName());
-
-    OrionAttribute<Float> directionAttribute = new OrionAttribute<>(DIRECTION_ATTR,
-        Float.class.getSimpleName(), event.getDirectionAngle());
-
-    contextElement.getAttributes().add(directionAttribute);
-    return contextElement;
-  }
-
 }
@@ -0,0 +1,481 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.module.crowddetector.RegionOfInterest;
+import org.kurento.orion.OrionConnectorException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Runs the camera feeds of the application, each one with its own crowd detector filter and ROIs.
+ *
+ * Feeds are read from the {@code feeds} array of the configuration file, where each entry has an
+ * {@code id}, a {@code feedUrl} and its {@code rois}. The single-feed format, with
+ * {@code feedUrl} and {@code rois} at the top level, is still accepted as a feed with id
+ * {@value #DEFAULT_FEED_ID}. ROI ids must be unique across feeds, as all of them share the same
+ * Orion entities, analytics and history.
+ *
+ * Feeds are spread across the KMS instances listed in {@code kms.urls} (or the default one), always
+ * on the instance with the fewest feeds, breaking ties by CPU usage. On each instance, up to
+ * {@code feeds.perPipeline} feeds share a media pipeline.
+ *
+ * The configuration file is watched for changes, unless {@code config.reload} is false. Only the
+ * feeds whose entry changed are updated, replacing their filter without interrupting the viewers,
+ * and only the ROIs added or removed are registered or deleted in Orion.
+ *
+ * The CPU usage of every instance is sampled every {@code processing.sampleMs} milliseconds, to
+ * adapt the processing width of the filters running on it.
+ *
+ * @since 6.18.0
+ */
+public class FeedManager {
+
+  private static final Logger log = LoggerFactory.getLogger(FeedManager.class);
+
+  public static final String DEFAULT_FEED_ID = "default";
+
+  private static final int FEEDS_PER_PIPELINE = Integer.getInteger("feeds.perPipeline", 4);
+  private static final int CPU_SAMPLE_MS = 500;
+  private static final long PROCESSING_SAMPLE_MS = Long.getLong("processing.sampleMs", 5000);
+
+  @Autowired
+  private ConfigurationReader configuration;
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private AutowireCapableBeanFactory beanFactory;
+
+  @Autowired
+  private CrowdDetectorOrionPublisher orionPublisher;
+
+  @Autowired
+  private RoiAnalytics analytics;
+
+  private final List<KmsNode> nodes = new ArrayList<>();
+  private final Map<String, Feed> feeds = new LinkedHashMap<>();
+  // Configuration each feed was last created or updated from
+  private final Map<String, FeedConfig> feedConfigs = new LinkedHashMap<>();
+  private ScheduledExecutorService executor;
+
+  private static class KmsNode {
+
+    private final KurentoClient client;
+    private final List<SharedPipeline> pipelines = new ArrayList<>();
+    private int feeds;
+
+    KmsNode(KurentoClient client) {
+      this.client = client;
+    }
+  }
+
+  private static class SharedPipeline {
+
+    private final MediaPipeline pipeline;
+    private int feeds;
+
+    SharedPipeline(MediaPipeline pipeline) {
+      this.pipeline = pipeline;
+    }
+  }
+
+  private static class Feed {
+
+    private final Pipeline pipeline;
+    private final KmsNode node;
+    private final SharedPipeline sharedPipeline;
+
+    Feed(Pipeline pipeline, KmsNode node, SharedPipeline sharedPipeline) {
+      this.pipeline = pipeline;
+      this.node = node;
+      this.sharedPipeline = sharedPipeline;
+    }
+  }
+
+  private static class FeedConfig {
+
+    private final JsonElement feedUrlJson;
+    private final JsonElement roisJson;
+    private final String feedUrl;
+    private final List<RegionOfInterest> rois;
+
+    FeedConfig(JsonObject feed) {
+      this.feedUrlJson = feed.get("feedUrl");
+      this.roisJson = feed.get("rois");
+      this.feedUrl = readFeedUrl(feed);
+      this.rois = readRois(feed);
+    }
+
+    boolean sameFeedUrl(FeedConfig other) {
+      return Objects.equals(this.feedUrlJson, other.feedUrlJson);
+    }
+
+    boolean sameRois(FeedConfig other) {
+      return Objects.equals(this.roisJson, other.roisJson);
+    }
+  }
+
+  @PostConstruct
+  private void init() throws IOException {
+    String kmsUrls = System.getProperty("kms.urls");
+    if (kmsUrls == null) {
+      this.nodes.add(new KmsNode(this.kurento));
+    } else {
+      for (String kmsUrl : kmsUrls.split(",")) {
+        this.nodes.add(new KmsNode(KurentoClient.create(kmsUrl.trim())));
+      }
+    }
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "processing-width");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        adjustProcessingWidths();
+      }
+    }, PROCESSING_SAMPLE_MS, PROCESSING_SAMPLE_MS, TimeUnit.MILLISECONDS);
+
+    JsonObject config = this.configuration.getConfig();
+    if (config == null) {
+      addFeed(DEFAULT_FEED_ID, null, new ArrayList<RegionOfInterest>());
+    } else {
+      for (Map.Entry<String, FeedConfig> entry : readFeeds(config).entrySet()) {
+        addFeed(entry.getKey(), entry.getValue());
+      }
+    }
+
+    if (Boolean.parseBoolean(System.getProperty("config.reload", "true"))) {
+      this.configuration.watch(new ConfigurationReader.Listener() {
+        @Override
+        public void onChange(JsonObject config) {
+          reload(config);
+        }
+      });
+    }
+  }
+
+  private static Map<String, FeedConfig> readFeeds(JsonObject config) {
+    Map<String, FeedConfig> feedConfigs = new LinkedHashMap<>();
+    if (config.has("feeds")) {
+      for (JsonElement feedJson : config.getAsJsonArray("feeds")) {
+        JsonObject feed = feedJson.getAsJsonObject();
+        feedConfigs.put(feed.get("id").getAsString(), new FeedConfig(feed));
+      }
+    } else {
+      feedConfigs.put(DEFAULT_FEED_ID, new FeedConfig(config));
+    }
+
+    Set<String> roiIds = new HashSet<>();
+    for (FeedConfig feedConfig : feedConfigs.values()) {
+      for (RegionOfInterest roi : feedConfig.rois) {
+        if (!roiIds.add(roi.getId())) {
+          throw new IllegalArgumentException(
+              "ROI id '" + roi.getId() + "' is used in several feeds");
+        }
+      }
+    }
+    return feedConfigs;
+  }
+
+  private void addFeed(String feedId, FeedConfig feedConfig) {
+    addFeed(feedId, feedConfig.feedUrl, feedConfig.rois);
+    this.feedConfigs.put(feedId, feedConfig);
+  }
+
+  /**
+   * Applies a new configuration, updating only the feeds whose configuration changed.
+   */
+  private synchronized void reload(JsonObject config) {
+    Map<String, FeedConfig> newConfigs = readFeeds(config);
+
+    Map<String, RegionOfInterest> oldRois = new LinkedHashMap<>();
+    for (Feed feed : this.feeds.values()) {
+      for (RegionOfInterest roi : feed.pipeline.getRois()) {
+        oldRois.put(roi.getId(), roi);
+      }
+    }
+
+    for (String feedId : new ArrayList<>(this.feeds.keySet())) {
+      if (!newConfigs.containsKey(feedId)) {
+        log.info("Feed '{}' removed from the configuration", feedId);
+        removeFeed(feedId);
+      }
+    }
+
+    Set<String> newRoiIds = new HashSet<>();
+    List<RegionOfInterest> addedRois = new ArrayList<>();
+    for (Map.Entry<String, FeedConfig> entry : newConfigs.entrySet()) {
+      String feedId = entry.getKey();
+      FeedConfig newConfig = entry.getValue();
+      for (RegionOfInterest roi : newConfig.rois) {
+        newRoiIds.add(roi.getId());
+      }
+
+      Feed feed = this.feeds.get(feedId);
+      if (feed == null) {
+        // New feeds register their own ROIs when they start
+        log.info("Feed '{}' added to the configuration", feedId);
+        addFeed(feedId, newConfig);
+        continue;
+      }
+
+      FeedConfig oldConfig = this.feedConfigs.get(feedId);
+      boolean sameFeedUrl = oldConfig != null && oldConfig.sameFeedUrl(newConfig);
+      boolean sameRois = oldConfig != null && oldConfig.sameRois(newConfig);
+      if (sameFeedUrl && sameRois) {
+        continue;
+      }
+
+      log.info("Feed '{}' changed in the configuration", feedId);
+      for (RegionOfInterest roi : newConfig.rois) {
+        if (!oldRois.containsKey(roi.getId())) {
+          addedRois.add(roi);
+        }
+      }
+      feed.pipeline.reconfigure(sameFeedUrl ? null : newConfig.feedUrl,
+          sameRois ? null : newConfig.rois);
+      this.feedConfigs.put(feedId, newConfig);
+    }
+
+    List<RegionOfInterest> removedRois = new ArrayList<>();
+    for (RegionOfInterest roi : oldRois.values()) {
+      if (!newRoiIds.contains(roi.getId())) {
+        removedRois.add(roi);
+      }
+    }
+    List<String> removedRoiIds = new ArrayList<>();
+    for (RegionOfInterest roi : removedRois) {
+      removedRoiIds.add(roi.getId());
+    }
+    this.analytics.removeRois(removedRoiIds);
+
+    try {
+      if (!addedRois.isEmpty()) {
+        this.orionPublisher.registerRoisInOrion(addedRois);
+      }
+      if (!removedRois.isEmpty()) {
+        this.orionPublisher.unregisterRoisFromOrion(removedRois);
+      }
+    } catch (OrionConnectorException e) {
+      log.warn("Could not update ROIs in ORION: {}", e.getMessage());
+    }
+    log.info("Configuration reloaded: {} ROIs added and {} removed", addedRois.size(),
+        removedRois.size());
+  }
+
+  private static String readFeedUrl(JsonObject feed) {
+    JsonElement feedUrlJson = feed.get("feedUrl");
+    if (feedUrlJson == null) {
+      log.debug("Url feed not defined.");
+      return null;
+    }
+    return feedUrlJson.getAsString();
+  }
+
+  private static List<RegionOfInterest> readRois(JsonObject feed) {
+    JsonElement roisJson = feed.get("rois");
+    List<RegionOfInterest> rois;
+    if (roisJson != null) {
+      rois = Pipeline.readRoisFromJson(roisJson.getAsJsonArray());
+    } else {
+      rois = Pipeline.getDummyRois();
+      log.debug("Rois not defined. Using dummy rois");
+    }
+    return rois;
+  }
+
+  /**
+   * Creates a feed on the least loaded KMS, and starts playing it.
+   *
+   * @param feedUrl
+   *          URL of the feed, or null to configure it later
+   */
+  public synchronized Pipeline addFeed(String feedId, String feedUrl,
+      List<RegionOfInterest> rois) {
+    if (this.feeds.containsKey(feedId)) {
+      throw new IllegalArgumentException("Feed '" + feedId + "' already exists");
+    }
+
+    KmsNode node = selectNode();
+    SharedPipeline sharedPipeline = null;
+    for (SharedPipeline candidate : node.pipelines) {
+      if (candidate.feeds < FEEDS_PER_PIPELINE) {
+        sharedPipeline = candidate;
+        break;
+      }
+    }
+    if (sharedPipeline == null) {
+      sharedPipeline = new SharedPipeline(node.client.createMediaPipeline());
+      node.pipelines.add(sharedPipeline);
+    }
+
+    Pipeline pipeline = new Pipeline(feedId, sharedPipeline.pipeline, feedUrl, rois);
+    this.beanFactory.autowireBean(pipeline);
+    sharedPipeline.feeds++;
+    node.feeds++;
+    this.feeds.put(feedId, new Feed(pipeline, node, sharedPipeline));
+
+    pipeline.start();
+    log.info("Feed '{}' started with {} ROIs on KMS #{}", feedId, rois.size(),
+        this.nodes.indexOf(node));
+    return pipeline;
+  }
+
+  public synchronized void removeFeed(String feedId) {
+    Feed feed = this.feeds.remove(feedId);
+    this.feedConfigs.remove(feedId);
+    if (feed == null) {
+      return;
+    }
+
+    feed.pipeline.release();
+    feed.node.feeds--;
+    if (--feed.sharedPipeline.feeds == 0) {
+      feed.node.pipelines.remove(feed.sharedPipeline);
+      feed.sharedPipeline.pipeline.release();
+    }
+  }
+
+  /**
+   * @param feedId
+   *          Id of the feed, or null for the first one
+   * @return The feed, or null if it doesn't exist
+   */
+  public synchronized Pipeline getFeed(String feedId) {
+    if (feedId == null) {
+      return this.feeds.isEmpty() ? null : this.feeds.values().iterator().next().pipeline;
+    }
+    Feed feed = this.feeds.get(feedId);
+    return (feed != null) ? feed.pipeline : null;
+  }
+
+  public synchronized Collection<String> getFeedIds() {
+    return new ArrayList<>(this.feeds.keySet());
+  }
+
+  private KmsNode selectNode() {
+    List<KmsNode> candidates = new ArrayList<>();
+    int fewestFeeds = Integer.MAX_VALUE;
+    for (KmsNode node : this.nodes) {
+      if (node.feeds < fewestFeeds) {
+        candidates.clear();
+        fewestFeeds = node.feeds;
+      }
+      if (node.feeds == fewestFeeds) {
+        candidates.add(node);
+      }
+    }
+    if (candidates.size() == 1) {
+      return candidates.get(0);
+    }
+
+    KmsNode selected = candidates.get(0);
+    float lowestCpu = Float.MAX_VALUE;
+    for (KmsNode node : candidates) {
+      try {
+        float cpu = node.client.getServerManager().getUsedCpu(CPU_SAMPLE_MS);
+        if (cpu < lowestCpu) {
+          lowestCpu = cpu;
+          selected = node;
+        }
+      } catch (RuntimeException e) {
+        log.warn("Could not get CPU usage of KMS #{}: {}", this.nodes.indexOf(node),
+            e.getMessage());
+      }
+    }
+    return selected;
+  }
+
+  private void adjustProcessingWidths() {
+    for (KmsNode node : this.nodes) {
+      List<Pipeline> nodeFeeds = new ArrayList<>();
+      synchronized (this) {
+        for (Feed feed : this.feeds.values()) {
+          if (feed.node == node) {
+            nodeFeeds.add(feed.pipeline);
+          }
+        }
+      }
+      if (nodeFeeds.isEmpty()) {
+        continue;
+      }
+
+      float cpu;
+      try {
+        cpu = node.client.getServerManager().getUsedCpu(CPU_SAMPLE_MS);
+      } catch (RuntimeException e) {
+        log.warn("Could not get CPU usage of KMS #{}: {}", this.nodes.indexOf(node),
+            e.getMessage());
+        continue;
+      }
+      for (Pipeline pipeline : nodeFeeds) {
+        try {
+          pipeline.adjustProcessingWidth(cpu);
+        } catch (RuntimeException e) {
+          log.warn("Could not adjust processing width of feed {}", pipeline.getFeedId(), e);
+        }
+      }
+    }
+  }
+
+  @PreDestroy
+  private synchronized void shutdown() {
+    this.executor.shutdownNow();
+    for (String feedId : new ArrayList<>(this.feeds.keySet())) {
+      removeFeed(feedId);
+    }
+    for (KmsNode node : this.nodes) {
+      if (node.client != this.kurento) {
+        node.client.destroy();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,268 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Reconnects the feeds whose player failed, from a single shared thread.
+ *
+ * The first attempt is made after {@code reconnect.initialDelayMs} milliseconds, and each
+ * consecutive failure multiplies the delay by {@code reconnect.multiplier}, up to
+ * {@code reconnect.maxDelayMs}. Delays are spread by {@code reconnect.jitter} (a fraction of the
+ * delay), so feeds that failed together don't retry together. Failures of a feed that already has
+ * an attempt scheduled are ignored. The consecutive failures and the time to recover of each feed
+ * are served under {@code /feeds/reconnections}.
+ *
+ * @since 6.18.0
+ */
+@RestController
+public class FeedReconnector {
+
+  private static final Logger log = LoggerFactory.getLogger(FeedReconnector.class);
+
+  private static final long INITIAL_DELAY_MS = Long.getLong("reconnect.initialDelayMs", 1000);
+  private static final long MAX_DELAY_MS = Long.getLong("reconnect.maxDelayMs", 30000);
+  private static final double MULTIPLIER =
+      Double.parseDouble(System.getProperty("reconnect.multiplier", "2"));
+  private static final double JITTER =
+      Double.parseDouble(System.getProperty("reconnect.jitter", "0.2"));
+
+  /**
+   * Reconnection state of a feed.
+   */
+  private static class FeedState {
+    private final Pipeline pipeline;
+    private ScheduledFuture<?> attempt;
+    private int failures;
+    private long failedSince;
+    private long attempts;
+    private long recoveries;
+    private long lastTimeToRecoverMs = -1;
+
+    FeedState(Pipeline pipeline) {
+      this.pipeline = pipeline;
+    }
+  }
+
+  private final ConcurrentHashMap<String, FeedState> feeds = new ConcurrentHashMap<>();
+  private ScheduledExecutorService executor;
+
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong attempts = new AtomicLong();
+  private final AtomicLong recoveries = new AtomicLong();
+  private final AtomicLong totalTimeToRecoverMs = new AtomicLong();
+  private final AtomicLong maxTimeToRecoverMs = new AtomicLong();
+
+  @PostConstruct
+  private void init() {
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "feed-reconnector");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+  /**
+   * Schedules a reconnection of a feed whose player failed, unless one is already scheduled.
+   */
+  public void reconnect(final Pipeline pipeline) {
+    FeedState state = getState(pipeline);
+    synchronized (state) {
+      if (state.attempt != null) {
+        log.debug("Reconnection of feed {} already scheduled", pipeline.getFeedId());
+        return;
+      }
+
+      this.failures.incrementAndGet();
+      state.failures++;
+      if (state.failedSince == 0) {
+        state.failedSince = System.currentTimeMillis();
+      }
+
+      long delay = getDelay(state.failures);
+      log.warn("Reconnecting feed {} in {} ms ({} consecutive failures)", pipeline.getFeedId(),
+          delay, state.failures);
+      state.attempt = this.executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          attempt(pipeline);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Records that the player of a feed is sending media again.
+   */
+  public void recovered(Pipeline pipeline) {
+    FeedState state = this.feeds.get(pipeline.getFeedId());
+    if (state == null || state.pipeline != pipeline) {
+      return;
+    }
+    long timeToRecover;
+    synchronized (state) {
+      if (state.failedSince == 0) {
+        return;
+      }
+      timeToRecover = System.currentTimeMillis() - state.failedSince;
+      log.info("Feed {} recovered after {} ms and {} failures", pipeline.getFeedId(),
+          timeToRecover, state.failures);
+      state.failures = 0;
+      state.failedSince = 0;
+      state.recoveries++;
+      state.lastTimeToRecoverMs = timeToRecover;
+    }
+
+    this.recoveries.incrementAndGet();
+    this.totalTimeToRecoverMs.addAndGet(timeToRecover);
+    long max = this.maxTimeToRecoverMs.get();
+    while (timeToRecover > max && !this.maxTimeToRecoverMs.compareAndSet(max, timeToRecover)) {
+      max = this.maxTimeToRecoverMs.get();
+    }
+  }
+
+  /**
+   * Cancels the scheduled reconnection of a feed, if any.
+   */
+  public void cancel(Pipeline pipeline) {
+    FeedState state = this.feeds.get(pipeline.getFeedId());
+    if (state == null || state.pipeline != pipeline) {
+      return;
+    }
+    synchronized (state) {
+      if (state.attempt != null) {
+        state.attempt.cancel(false);
+        state.attempt = null;
+      }
+    }
+  }
+
+  /**
+   * Cancels any reconnection of a removed feed, and forgets its state.
+   */
+  public void remove(Pipeline pipeline) {
+    cancel(pipeline);
+    FeedState state = this.feeds.get(pipeline.getFeedId());
+    if (state != null && state.pipeline == pipeline) {
+      this.feeds.remove(pipeline.getFeedId(), state);
+    }
+  }
+
+  private void attempt(Pipeline pipeline) {
+    FeedState state = this.feeds.get(pipeline.getFeedId());
+    if (state == null || state.pipeline != pipeline) {
+      // The feed was removed meanwhile
+      return;
+    }
+    synchronized (state) {
+      state.attempt = null;
+      state.attempts++;
+    }
+    this.attempts.incrementAndGet();
+
+    try {
+      pipeline.reconnect();
+    } catch (RuntimeException e) {
+      log.warn("Could not reconnect feed {}", pipeline.getFeedId(), e);
+      reconnect(pipeline);
+    }
+  }
+
+  private FeedState getState(Pipeline pipeline) {
+    FeedState state = this.feeds.get(pipeline.getFeedId());
+    if (state == null || state.pipeline != pipeline) {
+      // Replaces the state of a removed feed with the same id
+      FeedState newState = new FeedState(pipeline);
+      if (state == null) {
+        state = this.feeds.putIfAbsent(pipeline.getFeedId(), newState);
+      } else if (this.feeds.replace(pipeline.getFeedId(), state, newState)) {
+        state = null;
+      } else {
+        state = this.feeds.get(pipeline.getFeedId());
+      }
+      if (state == null) {
+        state = newState;
+      }
+    }
+    return state;
+  }
+
+  static long getDelay(int failures) {
+    double delay = INITIAL_DELAY_MS * Math.pow(MULTIPLIER, Math.max(0, failures - 1));
+    delay = Math.min(delay, MAX_DELAY_MS);
+    delay *= 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+    return Math.max(0, Math.min(MAX_DELAY_MS, Math.round(delay)));
+  }
+
+  @GetMapping("/feeds/reconnections")
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    metrics.put("failures", this.failures.get());
+    metrics.put("attempts", this.attempts.get());
+    long recoveries = this.recoveries.get();
+    metrics.put("recoveries", recoveries);
+    metrics.put("meanTimeToRecoverMs",
+        recoveries == 0 ? 0 : this.totalTimeToRecoverMs.get() / recoveries);
+    metrics.put("maxTimeToRecoverMs", this.maxTimeToRecoverMs.get());
+
+    Map<String, Object> feedMetrics = new LinkedHashMap<>();
+    for (Map.Entry<String, FeedState> entry : this.feeds.entrySet()) {
+      FeedState state = entry.getValue();
+      Map<String, Object> feed = new LinkedHashMap<>();
+      synchronized (state) {
+        feed.put("consecutiveFailures", state.failures);
+        feed.put("reconnecting", state.attempt != null);
+        feed.put("failingForMs",
+            state.failedSince == 0 ? 0 : System.currentTimeMillis() - state.failedSince);
+        feed.put("attempts", state.attempts);
+        feed.put("recoveries", state.recoveries);
+        feed.put("lastTimeToRecoverMs", state.lastTimeToRecoverMs);
+      }
+      feedMetrics.put(entry.getKey(), feed);
+    }
+    metrics.put("feeds", feedMetrics);
+    return metrics;
+  }
+
+}
@@ -0,0 +1,572 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.orion.OrionCircuitBreaker;
+import org.kurento.orion.OrionConnector;
+import org.kurento.orion.OrionConnectorException;
+import org.kurento.orion.OrionSpool;
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+import org.kurento.orion.entities.OrionEntityTemplate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Bounded queue decoupling the crowd detector events from the requests sent to Orion.
+ *
+ * Updates are coalesced per context element and attribute, so only the latest value of each
+ * attribute is kept until the next flush. Updates offered through an {@link OrionEntityTemplate}
+ * are kept as primitive values, and only turned into context elements once per flush. A single
+ * background thread flushes all pending updates in one batched {@code updateContext} request,
+ * either every {@code orion.publish.intervalMs} milliseconds or as soon as
+ * {@code orion.publish.batchSize} attributes are pending. When {@code orion.publish.maxPending}
+ * attributes are already pending, updates for new attributes are dropped.
+ *
+ * Requests go through an {@link OrionCircuitBreaker}, so no time is wasted on Orion while it is
+ * down. Updates that are rejected or fail are appended to an {@link OrionSpool} instead of being
+ * lost. When Orion is reachable again, the spooled updates are replayed in the background, with
+ * only the latest state of each context element and at most {@code orion.replay.maxPerSecond}
+ * elements per second, so the context broker isn't flooded on recovery. Attributes whose spooled
+ * value has been superseded by a newer one that did reach Orion are never replayed, so a replay
+ * cannot roll an attribute back. The queue metrics are served under {@code /orion/metrics}.
+ *
+ * @since 6.18.0
+ */
+@RestController
+public class OrionPublishQueue {
+
+  private static final Logger log = LoggerFactory.getLogger(OrionPublishQueue.class);
+
+  private static final long FLUSH_INTERVAL_MS = Long.getLong("orion.publish.intervalMs", 1000);
+  private static final int BATCH_SIZE = Integer.getInteger("orion.publish.batchSize", 64);
+  private static final int MAX_PENDING = Integer.getInteger("orion.publish.maxPending", 1024);
+
+  private static final int BREAKER_FAILURES =
+      Integer.getInteger("orion.breaker.failureThreshold", 3);
+  private static final long BREAKER_OPEN_MS = Long.getLong("orion.breaker.openMs", 10000);
+
+  private static final String SPOOL_FILE = System.getProperty("orion.spool.file",
+      new File(System.getProperty("java.io.tmpdir"), "crowddetector-orion.spool").getPath());
+  private static final int SPOOL_SIZE_MB = Integer.getInteger("orion.spool.sizeMb", 16);
+  private static final int REPLAY_RATE = Integer.getInteger("orion.replay.maxPerSecond", 50);
+  private static final int REPLAY_BATCH_SIZE = Math.max(1, Math.min(BATCH_SIZE, REPLAY_RATE));
+
+  @Autowired
+  private OrionConnector orionConnector;
+
+  private final Object lock = new Object();
+  private LinkedHashMap<String, PendingElement> pending = new LinkedHashMap<>();
+  private int pendingAttributes;
+
+  private final AtomicBoolean flushScheduled = new AtomicBoolean();
+  private ScheduledExecutorService executor;
+
+  private final OrionCircuitBreaker breaker =
+      new OrionCircuitBreaker(BREAKER_FAILURES, BREAKER_OPEN_MS);
+  private final File spoolFile;
+  private OrionSpool spool;
+
+  // Replay state, only accessed from the publisher thread
+  private LinkedHashMap<String, OrionContextElement> replaying;
+  private int replayEnd;
+  private long replayCompactions;
+  private boolean replayScheduled;
+
+  // Attributes (type/id/name) whose latest value reached Orion after a previous value of theirs
+  // was spooled, so that spooled value must not be replayed. Only accessed from the publisher
+  // thread, and emptied when the spool is.
+  private final Set<String> delivered = new HashSet<>();
+
+  private final AtomicLong offered = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong flushes = new AtomicLong();
+  private final AtomicLong failedFlushes = new AtomicLong();
+  private final AtomicLong publishedElements = new AtomicLong();
+  private final AtomicLong rejectedFlushes = new AtomicLong();
+  private final AtomicLong spooledElements = new AtomicLong();
+  private final AtomicLong lostElements = new AtomicLong();
+  private final AtomicLong replayedElements = new AtomicLong();
+  private final AtomicLong totalFlushTimeNanos = new AtomicLong();
+  private volatile long lastFlushTimeNanos;
+  private volatile long maxFlushTimeNanos;
+
+  public OrionPublishQueue() {
+    this(new File(SPOOL_FILE));
+  }
+
+  /**
+   * Spools the failed updates into the given file instead of {@code orion.spool.file}.
+   */
+  public OrionPublishQueue(File spoolFile) {
+    this.spoolFile = spoolFile;
+  }
+
+  private static class PendingElement {
+
+    private final String id;
+    private final String type;
+    private final LinkedHashMap<String, OrionAttribute<?>> attributes = new LinkedHashMap<>();
+
+    // Values offered through a template, not turned into attributes yet
+    private OrionEntityTemplate template;
+    private double[] values;
+    private boolean[] present;
+
+    PendingElement(String id, String type) {
+      this.id = id;
+      this.type = type;
+    }
+
+    PendingElement(OrionEntityTemplate template) {
+      this(template.getId(), template.getType());
+      this.template = template;
+      this.values = new double[template.getAttributeCount()];
+      this.present = new boolean[template.getAttributeCount()];
+    }
+
+    void materialize() {
+      if (template == null) {
+        return;
+      }
+      for (int i = 0; i < values.length; i++) {
+        if (present[i]) {
+          attributes.put(template.getName(i), template.toAttribute(i, values[i]));
+        }
+      }
+      template = null;
+      values = null;
+      present = null;
+    }
+
+    OrionContextElement toContextElement() {
+      materialize();
+      OrionContextElement element = new OrionContextElement();
+      element.setId(id);
+      element.setType(type);
+      element.getAttributes().addAll(attributes.values());
+      return element;
+    }
+  }
+
+  @PostConstruct
+  private void init() {
+    try {
+      this.spool = new OrionSpool(this.spoolFile, SPOOL_SIZE_MB * 1024 * 1024);
+    } catch (IOException e) {
+      log.warn("Could not open ORION spool file {}. Failed updates will be lost", this.spoolFile,
+          e);
+    }
+
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "orion-publisher");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    this.executor.shutdown();
+    try {
+      this.executor.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    if (this.spool != null) {
+      this.spool.close();
+    }
+  }
+
+  /**
+   * Queues the attributes of a context element, replacing any pending value of the same attribute.
+   * This method never blocks on Orion.
+   *
+   * @param element
+   *          The context element to be updated in Orion
+   */
+  public void offer(OrionContextElement element) {
+    String key = element.getType() + '/' + element.getId();
+    boolean flushNow;
+
+    synchronized (this.lock) {
+      for (OrionAttribute<?> attribute : element.getAttributes()) {
+        offerAttribute(key, element.getId(), element.getType(), attribute);
+      }
+      flushNow = this.pendingAttributes >= BATCH_SIZE;
+    }
+
+    scheduleFlush(flushNow);
+  }
+
+  /**
+   * Queues the update of one attribute of a context element, without building any object for it.
+   *
+   * @param attribute
+   *          Index of the attribute in the template
+   */
+  public void offer(OrionEntityTemplate template, int attribute, double value) {
+    boolean flushNow;
+
+    synchronized (this.lock) {
+      PendingElement pendingElement = this.pending.get(template.getKey());
+      if (pendingElement != null && pendingElement.template != template) {
+        // Already updated without this template
+        offerAttribute(template.getKey(), template.getId(), template.getType(),
+            template.toAttribute(attribute, value));
+      } else {
+        this.offered.incrementAndGet();
+        if (pendingElement != null && pendingElement.present[attribute]) {
+          pendingElement.values[attribute] = value;
+          this.coalesced.incrementAndGet();
+        } else if (this.pendingAttributes >= MAX_PENDING) {
+          this.dropped.incrementAndGet();
+        } else {
+          if (pendingElement == null) {
+            pendingElement = new PendingElement(template);
+            this.pending.put(template.getKey(), pendingElement);
+          }
+          pendingElement.values[attribute] = value;
+          pendingElement.present[attribute] = true;
+          this.pendingAttributes++;
+        }
+      }
+      flushNow = this.pendingAttributes >= BATCH_SIZE;
+    }
+
+    scheduleFlush(flushNow);
+  }
+
+  private void offerAttribute(String key, String id, String type, OrionAttribute<?> attribute) {
+    this.offered.incrementAndGet();
+    PendingElement pendingElement = this.pending.get(key);
+    if (pendingElement != null) {
+      pendingElement.materialize();
+      if (pendingElement.attributes.containsKey(attribute.getName())) {
+        pendingElement.attributes.put(attribute.getName(), attribute);
+        this.coalesced.incrementAndGet();
+        return;
+      }
+    }
+    if (this.pendingAttributes >= MAX_PENDING) {
+      this.dropped.incrementAndGet();
+      return;
+    }
+    if (pendingElement == null) {
+      pendingElement = new PendingElement(id, type);
+      this.pending.put(key, pendingElement);
+    }
+    pendingElement.attributes.put(attribute.getName(), attribute);
+    this.pendingAttributes++;
+  }
+
+  private void scheduleFlush(boolean flushNow) {
+    if (flushNow && this.flushScheduled.compareAndSet(false, true)) {
+      try {
+        this.executor.execute(new Runnable() {
+          @Override
+          public void run() {
+            flush();
+          }
+        });
+      } catch (RuntimeException e) {
+        this.flushScheduled.set(false);
+        log.debug("Could not schedule flush to ORION: {}", e.getMessage());
+      }
+    }
+  }
+
+  private void flush() {
+    this.flushScheduled.set(false);
+
+    LinkedHashMap<String, PendingElement> batch = null;
+    synchronized (this.lock) {
+      if (!this.pending.isEmpty()) {
+        batch = this.pending;
+        this.pending = new LinkedHashMap<>();
+        this.pendingAttributes = 0;
+      }
+    }
+
+    if (batch != null) {
+      List<OrionContextElement> elements = new ArrayList<>(batch.size());
+      for (PendingElement pendingElement : batch.values()) {
+        elements.add(pendingElement.toContextElement());
+      }
+      publish(elements);
+    }
+
+    scheduleReplay(0);
+  }
+
+  private void publish(List<OrionContextElement> elements) {
+    if (!this.breaker.allowRequest()) {
+      this.rejectedFlushes.incrementAndGet();
+      spool(elements);
+      return;
+    }
+
+    long start = System.nanoTime();
+    try {
+      this.orionConnector
+          .updateContextElements(elements.toArray(new OrionContextElement[elements.size()]));
+      this.breaker.onSuccess();
+      this.publishedElements.addAndGet(elements.size());
+      forgetReplayed(elements);
+      markDelivered(elements);
+    } catch (OrionConnectorException e) {
+      this.breaker.onFailure();
+      this.failedFlushes.incrementAndGet();
+      log.warn("Could not publish {} context elements in ORION: {}", elements.size(),
+          e.getMessage());
+      spool(elements);
+    } finally {
+      long elapsed = System.nanoTime() - start;
+      this.flushes.incrementAndGet();
+      this.totalFlushTimeNanos.addAndGet(elapsed);
+      this.lastFlushTimeNanos = elapsed;
+      if (elapsed > this.maxFlushTimeNanos) {
+        this.maxFlushTimeNanos = elapsed;
+      }
+    }
+  }
+
+  private void spool(List<OrionContextElement> elements) {
+    for (OrionContextElement element : elements) {
+      if (this.spool != null && this.spool.append(element)) {
+        this.spooledElements.incrementAndGet();
+        // The spooled value is now the latest one of these attributes
+        for (OrionAttribute<?> attribute : element.getAttributes()) {
+          this.delivered.remove(attributeKey(element, attribute));
+        }
+      } else {
+        this.lostElements.incrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Newer values have just been published, so they must not be overwritten by the replay.
+   */
+  private void forgetReplayed(List<OrionContextElement> elements) {
+    if (this.replaying == null) {
+      return;
+    }
+    for (OrionContextElement element : elements) {
+      String key = element.getType() + '/' + element.getId();
+      OrionContextElement replayed = this.replaying.get(key);
+      if (replayed == null) {
+        continue;
+      }
+      for (OrionAttribute<?> attribute : element.getAttributes()) {
+        Iterator<OrionAttribute<?>> it = replayed.getAttributes().iterator();
+        while (it.hasNext()) {
+          if (it.next().getName().equals(attribute.getName())) {
+            it.remove();
+          }
+        }
+      }
+      if (replayed.getAttributes().isEmpty()) {
+        this.replaying.remove(key);
+      }
+    }
+  }
+
+  private static String attributeKey(OrionContextElement element, OrionAttribute<?> attribute) {
+    return element.getType() + '/' + element.getId() + '/' + attribute.getName();
+  }
+
+  /**
+   * Records that these values reached Orion, superseding any value of the same attributes that is
+   * still in the spool.
+   */
+  private void markDelivered(List<OrionContextElement> elements) {
+    if (this.spool == null || (this.replaying == null && this.spool.isEmpty())) {
+      return;
+    }
+    for (OrionContextElement element : elements) {
+      for (OrionAttribute<?> attribute : element.getAttributes()) {
+        this.delivered.add(attributeKey(element, attribute));
+      }
+    }
+  }
+
+  /**
+   * Removes from spooled elements the attributes whose value has been superseded by a delivered
+   * one, and the elements left without attributes.
+   */
+  private List<OrionContextElement> withoutDelivered(List<OrionContextElement> elements) {
+    if (this.delivered.isEmpty()) {
+      return elements;
+    }
+    List<OrionContextElement> result = new ArrayList<>(elements.size());
+    for (OrionContextElement element : elements) {
+      Iterator<OrionAttribute<?>> it = element.getAttributes().iterator();
+      while (it.hasNext()) {
+        if (this.delivered.contains(attributeKey(element, it.next()))) {
+          it.remove();
+        }
+      }
+      if (!element.getAttributes().isEmpty()) {
+        result.add(element);
+      }
+    }
+    return result;
+  }
+
+  private void scheduleReplay(long delay) {
+    if (this.replayScheduled || this.spool == null
+        || (this.replaying == null && this.spool.isEmpty())) {
+      return;
+    }
+    try {
+      this.executor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          replay();
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+      this.replayScheduled = true;
+    } catch (RuntimeException e) {
+      log.debug("Could not schedule replay to ORION: {}", e.getMessage());
+    }
+  }
+
+  private void replay() {
+    this.replayScheduled = false;
+
+    if (this.replaying == null) {
+      this.replayEnd = this.spool.getPosition();
+      this.replayCompactions = this.spool.getCompactions();
+      this.replaying = new LinkedHashMap<>();
+      for (OrionContextElement element : withoutDelivered(this.spool.read(0))) {
+        this.replaying.put(element.getType() + '/' + element.getId(), element);
+      }
+      log.info("Replaying {} spooled context elements to ORION", this.replaying.size());
+    }
+
+    if (!this.replaying.isEmpty()) {
+      if (!this.breaker.allowRequest()) {
+        // Resumed from a later flush
+        return;
+      }
+
+      List<OrionContextElement> elements = new ArrayList<>(REPLAY_BATCH_SIZE);
+      Iterator<OrionContextElement> it = this.replaying.values().iterator();
+      while (it.hasNext() && elements.size() < REPLAY_BATCH_SIZE) {
+        elements.add(it.next());
+        it.remove();
+      }
+
+      try {
+        this.orionConnector
+            .updateContextElements(elements.toArray(new OrionContextElement[elements.size()]));
+        this.breaker.onSuccess();
+        this.replayedElements.addAndGet(elements.size());
+        markDelivered(elements);
+      } catch (OrionConnectorException e) {
+        this.breaker.onFailure();
+        log.warn("Could not replay {} context elements in ORION: {}", elements.size(),
+            e.getMessage());
+        for (OrionContextElement element : elements) {
+          this.replaying.put(element.getType() + '/' + element.getId(), element);
+        }
+        return;
+      }
+
+      if (!this.replaying.isEmpty()) {
+        scheduleReplay(elements.size() * 1000L / REPLAY_RATE);
+        return;
+      }
+    }
+
+    // Keep only what was spooled while replaying. If the spool had to be compacted meanwhile, the
+    // old positions are lost and the whole spool is read again: the values replayed or superseded
+    // by a live update are all in the delivered set, and only the ones spooled afterwards remain.
+    int from = (this.spool.getCompactions() == this.replayCompactions) ? this.replayEnd : 0;
+    this.spool.rewrite(withoutDelivered(this.spool.read(from)));
+    this.delivered.clear();
+    this.replaying = null;
+    log.info("Finished replaying spooled context elements to ORION");
+  }
+
+  public int getQueueDepth() {
+    synchronized (this.lock) {
+      return this.pendingAttributes;
+    }
+  }
+
+  @GetMapping("/orion/metrics")
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<>();
+    long flushCount = this.flushes.get();
+
+    metrics.put("queueDepth", getQueueDepth());
+    metrics.put("maxPending", MAX_PENDING);
+    metrics.put("offered", this.offered.get());
+    metrics.put("coalesced", this.coalesced.get());
+    metrics.put("dropped", this.dropped.get());
+    metrics.put("flushes", flushCount);
+    metrics.put("failedFlushes", this.failedFlushes.get());
+    metrics.put("publishedElements", this.publishedElements.get());
+    metrics.put("breakerState", this.breaker.getState());
+    metrics.put("rejectedFlushes", this.rejectedFlushes.get());
+    metrics.put("spooledElements", this.spooledElements.get());
+    metrics.put("lostElements", this.lostElements.get());
+    metrics.put("spoolBytes", (this.spool != null) ? this.spool.getUsedBytes() : 0);
+    metrics.put("replayedElements", this.replayedElements.get());
+    metrics.put("lastFlushMs", TimeUnit.NANOSECONDS.toMillis(this.lastFlushTimeNanos));
+    metrics.put("maxFlushMs", TimeUnit.NANOSECONDS.toMillis(this.maxFlushTimeNanos));
+    metrics.put("avgFlushMs", flushCount == 0 ? 0
+        : TimeUnit.NANOSECONDS.toMillis(this.totalFlushTimeNanos.get() / flushCount));
+    return metrics;
+  }
+}
@@ -20,21 +20,23 @@ package org.kurento.demo;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 
-import javax.annotation.PostConstruct;
-
 import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaFlowInStateChangedEvent;
+import org.kurento.client.MediaFlowOutStateChangedEvent;
+import org.kurento.client.MediaFlowState;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
+import org.kurento.client.PassThrough;
 import org.kurento.client.PlayerEndpoint;
 import org.kurento.client.WebRtcEndpoint;
+import org.kurento.demo.history.HistoryStore;
+import org.kurento.demo.trace.EventTraceRecorder;
+import org.kurento.demo.trace.EventTraceReplayer;
 import org.kurento.module.crowddetector.CrowdDetectorDirectionEvent;
 import org.kurento.module.crowddetector.CrowdDetectorFilter;
 import org.kurento.module.crowddetector.CrowdDetectorFluidityEvent;
@@ -48,59 +50,65 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
+/**
+ * A camera feed, analysed by its own crowd detector filter with its own set of ROIs. Instances are
+ * created by the {@link FeedManager}, and several feeds may share the same media pipeline.
+ *
+ * Viewers are connected to a {@link PassThrough} fed by the filter, so the player and filter can be
+ * replaced without touching the viewers. When the feed changes, the new player and filter are built
+ * alongside the current ones, and only replace them once the new player is sending video. When
+ * only the ROIs change, just the filter is replaced, once the current player feeds the new one.
+ */
 public class Pipeline {
 
   private static final Logger log = LoggerFactory.getLogger(Pipeline.class);
-  private static final long RECONNECTION_TIME = 30 * 1000;
 
   @Autowired
-  private ConfigurationReader configuration;
+  private CrowdDetectorOrionPublisher orionPublisher;
 
   @Autowired
-  private KurentoClient kurento;
+  private RoiAnalytics analytics;
 
   @Autowired
-  private CrowdDetectorOrionPublisher orionPublisher;
+  private HistoryStore history;
 
-  private MediaPipeline pipe;
+  @Autowired
+  private FeedReconnector reconnector;
+
+  @Autowired(required = false)
+  private EventTraceRecorder traceRecorder;
+
+  private final String feedId;
+  private final MediaPipeline pipe;
+  private PassThrough output;
   private PlayerEndpoint playerEndpoint;
-  private CrowdDetectorFilter crowdDetectorFilter;
+  // Read by the event listeners, to ignore the events of replaced filters
+  private volatile CrowdDetectorFilter crowdDetectorFilter;
+  // Player and filter of a feed change, waiting for media to replace the current ones
+  private PlayerEndpoint pendingPlayer;
+  private CrowdDetectorFilter pendingFilter;
+  // Filter with new ROIs, fed by the current player and waiting for media to replace its filter
+  private CrowdDetectorFilter replacementFilter;
   private String feedUrl;
   private List<RegionOfInterest> rois;
   private final Map<String, WebRtcEndpoint> webRtcEndpoints = new ConcurrentHashMap<>();
   private boolean playing;
-  private Timer timer;
-
-  @PostConstruct
-  public void init() {
+  private boolean released;
+  private final ProcessingWidthController widthController = new ProcessingWidthController();
 
-    this.pipe = this.kurento.createMediaPipeline();
-
-    this.rois = new ArrayList<>();
-    JsonArray loadedRois;
-
-    JsonObject config = this.configuration.getConfig();
+  public Pipeline(String feedId, MediaPipeline pipe, String feedUrl,
+      List<RegionOfInterest> rois) {
+    this.feedId = feedId;
+    this.pipe = pipe;
+    this.feedUrl = feedUrl;
+    this.rois = rois;
+  }
 
-    if (config != null) {
-      JsonElement feedUrlJson = config.get("feedUrl");
-      if (feedUrlJson != null) {
-        this.feedUrl = feedUrlJson.getAsString();
-      } else {
-        log.debug("Url feed not defined.");
-      }
+  public void start() {
 
-      JsonElement loadedRoisJson = config.get("rois");
-      if (loadedRoisJson != null) {
-        loadedRois = loadedRoisJson.getAsJsonArray();
-        this.rois = readRoisFromJson(loadedRois);
-      } else {
-        this.rois = getDummyRois();
-        log.debug("Rois not defined. Using dummy rois");
-      }
-    }
+    this.output = new PassThrough.Builder(this.pipe).build();
 
     if (this.feedUrl == null) {
       // PlayerEndpoint will be configured later.
@@ -113,60 +121,163 @@ public class Pipeline {
       log.warn("Could not register ROIs in ORION");
     }
 
-    this.crowdDetectorFilter = new CrowdDetectorFilter.Builder(this.pipe, this.rois).build();
-    this.crowdDetectorFilter.setProcessingWidth(640);
+    setFeedUrl(this.feedUrl);
+  }
 
-    addOrionListeners();
+  private void addPlayerListeners(final PlayerEndpoint player) {
+    player.addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
+      @Override
+      public void onEvent(EndOfStreamEvent event) {
+        onPlayerEndOfStream(player);
+      }
+    });
 
-    this.playerEndpoint = new PlayerEndpoint.Builder(this.pipe, this.feedUrl).build();
-    addPlayerListeners();
-    this.playing = true;
+    player.addErrorListener(new EventListener<ErrorEvent>() {
+      @Override
+      public void onEvent(ErrorEvent event) {
+        onPlayerError(player, event);
+      }
+    });
+
+    player.addMediaFlowOutStateChangedListener(new EventListener<MediaFlowOutStateChangedEvent>() {
+      @Override
+      public void onEvent(MediaFlowOutStateChangedEvent event) {
+        if (event.getMediaType() == MediaType.VIDEO && event.getState() == MediaFlowState.FLOWING
+            && player == Pipeline.this.playerEndpoint) {
+          Pipeline.this.reconnector.recovered(Pipeline.this);
+        }
+      }
+    });
+  }
+
+  private synchronized void onPlayerEndOfStream(PlayerEndpoint player) {
+    log.warn("Received EOS from Player");
+    if (player != this.playerEndpoint) {
+      discardPending(player);
+      return;
+    }
+    // Restarted like a failed player, so a pending player created for the restart is switched to
+    // right away, and a restart that fails again is retried with a growing delay
+    if (this.playing && !this.released) {
+      this.playing = false;
+      this.reconnector.reconnect(this);
+    }
+  }
 
-    this.playerEndpoint.connect(this.crowdDetectorFilter);
-    this.playerEndpoint.play();
+  private synchronized void onPlayerError(PlayerEndpoint player, ErrorEvent event) {
+    log.error("Error received from Media server: {} (code {}, type {})", event.getDescription(),
+        event.getErrorCode(), event.getType());
+    if (player != this.playerEndpoint) {
+      // The feed change failed, but the current player keeps playing
+      discardPending(player);
+      return;
+    }
+    if (this.playing && !this.released) {
+      this.playing = false;
+      this.reconnector.reconnect(this);
+    }
   }
 
-  private void addPlayerListeners() {
-    this.playerEndpoint.addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
+  /**
+   * Creates the player of the feed again, if it is still failing. Called by
+   * {@link FeedReconnector}.
+   */
+  synchronized void reconnect() {
+    if (this.released || this.playing) {
+      return;
+    }
+    setFeedUrl(this.feedUrl);
+  }
+
+  private void addSwitchListener(final PlayerEndpoint player, final CrowdDetectorFilter filter) {
+    player.addMediaFlowOutStateChangedListener(new EventListener<MediaFlowOutStateChangedEvent>() {
       @Override
-      public void onEvent(EndOfStreamEvent event) {
-        log.warn("Received EOS from Player");
-        if (Pipeline.this.timer != null) {
-          try {
-            Pipeline.this.timer.cancel();
-          } catch (Exception e) {
-            log.debug("Empty timer");
-          }
+      public void onEvent(MediaFlowOutStateChangedEvent event) {
+        if (event.getMediaType() == MediaType.VIDEO
+            && event.getState() == MediaFlowState.FLOWING) {
+          switchTo(player, filter);
         }
-        setFeedUrl(Pipeline.this.feedUrl);
       }
     });
+  }
+
+  /**
+   * Replaces the current player and filter with the given ones, if they are still the pending
+   * ones. Viewers are moved with a single connection to the output, and then the previous player
+   * and filter are released.
+   */
+  private synchronized void switchTo(PlayerEndpoint player, CrowdDetectorFilter filter) {
+    if (player != this.pendingPlayer) {
+      return;
+    }
+    this.pendingPlayer = null;
+    this.pendingFilter = null;
 
-    this.playerEndpoint.addErrorListener(new EventListener<ErrorEvent>() {
+    PlayerEndpoint previousPlayer = this.playerEndpoint;
+    CrowdDetectorFilter previousFilter = this.crowdDetectorFilter;
+
+    filter.connect(this.output);
+    addOrionListeners(filter);
+    this.crowdDetectorFilter = filter;
+    this.playerEndpoint = player;
+    this.playing = true;
+
+    if (previousPlayer != null) {
+      log.debug("Releasing previous elements");
+      previousFilter.release();
+      previousPlayer.release();
+    }
+    log.debug("New player is now running for {} webrtcendpoints", this.webRtcEndpoints.size());
+  }
+
+  private void addFilterSwitchListener(final CrowdDetectorFilter filter) {
+    filter.addMediaFlowInStateChangedListener(new EventListener<MediaFlowInStateChangedEvent>() {
       @Override
-      public void onEvent(ErrorEvent event) {
-        synchronized (this) {
-          log.error("Error received from Media server: {} (code {}, type {})",
-              event.getDescription(), event.getErrorCode(), event.getType());
-          if (Pipeline.this.playing) {
-            Pipeline.this.playing = false;
-            log.error("Timer added to create the player again");
-            Pipeline.this.timer = new Timer();
-
-            TimerTask task = new TimerTask() {
-              @Override
-              public void run() {
-                setFeedUrl(Pipeline.this.feedUrl);
-              }
-            };
-            Pipeline.this.timer.schedule(task, RECONNECTION_TIME);
-          }
+      public void onEvent(MediaFlowInStateChangedEvent event) {
+        if (event.getMediaType() == MediaType.VIDEO
+            && event.getState() == MediaFlowState.FLOWING) {
+          switchFilter(filter);
         }
       }
     });
   }
 
-  private static List<RegionOfInterest> readRoisFromJson(JsonArray loadedRois) {
+  /**
+   * Replaces the current filter with the given one, if it is still the replacement one. The player
+   * is kept, so the feed is not opened again.
+   */
+  private synchronized void switchFilter(CrowdDetectorFilter filter) {
+    if (filter != this.replacementFilter) {
+      return;
+    }
+    this.replacementFilter = null;
+
+    CrowdDetectorFilter previousFilter = this.crowdDetectorFilter;
+    filter.connect(this.output);
+    addOrionListeners(filter);
+    this.crowdDetectorFilter = filter;
+    previousFilter.release();
+    log.debug("New filter is now running for {} webrtcendpoints", this.webRtcEndpoints.size());
+  }
+
+  private synchronized void discardReplacementFilter() {
+    if (this.replacementFilter != null) {
+      this.replacementFilter.release();
+      this.replacementFilter = null;
+    }
+  }
+
+  private synchronized void discardPending(PlayerEndpoint player) {
+    if (player == null || player != this.pendingPlayer) {
+      return;
+    }
+    this.pendingFilter.release();
+    this.pendingPlayer.release();
+    this.pendingPlayer = null;
+    this.pendingFilter = null;
+  }
+
+  static List<RegionOfInterest> readRoisFromJson(JsonArray loadedRois) {
 
     List<RegionOfInterest> rois = new ArrayList<>();
 
@@ -221,7 +332,7 @@ public class Pipeline {
     return rois;
   }
 
-  private static List<RegionOfInterest> getDummyRois() {
+  static List<RegionOfInterest> getDummyRois() {
 
     List<RelativePoint> points = new ArrayList<>();
 
@@ -264,58 +375,122 @@ public class Pipeline {
     return rois;
   }
 
-  public void addOrionListeners() {
+  public void addOrionListeners(final CrowdDetectorFilter filter) {
 
-    this.crowdDetectorFilter
+    filter
         .addCrowdDetectorDirectionListener(new EventListener<CrowdDetectorDirectionEvent>() {
           @Override
           public void onEvent(CrowdDetectorDirectionEvent event) {
-
-            try {
-              Pipeline.this.orionPublisher.publishEvent(event);
-            } catch (OrionConnectorException e) {
-              log.warn("Could not publish event in ORION");
+            if (filter != Pipeline.this.crowdDetectorFilter) {
+              return;
             }
-
-            log.debug("Direction event detected in roi {} direction {}", event.getRoiID(),
-                event.getDirectionAngle());
+            if (Pipeline.this.traceRecorder != null) {
+              Pipeline.this.traceRecorder.record(Pipeline.this.feedId, event);
+            }
+            onDirectionEvent(event);
           }
         });
 
-    this.crowdDetectorFilter
+    filter
         .addCrowdDetectorFluidityListener(new EventListener<CrowdDetectorFluidityEvent>() {
           @Override
           public void onEvent(CrowdDetectorFluidityEvent event) {
-
-            try {
-              Pipeline.this.orionPublisher.publishEvent(event);
-            } catch (OrionConnectorException e) {
-              log.warn("Could not publish event in ORION");
+            if (filter != Pipeline.this.crowdDetectorFilter) {
+              return;
             }
-
-            log.debug("Fluidity event detected in roi {} percentage {}  level {}", event.getRoiID(),
-                event.getFluidityPercentage(), event.getFluidityLevel());
+            if (Pipeline.this.traceRecorder != null) {
+              Pipeline.this.traceRecorder.record(Pipeline.this.feedId, event);
+            }
+            onFluidityEvent(event);
           }
         });
 
-    this.crowdDetectorFilter
+    filter
         .addCrowdDetectorOccupancyListener(new EventListener<CrowdDetectorOccupancyEvent>() {
           @Override
           public void onEvent(CrowdDetectorOccupancyEvent event) {
-
-            try {
-              Pipeline.this.orionPublisher.publishEvent(event);
-            } catch (OrionConnectorException e) {
-              log.warn("Could not publish event in ORION");
+            if (filter != Pipeline.this.crowdDetectorFilter) {
+              return;
             }
-
-            log.debug("Occupancy event detected in roi {} percentage {} level {}", event.getRoiID(),
-                event.getOccupancyPercentage(), event.getOccupancyLevel());
+            if (Pipeline.this.traceRecorder != null) {
+              Pipeline.this.traceRecorder.record(Pipeline.this.feedId, event);
+            }
+            onOccupancyEvent(event);
           }
         });
 
   }
 
+  /**
+   * Handles a direction event of the crowd detector filter. Also called by
+   * {@link EventTraceReplayer} to replay recorded events.
+   */
+  public void onDirectionEvent(CrowdDetectorDirectionEvent event) {
+
+    recordLatency(event.getTimestampMillis());
+    this.history.record(event.getRoiID(), HistoryStore.DIRECTION, event.getDirectionAngle());
+    if (this.analytics.record(event)) {
+      this.orionPublisher.publishEvent(event);
+    }
+
+    log.debug("Direction event detected in roi {} direction {}", event.getRoiID(),
+        event.getDirectionAngle());
+  }
+
+  /**
+   * Handles a fluidity event of the crowd detector filter.
+   */
+  public void onFluidityEvent(CrowdDetectorFluidityEvent event) {
+
+    recordLatency(event.getTimestampMillis());
+    this.history.record(event.getRoiID(), HistoryStore.FLUIDITY, event.getFluidityPercentage());
+    if (this.analytics.record(event)) {
+      this.orionPublisher.publishEvent(event);
+    }
+
+    log.debug("Fluidity event detected in roi {} percentage {}  level {}", event.getRoiID(),
+        event.getFluidityPercentage(), event.getFluidityLevel());
+  }
+
+  /**
+   * Handles an occupancy event of the crowd detector filter.
+   */
+  public void onOccupancyEvent(CrowdDetectorOccupancyEvent event) {
+
+    recordLatency(event.getTimestampMillis());
+    this.history.record(event.getRoiID(), HistoryStore.OCCUPANCY,
+        event.getOccupancyPercentage());
+    if (this.analytics.record(event)) {
+      this.orionPublisher.publishEvent(event);
+    }
+
+    log.debug("Occupancy event detected in roi {} percentage {} level {}", event.getRoiID(),
+        event.getOccupancyPercentage(), event.getOccupancyLevel());
+  }
+
+  /**
+   * Releases the media elements of this feed and of its viewers.
+   */
+  public synchronized void release() {
+    this.reconnector.remove(this);
+    this.released = true;
+    this.playing = false;
+    for (String session : this.webRtcEndpoints.keySet()) {
+      removeWebRtcEndpoint(session);
+    }
+    discardPending(this.pendingPlayer);
+    discardReplacementFilter();
+    if (this.playerEndpoint != null) {
+      this.crowdDetectorFilter.release();
+      this.playerEndpoint.release();
+    }
+    this.output.release();
+  }
+
+  public String getFeedId() {
+    return this.feedId;
+  }
+
   public CrowdDetectorFilter getCrowdDetectorFilter() {
     return this.crowdDetectorFilter;
   }
@@ -328,35 +503,119 @@ public class Pipeline {
     return this.feedUrl;
   }
 
-  public void setFeedUrl(String feedUrl) {
+  /**
+   * Changes the feed. The current player and filter, if they are playing, keep feeding the viewers
+   * until the new player sends video.
+   */
+  public synchronized void setFeedUrl(String feedUrl) {
     this.feedUrl = feedUrl;
 
-    if (this.playerEndpoint != null) {
-      log.debug("Releasing previous elements");
-      this.crowdDetectorFilter.release();
-      this.playerEndpoint.release();
-    }
+    // A previous change that never got media is superseded by this one
+    discardPending(this.pendingPlayer);
+    discardReplacementFilter();
 
     log.debug("Creating new elements");
 
-    this.crowdDetectorFilter = new CrowdDetectorFilter.Builder(this.pipe, this.rois).build();
-    this.crowdDetectorFilter.setProcessingWidth(640);
+    CrowdDetectorFilter filter = new CrowdDetectorFilter.Builder(this.pipe, this.rois).build();
+    filter.setProcessingWidth(this.widthController.getWidth());
 
-    addOrionListeners();
+    PlayerEndpoint player = new PlayerEndpoint.Builder(this.pipe, this.feedUrl).build();
+    addPlayerListeners(player);
+    player.connect(filter);
 
-    this.playerEndpoint = new PlayerEndpoint.Builder(this.pipe, this.feedUrl).build();
-    addPlayerListeners();
-    this.playing = true;
+    this.pendingPlayer = player;
+    this.pendingFilter = filter;
+
+    if (this.playerEndpoint == null || !this.playing) {
+      // Nothing is being shown, so there is no point in waiting for the new player
+      switchTo(player, filter);
+    } else {
+      addSwitchListener(player, filter);
+    }
+    player.play();
+  }
 
-    this.playerEndpoint.connect(this.crowdDetectorFilter);
-    this.playerEndpoint.play();
+  /**
+   * Adapts the processing width of the filter to a new CPU usage sample of its KMS.
+   */
+  public synchronized void adjustProcessingWidth(float usedCpu) {
+    if (!this.widthController.update(usedCpu) || this.crowdDetectorFilter == null) {
+      return;
+    }
+    int width = this.widthController.getWidth();
+    log.info("Processing width of feed {} set to {} (CPU {}%, extra latency {} ms)", this.feedId,
+        width, usedCpu, this.widthController.getExtraLatency());
+    this.crowdDetectorFilter.setProcessingWidth(width);
+  }
 
-    log.debug("New player is now runing");
-    log.debug("Connecting " + this.webRtcEndpoints.size() + " webrtcendpoints");
-    // change the feed for all the webrtc clients connected.
-    for (Entry<String, WebRtcEndpoint> ep : this.webRtcEndpoints.entrySet()) {
-      this.crowdDetectorFilter.connect(ep.getValue());
+  /**
+   * Fixes the processing width of the filter, or adapts it again to the load if not positive.
+   */
+  public synchronized void setProcessingWidth(int width) {
+    if (width <= 0) {
+      this.widthController.unpin();
+      return;
     }
+    this.widthController.pin(width);
+    if (this.crowdDetectorFilter != null) {
+      this.crowdDetectorFilter.setProcessingWidth(this.widthController.getWidth());
+    }
+  }
+
+  private void recordLatency(String timestampMillis) {
+    try {
+      this.widthController.recordEvent(Long.parseLong(timestampMillis),
+          System.currentTimeMillis());
+    } catch (NumberFormatException e) {
+      log.debug("Invalid event timestamp {}", timestampMillis);
+    }
+  }
+
+  /**
+   * Updates the feed URL or the ROIs of this feed without interrupting the viewers. A new feed URL
+   * needs a new player and filter, but new ROIs on a playing feed only need a new filter, fed by
+   * the current player.
+   *
+   * @param feedUrl
+   *          New feed URL, or null to keep the current one
+   * @param rois
+   *          New ROIs, or null to keep the current ones
+   */
+  public synchronized void reconfigure(String feedUrl, List<RegionOfInterest> rois) {
+    if (rois != null) {
+      this.rois = rois;
+    }
+    if (feedUrl == null && this.playing && this.pendingPlayer == null) {
+      if (rois != null) {
+        replaceFilter();
+      }
+      return;
+    }
+    String newFeedUrl = (feedUrl != null) ? feedUrl : this.feedUrl;
+    if (newFeedUrl != null) {
+      setFeedUrl(newFeedUrl);
+    }
+  }
+
+  /**
+   * Connects a filter with the current ROIs to the current player, to replace the current filter
+   * once it receives video.
+   */
+  private void replaceFilter() {
+    discardReplacementFilter();
+
+    CrowdDetectorFilter filter = new CrowdDetectorFilter.Builder(this.pipe, this.rois).build();
+    filter.setProcessingWidth(this.widthController.getWidth());
+    this.replacementFilter = filter;
+    addFilterSwitchListener(filter);
+    this.playerEndpoint.connect(filter);
+  }
+
+  /**
+   * @return The element viewers must be connected to
+   */
+  public PassThrough getOutput() {
+    return this.output;
   }
 
   public MediaPipeline getPipeline() {
@@ -0,0 +1,170 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo;
+
+/**
+ * Chooses the processing width of a crowd detector filter from the CPU usage of its KMS and the
+ * latency of its events.
+ *
+ * The width goes down one step as soon as the CPU usage goes over {@code processing.cpuHigh}
+ * percent, or the event latency grows more than {@code processing.latencyHighMs} milliseconds
+ * over the lowest one seen recently. It only goes up again after {@code processing.stableSamples}
+ * consecutive samples below {@code processing.cpuLow} percent and half that latency, so the width
+ * doesn't flap around a threshold. The width always stays within {@code processing.minWidth} and
+ * {@code processing.maxWidth}, even when pinned.
+ *
+ * The latency is only taken into account in the samples where events arrived, and decays
+ * otherwise. The lowest latency is looked for again every {@code processing.rebaselineMs}
+ * milliseconds, so a clock step between KMS and this host is forgotten within two periods instead
+ * of keeping the width low forever.
+ *
+ * @since 6.18.0
+ */
+public class ProcessingWidthController {
+
+  public static final int MIN_WIDTH = Integer.getInteger("processing.minWidth", 160);
+  public static final int MAX_WIDTH = Integer.getInteger("processing.maxWidth", 640);
+  private static final int STEP = Integer.getInteger("processing.step", 80);
+  private static final float CPU_HIGH = Integer.getInteger("processing.cpuHigh", 80);
+  private static final float CPU_LOW = Integer.getInteger("processing.cpuLow", 50);
+  private static final long LATENCY_HIGH_MS = Long.getLong("processing.latencyHighMs", 1000);
+  private static final int STABLE_SAMPLES = Integer.getInteger("processing.stableSamples", 3);
+  private static final long REBASELINE_MS = Long.getLong("processing.rebaselineMs", 600000);
+
+  // Weight of the latest event in the smoothed latency
+  private static final double LATENCY_ALPHA = 0.2;
+  // Factor applied to the smoothed latency in every sample without events
+  private static final double LATENCY_DECAY = 0.5;
+
+  private int width = MAX_WIDTH;
+  private boolean pinned;
+  private int stableSamples;
+
+  // Event latencies include the clock offset between KMS and this host, so only the increase over
+  // the lowest latency seen is meaningful. The lowest one of the current period becomes the base
+  // when the period is over.
+  private long baseLatency = Long.MAX_VALUE;
+  private long periodBaseLatency = Long.MAX_VALUE;
+  private long periodStart = -1;
+  private double latency;
+  private int eventsSinceUpdate;
+
+  public synchronized int getWidth() {
+    return this.width;
+  }
+
+  public synchronized boolean isPinned() {
+    return this.pinned;
+  }
+
+  /**
+   * Fixes the width to the given value, which is no longer adjusted until {@link #unpin()}.
+   */
+  public synchronized void pin(int width) {
+    this.width = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, width));
+    this.pinned = true;
+  }
+
+  public synchronized void unpin() {
+    this.pinned = false;
+    this.stableSamples = 0;
+  }
+
+  /**
+   * Records the delay between an event being raised in KMS and received here.
+   */
+  public synchronized void recordEvent(long raisedMillis, long receivedMillis) {
+    long eventLatency = receivedMillis - raisedMillis;
+    if (this.periodStart < 0) {
+      this.periodStart = receivedMillis;
+    } else if (receivedMillis - this.periodStart >= REBASELINE_MS
+        || receivedMillis < this.periodStart) {
+      rebaseline(receivedMillis);
+    }
+
+    if (eventLatency < this.periodBaseLatency) {
+      this.periodBaseLatency = eventLatency;
+    }
+    if (eventLatency < this.baseLatency) {
+      this.latency = Math.max(0, this.latency - (this.baseLatency - eventLatency));
+      this.baseLatency = eventLatency;
+    }
+    this.latency += LATENCY_ALPHA * (eventLatency - this.baseLatency - this.latency);
+    this.eventsSinceUpdate++;
+  }
+
+  private void rebaseline(long now) {
+    if (this.periodBaseLatency != Long.MAX_VALUE && this.periodBaseLatency > this.baseLatency) {
+      // Keep the smoothed latency relative to the new base
+      this.latency = Math.max(0, this.latency - (this.periodBaseLatency - this.baseLatency));
+      this.baseLatency = this.periodBaseLatency;
+    }
+    this.periodBaseLatency = Long.MAX_VALUE;
+    this.periodStart = now;
+  }
+
+  /**
+   * @return The extra event latency over the lowest one, in milliseconds
+   */
+  public synchronized long getExtraLatency() {
+    return Math.round(this.latency);
+  }
+
+  /**
+   * Updates the width with a new CPU usage sample.
+   *
+   * @return true if the width changed
+   */
+  public synchronized boolean update(float usedCpu) {
+    // Without new events the latency is unknown, not high: let it fade out
+    boolean freshLatency = this.eventsSinceUpdate > 0;
+    this.eventsSinceUpdate = 0;
+    if (!freshLatency) {
+      this.latency *= LATENCY_DECAY;
+    }
+
+    if (this.pinned) {
+      return false;
+    }
+
+    if (usedCpu > CPU_HIGH || (freshLatency && this.latency > LATENCY_HIGH_MS)) {
+      this.stableSamples = 0;
+      return setWidth(this.width - STEP);
+    }
+
+    if (usedCpu < CPU_LOW && this.latency < LATENCY_HIGH_MS / 2) {
+      if (++this.stableSamples >= STABLE_SAMPLES) {
+        this.stableSamples = 0;
+        return setWidth(this.width + STEP);
+      }
+    } else {
+      this.stableSamples = 0;
+    }
+    return false;
+  }
+
+  private boolean setWidth(int width) {
+    int bounded = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, width));
+    if (bounded == this.width) {
+      return false;
+    }
+    this.width = bounded;
+    return true;
+  }
+
+}
@@ -0,0 +1,311 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.module.crowddetector.CrowdDetectorDirectionEvent;
+import org.kurento.module.crowddetector.CrowdDetectorFluidityEvent;
+import org.kurento.module.crowddetector.CrowdDetectorOccupancyEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Per-ROI statistics of the occupancy and fluidity percentages and of the direction angle, over the
+ * last minute, 5 minutes and hour.
+ *
+ * It also decides which events are worth publishing in Orion: occupancy and fluidity events only
+ * when their level changes, direction events only when the angle moves to another 45 degree sector,
+ * and otherwise the latest event of each kind once per minute, when the shortest window rolls over.
+ *
+ * The statistics are served under {@code /analytics}, and pushed every
+ * {@code analytics.pushIntervalMs} milliseconds to the registered listeners.
+ *
+ * @since 6.18.0
+ */
+@RestController
+public class RoiAnalytics {
+
+  private static final Logger log = LoggerFactory.getLogger(RoiAnalytics.class);
+
+  private static final long PUSH_INTERVAL_MS = Long.getLong("analytics.pushIntervalMs", 5000);
+  private static final long ROLLOVER_MS = 60 * 1000;
+  private static final int HISTOGRAM_BINS = 100;
+  private static final float DIRECTION_SECTOR = 45;
+
+  private static final String[] WINDOW_NAMES = { "1m", "5m", "1h" };
+
+  /**
+   * Receives the statistics of all ROIs, as returned by {@link RoiAnalytics#getStats()}.
+   */
+  public interface Listener {
+    void onStats(Map<String, Object> stats);
+  }
+
+  @Autowired
+  private CrowdDetectorOrionPublisher orionPublisher;
+
+  private final ConcurrentHashMap<String, RoiStats> rois = new ConcurrentHashMap<>();
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private ScheduledExecutorService executor;
+
+  private static class Metric {
+
+    private final SlidingWindow[] windows;
+
+    Metric(float lowest, float highest) {
+      this.windows = new SlidingWindow[] {
+          new SlidingWindow(60, 1000, lowest, highest, HISTOGRAM_BINS),
+          new SlidingWindow(60, 5 * 1000, lowest, highest, HISTOGRAM_BINS),
+          new SlidingWindow(60, 60 * 1000, lowest, highest, HISTOGRAM_BINS) };
+    }
+
+    void record(long timestamp, float value) {
+      for (SlidingWindow window : this.windows) {
+        window.record(timestamp, value);
+      }
+    }
+
+    Map<String, Object> getStats(long timestamp) {
+      Map<String, Object> stats = new LinkedHashMap<>();
+      for (int i = 0; i < this.windows.length; i++) {
+        stats.put(WINDOW_NAMES[i], this.windows[i].getStats(timestamp));
+      }
+      return stats;
+    }
+  }
+
+  private static class RoiStats {
+
+    private final Metric occupancy = new Metric(0, 100);
+    private final Metric fluidity = new Metric(0, 100);
+    private final Metric direction = new Metric(0, 360);
+
+    private int occupancyLevel = -1;
+    private int fluidityLevel = -1;
+    private int directionSector = -1;
+
+    // Latest events not published in Orion yet
+    private CrowdDetectorOccupancyEvent pendingOccupancy;
+    private CrowdDetectorFluidityEvent pendingFluidity;
+    private CrowdDetectorDirectionEvent pendingDirection;
+
+    synchronized Map<String, Object> getStats(long timestamp) {
+      Map<String, Object> stats = new LinkedHashMap<>();
+      stats.put("occupancyLevel", this.occupancyLevel);
+      stats.put("fluidityLevel", this.fluidityLevel);
+      stats.put("occupancyPercentage", this.occupancy.getStats(timestamp));
+      stats.put("fluidityPercentage", this.fluidity.getStats(timestamp));
+      stats.put("directionAngle", this.direction.getStats(timestamp));
+      return stats;
+    }
+  }
+
+  @PostConstruct
+  private void init() {
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "roi-analytics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    this.executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        publishPending();
+      }
+    }, ROLLOVER_MS, ROLLOVER_MS, TimeUnit.MILLISECONDS);
+
+    this.executor.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        pushStats();
+      }
+    }, PUSH_INTERVAL_MS, PUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    this.executor.shutdownNow();
+  }
+
+  public void addListener(Listener listener) {
+    this.listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    this.listeners.remove(listener);
+  }
+
+  /**
+   * @return true if the occupancy level of the ROI changed, so the event must be published.
+   */
+  public boolean record(CrowdDetectorOccupancyEvent event) {
+    RoiStats roi = getRoi(event.getRoiID());
+    synchronized (roi) {
+      roi.occupancy.record(System.currentTimeMillis(), event.getOccupancyPercentage());
+      if (roi.occupancyLevel == event.getOccupancyLevel()) {
+        roi.pendingOccupancy = event;
+        return false;
+      }
+      roi.occupancyLevel = event.getOccupancyLevel();
+      roi.pendingOccupancy = null;
+      return true;
+    }
+  }
+
+  /**
+   * @return true if the fluidity level of the ROI changed, so the event must be published.
+   */
+  public boolean record(CrowdDetectorFluidityEvent event) {
+    RoiStats roi = getRoi(event.getRoiID());
+    synchronized (roi) {
+      roi.fluidity.record(System.currentTimeMillis(), event.getFluidityPercentage());
+      if (roi.fluidityLevel == event.getFluidityLevel()) {
+        roi.pendingFluidity = event;
+        return false;
+      }
+      roi.fluidityLevel = event.getFluidityLevel();
+      roi.pendingFluidity = null;
+      return true;
+    }
+  }
+
+  /**
+   * @return true if the direction of the ROI moved to another sector, so the event must be
+   *         published.
+   */
+  public boolean record(CrowdDetectorDirectionEvent event) {
+    RoiStats roi = getRoi(event.getRoiID());
+    int sector = (int) (event.getDirectionAngle() / DIRECTION_SECTOR);
+    synchronized (roi) {
+      roi.direction.record(System.currentTimeMillis(), event.getDirectionAngle());
+      if (roi.directionSector == sector) {
+        roi.pendingDirection = event;
+        return false;
+      }
+      roi.directionSector = sector;
+      roi.pendingDirection = null;
+      return true;
+    }
+  }
+
+  /**
+   * Forgets the statistics of ROIs that no longer exist.
+   */
+  public void removeRois(Collection<String> roiIds) {
+    for (String roiId : roiIds) {
+      this.rois.remove(roiId);
+    }
+  }
+
+  private RoiStats getRoi(String roiId) {
+    RoiStats roi = this.rois.get(roiId);
+    if (roi == null) {
+      RoiStats newRoi = new RoiStats();
+      roi = this.rois.putIfAbsent(roiId, newRoi);
+      if (roi == null) {
+        roi = newRoi;
+      }
+    }
+    return roi;
+  }
+
+  private void publishPending() {
+    for (RoiStats roi : this.rois.values()) {
+      CrowdDetectorOccupancyEvent occupancy;
+      CrowdDetectorFluidityEvent fluidity;
+      CrowdDetectorDirectionEvent direction;
+      synchronized (roi) {
+        occupancy = roi.pendingOccupancy;
+        fluidity = roi.pendingFluidity;
+        direction = roi.pendingDirection;
+        roi.pendingOccupancy = null;
+        roi.pendingFluidity = null;
+        roi.pendingDirection = null;
+      }
+
+      if (occupancy != null) {
+        this.orionPublisher.publishEvent(occupancy);
+      }
+      if (fluidity != null) {
+        this.orionPublisher.publishEvent(fluidity);
+      }
+      if (direction != null) {
+        this.orionPublisher.publishEvent(direction);
+      }
+    }
+  }
+
+  private void pushStats() {
+    if (this.listeners.isEmpty()) {
+      return;
+    }
+    Map<String, Object> stats = getStats();
+    for (Listener listener : this.listeners) {
+      try {
+        listener.onStats(stats);
+      } catch (RuntimeException e) {
+        log.warn("Exception pushing ROI statistics", e);
+      }
+    }
+  }
+
+  @GetMapping("/analytics")
+  public Map<String, Object> getStats() {
+    long now = System.currentTimeMillis();
+    Map<String, Object> stats = new TreeMap<>();
+    // Weakly consistent, so ROIs removed meanwhile may be left out but never break the loop
+    for (Map.Entry<String, RoiStats> roi : this.rois.entrySet()) {
+      stats.put(roi.getKey(), roi.getValue().getStats(now));
+    }
+    return stats;
+  }
+
+  @GetMapping("/analytics/{roiId}")
+  public ResponseEntity<Map<String, Object>> getStats(@PathVariable String roiId) {
+    RoiStats roi = this.rois.get(roiId);
+    if (roi == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return new ResponseEntity<>(roi.getStats(System.currentTimeMillis()), HttpStatus.OK);
+  }
+
+}
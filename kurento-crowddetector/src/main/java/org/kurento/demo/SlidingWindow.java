@@ -0,0 +1,163 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics of the samples received over the last {@code buckets * bucketMs} milliseconds.
+ *
+ * Samples are accumulated in a ring of time buckets, each one holding the count, sum, minimum,
+ * maximum and a fixed-width histogram of its samples, all of them in primitive arrays allocated up
+ * front. Recording a sample never allocates, and expired buckets are reused as time goes by. The
+ * 95th percentile is estimated from the histogram, so its precision is
+ * {@code (highest - lowest) / bins}.
+ *
+ * Instances are not thread-safe.
+ *
+ * @since 6.18.0
+ */
+public class SlidingWindow {
+
+  private final int buckets;
+  private final long bucketMs;
+  private final float lowest;
+  private final float highest;
+  private final int bins;
+
+  private final long[] bucketIds;
+  private final int[] counts;
+  private final double[] sums;
+  private final float[] mins;
+  private final float[] maxs;
+  private final int[] histogram;
+  private final int[] mergedHistogram;
+
+  /**
+   * @param buckets
+   *          Number of buckets of the window
+   * @param bucketMs
+   *          Time span of each bucket, in milliseconds
+   * @param lowest
+   *          Lowest expected value of the samples
+   * @param highest
+   *          Highest expected value of the samples
+   * @param bins
+   *          Number of bins of the histograms used to estimate the percentiles
+   */
+  public SlidingWindow(int buckets, long bucketMs, float lowest, float highest, int bins) {
+    this.buckets = buckets;
+    this.bucketMs = bucketMs;
+    this.lowest = lowest;
+    this.highest = highest;
+    this.bins = bins;
+
+    this.bucketIds = new long[buckets];
+    this.counts = new int[buckets];
+    this.sums = new double[buckets];
+    this.mins = new float[buckets];
+    this.maxs = new float[buckets];
+    this.histogram = new int[buckets * bins];
+    this.mergedHistogram = new int[bins];
+    Arrays.fill(this.bucketIds, Long.MIN_VALUE);
+  }
+
+  public long getLengthMs() {
+    return this.buckets * this.bucketMs;
+  }
+
+  public void record(long timestamp, float value) {
+    long bucketId = timestamp / this.bucketMs;
+    int bucket = (int) (bucketId % this.buckets);
+
+    if (this.bucketIds[bucket] != bucketId) {
+      this.bucketIds[bucket] = bucketId;
+      this.counts[bucket] = 0;
+      this.sums[bucket] = 0;
+      this.mins[bucket] = Float.MAX_VALUE;
+      this.maxs[bucket] = -Float.MAX_VALUE;
+      Arrays.fill(this.histogram, bucket * this.bins, (bucket + 1) * this.bins, 0);
+    }
+
+    this.counts[bucket]++;
+    this.sums[bucket] += value;
+    this.mins[bucket] = Math.min(this.mins[bucket], value);
+    this.maxs[bucket] = Math.max(this.maxs[bucket], value);
+    this.histogram[bucket * this.bins + bin(value)]++;
+  }
+
+  /**
+   * @return The count, min, max, mean, p95 and rate (samples per second) of the samples within the
+   *         window ending at the given time. Only the count and rate are given for empty windows.
+   */
+  public Map<String, Object> getStats(long timestamp) {
+    long lastBucketId = timestamp / this.bucketMs;
+    long firstBucketId = lastBucketId - this.buckets + 1;
+
+    int count = 0;
+    double sum = 0;
+    float min = Float.MAX_VALUE;
+    float max = -Float.MAX_VALUE;
+    Arrays.fill(this.mergedHistogram, 0);
+
+    for (int bucket = 0; bucket < this.buckets; bucket++) {
+      long bucketId = this.bucketIds[bucket];
+      if (bucketId < firstBucketId || bucketId > lastBucketId || this.counts[bucket] == 0) {
+        continue;
+      }
+      count += this.counts[bucket];
+      sum += this.sums[bucket];
+      min = Math.min(min, this.mins[bucket]);
+      max = Math.max(max, this.maxs[bucket]);
+      for (int i = 0; i < this.bins; i++) {
+        this.mergedHistogram[i] += this.histogram[bucket * this.bins + i];
+      }
+    }
+
+    Map<String, Object> stats = new LinkedHashMap<>();
+    stats.put("count", count);
+    stats.put("rate", count * 1000.0 / getLengthMs());
+    if (count > 0) {
+      stats.put("min", min);
+      stats.put("max", max);
+      stats.put("mean", sum / count);
+      stats.put("p95", Math.max(min, Math.min(max, percentile(count, 0.95))));
+    }
+    return stats;
+  }
+
+  private float percentile(int count, double fraction) {
+    int rank = (int) Math.ceil(count * fraction);
+    int accumulated = 0;
+    for (int i = 0; i < this.bins; i++) {
+      accumulated += this.mergedHistogram[i];
+      if (accumulated >= rank) {
+        return this.lowest + (i + 1) * (this.highest - this.lowest) / this.bins;
+      }
+    }
+    return this.highest;
+  }
+
+  private int bin(float value) {
+    int bin = (int) ((value - this.lowest) * this.bins / (this.highest - this.lowest));
+    return Math.max(0, Math.min(this.bins - 1, bin));
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.history;
+
+/**
+ * View of the row being visited by a range query. It reads straight from the memory-mapped
+ * segment, and is reused for every row, so it must not be kept after the visit.
+ *
+ * @since 6.18.0
+ */
+public final class HistoryRow {
+
+  private Segment segment;
+  private int row;
+
+  void moveTo(Segment segment, int row) {
+    this.segment = segment;
+    this.row = row;
+  }
+
+  public long getTimestamp() {
+    return this.segment.getTimestamp(this.row);
+  }
+
+  public int getColumns() {
+    return this.segment.getColumns();
+  }
+
+  public float getValue(int column) {
+    return this.segment.getValue(this.row, column);
+  }
+
+}
@@ -0,0 +1,393 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Embedded store of the history of the crowd detector metrics of each ROI.
+ *
+ * Every metric of every ROI is kept in three series under {@code history.dir}: the raw samples,
+ * and per-minute and per-hour rollups with the min, max, mean and count of the samples. The rollups
+ * are written within a few seconds after each minute or hour is over, even if no more samples
+ * arrive, so querying long ranges only reads a few precomputed rows. Range queries are served
+ * under {@code /history/<roiId>/<metric>}, and return at most {@code history.maxRows} rows: a
+ * truncated result is flagged as such, and can be continued from the timestamp of its last row.
+ *
+ * @since 6.18.0
+ */
+@RestController
+public class HistoryStore {
+
+  private static final Logger log = LoggerFactory.getLogger(HistoryStore.class);
+
+  public static final String OCCUPANCY = "occupancy";
+  public static final String FLUIDITY = "fluidity";
+  public static final String DIRECTION = "direction";
+
+  private static final List<String> METRICS = Arrays.asList(OCCUPANCY, FLUIDITY, DIRECTION);
+
+  private static final String HISTORY_DIR = System.getProperty("history.dir",
+      new File(System.getProperty("java.io.tmpdir"), "crowddetector-history").getPath());
+  private static final long RAW_RETENTION_DAYS = Long.getLong("history.rawRetentionDays", 7);
+  private static final int MAX_LIMIT = Integer.getInteger("history.maxRows", 10000);
+  private static final long ROLLUP_CHECK_MS = TimeUnit.SECONDS.toMillis(5);
+
+  private static final String[] ROLLUP_COLUMNS = { "min", "max", "mean", "count" };
+
+  /**
+   * Resolutions at which the history is kept.
+   */
+  public enum Resolution {
+    RAW("raw", 0, new String[] { "value" }, Integer.getInteger("history.segmentRows", 65536),
+        TimeUnit.DAYS.toMillis(RAW_RETENTION_DAYS)),
+    MINUTE("1m", TimeUnit.MINUTES.toMillis(1), ROLLUP_COLUMNS, 10080, TimeUnit.DAYS.toMillis(30)),
+    HOUR("1h", TimeUnit.HOURS.toMillis(1), ROLLUP_COLUMNS, 8760, TimeUnit.DAYS.toMillis(365));
+
+    private final String id;
+    private final long intervalMs;
+    private final String[] columns;
+    private final int segmentRows;
+    private final long retentionMs;
+
+    private Resolution(String id, long intervalMs, String[] columns, int segmentRows,
+        long retentionMs) {
+      this.id = id;
+      this.intervalMs = intervalMs;
+      this.columns = columns;
+      this.segmentRows = segmentRows;
+      this.retentionMs = retentionMs;
+    }
+
+    public String getId() {
+      return this.id;
+    }
+
+    public List<String> getColumns() {
+      return Arrays.asList(this.columns);
+    }
+
+    public static Resolution fromId(String id) {
+      for (Resolution resolution : values()) {
+        if (resolution.id.equals(id)) {
+          return resolution;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * @return The finest resolution that keeps a query of the given time range below a few
+     *         thousand rows.
+     */
+    public static Resolution forRange(long rangeMs) {
+      if (rangeMs <= TimeUnit.HOURS.toMillis(6)) {
+        return RAW;
+      }
+      if (rangeMs <= TimeUnit.DAYS.toMillis(8)) {
+        return MINUTE;
+      }
+      return HOUR;
+    }
+  }
+
+  /**
+   * Receives the rows of a range query.
+   */
+  public interface Visitor {
+    void visit(HistoryRow row);
+  }
+
+  private static class Rollup {
+
+    private final Resolution resolution;
+    private final float[] row = new float[ROLLUP_COLUMNS.length];
+    private long start = -1;
+    private float min;
+    private float max;
+    private double sum;
+    private int count;
+
+    Rollup(Resolution resolution) {
+      this.resolution = resolution;
+    }
+  }
+
+  private static class MetricHistory {
+
+    private final Series[] series = new Series[Resolution.values().length];
+    private final Rollup[] rollups = { new Rollup(Resolution.MINUTE), new Rollup(Resolution.HOUR) };
+    private final float[] rawRow = new float[1];
+
+    MetricHistory(File dir) throws IOException {
+      for (Resolution resolution : Resolution.values()) {
+        this.series[resolution.ordinal()] = new Series(new File(dir, resolution.id),
+            resolution.columns.length, resolution.segmentRows, resolution.retentionMs);
+      }
+    }
+
+    synchronized void record(long timestamp, float value) throws IOException {
+      this.rawRow[0] = value;
+      this.series[Resolution.RAW.ordinal()].append(timestamp, this.rawRow);
+
+      for (Rollup rollup : this.rollups) {
+        long start = timestamp - timestamp % rollup.resolution.intervalMs;
+        if (rollup.count > 0 && start != rollup.start) {
+          writeRollup(rollup);
+        }
+        if (rollup.count == 0) {
+          rollup.start = start;
+          rollup.min = value;
+          rollup.max = value;
+          rollup.sum = 0;
+        }
+        rollup.min = Math.min(rollup.min, value);
+        rollup.max = Math.max(rollup.max, value);
+        rollup.sum += value;
+        rollup.count++;
+      }
+    }
+
+    /**
+     * Writes the rollups whose interval is over at the given time.
+     */
+    synchronized void closeRollups(long now) throws IOException {
+      for (Rollup rollup : this.rollups) {
+        if (rollup.count > 0 && now >= rollup.start + rollup.resolution.intervalMs) {
+          writeRollup(rollup);
+        }
+      }
+    }
+
+    private void writeRollup(Rollup rollup) throws IOException {
+      rollup.row[0] = rollup.min;
+      rollup.row[1] = rollup.max;
+      rollup.row[2] = (float) (rollup.sum / rollup.count);
+      rollup.row[3] = rollup.count;
+      rollup.count = 0;
+      this.series[rollup.resolution.ordinal()].append(rollup.start, rollup.row);
+    }
+
+    void flush() {
+      for (Series s : this.series) {
+        s.flush();
+      }
+    }
+
+    void close() {
+      for (Series s : this.series) {
+        s.close();
+      }
+    }
+  }
+
+  private final File dir;
+  private final ConcurrentHashMap<String, MetricHistory> histories = new ConcurrentHashMap<>();
+  private ScheduledExecutorService rollupScheduler;
+
+  public HistoryStore() {
+    this(new File(HISTORY_DIR));
+  }
+
+  /**
+   * Keeps the history under the given directory instead of {@code history.dir}.
+   */
+  public HistoryStore(File dir) {
+    this.dir = dir;
+  }
+
+  @PostConstruct
+  public void init() {
+    this.rollupScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "history-rollup");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.rollupScheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        closeRollups(System.currentTimeMillis());
+      }
+    }, ROLLUP_CHECK_MS, ROLLUP_CHECK_MS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes the rollups of all the metrics whose interval is over at the given time.
+   */
+  void closeRollups(long now) {
+    for (Map.Entry<String, MetricHistory> entry : this.histories.entrySet()) {
+      try {
+        entry.getValue().closeRollups(now);
+      } catch (IOException e) {
+        log.warn("Could not write rollups of {}: {}", entry.getKey(), e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Records a sample of a metric of a ROI, timestamped now.
+   */
+  public void record(String roiId, String metric, float value) {
+    try {
+      MetricHistory history = getHistory(roiId, metric, true);
+      if (history != null) {
+        history.record(System.currentTimeMillis(), value);
+      }
+    } catch (IOException e) {
+      log.warn("Could not record {} of ROI {}: {}", metric, roiId, e.getMessage());
+    }
+  }
+
+  /**
+   * Visits, in order, the rows of a metric of a ROI with timestamps within {@code [from, to]}.
+   *
+   * @param limit
+   *          Maximum number of rows to visit, which must not be negative
+   * @return Number of rows visited, which is never higher than {@code limit}
+   */
+  public int query(String roiId, String metric, Resolution resolution, long from, long to,
+      int limit, Visitor visitor) throws IOException {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Negative limit: " + limit);
+    }
+    MetricHistory history = getHistory(roiId, metric, false);
+    if (history == null) {
+      return 0;
+    }
+    return history.series[resolution.ordinal()].scan(from, to, limit, visitor);
+  }
+
+  @GetMapping("/history/{roiId}/{metric}")
+  public ResponseEntity<Map<String, Object>> query(@PathVariable String roiId,
+      @PathVariable String metric, @RequestParam(required = false) Long from,
+      @RequestParam(required = false) Long to,
+      @RequestParam(required = false) String resolution,
+      @RequestParam(required = false) Integer limit) throws IOException {
+
+    if (!METRICS.contains(metric)) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    int maxRows = (limit != null) ? limit : MAX_LIMIT;
+    if (maxRows < 1 || maxRows > MAX_LIMIT) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+    long end = (to != null) ? to : System.currentTimeMillis();
+    long start = (from != null) ? from : end - TimeUnit.HOURS.toMillis(1);
+    Resolution res =
+        (resolution != null) ? Resolution.fromId(resolution) : Resolution.forRange(end - start);
+    if (res == null) {
+      return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+    }
+
+    // One row more than requested tells whether the result is truncated
+    final List<Object> rows = new ArrayList<>();
+    query(roiId, metric, res, start, end, maxRows + 1, new Visitor() {
+      @Override
+      public void visit(HistoryRow row) {
+        Object[] values = new Object[row.getColumns() + 1];
+        values[0] = row.getTimestamp();
+        for (int i = 0; i < row.getColumns(); i++) {
+          values[i + 1] = row.getValue(i);
+        }
+        rows.add(values);
+      }
+    });
+    boolean truncated = rows.size() > maxRows;
+    if (truncated) {
+      rows.remove(maxRows);
+    }
+
+    List<String> columns = new ArrayList<>();
+    columns.add("timestamp");
+    columns.addAll(res.getColumns());
+
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put("roi", roiId);
+    result.put("metric", metric);
+    result.put("resolution", res.getId());
+    result.put("from", start);
+    result.put("to", end);
+    result.put("columns", columns);
+    result.put("rows", rows);
+    result.put("truncated", truncated);
+    return new ResponseEntity<>(result, HttpStatus.OK);
+  }
+
+  @PreDestroy
+  public void close() {
+    if (this.rollupScheduler != null) {
+      this.rollupScheduler.shutdownNow();
+    }
+    for (MetricHistory history : this.histories.values()) {
+      history.close();
+    }
+  }
+
+  private MetricHistory getHistory(String roiId, String metric, boolean create)
+      throws IOException {
+    String key = roiId + '/' + metric;
+    MetricHistory history = this.histories.get(key);
+    if (history != null) {
+      return history;
+    }
+
+    synchronized (this.histories) {
+      history = this.histories.get(key);
+      if (history == null) {
+        File metricDir = new File(new File(this.dir, sanitize(roiId)), metric);
+        if (!create && !metricDir.isDirectory()) {
+          return null;
+        }
+        history = new MetricHistory(metricDir);
+        this.histories.put(key, history);
+      }
+      return history;
+    }
+  }
+
+  private static String sanitize(String name) {
+    return name.replaceAll("[^A-Za-z0-9_.-]", "_");
+  }
+
+}
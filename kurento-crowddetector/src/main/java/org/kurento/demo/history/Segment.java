@@ -0,0 +1,185 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed-capacity, append-only file of rows made of a timestamp and a number of float columns. The
+ * file is memory-mapped and laid out by columns: a header, then all the timestamps, then all the
+ * values of each column.
+ *
+ * @since 6.18.0
+ */
+class Segment {
+
+  private static final Logger log = LoggerFactory.getLogger(Segment.class);
+
+  private static final int MAGIC = 0x4b534731; // "KSG1"
+  private static final int HEADER_SIZE = 16;
+  private static final int COUNT_OFFSET = 12;
+
+  private final File file;
+  private final MappedByteBuffer buffer;
+  private final int columns;
+  private final int capacity;
+  private int count;
+
+  private Segment(File file, MappedByteBuffer buffer, int columns, int capacity, int count) {
+    this.file = file;
+    this.buffer = buffer;
+    this.columns = columns;
+    this.capacity = capacity;
+    this.count = count;
+  }
+
+  static Segment create(File file, int columns, int capacity) throws IOException {
+    long size = HEADER_SIZE + (8L + 4L * columns) * capacity;
+    MappedByteBuffer buffer = map(file, size);
+    buffer.putInt(0, MAGIC);
+    buffer.putInt(4, columns);
+    buffer.putInt(8, capacity);
+    buffer.putInt(COUNT_OFFSET, 0);
+    return new Segment(file, buffer, columns, capacity, 0);
+  }
+
+  static Segment open(File file) throws IOException {
+    MappedByteBuffer buffer = map(file, file.length());
+    if (file.length() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a history segment: " + file);
+    }
+    int columns = buffer.getInt(4);
+    int capacity = buffer.getInt(8);
+    int count = buffer.getInt(COUNT_OFFSET);
+    if (file.length() < HEADER_SIZE + (8L + 4L * columns) * capacity || count < 0
+        || count > capacity) {
+      throw new IOException("Corrupted history segment: " + file);
+    }
+    return new Segment(file, buffer, columns, capacity, count);
+  }
+
+  private static MappedByteBuffer map(File file, long size) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      // The mapping stays valid after closing the channel
+      return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  File getFile() {
+    return this.file;
+  }
+
+  int getColumns() {
+    return this.columns;
+  }
+
+  int getCount() {
+    return this.count;
+  }
+
+  boolean isFull() {
+    return this.count == this.capacity;
+  }
+
+  /**
+   * Appends a row. The row only becomes visible once all its columns have been written.
+   */
+  void append(long timestamp, float[] values) {
+    int row = this.count;
+    this.buffer.putLong(HEADER_SIZE + 8 * row, timestamp);
+    for (int column = 0; column < this.columns; column++) {
+      this.buffer.putFloat(valueOffset(row, column), values[column]);
+    }
+    this.count = row + 1;
+    this.buffer.putInt(COUNT_OFFSET, this.count);
+  }
+
+  long getTimestamp(int row) {
+    return this.buffer.getLong(HEADER_SIZE + 8 * row);
+  }
+
+  float getValue(int row, int column) {
+    return this.buffer.getFloat(valueOffset(row, column));
+  }
+
+  /**
+   * @return The first row whose timestamp is not lower than the given one, or the number of rows
+   *         if there is none.
+   */
+  int lowerBound(long timestamp) {
+    int low = 0;
+    int high = this.count;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (getTimestamp(mid) < timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  void flush() {
+    this.buffer.force();
+  }
+
+  /**
+   * Unmaps the file right away, instead of when the buffer is garbage collected, so the disk space
+   * of a deleted segment is freed at once. The segment must not be used afterwards: accessing an
+   * unmapped buffer crashes the JVM.
+   */
+  void close() {
+    try {
+      try {
+        // Java 9 and later
+        Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+        Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        invokeCleaner.invoke(theUnsafe.get(null), this.buffer);
+      } catch (NoSuchMethodException e) {
+        // Java 8
+        Method cleanerMethod = this.buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        Object cleaner = cleanerMethod.invoke(this.buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // It will be unmapped when garbage collected
+      log.debug("Could not unmap history segment {}: {}", this.file, e.toString());
+    }
+  }
+
+  private int valueOffset(int row, int column) {
+    return HEADER_SIZE + 8 * this.capacity + 4 * (column * this.capacity + row);
+  }
+
+}
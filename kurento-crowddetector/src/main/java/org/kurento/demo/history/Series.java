@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.history;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Time series stored as a sequence of {@link Segment} files in a directory, each one named after
+ * the timestamp of its first row. Segments older than the retention time are unmapped and deleted
+ * when a new one is started.
+ *
+ * @since 6.18.0
+ */
+class Series {
+
+  private static final Logger log = LoggerFactory.getLogger(Series.class);
+
+  private static final String SEGMENT_SUFFIX = ".seg";
+
+  private final File dir;
+  private final int columns;
+  private final int segmentRows;
+  private final long retentionMs;
+
+  private final List<Segment> segments = new ArrayList<>();
+  private final HistoryRow cursor = new HistoryRow();
+  private boolean closed;
+
+  Series(File dir, int columns, int segmentRows, long retentionMs) throws IOException {
+    this.dir = dir;
+    this.columns = columns;
+    this.segmentRows = segmentRows;
+    this.retentionMs = retentionMs;
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory " + dir);
+    }
+
+    File[] files = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File parent, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+    Arrays.sort(files);
+    for (File file : files) {
+      try {
+        Segment segment = Segment.open(file);
+        if (segment.getColumns() != columns) {
+          log.warn("Ignoring history segment {} with {} columns", file, segment.getColumns());
+          segment.close();
+        } else if (segment.getCount() > 0) {
+          this.segments.add(segment);
+        } else {
+          segment.close();
+          if (!file.delete()) {
+            log.warn("Could not delete empty history segment {}", file);
+          }
+        }
+      } catch (IOException e) {
+        log.warn("Ignoring history segment {}: {}", file, e.getMessage());
+      }
+    }
+  }
+
+  synchronized void append(long timestamp, float[] values) throws IOException {
+    if (this.closed) {
+      throw new IOException("History series " + this.dir + " is closed");
+    }
+    Segment last = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+    if (last != null && last.getCount() > 0) {
+      // Keep the rows sorted even if the clock goes backwards
+      timestamp = Math.max(timestamp, last.getTimestamp(last.getCount() - 1));
+    }
+    if (last == null || last.isFull()) {
+      last = startSegment(timestamp);
+    }
+    last.append(timestamp, values);
+  }
+
+  private Segment startSegment(long timestamp) throws IOException {
+    while (!this.segments.isEmpty()) {
+      Segment first = this.segments.get(0);
+      if (first.getTimestamp(first.getCount() - 1) >= timestamp - this.retentionMs) {
+        break;
+      }
+      this.segments.remove(0);
+      first.close();
+      if (!first.getFile().delete()) {
+        log.warn("Could not delete expired history segment {}", first.getFile());
+      }
+    }
+
+    File file = new File(this.dir, String.format("%020d%s", timestamp, SEGMENT_SUFFIX));
+    for (long suffix = timestamp + 1; file.exists(); suffix++) {
+      file = new File(this.dir, String.format("%020d%s", suffix, SEGMENT_SUFFIX));
+    }
+    Segment segment = Segment.create(file, this.columns, this.segmentRows);
+    this.segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * Visits the rows with timestamps within {@code [from, to]}, in order, without copying them out
+   * of the memory-mapped segments.
+   *
+   * @return Number of rows visited
+   */
+  synchronized int scan(long from, long to, int limit, HistoryStore.Visitor visitor) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("Negative limit: " + limit);
+    }
+    int visited = 0;
+    if (this.closed) {
+      return visited;
+    }
+    for (Segment segment : this.segments) {
+      int count = segment.getCount();
+      if (count == 0 || segment.getTimestamp(count - 1) < from) {
+        continue;
+      }
+      if (segment.getTimestamp(0) > to) {
+        break;
+      }
+      for (int row = segment.lowerBound(from); row < count; row++) {
+        if (visited == limit || segment.getTimestamp(row) > to) {
+          return visited;
+        }
+        this.cursor.moveTo(segment, row);
+        visitor.visit(this.cursor);
+        visited++;
+      }
+    }
+    return visited;
+  }
+
+  synchronized void flush() {
+    if (!this.closed && !this.segments.isEmpty()) {
+      this.segments.get(this.segments.size() - 1).flush();
+    }
+  }
+
+  /**
+   * Flushes and unmaps all the segments. Appending fails and scans find nothing afterwards.
+   */
+  synchronized void close() {
+    flush();
+    this.closed = true;
+    for (Segment segment : this.segments) {
+      segment.close();
+    }
+    this.segments.clear();
+  }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.trace;
+
+import org.kurento.module.crowddetector.CrowdDetectorDirectionEvent;
+import org.kurento.module.crowddetector.CrowdDetectorFluidityEvent;
+import org.kurento.module.crowddetector.CrowdDetectorOccupancyEvent;
+
+/**
+ * Binary format of the crowd detector event traces.
+ *
+ * A trace starts with the {@link #MAGIC} number, the format {@link #VERSION} and the wall clock
+ * time the recording started at, in milliseconds. It is followed by a sequence of records, each
+ * starting with a one byte tag:
+ * <ul>
+ * <li>{@link #STRING}: a feed or ROI id, appended to the string table of the trace. Each id is
+ * written once, before the first event that uses it, and events refer to it by its index.</li>
+ * <li>{@link Kind#getTag()}: an event, with the index of its feed id and ROI id, the microseconds
+ * since the previous event, the milliseconds between the event being raised in KMS and received,
+ * and the values of the event.</li>
+ * </ul>
+ * Indexes and times are written as variable length integers, so most events take around 10 bytes.
+ *
+ * @since 6.18.0
+ */
+public final class EventTrace {
+
+  public static final int MAGIC = 0x43445452;
+  public static final int VERSION = 1;
+
+  static final int STRING = 0;
+
+  /**
+   * Kinds of crowd detector event.
+   */
+  public enum Kind {
+    OCCUPANCY(1, CrowdDetectorOccupancyEvent.class),
+    FLUIDITY(2, CrowdDetectorFluidityEvent.class),
+    DIRECTION(3, CrowdDetectorDirectionEvent.class);
+
+    private final int tag;
+    private final String type;
+
+    private Kind(int tag, Class<?> eventClass) {
+      this.tag = tag;
+      this.type = eventClass.getSimpleName();
+    }
+
+    public int getTag() {
+      return this.tag;
+    }
+
+    /**
+     * @return The type of the Orion entities of this kind of event
+     */
+    public String getType() {
+      return this.type;
+    }
+
+    /**
+     * @return true if the events of this kind have a level besides their value
+     */
+    public boolean hasLevel() {
+      return this != DIRECTION;
+    }
+
+    public static Kind fromTag(int tag) {
+      for (Kind kind : values()) {
+        if (kind.tag == tag) {
+          return kind;
+        }
+      }
+      return null;
+    }
+
+    public static Kind fromType(String type) {
+      for (Kind kind : values()) {
+        if (kind.type.equals(type)) {
+          return kind;
+        }
+      }
+      return null;
+    }
+  }
+
+  private EventTrace() {
+  }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.trace;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.demo.trace.EventTrace.Kind;
+
+/**
+ * Reads the events of a trace file written by {@link EventTraceWriter}.
+ *
+ * The reader holds a single current event, which {@link #next()} overwrites, so reading a trace
+ * doesn't allocate an object per event. Not thread safe.
+ *
+ * @since 6.18.0
+ */
+public class EventTraceReader implements Closeable {
+
+  private final DataInputStream in;
+  private final long startMillis;
+  private final List<String> strings = new ArrayList<>();
+
+  private Kind kind;
+  private String feedId;
+  private String roiId;
+  private long offsetMicros;
+  private long latencyMs;
+  private int level;
+  private float value;
+
+  public EventTraceReader(File file) throws IOException {
+    this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      if (this.in.readInt() != EventTrace.MAGIC) {
+        throw new IOException(file + " is not an event trace");
+      }
+      int version = this.in.readShort();
+      if (version != EventTrace.VERSION) {
+        throw new IOException("Unsupported event trace version " + version);
+      }
+      this.startMillis = this.in.readLong();
+    } catch (IOException e) {
+      this.in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Moves to the next event of the trace.
+   *
+   * @return false if there are no more events
+   */
+  public boolean next() throws IOException {
+    while (true) {
+      int tag = this.in.read();
+      if (tag < 0) {
+        return false;
+      }
+      try {
+        if (tag == EventTrace.STRING) {
+          this.strings.add(this.in.readUTF());
+          continue;
+        }
+
+        Kind kind = Kind.fromTag(tag);
+        if (kind == null) {
+          throw new IOException("Unknown event trace record " + tag);
+        }
+        this.kind = kind;
+        this.feedId = string(readVarLong());
+        this.roiId = string(readVarLong());
+        this.offsetMicros += readVarLong();
+        long zigzag = readVarLong();
+        this.latencyMs = (zigzag >>> 1) ^ -(zigzag & 1);
+        this.level = kind.hasLevel() ? (int) readVarLong() : 0;
+        this.value = this.in.readFloat();
+        return true;
+      } catch (EOFException e) {
+        // The recording was interrupted in the middle of a record
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return The wall clock time the recording started at, in milliseconds
+   */
+  public long getStartMillis() {
+    return this.startMillis;
+  }
+
+  public Kind getKind() {
+    return this.kind;
+  }
+
+  public String getFeedId() {
+    return this.feedId;
+  }
+
+  public String getRoiId() {
+    return this.roiId;
+  }
+
+  /**
+   * @return Microseconds from the start of the recording to the current event
+   */
+  public long getOffsetMicros() {
+    return this.offsetMicros;
+  }
+
+  public long getLatencyMs() {
+    return this.latencyMs;
+  }
+
+  public int getLevel() {
+    return this.level;
+  }
+
+  public float getValue() {
+    return this.value;
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+
+  private String string(long index) throws IOException {
+    if (index >= this.strings.size()) {
+      throw new IOException("Undefined event trace string " + index);
+    }
+    return this.strings.get((int) index);
+  }
+
+  private long readVarLong() throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      int b = this.in.readUnsignedByte();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed event trace number");
+  }
+
+}
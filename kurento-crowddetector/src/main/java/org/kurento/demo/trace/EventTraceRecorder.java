@@ -0,0 +1,223 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.demo.trace.EventTrace.Kind;
+import org.kurento.module.crowddetector.CrowdDetectorDirectionEvent;
+import org.kurento.module.crowddetector.CrowdDetectorFluidityEvent;
+import org.kurento.module.crowddetector.CrowdDetectorOccupancyEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Records the crowd detector events received from KMS into a trace file, so they can be replayed
+ * offline with {@link EventTraceReplayer}.
+ *
+ * Recording starts on startup if {@code trace.recordFile} is set, and can be started and stopped
+ * with {@code POST /trace/start} and {@code POST /trace/stop}. Recordings started over HTTP are
+ * always written into a new file, named after the current time, under {@code trace.dir}. The
+ * recording status, with the name of the file, is served under {@code /trace}.
+ *
+ * @since 6.18.0
+ */
+@RestController
+public class EventTraceRecorder {
+
+  private static final Logger log = LoggerFactory.getLogger(EventTraceRecorder.class);
+
+  private static final String RECORD_FILE = System.getProperty("trace.recordFile");
+  private static final String TRACE_DIR = System.getProperty("trace.dir",
+      new File(System.getProperty("java.io.tmpdir"), "crowddetector-traces").getPath());
+  private static final long FLUSH_INTERVAL_MS = Long.getLong("trace.flushIntervalMs", 1000);
+
+  private ScheduledExecutorService executor;
+  private volatile EventTraceWriter writer;
+  private File file;
+
+  @PostConstruct
+  private void init() throws IOException {
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "trace-recorder");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+    if (RECORD_FILE != null) {
+      start(new File(RECORD_FILE));
+    }
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    this.executor.shutdownNow();
+    stop();
+  }
+
+  /**
+   * Starts recording into the given file, replacing its contents. Stops any recording in
+   * progress first.
+   */
+  public synchronized void start(File file) throws IOException {
+    stop();
+    this.writer = new EventTraceWriter(file);
+    this.file = file;
+    log.info("Recording crowd detector events into {}", file);
+  }
+
+  public synchronized void stop() {
+    EventTraceWriter writer = this.writer;
+    if (writer == null) {
+      return;
+    }
+    this.writer = null;
+    try {
+      writer.close();
+      log.info("Recorded {} crowd detector events into {}", writer.getEvents(), this.file);
+    } catch (IOException e) {
+      log.warn("Could not close event trace {}", this.file, e);
+    }
+  }
+
+  public boolean isRecording() {
+    return this.writer != null;
+  }
+
+  public void record(String feedId, CrowdDetectorOccupancyEvent event) {
+    if (this.writer != null) {
+      record(Kind.OCCUPANCY, feedId, event.getRoiID(), event.getTimestampMillis(),
+          event.getOccupancyLevel(), event.getOccupancyPercentage());
+    }
+  }
+
+  public void record(String feedId, CrowdDetectorFluidityEvent event) {
+    if (this.writer != null) {
+      record(Kind.FLUIDITY, feedId, event.getRoiID(), event.getTimestampMillis(),
+          event.getFluidityLevel(), event.getFluidityPercentage());
+    }
+  }
+
+  public void record(String feedId, CrowdDetectorDirectionEvent event) {
+    if (this.writer != null) {
+      record(Kind.DIRECTION, feedId, event.getRoiID(), event.getTimestampMillis(), 0,
+          event.getDirectionAngle());
+    }
+  }
+
+  private synchronized void record(Kind kind, String feedId, String roiId, String timestampMillis,
+      int level, float value) {
+    if (this.writer == null) {
+      return;
+    }
+
+    long latencyMs = 0;
+    try {
+      latencyMs = System.currentTimeMillis() - Long.parseLong(timestampMillis);
+    } catch (NumberFormatException e) {
+      log.debug("Invalid event timestamp {}", timestampMillis);
+    }
+
+    try {
+      this.writer.write(kind, feedId, roiId, latencyMs, level, value);
+    } catch (IOException e) {
+      log.warn("Could not write event trace {}, recording stopped", this.file, e);
+      stop();
+    }
+  }
+
+  private synchronized void flush() {
+    if (this.writer == null) {
+      return;
+    }
+    try {
+      this.writer.flush();
+    } catch (IOException e) {
+      log.warn("Could not flush event trace {}", this.file, e);
+    }
+  }
+
+  @GetMapping("/trace")
+  public Map<String, Object> getStatus() {
+    Map<String, Object> status = new LinkedHashMap<>();
+    synchronized (this) {
+      status.put("recording", isRecording());
+      if (this.writer != null) {
+        status.put("file", this.file.getPath());
+        status.put("events", this.writer.getEvents());
+      }
+    }
+    return status;
+  }
+
+  @PostMapping("/trace/start")
+  public ResponseEntity<Map<String, Object>> startRecording() {
+    try {
+      start(newTraceFile());
+    } catch (IOException e) {
+      log.warn("Could not start recording into {}", TRACE_DIR, e);
+      return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+    }
+    return new ResponseEntity<>(getStatus(), HttpStatus.OK);
+  }
+
+  /**
+   * Creates a new, empty file under {@code trace.dir}, so a recording never replaces another one.
+   */
+  private static File newTraceFile() throws IOException {
+    File dir = new File(TRACE_DIR);
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create directory " + dir);
+    }
+    String prefix = "events-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "-";
+    return File.createTempFile(prefix, ".trace", dir);
+  }
+
+  @PostMapping("/trace/stop")
+  public Map<String, Object> stopRecording() {
+    stop();
+    return getStatus();
+  }
+
+}
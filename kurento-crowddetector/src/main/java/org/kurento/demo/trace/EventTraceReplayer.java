@@ -0,0 +1,317 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.kurento.demo.CrowdDetectorOrionPublisher;
+import org.kurento.demo.FeedReconnector;
+import org.kurento.demo.OrionPublishQueue;
+import org.kurento.demo.Pipeline;
+import org.kurento.demo.RoiAnalytics;
+import org.kurento.demo.history.HistoryStore;
+import org.kurento.demo.trace.EventTrace.Kind;
+import org.kurento.module.crowddetector.CrowdDetectorDirectionEvent;
+import org.kurento.module.crowddetector.CrowdDetectorFluidityEvent;
+import org.kurento.module.crowddetector.CrowdDetectorOccupancyEvent;
+import org.kurento.module.crowddetector.RegionOfInterest;
+import org.kurento.orion.OrionConnector;
+import org.kurento.orion.OrionConnectorConfiguration;
+import org.kurento.orion.entities.OrionContextElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+
+/**
+ * Replays a trace recorded by {@link EventTraceRecorder} through the event listeners of
+ * {@link Pipeline} and the Orion publishing path, against a {@link LocalOrionServer}, to measure
+ * the publish throughput and latency without a camera or a KMS.
+ *
+ * Usage: {@code EventTraceReplayer <trace file> [speed]}, where the speed multiplies the rate of
+ * the recorded events (1 by default), and 0 replays them as fast as possible. The stand-in answers
+ * after {@code trace.orionDelayMs} milliseconds (0 by default) with {@code trace.orionThreads}
+ * threads (4 by default). The latency reported is the time from an event being replayed to the
+ * latest value of its entity reaching the stand-in. The history and the ORION spool of the
+ * replayed events are kept in a temporary directory, deleted once the replay is over, so a replay
+ * never touches the files of a running application.
+ *
+ * @since 6.18.0
+ */
+public class EventTraceReplayer implements LocalOrionServer.Listener {
+
+  private static final Logger log = LoggerFactory.getLogger(EventTraceReplayer.class);
+
+  private static final long ORION_DELAY_MS = Long.getLong("trace.orionDelayMs", 0);
+  private static final int ORION_THREADS = Integer.getInteger("trace.orionThreads", 4);
+  private static final long DRAIN_TIMEOUT_MS = Long.getLong("trace.drainTimeoutMs", 30000);
+  private static final long DRAIN_IDLE_MS = 1000;
+
+  /**
+   * Beans of the application on the Orion publishing path. Not a {@code @Configuration}, so the
+   * component scan of the application doesn't pick it up.
+   */
+  static class ReplayConfiguration {
+
+    @Bean
+    public OrionConnector orionConnector() {
+      return new OrionConnector();
+    }
+
+    @Bean
+    public OrionPublishQueue orionPublishQueue(File replayDir) {
+      return new OrionPublishQueue(new File(replayDir, "orion.spool"));
+    }
+
+    @Bean
+    public CrowdDetectorOrionPublisher crowdDetectorOrionPublisher() {
+      return new CrowdDetectorOrionPublisher();
+    }
+
+    @Bean
+    public RoiAnalytics roiAnalytics() {
+      return new RoiAnalytics();
+    }
+
+    @Bean
+    public HistoryStore historyStore(File replayDir) {
+      return new HistoryStore(new File(replayDir, "history"));
+    }
+
+    @Bean
+    public FeedReconnector feedReconnector() {
+      return new FeedReconnector();
+    }
+  }
+
+  private final File traceFile;
+  private final double speed;
+
+  // Time each entity was last replayed at, indexed by ROI and kind of event
+  private final ConcurrentHashMap<String, AtomicLongArray> replayedNanos =
+      new ConcurrentHashMap<>();
+
+  private long[] latencies = new long[4096];
+  private int latencyCount;
+
+  public EventTraceReplayer(File traceFile, double speed) {
+    this.traceFile = traceFile;
+    this.speed = speed;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: EventTraceReplayer <trace file> [speed]");
+      System.exit(1);
+    }
+    double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+    new EventTraceReplayer(new File(args[0]), speed).run();
+  }
+
+  public void run() throws IOException {
+    LocalOrionServer orion = new LocalOrionServer(0, ORION_THREADS, ORION_DELAY_MS, this);
+    orion.start();
+
+    OrionConnectorConfiguration config = new OrionConnectorConfiguration();
+    config.setOrionHost("127.0.0.1");
+    config.setOrionPort(orion.getPort());
+
+    File replayDir = Files.createTempDirectory("crowddetector-replay").toFile();
+
+    AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+    context.getBeanFactory().registerSingleton("orionConnectorConfiguration", config);
+    context.getBeanFactory().registerSingleton("replayDir", replayDir);
+    context.register(ReplayConfiguration.class);
+    context.refresh();
+
+    try {
+      OrionPublishQueue publishQueue = context.getBean(OrionPublishQueue.class);
+      Map<String, Pipeline> pipelines = new HashMap<>();
+      long events = 0;
+      long startNanos = System.nanoTime();
+      long maxLagNanos = 0;
+
+      try (EventTraceReader reader = new EventTraceReader(this.traceFile)) {
+        log.info("Replaying {} recorded at {} at {}x", this.traceFile,
+            new Date(reader.getStartMillis()), this.speed == 0 ? "max" : this.speed);
+
+        while (reader.next()) {
+          if (this.speed > 0) {
+            long dueNanos =
+                startNanos + (long) (reader.getOffsetMicros() * 1000 / this.speed);
+            long waitNanos = dueNanos - System.nanoTime();
+            if (waitNanos > 0) {
+              LockSupport.parkNanos(waitNanos);
+            } else {
+              maxLagNanos = Math.max(maxLagNanos, -waitNanos);
+            }
+          }
+
+          Pipeline pipeline = pipelines.get(reader.getFeedId());
+          if (pipeline == null) {
+            pipeline = new Pipeline(reader.getFeedId(), null, null,
+                Collections.<RegionOfInterest> emptyList());
+            context.getAutowireCapableBeanFactory().autowireBean(pipeline);
+            pipelines.put(reader.getFeedId(), pipeline);
+          }
+
+          replay(pipeline, reader);
+          events++;
+        }
+      }
+
+      long replayNanos = System.nanoTime() - startNanos;
+      drain(publishQueue, orion);
+
+      report(events, replayNanos, maxLagNanos, orion, publishQueue);
+    } finally {
+      context.close();
+      orion.stop();
+      delete(replayDir);
+    }
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    if (!file.delete()) {
+      log.warn("Could not delete {}", file);
+    }
+  }
+
+  private void replay(Pipeline pipeline, EventTraceReader reader) {
+    // Keep the recorded latency, so the processing width reacts as it did live
+    long raisedMillis = System.currentTimeMillis() - reader.getLatencyMs();
+    String timestamp = Long.toString(raisedMillis / 1000);
+    String timestampMillis = Long.toString(raisedMillis);
+    Kind kind = reader.getKind();
+
+    replayed(reader.getRoiId(), kind);
+    switch (kind) {
+      case OCCUPANCY:
+        pipeline.onOccupancyEvent(new CrowdDetectorOccupancyEvent(null, timestamp,
+            timestampMillis, null, kind.getType(), reader.getValue(), reader.getLevel(),
+            reader.getRoiId()));
+        break;
+      case FLUIDITY:
+        pipeline.onFluidityEvent(new CrowdDetectorFluidityEvent(null, timestamp, timestampMillis,
+            null, kind.getType(), reader.getValue(), reader.getLevel(), reader.getRoiId()));
+        break;
+      case DIRECTION:
+        pipeline.onDirectionEvent(new CrowdDetectorDirectionEvent(null, timestamp,
+            timestampMillis, null, kind.getType(), reader.getValue(), reader.getRoiId()));
+        break;
+      default:
+        break;
+    }
+  }
+
+  private void replayed(String roiId, Kind kind) {
+    AtomicLongArray times = this.replayedNanos.get(roiId);
+    if (times == null) {
+      AtomicLongArray newTimes = new AtomicLongArray(Kind.values().length);
+      times = this.replayedNanos.putIfAbsent(roiId, newTimes);
+      if (times == null) {
+        times = newTimes;
+      }
+    }
+    times.set(kind.ordinal(), System.nanoTime());
+  }
+
+  @Override
+  public void onUpdate(OrionContextElement element, long receivedNanos) {
+    Kind kind = Kind.fromType(element.getType());
+    if (kind == null || element.getId() == null) {
+      return;
+    }
+    AtomicLongArray times = this.replayedNanos.get(element.getId());
+    if (times == null) {
+      return;
+    }
+    long replayed = times.get(kind.ordinal());
+    if (replayed != 0) {
+      addLatency(receivedNanos - replayed);
+    }
+  }
+
+  private synchronized void addLatency(long nanos) {
+    if (this.latencyCount == this.latencies.length) {
+      this.latencies = Arrays.copyOf(this.latencies, this.latencyCount * 2);
+    }
+    this.latencies[this.latencyCount++] = nanos;
+  }
+
+  /**
+   * Waits for the publish queue to deliver the last replayed events.
+   */
+  private static void drain(OrionPublishQueue publishQueue, LocalOrionServer orion) {
+    long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+    long elements = -1;
+    long idleSince = System.currentTimeMillis();
+    while (System.currentTimeMillis() < deadline) {
+      long now = System.currentTimeMillis();
+      if (publishQueue.getQueueDepth() > 0 || orion.getElements() != elements) {
+        elements = orion.getElements();
+        idleSince = now;
+      } else if (now - idleSince >= DRAIN_IDLE_MS) {
+        return;
+      }
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+    }
+    log.warn("Publish queue not drained after {} ms", DRAIN_TIMEOUT_MS);
+  }
+
+  private synchronized void report(long events, long replayNanos, long maxLagNanos,
+      LocalOrionServer orion, OrionPublishQueue publishQueue) {
+    double seconds = replayNanos / 1e9;
+    log.info("Replayed {} events in {} s ({} events/s), max lag {} ms", events,
+        String.format("%.3f", seconds), String.format("%.0f", events / seconds),
+        TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+    log.info("Orion received {} updates with {} elements ({} elements/s)", orion.getUpdates(),
+        orion.getElements(), String.format("%.0f", orion.getElements() / seconds));
+
+    if (this.latencyCount > 0) {
+      long[] sorted = Arrays.copyOf(this.latencies, this.latencyCount);
+      Arrays.sort(sorted);
+      log.info("Publish latency ms: p50 {} p95 {} p99 {} max {}", millis(sorted, 0.5),
+          millis(sorted, 0.95), millis(sorted, 0.99), millis(sorted, 1));
+    }
+    log.info("Publish queue metrics: {}", publishQueue.getMetrics());
+  }
+
+  private static String millis(long[] sorted, double quantile) {
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+    return String.format("%.1f", sorted[Math.max(0, index)] / 1e6);
+  }
+
+}
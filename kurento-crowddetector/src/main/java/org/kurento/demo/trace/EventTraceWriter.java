@@ -0,0 +1,117 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.kurento.demo.trace.EventTrace.Kind;
+
+/**
+ * Writes crowd detector events to a trace file, in the format described in {@link EventTrace}.
+ *
+ * Not thread safe.
+ *
+ * @since 6.18.0
+ */
+public class EventTraceWriter implements Closeable {
+
+  private final DataOutputStream out;
+  private final Map<String, Integer> strings = new HashMap<>();
+  private long lastEventNanos;
+  private long events;
+
+  public EventTraceWriter(File file) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    this.out.writeInt(EventTrace.MAGIC);
+    this.out.writeShort(EventTrace.VERSION);
+    this.out.writeLong(System.currentTimeMillis());
+    this.lastEventNanos = System.nanoTime();
+  }
+
+  /**
+   * Writes an event received now.
+   *
+   * @param latencyMs
+   *          Milliseconds between the event being raised in KMS and received
+   * @param level
+   *          Level of the event, ignored if its kind has none
+   * @param value
+   *          Percentage or angle of the event
+   */
+  public void write(Kind kind, String feedId, String roiId, long latencyMs, int level, float value)
+      throws IOException {
+    int feedIndex = index(feedId);
+    int roiIndex = index(roiId);
+
+    long now = System.nanoTime();
+    long deltaMicros = (now - this.lastEventNanos) / 1000;
+    // Keep the remainder, so rounding errors don't pile up along the trace
+    this.lastEventNanos += deltaMicros * 1000;
+
+    this.out.writeByte(kind.getTag());
+    writeVarLong(feedIndex);
+    writeVarLong(roiIndex);
+    writeVarLong(deltaMicros);
+    writeVarLong((latencyMs << 1) ^ (latencyMs >> 63));
+    if (kind.hasLevel()) {
+      writeVarLong(level);
+    }
+    this.out.writeFloat(value);
+    this.events++;
+  }
+
+  public long getEvents() {
+    return this.events;
+  }
+
+  public void flush() throws IOException {
+    this.out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.out.close();
+  }
+
+  private int index(String string) throws IOException {
+    Integer index = this.strings.get(string);
+    if (index == null) {
+      index = this.strings.size();
+      this.strings.put(string, index);
+      this.out.writeByte(EventTrace.STRING);
+      this.out.writeUTF(string);
+    }
+    return index;
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      this.out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    this.out.writeByte((int) value);
+  }
+
+}
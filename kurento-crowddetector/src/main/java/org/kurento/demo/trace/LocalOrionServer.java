@@ -0,0 +1,479 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.demo.trace;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.kurento.orion.entities.ContextUpdate;
+import org.kurento.orion.entities.ContextUpdate.ContextUpdateAction;
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+import org.kurento.orion.entities.QueryContext;
+import org.kurento.orion.entities.SubscribeContext;
+import org.kurento.orion.entities.UnsubscribeContext;
+import org.kurento.orion.entities.UpdateContextSubscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Minimal stand-in for the Orion context broker, to publish events offline and to test the Orion
+ * clients.
+ *
+ * It implements the NGSI10 operations used by the connector, optionally after a fixed delay to
+ * simulate the broker latency: context updates are kept in memory and handed to a
+ * {@link Listener}, queries match by type and id or pattern, and subscriptions are notified of
+ * every later change of their elements. Subscriptions never expire, and there is no initial
+ * notification when subscribing.
+ *
+ * @since 6.18.0
+ */
+public class LocalOrionServer {
+
+  private static final Logger log = LoggerFactory.getLogger(LocalOrionServer.class);
+
+  private static final String UPDATE_PATH = "/ngsi10/updateContext";
+  private static final String QUERY_PATH = "/ngsi10/queryContext";
+  private static final String SUBSCRIBE_PATH = "/ngsi10/subscribeContext";
+  private static final String UPDATE_SUBSCRIPTION_PATH = "/ngsi10/updateContextSubscription";
+  private static final String UNSUBSCRIBE_PATH = "/ngsi10/unsubscribeContext";
+  private static final byte[] EMPTY_RESPONSE = "{}".getBytes(StandardCharsets.UTF_8);
+  private static final int NOTIFY_TIMEOUT_MS = 5000;
+
+  /**
+   * Receives the context elements updated in the server.
+   */
+  public interface Listener {
+    void onUpdate(OrionContextElement element, long receivedNanos);
+  }
+
+  private static class Subscription {
+
+    private final String id;
+    private final List<OrionContextElement> entities;
+    private final String reference;
+
+    Subscription(String id, List<OrionContextElement> entities, String reference) {
+      this.id = id;
+      this.entities = entities;
+      this.reference = reference;
+    }
+  }
+
+  private final Gson gson = new Gson();
+  private final SecureRandom random = new SecureRandom();
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final ExecutorService notifier;
+  private final long delayMs;
+  private final Listener listener;
+
+  // Elements by type and id, in the order they were created
+  private final Map<String, OrionContextElement> entities = new LinkedHashMap<>();
+  private final Map<String, Subscription> subscriptions = new ConcurrentHashMap<>();
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong updates = new AtomicLong();
+  private final AtomicLong elements = new AtomicLong();
+  private final AtomicLong notifications = new AtomicLong();
+
+  /**
+   * @param port
+   *          Port to listen to on the loopback interface, or 0 to choose any free one
+   * @param threads
+   *          Number of requests served at the same time
+   * @param delayMs
+   *          Delay before answering each request, in milliseconds
+   */
+  public LocalOrionServer(int port, int threads, long delayMs, Listener listener)
+      throws IOException {
+    this.delayMs = delayMs;
+    this.listener = listener;
+
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+        0);
+    this.server.createContext("/ngsi10/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        onRequest(exchange);
+      }
+    });
+
+    final AtomicInteger threadCount = new AtomicInteger();
+    this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "local-orion-" + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.server.setExecutor(this.executor);
+
+    // A single thread, so the notifications of a subscription arrive in order
+    this.notifier = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "local-orion-notifier");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void start() {
+    this.server.start();
+    log.info("Local Orion stand-in listening on port {}", getPort());
+  }
+
+  public void stop() {
+    this.server.stop(0);
+    this.executor.shutdownNow();
+    this.notifier.shutdownNow();
+    try {
+      this.executor.awaitTermination(1, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public int getPort() {
+    return this.server.getAddress().getPort();
+  }
+
+  public long getRequests() {
+    return this.requests.get();
+  }
+
+  public long getUpdates() {
+    return this.updates.get();
+  }
+
+  public long getElements() {
+    return this.elements.get();
+  }
+
+  public long getNotifications() {
+    return this.notifications.get();
+  }
+
+  public int getSubscriptions() {
+    return this.subscriptions.size();
+  }
+
+  private void onRequest(HttpExchange exchange) throws IOException {
+    try {
+      this.requests.incrementAndGet();
+      InputStreamReader body =
+          new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
+      byte[] response;
+
+      switch (exchange.getRequestURI().getPath()) {
+        case UPDATE_PATH:
+          response = update(this.gson.fromJson(body, ContextUpdate.class));
+          break;
+        case QUERY_PATH:
+          response = query(this.gson.fromJson(body, QueryContext.class));
+          break;
+        case SUBSCRIBE_PATH:
+          response = subscribe(this.gson.fromJson(body, SubscribeContext.class));
+          break;
+        case UPDATE_SUBSCRIPTION_PATH:
+          response = updateSubscription(this.gson.fromJson(body, UpdateContextSubscription.class));
+          break;
+        case UNSUBSCRIBE_PATH:
+          response = unsubscribe(this.gson.fromJson(body, UnsubscribeContext.class));
+          break;
+        default:
+          response = EMPTY_RESPONSE;
+      }
+
+      if (this.delayMs > 0) {
+        Thread.sleep(this.delayMs);
+      }
+
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, response.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(response);
+      }
+    } catch (JsonParseException | NullPointerException e) {
+      log.warn("Invalid request to the local Orion stand-in", e);
+      exchange.sendResponseHeaders(400, -1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private byte[] update(ContextUpdate update) {
+    long receivedNanos = System.nanoTime();
+    if (update.getContextElements() == null) {
+      return toBytes(responseWith("contextResponses", new JsonArray()));
+    }
+
+    this.updates.incrementAndGet();
+    this.elements.addAndGet(update.getContextElements().size());
+    List<OrionContextElement> changed = new ArrayList<>();
+    for (OrionContextElement element : update.getContextElements()) {
+      if (this.listener != null) {
+        this.listener.onUpdate(element, receivedNanos);
+      }
+      OrionContextElement stored = store(update.getUpdateAction(), element);
+      if (stored != null) {
+        changed.add(stored);
+      }
+    }
+    notifyChanges(changed);
+    return toBytes(
+        responseWith("contextResponses", contextResponses(update.getContextElements())));
+  }
+
+  /**
+   * Applies an update to the stored element.
+   *
+   * @return A copy of the element after the update, or null if it was deleted
+   */
+  private synchronized OrionContextElement store(ContextUpdateAction action,
+      OrionContextElement element) {
+    String key = element.getType() + '/' + element.getId();
+    OrionContextElement stored = this.entities.get(key);
+
+    if (action == ContextUpdateAction.DELETE) {
+      if (stored != null && !element.getAttributes().isEmpty()) {
+        // Only the given attributes are deleted
+        for (OrionAttribute<?> attribute : element.getAttributes()) {
+          removeAttribute(stored, attribute.getName());
+        }
+        return copy(stored);
+      }
+      this.entities.remove(key);
+      return null;
+    }
+
+    if (stored == null) {
+      stored = new OrionContextElement();
+      stored.setType(element.getType());
+      stored.setId(element.getId());
+      this.entities.put(key, stored);
+    }
+    for (OrionAttribute<?> attribute : element.getAttributes()) {
+      removeAttribute(stored, attribute.getName());
+      stored.getAttributes().add(attribute);
+    }
+    return copy(stored);
+  }
+
+  private static void removeAttribute(OrionContextElement element, String name) {
+    Iterator<OrionAttribute<?>> it = element.getAttributes().iterator();
+    while (it.hasNext()) {
+      if (it.next().getName().equals(name)) {
+        it.remove();
+      }
+    }
+  }
+
+  private static OrionContextElement copy(OrionContextElement element) {
+    OrionContextElement copy = new OrionContextElement();
+    copy.setType(element.getType());
+    copy.setId(element.getId());
+    copy.getAttributes().addAll(element.getAttributes());
+    return copy;
+  }
+
+  private synchronized List<OrionContextElement> find(List<OrionContextElement> queried) {
+    List<OrionContextElement> found = new ArrayList<>();
+    for (OrionContextElement element : this.entities.values()) {
+      if (matches(queried, element)) {
+        found.add(copy(element));
+      }
+    }
+    return found;
+  }
+
+  private static boolean matches(List<OrionContextElement> queried, OrionContextElement element) {
+    for (OrionContextElement query : queried) {
+      if (query.getType() != null && !query.getType().equals(element.getType())) {
+        continue;
+      }
+      if (query.isPattern() ? Pattern.matches(query.getId(), element.getId())
+          : query.getId().equals(element.getId())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private byte[] query(QueryContext query) {
+    List<OrionContextElement> found = find(query.getEntities());
+    if (found.isEmpty()) {
+      return toBytes(responseWith("errorCode", statusCode(404, "No context element found")));
+    }
+    return toBytes(responseWith("contextResponses", contextResponses(found)));
+  }
+
+  private byte[] subscribe(SubscribeContext request) {
+    byte[] bytes = new byte[12];
+    this.random.nextBytes(bytes);
+    StringBuilder id = new StringBuilder();
+    for (byte b : bytes) {
+      id.append(String.format("%02x", b));
+    }
+
+    Subscription subscription =
+        new Subscription(id.toString(), request.getEntities(), request.getReference());
+    this.subscriptions.put(subscription.id, subscription);
+
+    JsonObject subscribeResponse = new JsonObject();
+    subscribeResponse.addProperty("subscriptionId", subscription.id);
+    subscribeResponse.addProperty("duration", request.getDuration());
+    return toBytes(responseWith("subscribeResponse", subscribeResponse));
+  }
+
+  private byte[] updateSubscription(UpdateContextSubscription request) {
+    if (!this.subscriptions.containsKey(request.getSubscriptionId())) {
+      JsonObject subscribeError = new JsonObject();
+      subscribeError.addProperty("subscriptionId", request.getSubscriptionId());
+      subscribeError.add("errorCode", statusCode(404, "No context element found"));
+      return toBytes(responseWith("subscribeError", subscribeError));
+    }
+    JsonObject subscribeResponse = new JsonObject();
+    subscribeResponse.addProperty("subscriptionId", request.getSubscriptionId());
+    subscribeResponse.addProperty("duration", request.getDuration());
+    return toBytes(responseWith("subscribeResponse", subscribeResponse));
+  }
+
+  private byte[] unsubscribe(UnsubscribeContext request) {
+    boolean removed = this.subscriptions.remove(request.getSubscriptionId()) != null;
+    JsonObject response = new JsonObject();
+    response.addProperty("subscriptionId", request.getSubscriptionId());
+    response.add("statusCode",
+        removed ? statusCode(200, "OK") : statusCode(404, "No context element found"));
+    return toBytes(response);
+  }
+
+  private void notifyChanges(List<OrionContextElement> changed) {
+    for (final Subscription subscription : this.subscriptions.values()) {
+      final List<OrionContextElement> notified = new ArrayList<>();
+      for (OrionContextElement element : changed) {
+        if (matches(subscription.entities, element)) {
+          notified.add(element);
+        }
+      }
+      if (notified.isEmpty()) {
+        continue;
+      }
+      this.notifier.execute(new Runnable() {
+        @Override
+        public void run() {
+          sendNotification(subscription, notified);
+        }
+      });
+    }
+  }
+
+  private void sendNotification(Subscription subscription, List<OrionContextElement> elements) {
+    JsonObject notification = new JsonObject();
+    notification.addProperty("subscriptionId", subscription.id);
+    notification.addProperty("originator", "localhost");
+    notification.add("contextResponses", contextResponses(elements));
+
+    try {
+      HttpURLConnection connection =
+          (HttpURLConnection) new URL(subscription.reference).openConnection();
+      connection.setConnectTimeout(NOTIFY_TIMEOUT_MS);
+      connection.setReadTimeout(NOTIFY_TIMEOUT_MS);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setDoOutput(true);
+      try (OutputStream os = connection.getOutputStream()) {
+        os.write(toBytes(notification));
+      }
+      int status = connection.getResponseCode();
+      connection.disconnect();
+      if (status == 200) {
+        this.notifications.incrementAndGet();
+      } else {
+        log.warn("Notification of subscription {} rejected with HTTP {}", subscription.id,
+            status);
+      }
+    } catch (IOException e) {
+      log.warn("Could not notify subscription {} at {}: {}", subscription.id,
+          subscription.reference, e.getMessage());
+    }
+  }
+
+  private JsonArray contextResponses(List<OrionContextElement> elements) {
+    JsonArray responses = new JsonArray();
+    for (OrionContextElement element : elements) {
+      JsonObject elementResponse = new JsonObject();
+      elementResponse.add("contextElement", this.gson.toJsonTree(element));
+      elementResponse.add("statusCode", statusCode(200, "OK"));
+      responses.add(elementResponse);
+    }
+    return responses;
+  }
+
+  private static JsonObject statusCode(int code, String reasonPhrase) {
+    JsonObject statusCode = new JsonObject();
+    statusCode.addProperty("code", code);
+    statusCode.addProperty("reasonPhrase", reasonPhrase);
+    return statusCode;
+  }
+
+  private static JsonObject responseWith(String name, JsonElement value) {
+    JsonObject response = new JsonObject();
+    response.add(name, value);
+    return response;
+  }
+
+  private byte[] toBytes(JsonObject json) {
+    return this.gson.toJson(json).getBytes(StandardCharsets.UTF_8);
+  }
+
+}
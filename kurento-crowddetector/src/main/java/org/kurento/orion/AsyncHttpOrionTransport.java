@@ -0,0 +1,198 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion;
+
+import static org.apache.http.entity.ContentType.APPLICATION_JSON;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.protocol.HttpContext;
+import org.kurento.orion.entities.ContextUpdate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Non-blocking {@link OrionTransport} based on the Apache asynchronous HTTP client. Requests share
+ * a bounded pool of persistent connections, served by a single I/O reactor thread, so waiting for
+ * the context broker doesn't hold any application thread.
+ *
+ * Request objects are serialized straight into the bytes of the request body, by the
+ * {@link OrionJsonWriter} for updates and by Gson otherwise, and responses are deserialized
+ * straight from the response stream, without intermediate strings.
+ *
+ * @since 6.18.0
+ */
+public class AsyncHttpOrionTransport implements OrionTransport {
+
+  private static final Gson gson = new Gson();
+  private static final Logger log = LoggerFactory.getLogger(AsyncHttpOrionTransport.class);
+
+  private final CloseableHttpAsyncClient client;
+
+  /**
+   * Buffer whose content can be handed to the request entity without being copied.
+   */
+  private static class RequestBuffer extends ByteArrayOutputStream {
+
+    RequestBuffer() {
+      super(1024);
+    }
+
+    HttpEntity toEntity() {
+      return new ByteArrayEntity(this.buf, 0, this.count, APPLICATION_JSON);
+    }
+
+    @Override
+    public synchronized String toString() {
+      return new String(this.buf, 0, this.count, StandardCharsets.UTF_8);
+    }
+  }
+
+  public AsyncHttpOrionTransport(OrionConnectorConfiguration config) {
+    IOReactorConfig ioReactorConfig = IOReactorConfig.custom().setIoThreadCount(1)
+        .setConnectTimeout(config.getConnectTimeout()).setSoTimeout(config.getSocketTimeout())
+        .setSoKeepAlive(true).setTcpNoDelay(true).build();
+
+    PoolingNHttpClientConnectionManager connectionManager;
+    try {
+      connectionManager =
+          new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+    } catch (IOReactorException e) {
+      throw new OrionConnectorException("Could not create I/O reactor for Orion requests", e);
+    }
+    connectionManager.setMaxTotal(config.getMaxConnections());
+    connectionManager.setDefaultMaxPerRoute(config.getMaxConnections());
+
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(config.getConnectTimeout())
+        .setConnectionRequestTimeout(config.getConnectTimeout())
+        .setSocketTimeout(config.getSocketTimeout()).build();
+
+    final long keepAliveTime = config.getKeepAliveTime();
+    ConnectionKeepAliveStrategy keepAliveStrategy = new ConnectionKeepAliveStrategy() {
+      @Override
+      public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        long duration =
+            DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return (duration > 0) ? Math.min(duration, keepAliveTime) : keepAliveTime;
+      }
+    };
+
+    this.client = HttpAsyncClients.custom().setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig).setKeepAliveStrategy(keepAliveStrategy).build();
+    this.client.start();
+  }
+
+  @Override
+  public <T> CompletableFuture<T> post(URI orionAddr, String path, Object request,
+      final Class<T> responseClazz) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+
+    RequestBuffer body = new RequestBuffer();
+    try (Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8)) {
+      if (request instanceof ContextUpdate) {
+        OrionJsonWriter.toJson((ContextUpdate) request, writer);
+      } else {
+        gson.toJson(request, writer);
+      }
+    } catch (IOException e) {
+      future.completeExceptionally(new OrionConnectorException("Could not serialize request", e));
+      return future;
+    }
+    log.debug("Send request to Orion: {}", body);
+
+    HttpPost post = new HttpPost(orionAddr.toString() + path);
+    post.addHeader("Accept", APPLICATION_JSON.getMimeType());
+    post.setEntity(body.toEntity());
+
+    this.client.execute(post, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        try {
+          future.complete(getOrionObjFromResponse(response, responseClazz));
+          log.debug("Sent to Orion. Obtained response: {}", response);
+        } catch (OrionConnectorException e) {
+          future.completeExceptionally(e);
+        }
+      }
+
+      @Override
+      public void failed(Exception e) {
+        future.completeExceptionally(
+            new OrionConnectorException("Could not execute HTTP request", e));
+      }
+
+      @Override
+      public void cancelled() {
+        future.completeExceptionally(new OrionConnectorException("HTTP request cancelled"));
+      }
+    });
+
+    return future;
+  }
+
+  private static <T> T getOrionObjFromResponse(HttpResponse response, Class<T> responseClazz) {
+    if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+      throw new OrionConnectorException(
+          "Failed with HTTP error code : " + response.getStatusLine().getStatusCode());
+    }
+
+    try (Reader reader =
+        new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8)) {
+      return gson.fromJson(reader, responseClazz);
+    } catch (IOException | JsonParseException e) {
+      throw new OrionConnectorException("Could not read entity content from HTTP response", e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      this.client.close();
+    } catch (IOException e) {
+      log.warn("Could not close HTTP client", e);
+    }
+  }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker guarding the requests sent to Orion.
+ *
+ * After {@code failureThreshold} consecutive failures the breaker opens, and requests are rejected
+ * without contacting the context broker. Once {@code openTime} milliseconds have elapsed, a single
+ * trial request is let through (half-open): if it succeeds the breaker closes again, otherwise it
+ * stays open for another period.
+ *
+ * @since 6.18.0
+ */
+public class OrionCircuitBreaker {
+
+  private static final Logger log = LoggerFactory.getLogger(OrionCircuitBreaker.class);
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long openTime;
+
+  private State state = State.CLOSED;
+  private int failures;
+  private long openedAt;
+
+  public OrionCircuitBreaker(int failureThreshold, long openTime) {
+    this.failureThreshold = failureThreshold;
+    this.openTime = openTime;
+  }
+
+  /**
+   * @return true if a request may be sent to Orion now. While half-open, only the first caller
+   *         gets true, and it must report the outcome through {@link #onSuccess()} or
+   *         {@link #onFailure()}.
+   */
+  public synchronized boolean allowRequest() {
+    switch (this.state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (System.currentTimeMillis() - this.openedAt < this.openTime) {
+          return false;
+        }
+        this.state = State.HALF_OPEN;
+        log.info("Circuit to ORION half-open, sending trial request");
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return true if this success closed a breaker that was not closed.
+   */
+  public synchronized boolean onSuccess() {
+    this.failures = 0;
+    if (this.state == State.CLOSED) {
+      return false;
+    }
+    this.state = State.CLOSED;
+    log.info("Circuit to ORION closed");
+    return true;
+  }
+
+  public synchronized void onFailure() {
+    this.failures++;
+    if (this.state == State.HALF_OPEN
+        || (this.state == State.CLOSED && this.failures >= this.failureThreshold)) {
+      this.state = State.OPEN;
+      this.openedAt = System.currentTimeMillis();
+      log.warn("Circuit to ORION open after {} consecutive failures", this.failures);
+    }
+  }
+
+  public synchronized State getState() {
+    return this.state;
+  }
+
+}
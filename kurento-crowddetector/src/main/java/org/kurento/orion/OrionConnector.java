@@ -17,24 +17,19 @@
 
 package org.kurento.orion;
 
-import static org.apache.http.entity.ContentType.APPLICATION_JSON;
 import static org.kurento.orion.entities.ContextUpdate.ContextUpdateAction.APPEND;
 import static org.kurento.orion.entities.ContextUpdate.ContextUpdateAction.DELETE;
 import static org.kurento.orion.entities.ContextUpdate.ContextUpdateAction.UPDATE;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.fluent.Response;
 import org.apache.http.client.utils.URIBuilder;
 import org.kurento.orion.entities.ContextUpdate;
 import org.kurento.orion.entities.ContextUpdateResponse;
@@ -42,12 +37,13 @@ import org.kurento.orion.entities.OrionAttribute;
 import org.kurento.orion.entities.OrionContextElement;
 import org.kurento.orion.entities.QueryContext;
 import org.kurento.orion.entities.QueryContextResponse;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.kurento.orion.entities.SubscribeContext;
+import org.kurento.orion.entities.SubscribeContextResponse;
+import org.kurento.orion.entities.UnsubscribeContext;
+import org.kurento.orion.entities.UnsubscribeContextResponse;
+import org.kurento.orion.entities.UpdateContextSubscription;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import com.google.gson.Gson;
-
 /**
  * Connector to the ORion context broker. This connector uses only the NGSI10 service from Orion,
  * and none of it's convenience methods.
@@ -64,12 +60,11 @@ public class OrionConnector {
   private static final String UNSUBSCRIBE_PATH = "/ngsi10/unsubscribeContext";
   private static final String UPDATE_SUBSCRIBE_PATH = "/ngsi10/updateContextSubscription";
 
-  private static final Gson gson = new Gson();
-  private static final Logger log = LoggerFactory.getLogger(OrionConnector.class);
-
   @Autowired
   private OrionConnectorConfiguration config;
 
+  private OrionTransport transport;
+
   private URI orionAddr;
 
   /**
@@ -87,7 +82,21 @@ public class OrionConnector {
    *          Configuration object
    */
   public OrionConnector(OrionConnectorConfiguration config) {
+    this(config, null);
+  }
+
+  /**
+   * Orion connector constructor, to be used outside from a spring context with a custom transport.
+   *
+   * @param config
+   *          Configuration object
+   * @param transport
+   *          Transport used to send the requests, or null to use an
+   *          {@link AsyncHttpOrionTransport}
+   */
+  public OrionConnector(OrionConnectorConfiguration config, OrionTransport transport) {
     this.config = config;
+    this.transport = transport;
     this.init();
   }
 
@@ -103,6 +112,18 @@ public class OrionConnector {
     } catch (URISyntaxException e) {
       throw new OrionConnectorException("Could not build URI to make a request to Orion", e);
     }
+
+    if (this.transport == null) {
+      this.transport = new AsyncHttpOrionTransport(this.config);
+    }
+  }
+
+  /**
+   * Releases the connections held by the transport.
+   */
+  @PreDestroy
+  public void close() {
+    this.transport.close();
   }
 
   /**
@@ -117,6 +138,19 @@ public class OrionConnector {
    *
    */
   public ContextUpdateResponse registerContextElements(OrionContextElement... events) {
+    return await(registerContextElementsAsync(events));
+  }
+
+  /**
+   * Register context elements in the Orion context broker, without waiting for the answer.
+   *
+   * @param events
+   *          List of events
+   * @return A future completed with the response from the context broker, or with an
+   *         {@link OrionConnectorException}.
+   */
+  public CompletableFuture<ContextUpdateResponse> registerContextElementsAsync(
+      OrionContextElement... events) {
     ContextUpdate ctxUpdate = new ContextUpdate(APPEND, events);
     return sendRequestToOrion(ctxUpdate, UPDATE_PATH, ContextUpdateResponse.class);
   }
@@ -132,6 +166,19 @@ public class OrionConnector {
    *           the given address, or obtaining the answer from it.
    */
   public ContextUpdateResponse updateContextElements(OrionContextElement... events) {
+    return await(updateContextElementsAsync(events));
+  }
+
+  /**
+   * Updates context elements that exist in Orion, without waiting for the answer.
+   *
+   * @param events
+   *          events
+   * @return A future completed with the response from the context broker, or with an
+   *         {@link OrionConnectorException}.
+   */
+  public CompletableFuture<ContextUpdateResponse> updateContextElementsAsync(
+      OrionContextElement... events) {
     ContextUpdate ctxUpdate = new ContextUpdate(UPDATE, events);
     return sendRequestToOrion(ctxUpdate, UPDATE_PATH, ContextUpdateResponse.class);
   }
@@ -148,7 +195,7 @@ public class OrionConnector {
    */
   public ContextUpdateResponse deleteContextElements(OrionContextElement... events) {
     ContextUpdate ctxUpdate = new ContextUpdate(DELETE, events);
-    return sendRequestToOrion(ctxUpdate, UPDATE_PATH, ContextUpdateResponse.class);
+    return await(sendRequestToOrion(ctxUpdate, UPDATE_PATH, ContextUpdateResponse.class));
   }
 
   /**
@@ -185,7 +232,7 @@ public class OrionConnector {
     element.setId(id);
     element.setType(type);
     QueryContext query = new QueryContext(element);
-    return sendRequestToOrion(query, QUERY_PATH, QueryContextResponse.class);
+    return await(sendRequestToOrion(query, QUERY_PATH, QueryContextResponse.class));
   }
 
   /**
@@ -206,76 +253,96 @@ public class OrionConnector {
     element.setPattern(true);
     element.setType(type);
     QueryContext query = new QueryContext(element);
-    return sendRequestToOrion(query, QUERY_PATH, QueryContextResponse.class);
+    return await(sendRequestToOrion(query, QUERY_PATH, QueryContextResponse.class));
   }
 
   /**
-   * Sends a request to Orion
+   * Subscribes to the changes of a context element, or of a pattern-based group of them.
    *
-   * @param ctxElement
-   *          The context element
-   * @param path
-   *          the path from the context broker that determines which "operation"will be executed
-   * @param responseClazz
-   *          The class expected for the response
-   * @return The object representing the JSON answer from Orion
+   * @param element
+   *          the context element, with its type and id or pattern
+   * @param reference
+   *          the URL the context broker sends the notifications to
+   * @param duration
+   *          the ISO 8601 duration of the subscription
+   * @param attributes
+   *          the attributes whose changes are notified, or an empty list for all of them
+   * @return The response from the context broker.
    * @throws OrionConnectorException
    *           if a communication exception happens, either when contacting the context broker at
    *           the given address, or obtaining the answer from it.
    */
-  private <E, T> T sendRequestToOrion(E ctxElement, String path, Class<T> responseClazz) {
-    String jsonEntity = gson.toJson(ctxElement);
-    log.debug("Send request to Orion: {}", jsonEntity);
-
-    Request req = Request.Post(this.orionAddr.toString() + path)
-        .addHeader("Accept", APPLICATION_JSON.getMimeType())
-        .bodyString(jsonEntity, APPLICATION_JSON).connectTimeout(5000).socketTimeout(5000);
-    Response response;
-    try {
-      response = req.execute();
-    } catch (IOException e) {
-      throw new OrionConnectorException("Could not execute HTTP request", e);
-    }
-
-    HttpResponse httpResponse = checkResponse(response);
-
-    T ctxResp = getOrionObjFromResponse(httpResponse, responseClazz);
-    log.debug("Sent to Orion. Obtained response: {}", httpResponse);
+  public SubscribeContextResponse subscribeContext(OrionContextElement element, String reference,
+      String duration, List<String> attributes) {
+    SubscribeContext subscription = new SubscribeContext(element, reference, duration, attributes);
+    return await(sendRequestToOrion(subscription, SUBSCRIBE_PATH, SubscribeContextResponse.class));
+  }
 
-    return ctxResp;
+  /**
+   * Extends a subscription before it expires.
+   *
+   * @param subscriptionId
+   *          the id of the subscription
+   * @param duration
+   *          the new ISO 8601 duration of the subscription
+   * @return The response from the context broker.
+   * @throws OrionConnectorException
+   *           if a communication exception happens, either when contacting the context broker at
+   *           the given address, or obtaining the answer from it.
+   */
+  public SubscribeContextResponse updateContextSubscription(String subscriptionId,
+      String duration) {
+    UpdateContextSubscription update = new UpdateContextSubscription(subscriptionId, duration);
+    return await(
+        sendRequestToOrion(update, UPDATE_SUBSCRIBE_PATH, SubscribeContextResponse.class));
   }
 
-  private <T> HttpResponse checkResponse(Response response) {
-    HttpResponse httpResponse;
-    try {
-      httpResponse = response.returnResponse();
-    } catch (IOException e) {
-      throw new OrionConnectorException("Could not obtain HTTP response", e);
-    }
+  /**
+   * Cancels a subscription.
+   *
+   * @param subscriptionId
+   *          the id of the subscription
+   * @return The response from the context broker.
+   * @throws OrionConnectorException
+   *           if a communication exception happens, either when contacting the context broker at
+   *           the given address, or obtaining the answer from it.
+   */
+  public UnsubscribeContextResponse unsubscribeContext(String subscriptionId) {
+    UnsubscribeContext unsubscribe = new UnsubscribeContext(subscriptionId);
+    return await(
+        sendRequestToOrion(unsubscribe, UNSUBSCRIBE_PATH, UnsubscribeContextResponse.class));
+  }
 
-    if (httpResponse.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
-      throw new OrionConnectorException(
-          "Failed with HTTP error code : " + httpResponse.getStatusLine().getStatusCode());
-    }
-    return httpResponse;
+  /**
+   * Sends a request to Orion
+   *
+   * @param ctxElement
+   *          The context element
+   * @param path
+   *          the path from the context broker that determines which "operation"will be executed
+   * @param responseClazz
+   *          The class expected for the response
+   * @return A future completed with the object representing the JSON answer from Orion, or with an
+   *         {@link OrionConnectorException} if a communication exception happens, either when
+   *         contacting the context broker at the given address, or obtaining the answer from it.
+   */
+  private <E, T> CompletableFuture<T> sendRequestToOrion(E ctxElement, String path,
+      Class<T> responseClazz) {
+    return this.transport.post(this.orionAddr, path, ctxElement, responseClazz);
   }
 
-  private <T> T getOrionObjFromResponse(HttpResponse httpResponse, Class<T> responseClazz) {
-    InputStream source;
+  private static <T> T await(CompletableFuture<T> future) {
     try {
-      source = httpResponse.getEntity().getContent();
-    } catch (IllegalStateException | IOException e) {
-      throw new OrionConnectorException("Could not obtain entity content from HTTP response", e);
-    }
-
-    T ctxResp = null;
-    try (Reader reader = new InputStreamReader(source)) {
-      ctxResp = gson.fromJson(reader, responseClazz);
-    } catch (IOException e) {
-      log.warn("Could not close input stream from HttpResponse.", e);
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new OrionConnectorException("Interrupted while waiting for Orion", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof OrionConnectorException) {
+        throw (OrionConnectorException) e.getCause();
+      }
+      throw new OrionConnectorException("Could not execute request to Orion", e.getCause());
     }
-
-    return ctxResp;
   }
 
 }
@@ -26,6 +26,14 @@ public class OrionConnectorConfiguration {
   private String orionHost = "130.206.85.186";
   private int orionPort = 1026;
   private String orionScheme = "http";
+  private int maxConnections = 8;
+  private int connectTimeout = 5000;
+  private int socketTimeout = 5000;
+  private long keepAliveTime = 30000;
+  private String notificationHost;
+  private int notificationPort = 9090;
+  private long cacheTtl = 60000;
+  private String subscriptionDuration = "PT1H";
 
   public String getOrionHost() {
     return this.orionHost;
@@ -50,4 +58,72 @@ public class OrionConnectorConfiguration {
   public void setOrionScheme(String orionSchema) {
     this.orionScheme = orionSchema;
   }
+
+  public int getMaxConnections() {
+    return this.maxConnections;
+  }
+
+  public void setMaxConnections(int maxConnections) {
+    this.maxConnections = maxConnections;
+  }
+
+  public int getConnectTimeout() {
+    return this.connectTimeout;
+  }
+
+  public void setConnectTimeout(int connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  public int getSocketTimeout() {
+    return this.socketTimeout;
+  }
+
+  public void setSocketTimeout(int socketTimeout) {
+    this.socketTimeout = socketTimeout;
+  }
+
+  public long getKeepAliveTime() {
+    return this.keepAliveTime;
+  }
+
+  public void setKeepAliveTime(long keepAliveTime) {
+    this.keepAliveTime = keepAliveTime;
+  }
+
+  /**
+   * @return Host the context broker sends the notifications of the query cache to, or null to keep
+   *         the cache up to date only by expiring its entries.
+   */
+  public String getNotificationHost() {
+    return this.notificationHost;
+  }
+
+  public void setNotificationHost(String notificationHost) {
+    this.notificationHost = notificationHost;
+  }
+
+  public int getNotificationPort() {
+    return this.notificationPort;
+  }
+
+  public void setNotificationPort(int notificationPort) {
+    this.notificationPort = notificationPort;
+  }
+
+  public long getCacheTtl() {
+    return this.cacheTtl;
+  }
+
+  public void setCacheTtl(long cacheTtl) {
+    this.cacheTtl = cacheTtl;
+  }
+
+  public String getSubscriptionDuration() {
+    return this.subscriptionDuration;
+  }
+
+  public void setSubscriptionDuration(String subscriptionDuration) {
+    this.subscriptionDuration = subscriptionDuration;
+  }
 }
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.kurento.orion.entities.ContextUpdate;
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Hand-written JSON serialization of the update requests, the most frequent ones sent to Orion.
+ * The output is the same as the one of Gson, with nulls omitted and HTML characters escaped, but
+ * it is streamed field by field without reflection.
+ *
+ * @since 6.18.0
+ */
+public final class OrionJsonWriter {
+
+  // Only used for attribute values that are not numbers, strings, booleans or JSON trees
+  private static final Gson gson = new Gson();
+
+  private OrionJsonWriter() {
+  }
+
+  public static void toJson(ContextUpdate update, Writer out) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.setSerializeNulls(false);
+    writer.setHtmlSafe(true);
+    write(update, writer);
+    writer.flush();
+  }
+
+  public static void write(ContextUpdate update, JsonWriter writer) throws IOException {
+    writer.beginObject();
+    if (update.getContextElements() != null) {
+      writer.name("contextElements").beginArray();
+      for (OrionContextElement element : update.getContextElements()) {
+        write(element, writer);
+      }
+      writer.endArray();
+    }
+    if (update.getUpdateAction() != null) {
+      writer.name("updateAction").value(update.getUpdateAction().name());
+    }
+    writer.endObject();
+  }
+
+  public static void write(OrionContextElement element, JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("type").value(element.getType());
+    writer.name("isPattern").value(element.isPattern());
+    writer.name("id").value(element.getId());
+    writer.name("attributes").beginArray();
+    for (OrionAttribute<?> attribute : element.getAttributes()) {
+      write(attribute, writer);
+    }
+    writer.endArray();
+    writer.endObject();
+  }
+
+  public static void write(OrionAttribute<?> attribute, JsonWriter writer) throws IOException {
+    writer.beginObject();
+    writer.name("name").value(attribute.getName());
+    writer.name("type").value(attribute.getType());
+    writer.name("value");
+    Object value = attribute.getValue();
+    if (value == null) {
+      writer.nullValue();
+    } else if (value instanceof Number) {
+      writer.value((Number) value);
+    } else if (value instanceof String) {
+      writer.value((String) value);
+    } else if (value instanceof Boolean) {
+      writer.value(((Boolean) value).booleanValue());
+    } else if (value instanceof JsonElement) {
+      gson.toJson((JsonElement) value, writer);
+    } else {
+      gson.toJson(value, value.getClass(), writer);
+    }
+    writer.endObject();
+  }
+
+}
@@ -0,0 +1,487 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.orion.entities.NotifyContextRequest;
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+import org.kurento.orion.entities.OrionContextElementResponse;
+import org.kurento.orion.entities.QueryContextResponse;
+import org.kurento.orion.entities.SubscribeContextResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local cache of the context elements queried from Orion.
+ *
+ * The first query of an element, or of a pattern, goes to the context broker, and the results are
+ * kept in memory. If a notification host is configured, the cache also subscribes to the changes
+ * of what was queried, and receives the notifications in an embedded HTTP server, so later queries
+ * are always served from memory. Subscriptions are extended before they expire. Queries without a
+ * subscription, because there is no notification host or the subscription failed, are served from
+ * memory until the cache TTL runs out, and then go to the context broker again.
+ *
+ * The notification server listens on the notification host if it is a local address, and on all
+ * interfaces otherwise (e.g. behind NAT). Either way, only notifications of the subscriptions made
+ * by this cache are accepted. As Orion doesn't notify deleted elements, subscribed queries are
+ * also run again in the background every cache TTL, to forget the elements deleted meanwhile.
+ *
+ * Elements are indexed by type, so pattern queries only match the ids of the elements of that type.
+ *
+ * @since 6.18.0
+ */
+public class OrionQueryCache {
+
+  private static final Logger log = LoggerFactory.getLogger(OrionQueryCache.class);
+  private static final Gson gson = new Gson();
+
+  private static final String NOTIFY_PATH = "/notify";
+  private static final byte[] NOTIFY_RESPONSE =
+      "{\"responseCode\":{\"code\":\"200\",\"reasonPhrase\":\"OK\"}}"
+          .getBytes(StandardCharsets.UTF_8);
+
+  @Autowired
+  private OrionConnector connector;
+
+  @Autowired
+  private OrionConnectorConfiguration config;
+
+  private final ConcurrentHashMap<String, OrionContextElement> elements =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> idsByType = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, CachedQuery> queries = new ConcurrentHashMap<>();
+  private final Set<String> subscriptionIds = ConcurrentHashMap.newKeySet();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong notifications = new AtomicLong();
+  private final AtomicLong rejectedNotifications = new AtomicLong();
+
+  private ScheduledExecutorService executor;
+  private HttpServer server;
+  private String reference;
+  private long renewalMs;
+
+  private static class CachedQuery {
+
+    private final OrionContextElement element;
+    private final Pattern pattern;
+    private volatile long expiresAt;
+    private volatile String subscriptionId;
+
+    CachedQuery(String type, String idOrPattern, boolean isPattern) {
+      this.element = new OrionContextElement();
+      this.element.setType(type);
+      this.element.setId(idOrPattern);
+      this.element.setPattern(isPattern);
+      this.pattern = isPattern ? Pattern.compile(idOrPattern) : null;
+    }
+
+    boolean isFresh(long now) {
+      return this.subscriptionId != null || now < this.expiresAt;
+    }
+  }
+
+  /**
+   * Default constructor to be used when the cache is created from a spring context.
+   */
+  public OrionQueryCache() {
+
+  }
+
+  /**
+   * Constructor to be used outside from a spring context.
+   */
+  public OrionQueryCache(OrionConnector connector, OrionConnectorConfiguration config)
+      throws IOException {
+    this.connector = connector;
+    this.config = config;
+    this.init();
+  }
+
+  @PostConstruct
+  private void init() throws IOException {
+    this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "orion-query-cache");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    String host = this.config.getNotificationHost();
+    if (host == null) {
+      return;
+    }
+
+    this.server = HttpServer.create(bindAddress(host, this.config.getNotificationPort()), 0);
+    this.server.createContext(NOTIFY_PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        onNotification(exchange);
+      }
+    });
+    this.server.setExecutor(this.executor);
+    this.server.start();
+
+    this.reference = "http://" + host + ":" + this.server.getAddress().getPort() + NOTIFY_PATH;
+    this.renewalMs = Duration.parse(this.config.getSubscriptionDuration()).toMillis() / 2;
+    log.info("Receiving Orion notifications at {} on {}", this.reference,
+        this.server.getAddress());
+
+    long ttl = this.config.getCacheTtl();
+    this.executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        reloadSubscribed();
+      }
+    }, ttl, ttl, TimeUnit.MILLISECONDS);
+  }
+
+  private static InetSocketAddress bindAddress(String host, int port) {
+    try {
+      InetAddress address = InetAddress.getByName(host);
+      if (address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null) {
+        return new InetSocketAddress(address, port);
+      }
+    } catch (IOException e) {
+      log.debug("Could not resolve notification host {}: {}", host, e.getMessage());
+    }
+    log.info("Notification host {} is not a local address, listening on all interfaces", host);
+    return new InetSocketAddress(port);
+  }
+
+  /**
+   * Returns the URL Orion sends the notifications to, or null if there is no notification host.
+   */
+  public String getNotificationUrl() {
+    return this.reference;
+  }
+
+  @PreDestroy
+  public void close() {
+    if (this.server != null) {
+      this.server.stop(0);
+    }
+    this.executor.shutdownNow();
+
+    for (CachedQuery query : this.queries.values()) {
+      String subscriptionId = query.subscriptionId;
+      if (subscriptionId != null) {
+        query.subscriptionId = null;
+        this.subscriptionIds.remove(subscriptionId);
+        try {
+          this.connector.unsubscribeContext(subscriptionId);
+        } catch (OrionConnectorException e) {
+          log.debug("Could not unsubscribe {}: {}", subscriptionId, e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets a context element, from memory if possible.
+   *
+   * @return The element, or null if it doesn't exist in the context broker
+   * @throws OrionConnectorException
+   *           if the element is not cached, and the context broker could not be queried
+   */
+  public OrionContextElement get(String type, String id) {
+    refresh(getQuery(type, id, false));
+    return this.elements.get(key(type, id));
+  }
+
+  /**
+   * Gets the context elements of a type whose ids match a pattern, from memory if possible.
+   *
+   * @throws OrionConnectorException
+   *           if the pattern is not cached, and the context broker could not be queried
+   */
+  public List<OrionContextElement> getWithPattern(String type, String pattern) {
+    CachedQuery query = getQuery(type, pattern, true);
+    refresh(query);
+
+    Set<String> ids = this.idsByType.get(type);
+    if (ids == null) {
+      return Collections.emptyList();
+    }
+    List<OrionContextElement> result = new ArrayList<>();
+    for (String id : ids) {
+      if (query.pattern.matcher(id).matches()) {
+        OrionContextElement element = this.elements.get(key(type, id));
+        if (element != null) {
+          result.add(element);
+        }
+      }
+    }
+    return result;
+  }
+
+  public long getHits() {
+    return this.hits.get();
+  }
+
+  public long getMisses() {
+    return this.misses.get();
+  }
+
+  public long getNotifications() {
+    return this.notifications.get();
+  }
+
+  public long getRejectedNotifications() {
+    return this.rejectedNotifications.get();
+  }
+
+  private CachedQuery getQuery(String type, String idOrPattern, boolean isPattern) {
+    String key = (isPattern ? "pattern:" : "id:") + key(type, idOrPattern);
+    CachedQuery query = this.queries.get(key);
+    if (query == null) {
+      CachedQuery newQuery = new CachedQuery(type, idOrPattern, isPattern);
+      query = this.queries.putIfAbsent(key, newQuery);
+      if (query == null) {
+        query = newQuery;
+      }
+    }
+    return query;
+  }
+
+  private void refresh(CachedQuery query) {
+    if (query.isFresh(System.currentTimeMillis())) {
+      this.hits.incrementAndGet();
+      return;
+    }
+    synchronized (query) {
+      if (query.isFresh(System.currentTimeMillis())) {
+        this.hits.incrementAndGet();
+        return;
+      }
+      this.misses.incrementAndGet();
+      load(query);
+    }
+  }
+
+  private void load(CachedQuery query) {
+    OrionContextElement element = query.element;
+    QueryContextResponse response = (query.pattern != null)
+        ? this.connector.queryContextWithPattern(element.getType(), element.getId())
+        : this.connector.queryContext(element.getType(), element.getId());
+
+    List<OrionContextElement> found = new ArrayList<>();
+    if (response.getContextResponses() != null) {
+      for (OrionContextElementResponse elementResponse : response.getContextResponses()) {
+        if (elementResponse.getContextElement() != null) {
+          found.add(elementResponse.getContextElement());
+        }
+      }
+    } else if (response.getElement() != null) {
+      found.add(response.getElement());
+    }
+
+    Set<String> foundIds = new HashSet<>();
+    for (OrionContextElement foundElement : found) {
+      put(foundElement);
+      foundIds.add(foundElement.getId());
+    }
+
+    // Forget the elements that no longer exist
+    Set<String> ids = this.idsByType.get(element.getType());
+    if (ids != null) {
+      for (String id : ids) {
+        boolean matches = (query.pattern != null) ? query.pattern.matcher(id).matches()
+            : id.equals(element.getId());
+        if (matches && !foundIds.contains(id)) {
+          remove(element.getType(), id);
+        }
+      }
+    }
+
+    query.expiresAt = System.currentTimeMillis() + this.config.getCacheTtl();
+
+    if (this.reference != null && query.subscriptionId == null) {
+      subscribe(query, found);
+    }
+  }
+
+  private void subscribe(final CachedQuery query, List<OrionContextElement> found) {
+    List<String> attributes = new ArrayList<>();
+    if (query.pattern == null && !found.isEmpty()) {
+      for (OrionAttribute<?> attribute : found.get(0).getAttributes()) {
+        attributes.add(attribute.getName());
+      }
+    }
+
+    try {
+      SubscribeContextResponse response = this.connector.subscribeContext(query.element,
+          this.reference, this.config.getSubscriptionDuration(), attributes);
+      if (response.getSubscribeResponse() == null) {
+        log.warn("Subscription to {} rejected: {}", query.element.getId(), response);
+        return;
+      }
+      // A notification may already be on its way, but it can only repeat what was just queried
+      query.subscriptionId = response.getSubscribeResponse().getSubscriptionId();
+      this.subscriptionIds.add(query.subscriptionId);
+      scheduleRenewal(query);
+    } catch (OrionConnectorException e) {
+      log.warn("Could not subscribe to {}: {}", query.element.getId(), e.getMessage());
+    }
+  }
+
+  private void scheduleRenewal(final CachedQuery query) {
+    this.executor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        renew(query);
+      }
+    }, this.renewalMs, TimeUnit.MILLISECONDS);
+  }
+
+  private void renew(CachedQuery query) {
+    String subscriptionId = query.subscriptionId;
+    if (subscriptionId == null) {
+      return;
+    }
+    try {
+      SubscribeContextResponse response = this.connector.updateContextSubscription(subscriptionId,
+          this.config.getSubscriptionDuration());
+      if (response.getSubscribeResponse() != null) {
+        scheduleRenewal(query);
+        return;
+      }
+      log.warn("Renewal of subscription {} rejected: {}", subscriptionId, response);
+    } catch (OrionConnectorException e) {
+      log.warn("Could not renew subscription {}: {}", subscriptionId, e.getMessage());
+    }
+    // Serve the query from memory only until the TTL runs out
+    query.expiresAt = System.currentTimeMillis() + this.config.getCacheTtl();
+    query.subscriptionId = null;
+    this.subscriptionIds.remove(subscriptionId);
+  }
+
+  /**
+   * Runs the subscribed queries again, to forget the elements deleted in the context broker.
+   */
+  private void reloadSubscribed() {
+    for (CachedQuery query : this.queries.values()) {
+      if (query.subscriptionId == null) {
+        continue;
+      }
+      synchronized (query) {
+        try {
+          load(query);
+        } catch (OrionConnectorException e) {
+          log.debug("Could not reload {}: {}", query.element.getId(), e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void onNotification(HttpExchange exchange) throws IOException {
+    try {
+      if ("POST".equals(exchange.getRequestMethod())) {
+        NotifyContextRequest notification = gson.fromJson(
+            new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8),
+            NotifyContextRequest.class);
+        if (notification == null || notification.getSubscriptionId() == null
+            || !this.subscriptionIds.contains(notification.getSubscriptionId())) {
+          this.rejectedNotifications.incrementAndGet();
+          log.debug("Ignoring notification of unknown subscription from {}",
+              exchange.getRemoteAddress());
+          exchange.sendResponseHeaders(403, -1);
+          return;
+        }
+        if (notification.getContextResponses() != null) {
+          this.notifications.incrementAndGet();
+          for (OrionContextElementResponse response : notification.getContextResponses()) {
+            if (response.getContextElement() != null) {
+              put(response.getContextElement());
+            }
+          }
+        }
+      }
+      exchange.getResponseHeaders().set("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, NOTIFY_RESPONSE.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(NOTIFY_RESPONSE);
+      }
+    } catch (JsonParseException e) {
+      log.warn("Invalid notification from Orion: {}", e.getMessage());
+      exchange.sendResponseHeaders(400, -1);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private void put(OrionContextElement element) {
+    this.elements.put(key(element.getType(), element.getId()), element);
+    Set<String> ids = this.idsByType.get(element.getType());
+    if (ids == null) {
+      Set<String> newIds = ConcurrentHashMap.newKeySet();
+      ids = this.idsByType.putIfAbsent(element.getType(), newIds);
+      if (ids == null) {
+        ids = newIds;
+      }
+    }
+    ids.add(element.getId());
+  }
+
+  private void remove(String type, String id) {
+    this.elements.remove(key(type, id));
+    Set<String> ids = this.idsByType.get(type);
+    if (ids != null) {
+      ids.remove(id);
+    }
+  }
+
+  private static String key(String type, String id) {
+    return type + '/' + id;
+  }
+
+}
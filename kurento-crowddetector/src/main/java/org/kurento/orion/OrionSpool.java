@@ -0,0 +1,244 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Append-only spool of context element updates that could not be sent to Orion, kept in a
+ * memory-mapped file so it survives a restart of the application.
+ *
+ * The file starts with the current write position, followed by length-prefixed JSON records. When
+ * the file is full, it is compacted in place keeping only the latest value of each attribute of
+ * each context element.
+ *
+ * @since 6.18.0
+ */
+public class OrionSpool implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(OrionSpool.class);
+  private static final Gson gson = new Gson();
+
+  private static final int HEADER_SIZE = 8;
+
+  private final File file;
+  private final RandomAccessFile raf;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+
+  private int position;
+  private long dropped;
+  private long compactions;
+
+  public OrionSpool(File file, int capacity) throws IOException {
+    this.file = file;
+    this.capacity = capacity;
+    this.raf = new RandomAccessFile(file, "rw");
+    try {
+      this.buffer = this.raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    } catch (IOException e) {
+      this.raf.close();
+      throw e;
+    }
+
+    long storedPosition = this.buffer.getLong(0);
+    if (storedPosition < HEADER_SIZE || storedPosition > capacity) {
+      setPosition(HEADER_SIZE);
+    } else {
+      this.position = (int) storedPosition;
+      if (!isEmpty()) {
+        log.info("Found {} bytes of pending ORION updates in {}", this.position - HEADER_SIZE,
+            file);
+      }
+    }
+  }
+
+  /**
+   * Appends the update of a context element, compacting the spool if it is full.
+   *
+   * @return false if the update didn't fit even after compacting, and was dropped.
+   */
+  public synchronized boolean append(OrionContextElement element) {
+    byte[] record = gson.toJson(element).getBytes(StandardCharsets.UTF_8);
+    if (!fits(record)) {
+      rewrite(read(HEADER_SIZE));
+      this.compactions++;
+      if (!fits(record)) {
+        this.dropped++;
+        return false;
+      }
+    }
+    write(record);
+    setPosition(this.position);
+    return true;
+  }
+
+  /**
+   * Reads the updates appended since the given position, compacted so there is one context element
+   * per entity, holding the latest value of each of its attributes.
+   *
+   * @param from
+   *          A position previously returned by {@link #getPosition()}
+   */
+  public synchronized List<OrionContextElement> read(int from) {
+    Map<String, OrionContextElement> elements = new LinkedHashMap<>();
+    Map<String, Map<String, OrionAttribute<?>>> attributes = new LinkedHashMap<>();
+
+    int offset = Math.max(from, HEADER_SIZE);
+    while (offset < this.position) {
+      int length = this.buffer.getInt(offset);
+      if (length < 0 || offset + 4 + length > this.position) {
+        log.warn("Spool file {} is corrupted at position {}, ignoring the rest", this.file, offset);
+        break;
+      }
+      byte[] record = new byte[length];
+      ByteBuffer view = this.buffer.duplicate();
+      view.position(offset + 4);
+      view.get(record);
+      offset += 4 + length;
+
+      JsonObject json;
+      try {
+        json = new JsonParser().parse(new String(record, StandardCharsets.UTF_8)).getAsJsonObject();
+      } catch (JsonParseException | IllegalStateException e) {
+        log.warn("Skipping unreadable record in spool file {}: {}", this.file, e.getMessage());
+        continue;
+      }
+      String id = json.get("id").getAsString();
+      String type = json.get("type").getAsString();
+      String key = type + '/' + id;
+
+      Map<String, OrionAttribute<?>> elementAttributes = attributes.get(key);
+      if (elementAttributes == null) {
+        OrionContextElement element = new OrionContextElement();
+        element.setId(id);
+        element.setType(type);
+        elements.put(key, element);
+        elementAttributes = new LinkedHashMap<>();
+        attributes.put(key, elementAttributes);
+      }
+      for (JsonElement attrJson : json.getAsJsonArray("attributes")) {
+        JsonObject attr = attrJson.getAsJsonObject();
+        String name = attr.get("name").getAsString();
+        elementAttributes.put(name, new OrionAttribute<>(name, attr.get("type").getAsString(),
+            attr.get("value")));
+      }
+    }
+
+    List<OrionContextElement> result = new ArrayList<>(elements.size());
+    for (Map.Entry<String, OrionContextElement> entry : elements.entrySet()) {
+      entry.getValue().getAttributes().addAll(attributes.get(entry.getKey()).values());
+      result.add(entry.getValue());
+    }
+    return result;
+  }
+
+  /**
+   * Replaces the content of the spool with the given updates.
+   */
+  public synchronized void rewrite(Collection<OrionContextElement> elements) {
+    setPosition(HEADER_SIZE);
+    for (OrionContextElement element : elements) {
+      byte[] record = gson.toJson(element).getBytes(StandardCharsets.UTF_8);
+      if (!fits(record)) {
+        this.dropped++;
+        continue;
+      }
+      write(record);
+    }
+    setPosition(this.position);
+  }
+
+  public synchronized int getPosition() {
+    return this.position;
+  }
+
+  public synchronized boolean isEmpty() {
+    return this.position == HEADER_SIZE;
+  }
+
+  public synchronized int getUsedBytes() {
+    return this.position - HEADER_SIZE;
+  }
+
+  /**
+   * @return Number of updates dropped because the spool was full.
+   */
+  public synchronized long getDropped() {
+    return this.dropped;
+  }
+
+  /**
+   * @return Number of times the spool was compacted because it was full. Positions obtained before
+   *         a compaction are no longer valid.
+   */
+  public synchronized long getCompactions() {
+    return this.compactions;
+  }
+
+  private boolean fits(byte[] record) {
+    return this.position + 4 + record.length <= this.capacity;
+  }
+
+  private void write(byte[] record) {
+    this.buffer.putInt(this.position, record.length);
+    ByteBuffer view = this.buffer.duplicate();
+    view.position(this.position + 4);
+    view.put(record);
+    this.position += 4 + record.length;
+  }
+
+  private void setPosition(int position) {
+    this.position = position;
+    this.buffer.putLong(0, position);
+  }
+
+  @Override
+  public synchronized void close() {
+    this.buffer.force();
+    try {
+      this.raf.close();
+    } catch (IOException e) {
+      log.warn("Could not close spool file {}", this.file, e);
+    }
+  }
+
+}
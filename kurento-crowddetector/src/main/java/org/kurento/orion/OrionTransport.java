@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion;
+
+import java.io.Closeable;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport used by the {@link OrionConnector} to exchange JSON requests with the context broker.
+ *
+ * @since 6.18.0
+ */
+public interface OrionTransport extends Closeable {
+
+  /**
+   * POSTs a request object to the context broker, serialized as JSON.
+   *
+   * @param orionAddr
+   *          Base address of the context broker
+   * @param path
+   *          the path from the context broker that determines which operation will be executed
+   * @param request
+   *          The object to be sent as JSON
+   * @param responseClazz
+   *          The class expected for the response
+   * @return A future completed with the object representing the JSON answer from Orion, or
+   *         completed exceptionally with an {@link OrionConnectorException}. It never blocks the
+   *         caller.
+   */
+  <T> CompletableFuture<T> post(URI orionAddr, String path, Object request,
+      Class<T> responseClazz);
+
+  @Override
+  void close();
+
+}
@@ -0,0 +1,95 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion.entities;
+
+/**
+ * Precompiled description of a context element whose attributes are updated often: its type, id
+ * and the name and type of each attribute. Updates through a template carry only the attribute
+ * index and a primitive value, so no element or attribute objects are built for each update.
+ *
+ * @since 6.18.0
+ */
+public final class OrionEntityTemplate {
+
+  private final String type;
+  private final String id;
+  private final String key;
+  private final String[] names;
+  private final String[] valueTypes;
+
+  /**
+   * @param valueTypes
+   *          Orion type of each attribute, one of {@code Integer}, {@code Long}, {@code Float} or
+   *          {@code Double}
+   */
+  public OrionEntityTemplate(String type, String id, String[] names, String[] valueTypes) {
+    if (names.length != valueTypes.length) {
+      throw new IllegalArgumentException("Each attribute must have a name and a type");
+    }
+    this.type = type;
+    this.id = id;
+    this.key = type + '/' + id;
+    this.names = names.clone();
+    this.valueTypes = valueTypes.clone();
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @return The {@code type/id} key of the element
+   */
+  public String getKey() {
+    return key;
+  }
+
+  public int getAttributeCount() {
+    return names.length;
+  }
+
+  public String getName(int attribute) {
+    return names[attribute];
+  }
+
+  /**
+   * Builds the attribute object for a value, boxed to the type of the attribute.
+   */
+  public OrionAttribute<?> toAttribute(int attribute, double value) {
+    String valueType = valueTypes[attribute];
+    switch (valueType) {
+      case "Integer":
+        return new OrionAttribute<>(names[attribute], valueType, Integer.valueOf((int) value));
+      case "Long":
+        return new OrionAttribute<>(names[attribute], valueType, Long.valueOf((long) value));
+      case "Float":
+        return new OrionAttribute<>(names[attribute], valueType, Float.valueOf((float) value));
+      default:
+        return new OrionAttribute<>(names[attribute], valueType, Double.valueOf(value));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return " Type: " + type + "\n Id: " + id + "\n";
+  }
+}
@@ -17,6 +17,8 @@
 
 package org.kurento.orion.entities;
 
+import java.util.List;
+
 import com.google.gson.annotations.SerializedName;
 
 /**
@@ -29,9 +31,16 @@ public class QueryContextResponse extends AbstractOrionResponse {
   @SerializedName("contextElement")
   private OrionContextElement element;
 
+  @SerializedName("contextResponses")
+  private List<OrionContextElementResponse> contextResponses;
+
   public QueryContextResponse() {
   }
 
+  public QueryContextResponse(List<OrionContextElementResponse> contextResponses) {
+    this.contextResponses = contextResponses;
+  }
+
   public OrionContextElement getElement() {
     return element;
   }
@@ -40,6 +49,18 @@ public class QueryContextResponse extends AbstractOrionResponse {
     this.element = element;
   }
 
+  /**
+   * @return The elements found by the query, as returned by the context broker in
+   *         {@code contextResponses}.
+   */
+  public List<OrionContextElementResponse> getContextResponses() {
+    return contextResponses;
+  }
+
+  public void setContextResponses(List<OrionContextElementResponse> contextResponses) {
+    this.contextResponses = contextResponses;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
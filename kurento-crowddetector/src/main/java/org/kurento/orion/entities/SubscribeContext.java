@@ -0,0 +1,119 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion.entities;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Context subscription request object
+ *
+ * @since 6.18.0
+ */
+public class SubscribeContext {
+
+  /**
+   * Condition that triggers the notifications of a subscription.
+   */
+  public static class NotifyCondition {
+
+    @SerializedName("type")
+    private String type;
+
+    @SerializedName("condValues")
+    private List<String> condValues;
+
+    public NotifyCondition(String type, List<String> condValues) {
+      this.type = type;
+      this.condValues = ImmutableList.copyOf(condValues);
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public List<String> getCondValues() {
+      return condValues;
+    }
+  }
+
+  @SerializedName("entities")
+  private List<OrionContextElement> entities;
+
+  @SerializedName("attributes")
+  private List<String> attributes;
+
+  @SerializedName("reference")
+  private String reference;
+
+  @SerializedName("duration")
+  private String duration;
+
+  @SerializedName("notifyConditions")
+  private List<NotifyCondition> notifyConditions;
+
+  /**
+   * @param reference
+   *          URL the notifications are sent to
+   * @param duration
+   *          ISO 8601 duration of the subscription
+   * @param attributes
+   *          attributes whose changes are notified, or none to notify all of them
+   */
+  public SubscribeContext(OrionContextElement entity, String reference, String duration,
+      List<String> attributes) {
+    this.entities = ImmutableList.of(entity);
+    this.attributes = ImmutableList.copyOf(attributes);
+    this.reference = reference;
+    this.duration = duration;
+    this.notifyConditions = ImmutableList.of(new NotifyCondition("ONCHANGE", attributes));
+  }
+
+  public List<OrionContextElement> getEntities() {
+    return entities;
+  }
+
+  public List<String> getAttributes() {
+    return attributes;
+  }
+
+  public String getReference() {
+    return reference;
+  }
+
+  public String getDuration() {
+    return duration;
+  }
+
+  public List<NotifyCondition> getNotifyConditions() {
+    return notifyConditions;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (OrionContextElement element : entities) {
+      sb.append(element).append("\n");
+    }
+    sb.append(" Reference: ").append(reference).append("\n");
+    sb.append(" Duration: ").append(duration).append("\n");
+    return sb.toString();
+  }
+}
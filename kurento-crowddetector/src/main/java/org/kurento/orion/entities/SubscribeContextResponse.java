@@ -0,0 +1,91 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion.entities;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Response to a context subscription, or to an update of a subscription
+ *
+ * @since 6.18.0
+ */
+public class SubscribeContextResponse {
+
+  /**
+   * Subscription accepted by the context broker.
+   */
+  public static class SubscribeResponse {
+
+    @SerializedName("subscriptionId")
+    private String subscriptionId;
+
+    @SerializedName("duration")
+    private String duration;
+
+    public String getSubscriptionId() {
+      return subscriptionId;
+    }
+
+    public String getDuration() {
+      return duration;
+    }
+  }
+
+  /**
+   * Subscription rejected by the context broker.
+   */
+  public static class SubscribeError {
+
+    @SerializedName("subscriptionId")
+    private String subscriptionId;
+
+    @SerializedName("errorCode")
+    private StatusCode errorCode;
+
+    public String getSubscriptionId() {
+      return subscriptionId;
+    }
+
+    public StatusCode getErrorCode() {
+      return errorCode;
+    }
+  }
+
+  @SerializedName("subscribeResponse")
+  private SubscribeResponse subscribeResponse;
+
+  @SerializedName("subscribeError")
+  private SubscribeError subscribeError;
+
+  public SubscribeResponse getSubscribeResponse() {
+    return subscribeResponse;
+  }
+
+  public SubscribeError getSubscribeError() {
+    return subscribeError;
+  }
+
+  @Override
+  public String toString() {
+    if (subscribeError != null) {
+      return " Error: " + subscribeError.getErrorCode();
+    }
+    return " SubscriptionId: " + (subscribeResponse != null
+        ? subscribeResponse.getSubscriptionId() : null) + "\n";
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.orion.entities;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * Request to extend a context subscription
+ *
+ * @since 6.18.0
+ */
+public class UpdateContextSubscription {
+
+  @SerializedName("subscriptionId")
+  private String subscriptionId;
+
+  @SerializedName("duration")
+  private String duration;
+
+  public UpdateContextSubscription(String subscriptionId, String duration) {
+    this.subscriptionId = subscriptionId;
+    this.duration = duration;
+  }
+
+  public String getSubscriptionId() {
+    return subscriptionId;
+  }
+
+  public String getDuration() {
+    return duration;
+  }
+
+  @Override
+  public String toString() {
+    return " SubscriptionId: " + subscriptionId + "\n Duration: " + duration + "\n";
+  }
+}
@@ -29,6 +29,12 @@ var roiscounter = 0;
 
 var roisValues;
 
+// Latest statistics of each ROI, pushed by the server
+var analytics = {};
+
+// Feed to watch, chosen with the 'feed' query parameter
+var feedId = new URLSearchParams(location.search).get('feed');
+
 const I_CAN_START = 0;
 const I_CAN_STOP = 1;
 const I_AM_STARTING = 2;
@@ -67,6 +73,9 @@ ws.onmessage = function(message) {
 		}
 		onError("Error message from server: " + parsedMessage.message);
 		break;
+	case 'analytics':
+		analytics = parsedMessage.rois;
+		break;
 	case 'iceCandidate':
 	    webRtcPeer.addIceCandidate(parsedMessage.candidate, function (error) {
 	        if (error) {
@@ -129,6 +138,9 @@ function onOffer(error, offerSdp) {
 			feedUrl : feed
 		}
 	}
+	if (feedId != null) {
+		message.feedId = feedId;
+	}
 	sendMessage(message);	
 }
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+import org.kurento.orion.entities.OrionEntityTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of queueing an occupancy event for Orion, through a template and through a context element
+ * built for the event, as it was done before templates. Run with {@code -prof gc} to get the bytes
+ * allocated per event ({@code gc.alloc.rate.norm}).
+ *
+ * There are few enough ROIs for the pending updates to never reach a batch, so every event is
+ * coalesced with the previous one of its ROI and nothing is sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrionPublishBenchmark {
+
+  private static final int ROIS = 8;
+  private static final String[] LEVEL_ATTRS = { "Level", "Percentage" };
+  private static final String[] LEVEL_ATTR_TYPES = { "Integer", "Float" };
+
+  private OrionPublishQueue queue;
+  private OrionEntityTemplate[] templates;
+  private String[] roiIds;
+  private int event;
+
+  @Setup
+  public void setUp() {
+    this.queue = new OrionPublishQueue();
+    this.templates = new OrionEntityTemplate[ROIS];
+    this.roiIds = new String[ROIS];
+    for (int i = 0; i < ROIS; i++) {
+      this.roiIds[i] = "roi" + i;
+      this.templates[i] = new OrionEntityTemplate("CrowdDetectorOccupancyEvent", this.roiIds[i],
+          LEVEL_ATTRS, LEVEL_ATTR_TYPES);
+    }
+  }
+
+  @Benchmark
+  public void offerTemplate() {
+    int i = this.event++;
+    OrionEntityTemplate template = this.templates[i % ROIS];
+    this.queue.offer(template, 0, i % 3);
+    this.queue.offer(template, 1, (i % 100) * 1.5f);
+  }
+
+  @Benchmark
+  public void offerContextElement() {
+    int i = this.event++;
+    OrionContextElement element = new OrionContextElement();
+    element.setId(this.roiIds[i % ROIS]);
+    element.setType("CrowdDetectorOccupancyEvent");
+    element.getAttributes().add(new OrionAttribute<>("Level", "Integer", i % 3));
+    element.getAttributes().add(new OrionAttribute<>("Percentage", "Float", (i % 100) * 1.5f));
+    this.queue.offer(element);
+  }
+}
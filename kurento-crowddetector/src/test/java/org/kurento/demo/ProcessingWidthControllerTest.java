@@ -0,0 +1,136 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs with the default thresholds: width within [160, 640] in steps of 80, CPU between 50% and
+ * 80%, 1 s of extra latency and re-baselining every 10 minutes.
+ */
+public class ProcessingWidthControllerTest {
+
+  private static final long CLOCK_OFFSET = 5000;
+
+  private ProcessingWidthController controller;
+  private long now;
+
+  @BeforeEach
+  public void setUp() {
+    controller = new ProcessingWidthController();
+    now = 1000000;
+  }
+
+  private void event(long latency) {
+    now += 100;
+    controller.recordEvent(now - CLOCK_OFFSET - latency, now);
+  }
+
+  private void lowerToMinimum() {
+    while (controller.getWidth() > ProcessingWidthController.MIN_WIDTH) {
+      assertTrue(controller.update(90));
+    }
+  }
+
+  private void raiseToMaximum() {
+    for (int i = 0; i < 100 && controller.getWidth() < ProcessingWidthController.MAX_WIDTH; i++) {
+      controller.update(10);
+    }
+  }
+
+  @Test
+  public void highCpuLowersWidthAndLowCpuRaisesItBack() {
+    assertTrue(controller.update(90));
+    assertEquals(560, controller.getWidth());
+    assertFalse(controller.update(10));
+    assertFalse(controller.update(10));
+    assertTrue(controller.update(10));
+    assertEquals(640, controller.getWidth());
+  }
+
+  @Test
+  public void highLatencyLowersWidth() {
+    event(0);
+    for (int i = 0; i < 20; i++) {
+      event(3000);
+    }
+    assertTrue(controller.update(10));
+    assertEquals(560, controller.getWidth());
+  }
+
+  @Test
+  public void staleLatencyDoesNotKeepWidthLow() {
+    event(0);
+    for (int i = 0; i < 20; i++) {
+      event(3000);
+    }
+    controller.update(10);
+    lowerToMinimum();
+
+    // No more events: the old latency must not keep the width at the minimum
+    raiseToMaximum();
+    assertEquals(ProcessingWidthController.MAX_WIDTH, controller.getWidth());
+  }
+
+  @Test
+  public void clockStepIsForgottenAfterRebaseline() {
+    event(0);
+    controller.update(10);
+
+    // The KMS clock goes 10 s back: every event seems 10 s late from now on
+    for (int i = 0; i < 20; i++) {
+      event(10000);
+    }
+    assertTrue(controller.update(10));
+
+    // The period of the step still had the old lowest latency, the next one is all late
+    for (int period = 0; period < 2; period++) {
+      now += 600000;
+      for (int i = 0; i < 20; i++) {
+        event(10000);
+      }
+    }
+    assertTrue(controller.getExtraLatency() < 1000);
+    raiseToMaximumWithEvents();
+    assertEquals(ProcessingWidthController.MAX_WIDTH, controller.getWidth());
+  }
+
+  private void raiseToMaximumWithEvents() {
+    for (int i = 0; i < 100 && controller.getWidth() < ProcessingWidthController.MAX_WIDTH; i++) {
+      event(10000);
+      controller.update(10);
+    }
+  }
+
+  @Test
+  public void pinnedWidthIsClamped() {
+    controller.pin(10000);
+    assertEquals(ProcessingWidthController.MAX_WIDTH, controller.getWidth());
+    assertFalse(controller.update(90));
+    controller.pin(1);
+    assertEquals(ProcessingWidthController.MIN_WIDTH, controller.getWidth());
+
+    controller.unpin();
+    raiseToMaximum();
+    assertEquals(ProcessingWidthController.MAX_WIDTH, controller.getWidth());
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.kurento.demo;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+import org.kurento.module.crowddetector.CrowdDetectorOccupancyEvent;
+
+/**
+ * Only the recording and the statistics of the ROIs, without the Orion publisher or the scheduled
+ * tasks.
+ */
+public class RoiAnalyticsTest {
+
+  private static CrowdDetectorOccupancyEvent occupancy(String roiId, int level) {
+    String now = Long.toString(System.currentTimeMillis());
+    return new CrowdDetectorOccupancyEvent(null, now, now, null, "OccupancyEvent", 50, level,
+        roiId);
+  }
+
+  @Test
+  public void removedRoisAreLeftOut() {
+    RoiAnalytics analytics = new RoiAnalytics();
+    assertTrue(analytics.record(occupancy("roi1", 1)));
+    assertTrue(analytics.record(occupancy("roi2", 2)));
+
+    analytics.removeRois(Collections.singletonList("roi1"));
+
+    assertEquals(Collections.singleton("roi2"), analytics.getStats().keySet());
+  }
+
+  @Test
+  public void statsSurviveConcurrentRemovals() throws Exception {
+    final RoiAnalytics analytics = new RoiAnalytics();
+    final List<String> roiIds = new ArrayList<>();
+    for (int i = 0; i < 50; i++) {
+      roiIds.add("roi" + i);
+    }
+
+    final AtomicBoolean running = new AtomicBoolean(true);
+    Thread churn = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        while (running.get()) {
+          for (String roiId : roiIds) {
+            analytics.record(occupancy(roiId, 0));
+          }
+          analytics.removeRois(roiIds);
+        }
+      }
+    });
+    churn.start();
+
+    try {
+      for (int i = 0; i < 2000; i++) {
+        assertTrue(roiIds.containsAll(analytics.getStats().keySet()));
+      }
+    } finally {
+      running.set(false);
+      churn.join();
+    }
+
+    assertTrue(analytics.getStats().isEmpty());
+  }
+
+}
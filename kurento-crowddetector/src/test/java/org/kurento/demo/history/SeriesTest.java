@@ -0,0 +1,119 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.demo.history;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Series of one column, with segments of four rows and a retention time of 100 ms, in a temporary
+ * directory.
+ */
+public class SeriesTest {
+
+  private File dir;
+  private Series series;
+
+  @BeforeEach
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("series-test").toFile();
+    series = new Series(dir, 1, 4, 100);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    series.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private void append(long timestamp) throws IOException {
+    series.append(timestamp, new float[] { timestamp });
+  }
+
+  private List<Long> scan(long from, long to, int limit) {
+    final List<Long> timestamps = new ArrayList<>();
+    series.scan(from, to, limit, new HistoryStore.Visitor() {
+      @Override
+      public void visit(HistoryRow row) {
+        timestamps.add(row.getTimestamp());
+      }
+    });
+    return timestamps;
+  }
+
+  @Test
+  public void scanStopsAtLimit() throws IOException {
+    for (long t = 0; t < 10; t++) {
+      append(t);
+    }
+    assertEquals(10, scan(0, 100, 100).size());
+    assertEquals(3, scan(2, 100, 3).size());
+    assertEquals(Long.valueOf(2), scan(2, 100, 3).get(0));
+    assertEquals(0, scan(0, 100, 0).size());
+    assertThrows(IllegalArgumentException.class, () -> scan(0, 100, -1));
+  }
+
+  @Test
+  public void expiredSegmentsAreDeleted() throws IOException {
+    for (long t = 0; t < 8; t++) {
+      append(t);
+    }
+    assertEquals(2, dir.listFiles().length);
+
+    // The first two segments end more than 100 ms before this one starts
+    append(200);
+    assertEquals(1, dir.listFiles().length);
+    assertEquals(1, scan(0, 1000, 100).size());
+  }
+
+  @Test
+  public void segmentsAreReopened() throws IOException {
+    for (long t = 0; t < 6; t++) {
+      append(t);
+    }
+    series.close();
+    series = new Series(dir, 1, 4, 100);
+    assertEquals(6, scan(0, 100, 100).size());
+  }
+
+  @Test
+  public void closedSeriesIsNotUsed() throws IOException {
+    append(0);
+    series.close();
+    assertTrue(scan(0, 100, 100).isEmpty());
+    assertThrows(IOException.class, () -> append(1));
+    assertFalse(dir.listFiles().length == 0);
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.orion;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.kurento.orion.entities.ContextUpdate;
+import org.kurento.orion.entities.ContextUpdate.ContextUpdateAction;
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+/**
+ * Serialization of a batch of context updates, by {@link OrionJsonWriter} and by Gson, into a
+ * writer that discards the output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrionJsonWriterBenchmark {
+
+  private static final int ELEMENTS = 64;
+
+  private final Gson gson = new Gson();
+  private final Writer sink = new Writer() {
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  };
+  private ContextUpdate update;
+
+  @Setup
+  public void setUp() {
+    OrionContextElement[] elements = new OrionContextElement[ELEMENTS];
+    for (int i = 0; i < ELEMENTS; i++) {
+      OrionContextElement element = new OrionContextElement();
+      element.setId("roi" + i);
+      element.setType("CrowdDetectorOccupancyEvent");
+      element.getAttributes().add(new OrionAttribute<>("Level", "Integer", i % 3));
+      element.getAttributes().add(new OrionAttribute<>("Percentage", "Float", i * 1.5f));
+      elements[i] = element;
+    }
+    this.update = new ContextUpdate(ContextUpdateAction.APPEND, elements);
+  }
+
+  @Benchmark
+  public void orionJsonWriter() throws IOException {
+    OrionJsonWriter.toJson(this.update, this.sink);
+  }
+
+  @Benchmark
+  public void gson() {
+    this.gson.toJson(this.update, this.sink);
+  }
+}
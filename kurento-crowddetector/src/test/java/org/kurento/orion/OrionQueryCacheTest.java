@@ -0,0 +1,192 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.orion;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kurento.demo.trace.LocalOrionServer;
+import org.kurento.orion.entities.OrionAttribute;
+import org.kurento.orion.entities.OrionContextElement;
+
+/**
+ * Runs the cache against a {@link LocalOrionServer} on the loopback interface, with and without
+ * notifications.
+ */
+public class OrionQueryCacheTest {
+
+  private static final String TYPE = "Room";
+  private static final long CACHE_TTL_MS = 300;
+  private static final long TIMEOUT_MS = 5000;
+
+  private LocalOrionServer orion;
+  private OrionConnectorConfiguration config;
+  private OrionConnector connector;
+  private OrionQueryCache cache;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    orion = new LocalOrionServer(0, 4, 0, null);
+    orion.start();
+
+    config = new OrionConnectorConfiguration();
+    config.setOrionHost("127.0.0.1");
+    config.setOrionPort(orion.getPort());
+    config.setCacheTtl(CACHE_TTL_MS);
+    connector = new OrionConnector(config);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    if (cache != null) {
+      cache.close();
+    }
+    connector.close();
+    orion.stop();
+  }
+
+  private void createCache(boolean notifications) throws Exception {
+    if (notifications) {
+      config.setNotificationHost("127.0.0.1");
+      config.setNotificationPort(0);
+    }
+    cache = new OrionQueryCache(connector, config);
+  }
+
+  private void update(String id, int occupancy) {
+    OrionContextElement element = new OrionContextElement();
+    element.setType(TYPE);
+    element.setId(id);
+    element.getAttributes()
+        .add(new OrionAttribute<>("occupancy", "string", String.valueOf(occupancy)));
+    connector.registerContextElements(element);
+  }
+
+  private void delete(String id) {
+    OrionContextElement element = new OrionContextElement();
+    element.setType(TYPE);
+    element.setId(id);
+    connector.deleteContextElements(element);
+  }
+
+  private static String occupancy(OrionContextElement element) {
+    return String.valueOf(element.getAttributes().get(0).getValue());
+  }
+
+  /**
+   * Waits until the cache returns the given occupancy of an element, or null for none.
+   */
+  private boolean waitFor(String id, String expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (System.currentTimeMillis() < deadline) {
+      OrionContextElement element = cache.get(TYPE, id);
+      String value = (element != null) ? occupancy(element) : null;
+      if (expected == null ? value == null : expected.equals(value)) {
+        return true;
+      }
+      Thread.sleep(20);
+    }
+    return false;
+  }
+
+  @Test
+  public void queriesAreServedFromMemoryUntilTheTtl() throws Exception {
+    createCache(false);
+    update("room1", 1);
+
+    assertEquals("1", occupancy(cache.get(TYPE, "room1")));
+    update("room1", 2);
+    assertEquals("1", occupancy(cache.get(TYPE, "room1")));
+    assertEquals(1, cache.getMisses());
+    assertEquals(1, cache.getHits());
+
+    Thread.sleep(CACHE_TTL_MS + 50);
+    assertEquals("2", occupancy(cache.get(TYPE, "room1")));
+    assertEquals(2, cache.getMisses());
+    assertNull(cache.get(TYPE, "room2"));
+  }
+
+  @Test
+  public void notificationsUpdateTheCache() throws Exception {
+    createCache(true);
+    update("room1", 1);
+    update("room2", 1);
+    update("hall", 1);
+
+    assertEquals(2, cache.getWithPattern(TYPE, "room.*").size());
+    assertEquals("1", occupancy(cache.get(TYPE, "room1")));
+    long misses = cache.getMisses();
+
+    update("room1", 5);
+    assertTrue(waitFor("room1", "5"));
+    update("room3", 1);
+    long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+    while (cache.getWithPattern(TYPE, "room.*").size() < 3
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(20);
+    }
+    assertEquals(3, cache.getWithPattern(TYPE, "room.*").size());
+    assertEquals(misses, cache.getMisses());
+    assertTrue(cache.getNotifications() > 0);
+  }
+
+  @Test
+  public void deletedElementsAreForgotten() throws Exception {
+    createCache(true);
+    update("room1", 1);
+    update("room2", 1);
+    assertNotNull(cache.get(TYPE, "room1"));
+    assertEquals(2, cache.getWithPattern(TYPE, "room.*").size());
+
+    delete("room1");
+    assertTrue(waitFor("room1", null));
+    assertEquals(1, cache.getWithPattern(TYPE, "room.*").size());
+  }
+
+  @Test
+  public void notificationsOfUnknownSubscriptionsAreRejected() throws Exception {
+    createCache(true);
+    update("room1", 1);
+    assertEquals("1", occupancy(cache.get(TYPE, "room1")));
+
+    String forged = "{\"subscriptionId\":\"0123456789abcdef01234567\",\"contextResponses\":"
+        + "[{\"contextElement\":{\"type\":\"Room\",\"isPattern\":false,\"id\":\"room1\","
+        + "\"attributes\":[{\"name\":\"occupancy\",\"type\":\"string\",\"value\":\"99\"}]}}]}";
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL(cache.getNotificationUrl()).openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    try (OutputStream os = connection.getOutputStream()) {
+      os.write(forged.getBytes(StandardCharsets.UTF_8));
+    }
+    assertEquals(403, connection.getResponseCode());
+    connection.disconnect();
+
+    assertEquals(1, cache.getRejectedNotifications());
+    assertEquals("1", occupancy(cache.get(TYPE, "room1")));
+  }
+}
@@ -22,6 +22,10 @@ import com.google.gson.JsonObject;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -60,9 +64,32 @@ public class Handler extends TextWebSocketHandler
   private static final Logger log = LoggerFactory.getLogger(Handler.class);
   private static final Gson gson = new GsonBuilder().create();
 
+  // Limits of the outbound messages of each WebSocket session
+  private static final int SEND_TIME_LIMIT_MS =
+      Integer.getInteger("ws.sendTimeLimitMs", 10000);
+  private static final int BUFFER_SIZE_LIMIT =
+      Integer.getInteger("ws.bufferSizeLimit", 512 * 1024);
+  private static final int SEND_THREADS = Integer.getInteger("ws.sendThreads",
+      Runtime.getRuntime().availableProcessors());
+
   private final ConcurrentHashMap<String, UserSession> users =
       new ConcurrentHashMap<>();
 
+  // Outbound messages of each session, written by the send threads, so a
+  // slow client only delays its own messages and Kurento event threads
+  // never write to a socket
+  private final ConcurrentHashMap<String, OutboundQueue> outbound =
+      new ConcurrentHashMap<>();
+  private final ExecutorService sender =
+      Executors.newFixedThreadPool(SEND_THREADS, new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "ws-send");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
   @Autowired
   private KurentoClient kurento;
 
@@ -76,6 +103,9 @@ public class Handler extends TextWebSocketHandler
   {
     log.info("[Handler::afterConnectionEstablished] New WebSocket connection, sessionId: {}",
         session.getId());
+
+    outbound.put(session.getId(), new OutboundQueue(session, sender,
+        SEND_TIME_LIMIT_MS, BUFFER_SIZE_LIMIT));
   }
 
   /**
@@ -94,6 +124,16 @@ public class Handler extends TextWebSocketHandler
     }
 
     stop(session);
+    OutboundQueue out = outbound.remove(session.getId());
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  @PreDestroy
+  private void shutdown()
+  {
+    sender.shutdownNow();
   }
 
   /**
@@ -152,12 +192,12 @@ public class Handler extends TextWebSocketHandler
     session.close(CloseStatus.SERVER_ERROR);
   }
 
-  private synchronized void sendMessage(final WebSocketSession session,
-      String message)
+  private void sendMessage(final WebSocketSession session, String message)
   {
     log.debug("[Handler::sendMessage] {}", message);
 
-    if (!session.isOpen()) {
+    final OutboundQueue out = outbound.get(session.getId());
+    if (out == null || !out.isOpen()) {
       log.warn("[Handler::sendMessage] Skip, WebSocket session isn't open");
       return;
     }
@@ -169,11 +209,7 @@ public class Handler extends TextWebSocketHandler
       return;
     }
 
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException ex) {
-      log.error("[Handler::sendMessage] Exception: {}", ex.getMessage());
-    }
+    out.send(message);
   }
 
   private void sendError(final WebSocketSession session, String errMsg)
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.helloworld;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Outbound messages of a WebSocket session, written in order by a shared
+ * executor. The threads that send them, often Kurento event threads, only
+ * queue them and never write to the socket.
+ *
+ * A slow client is closed when its queued messages exceed
+ * {@code bufferSizeLimit} characters, or when the write in progress takes
+ * longer than {@code sendTimeLimitMs}; its resources are then released on
+ * close. Until then, it keeps one thread of the executor busy.
+ */
+class OutboundQueue
+{
+  private static final Logger log = LoggerFactory.getLogger(OutboundQueue.class);
+
+  private final WebSocketSession session;
+  private final Executor executor;
+  private final int sendTimeLimitMs;
+  private final int bufferSizeLimit;
+
+  private final Queue<String> messages = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger bufferSize = new AtomicInteger();
+  private final AtomicBoolean draining = new AtomicBoolean();
+
+  // Start of the write in progress, or 0
+  private volatile long sendStartMillis;
+  private volatile boolean closed;
+
+  OutboundQueue(WebSocketSession session, Executor executor,
+      int sendTimeLimitMs, int bufferSizeLimit)
+  {
+    this.session = session;
+    this.executor = executor;
+    this.sendTimeLimitMs = sendTimeLimitMs;
+    this.bufferSizeLimit = bufferSizeLimit;
+  }
+
+  boolean isOpen()
+  {
+    return !closed && session.isOpen();
+  }
+
+  /**
+   * Queues a message, to be written by the executor.
+   */
+  void send(String message)
+  {
+    if (closed) {
+      return;
+    }
+    messages.add(message);
+
+    int size = bufferSize.addAndGet(message.length());
+    if (size > bufferSizeLimit) {
+      closeSlow("buffer size " + size + " over the limit " + bufferSizeLimit);
+      return;
+    }
+    long start = sendStartMillis;
+    if (start != 0 && System.currentTimeMillis() - start > sendTimeLimitMs) {
+      closeSlow("write in progress for over " + sendTimeLimitMs + " ms");
+      return;
+    }
+    schedule();
+  }
+
+  /**
+   * Drops the messages not written yet. The session is closed elsewhere.
+   */
+  void close()
+  {
+    closed = true;
+    messages.clear();
+  }
+
+  private void schedule()
+  {
+    if (!draining.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run()
+        {
+          drain();
+        }
+      });
+    } catch (RejectedExecutionException ex) {
+      draining.set(false);
+      log.warn("[OutboundQueue::schedule] Drop messages, sessionId: {}",
+          session.getId());
+      close();
+    }
+  }
+
+  private void drain()
+  {
+    try {
+      String message;
+      while (!closed && (message = messages.poll()) != null) {
+        bufferSize.addAndGet(-message.length());
+        sendStartMillis = System.currentTimeMillis();
+        try {
+          session.sendMessage(new TextMessage(message));
+        } catch (IOException ex) {
+          log.error("[OutboundQueue::drain] Exception: {}", ex.getMessage());
+        } finally {
+          sendStartMillis = 0;
+        }
+      }
+    } finally {
+      draining.set(false);
+    }
+
+    // A message may have been queued after the last poll, but before the
+    // flag was cleared
+    if (!closed && !messages.isEmpty()) {
+      schedule();
+    }
+  }
+
+  private void closeSlow(String reason)
+  {
+    close();
+    log.warn("[OutboundQueue::closeSlow] Closing slow WebSocket session {}: {}",
+        session.getId(), reason);
+    // Not on this thread, which may be a Kurento event thread, as closing
+    // writes to the socket too
+    executor.execute(new Runnable() {
+      @Override
+      public void run()
+      {
+        try {
+          session.close(CloseStatus.SESSION_NOT_RELIABLE);
+        } catch (IOException ex) {
+          log.error("[OutboundQueue::closeSlow] Exception: {}", ex.getMessage());
+        }
+      }
+    });
+  }
+}
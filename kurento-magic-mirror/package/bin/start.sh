@@ -5,7 +5,7 @@ GREP="grep"
 
 DEMO_PORT=${demo.port}
 
-JAVA_OPTS="-Dserver.port=$DEMO_PORT -Dapp.server.url=http://127.0.0.1:$DEMO_PORT/"
+JAVA_OPTS="-Dserver.port=$DEMO_PORT -Dapp.server.url=https://127.0.0.1:$DEMO_PORT/"
 JAVA_OPTS="$JAVA_OPTS -Djava.security.egd=file:/dev/./urandom"
 
 # OS specific support (must be 'true' or 'false').
@@ -17,7 +17,10 @@
 
 package org.kurento.tutorial.magicmirror;
 
+import java.io.IOException;
+
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.assets.AssetCache;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -43,6 +46,12 @@ public class MagicMirrorApp implements WebSocketConfigurer {
     return new MagicMirrorHandler();
   }
 
+  @Bean
+  public AssetCache assetCache() throws IOException {
+    return new AssetCache(System.getProperty("app.server.url", DEFAULT_APP_SERVER_URL),
+        "mario-wings.png");
+  }
+
   @Bean
   public KurentoClient kurentoClient() {
     return KurentoClient.create();
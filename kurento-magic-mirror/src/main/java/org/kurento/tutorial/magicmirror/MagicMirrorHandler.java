@@ -19,6 +19,7 @@ package org.kurento.tutorial.magicmirror;
 
 import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.FaceOverlayFilter;
@@ -26,8 +27,10 @@ import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.Transaction;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.assets.AssetCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -55,6 +58,9 @@ public class MagicMirrorHandler extends TextWebSocketHandler {
   @Autowired
   private KurentoClient kurento;
 
+  @Autowired
+  private AssetCache assets;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -92,11 +98,28 @@ public class MagicMirrorHandler extends TextWebSocketHandler {
 
   private void start(final WebSocketSession session, JsonObject jsonMessage) {
     try {
+      // Media logic. The whole graph is built in a single transaction, so it costs one round
+      // trip to KMS instead of one per element, setting and connection
+      long startTime = System.nanoTime();
+      Transaction tx = kurento.beginTransaction();
+
+      MediaPipeline pipeline = kurento.createMediaPipeline(tx);
+      WebRtcEndpoint webRtcEndpoint = new WebRtcEndpoint.Builder(pipeline).build(tx);
+      FaceOverlayFilter faceOverlayFilter = new FaceOverlayFilter.Builder(pipeline).build(tx);
+
+      faceOverlayFilter.setOverlayedImage(assets.getUrl("mario-wings.png"), -0.35F, -1.2F,
+          1.6F, 1.6F, tx);
+
+      webRtcEndpoint.connect(faceOverlayFilter, tx);
+      faceOverlayFilter.connect(webRtcEndpoint, tx);
+
+      tx.commit();
+      log.debug("Pipeline for session {} built in {} ms", session.getId(),
+          TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+
       // User session
       UserSession user = new UserSession();
-      MediaPipeline pipeline = kurento.createMediaPipeline();
       user.setMediaPipeline(pipeline);
-      WebRtcEndpoint webRtcEndpoint = new WebRtcEndpoint.Builder(pipeline).build();
       user.setWebRtcEndpoint(webRtcEndpoint);
       users.put(session.getId(), user);
 
@@ -118,18 +141,6 @@ public class MagicMirrorHandler extends TextWebSocketHandler {
         }
       });
 
-      // Media logic
-      FaceOverlayFilter faceOverlayFilter = new FaceOverlayFilter.Builder(pipeline).build();
-
-      //String appServerUrl = System.getProperty("app.server.url",
-      //    MagicMirrorApp.DEFAULT_APP_SERVER_URL);
-      String appServerUrl = "http://files.openvidu.io";
-      faceOverlayFilter.setOverlayedImage(appServerUrl + "/img/mario-wings.png", -0.35F, -1.2F,
-          1.6F, 1.6F);
-
-      webRtcEndpoint.connect(faceOverlayFilter);
-      faceOverlayFilter.connect(webRtcEndpoint);
-
       // SDP negotiation (offer and answer)
       String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
       String sdpAnswer = webRtcEndpoint.processOffer(sdpOffer);
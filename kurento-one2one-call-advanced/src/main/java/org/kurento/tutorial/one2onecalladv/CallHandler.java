@@ -19,14 +19,18 @@ package org.kurento.tutorial.one2onecalladv;
 
 import java.io.IOException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.PreDestroy;
 
-import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.IceCandidateFoundEvent;
 import org.kurento.client.KurentoClient;
-import org.kurento.client.MediaPipeline;
 import org.kurento.jsonrpc.JsonUtils;
+import org.kurento.tutorial.assets.AssetCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -51,7 +55,17 @@ public class CallHandler extends TextWebSocketHandler {
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
   private static final Gson gson = new GsonBuilder().create();
 
-  private final ConcurrentHashMap<String, MediaPipeline> pipelines = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, PlayMediaPipeline> playPipelines =
+      new ConcurrentHashMap<>();
+  private final ScheduledExecutorService playScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "play-scheduler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
 
   @Autowired
   private KurentoClient kurento;
@@ -59,6 +73,9 @@ public class CallHandler extends TextWebSocketHandler {
   @Autowired
   private UserRegistry registry;
 
+  @Autowired
+  private AssetCache assets;
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -96,10 +113,9 @@ public class CallHandler extends TextWebSocketHandler {
       }
       case "stop":
         stop(session);
-        releasePipeline(user);
         break;
       case "stopPlay":
-        releasePipeline(user);
+        releasePlayPipeline(user);
         break;
       default:
         break;
@@ -130,150 +146,196 @@ public class CallHandler extends TextWebSocketHandler {
     String from = jsonMessage.get("from").getAsString();
     JsonObject response = new JsonObject();
 
-    if (registry.exists(to)) {
-      caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
-      caller.setCallingTo(to);
+    UserSession callee = registry.getByName(to);
+    if (callee == null) {
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", "rejected");
+      response.addProperty("message", "user '" + to + "' is not registered");
 
-      response.addProperty("id", "incomingCall");
-      response.addProperty("from", from);
+      caller.sendMessage(response);
+      return;
+    }
 
-      UserSession callee = registry.getByName(to);
-      callee.sendMessage(response);
-      callee.setCallingFrom(from);
-    } else {
+    Call call =
+        new Call(caller, callee, jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
+    if (!caller.joinCall(call)) {
       response.addProperty("id", "callResponse");
       response.addProperty("response", "rejected");
-      response.addProperty("message", "user '" + to + "' is not registered");
+      response.addProperty("message", "you are already in a call");
+
+      caller.sendMessage(response);
+      return;
+    }
+    if (callee == caller || !callee.joinCall(call)) {
+      caller.leaveCall(call);
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", "rejected");
+      response.addProperty("message", "user '" + to + "' is busy");
 
       caller.sendMessage(response);
+      return;
     }
+
+    response.addProperty("id", "incomingCall");
+    response.addProperty("from", from);
+    callee.sendMessage(response);
   }
 
   private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage)
       throws IOException {
     String callResponse = jsonMessage.get("callResponse").getAsString();
     String from = jsonMessage.get("from").getAsString();
-    final UserSession calleer = registry.getByName(from);
-    String to = calleer.getCallingTo();
+
+    Call call = (callee != null) ? callee.getCall() : null;
+    if (call == null || call.getCallee() != callee
+        || !call.getCaller().getName().equals(from)) {
+      log.debug("Ignoring response to a call from '{}' that is no longer ringing", from);
+      return;
+    }
+
+    final UserSession calleer = call.getCaller();
+    String to = callee.getName();
 
     if ("accept".equals(callResponse)) {
+      if (!call.accept()) {
+        log.debug("Call from '{}' to '{}' was ended before being accepted", from, to);
+        return;
+      }
       log.debug("Accepted call from '{}' to '{}'", from, to);
 
-      CallMediaPipeline callMediaPipeline = new CallMediaPipeline(kurento, from, to);
-      pipelines.put(calleer.getSessionId(), callMediaPipeline.getPipeline());
-      pipelines.put(callee.getSessionId(), callMediaPipeline.getPipeline());
-
-      callee.setWebRtcEndpoint(callMediaPipeline.getCalleeWebRtcEp());
-      callMediaPipeline.getCalleeWebRtcEp().addIceCandidateFoundListener(
-          new EventListener<IceCandidateFoundEvent>() {
+      try {
+        CallMediaPipeline callMediaPipeline = new CallMediaPipeline(kurento, assets, from, to);
+        if (!call.setPipeline(callMediaPipeline)) {
+          log.debug("Call from '{}' to '{}' was ended while connecting", from, to);
+          return;
+        }
 
-            @Override
-            public void onEvent(IceCandidateFoundEvent event) {
-              JsonObject response = new JsonObject();
-              response.addProperty("id", "iceCandidate");
-              response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-              try {
-                synchronized (callee.getSession()) {
-                  callee.getSession().sendMessage(new TextMessage(response.toString()));
+        if (!callee.setWebRtcEndpoint(call, callMediaPipeline.getCalleeWebRtcEp())) {
+          log.debug("Call from '{}' to '{}' was left while connecting", from, to);
+          // Releases the pipeline, unless it was released when the call was ended
+          if (call.end()) {
+            leaveCall(call);
+          }
+          return;
+        }
+        callMediaPipeline.getCalleeWebRtcEp().addIceCandidateFoundListener(
+            new EventListener<IceCandidateFoundEvent>() {
+
+              @Override
+              public void onEvent(IceCandidateFoundEvent event) {
+                JsonObject response = new JsonObject();
+                response.addProperty("id", "iceCandidate");
+                response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
+                try {
+                  synchronized (callee.getSession()) {
+                    callee.getSession().sendMessage(new TextMessage(response.toString()));
+                  }
+                } catch (IOException e) {
+                  log.debug(e.getMessage());
                 }
-              } catch (IOException e) {
-                log.debug(e.getMessage());
               }
-            }
-          });
+            });
 
-      String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
-      String calleeSdpAnswer = callMediaPipeline.generateSdpAnswerForCallee(calleeSdpOffer);
-      JsonObject startCommunication = new JsonObject();
-      startCommunication.addProperty("id", "startCommunication");
-      startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
-
-      synchronized (callee) {
+        String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
+        String calleeSdpAnswer = callMediaPipeline.generateSdpAnswerForCallee(calleeSdpOffer);
+        JsonObject startCommunication = new JsonObject();
+        startCommunication.addProperty("id", "startCommunication");
+        startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
         callee.sendMessage(startCommunication);
-      }
-
-      callMediaPipeline.getCalleeWebRtcEp().gatherCandidates();
 
-      String callerSdpOffer = registry.getByName(from).getSdpOffer();
+        callMediaPipeline.getCalleeWebRtcEp().gatherCandidates();
 
-      calleer.setWebRtcEndpoint(callMediaPipeline.getCallerWebRtcEp());
-      callMediaPipeline.getCallerWebRtcEp().addIceCandidateFoundListener(
-          new EventListener<IceCandidateFoundEvent>() {
-
-            @Override
-            public void onEvent(IceCandidateFoundEvent event) {
-              JsonObject response = new JsonObject();
-              response.addProperty("id", "iceCandidate");
-              response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-              try {
-                synchronized (calleer.getSession()) {
-                  calleer.getSession().sendMessage(new TextMessage(response.toString()));
+        if (!calleer.setWebRtcEndpoint(call, callMediaPipeline.getCallerWebRtcEp())) {
+          log.debug("Call from '{}' to '{}' was left while connecting", from, to);
+          // Releases the pipeline, unless it was released when the call was ended
+          if (call.end()) {
+            leaveCall(call);
+          }
+          return;
+        }
+        callMediaPipeline.getCallerWebRtcEp().addIceCandidateFoundListener(
+            new EventListener<IceCandidateFoundEvent>() {
+
+              @Override
+              public void onEvent(IceCandidateFoundEvent event) {
+                JsonObject response = new JsonObject();
+                response.addProperty("id", "iceCandidate");
+                response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
+                try {
+                  synchronized (calleer.getSession()) {
+                    calleer.getSession().sendMessage(new TextMessage(response.toString()));
+                  }
+                } catch (IOException e) {
+                  log.debug(e.getMessage());
                 }
-              } catch (IOException e) {
-                log.debug(e.getMessage());
               }
-            }
-          });
+            });
 
-      String callerSdpAnswer = callMediaPipeline.generateSdpAnswerForCaller(callerSdpOffer);
-
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "callResponse");
-      response.addProperty("response", "accepted");
-      response.addProperty("sdpAnswer", callerSdpAnswer);
+        String callerSdpAnswer =
+            callMediaPipeline.generateSdpAnswerForCaller(call.getCallerSdpOffer());
 
-      synchronized (calleer) {
+        JsonObject response = new JsonObject();
+        response.addProperty("id", "callResponse");
+        response.addProperty("response", "accepted");
+        response.addProperty("sdpAnswer", callerSdpAnswer);
         calleer.sendMessage(response);
-      }
 
-      callMediaPipeline.getCallerWebRtcEp().gatherCandidates();
+        callMediaPipeline.getCallerWebRtcEp().gatherCandidates();
+
+        callMediaPipeline.record();
+
+        call.activate();
+
+      } catch (Throwable t) {
+        log.error(t.getMessage(), t);
+
+        if (call.end()) {
+          leaveCall(call);
+
+          JsonObject response = new JsonObject();
+          response.addProperty("id", "callResponse");
+          response.addProperty("response", "rejected");
+          calleer.sendMessage(response);
 
-      callMediaPipeline.record();
+          response = new JsonObject();
+          response.addProperty("id", "stopCommunication");
+          callee.sendMessage(response);
+        }
+      }
 
     } else {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "callResponse");
-      response.addProperty("response", "rejected");
-      calleer.sendMessage(response);
+      if (call.end()) {
+        leaveCall(call);
+
+        JsonObject response = new JsonObject();
+        response.addProperty("id", "callResponse");
+        response.addProperty("response", "rejected");
+        calleer.sendMessage(response);
+      }
     }
   }
 
   public void stop(WebSocketSession session) throws IOException {
-    // Both users can stop the communication. A 'stopCommunication'
-    // message will be sent to the other peer.
     UserSession stopperUser = registry.getBySession(session);
-    if (stopperUser != null) {
-      UserSession stoppedUser =
-          (stopperUser.getCallingFrom() != null) ? registry.getByName(stopperUser.getCallingFrom())
-              : stopperUser.getCallingTo() != null ? registry.getByName(stopperUser.getCallingTo())
-                  : null;
-
-              if (stoppedUser != null) {
-                JsonObject message = new JsonObject();
-                message.addProperty("id", "stopCommunication");
-                stoppedUser.sendMessage(message);
-                stoppedUser.clear();
-              }
-              stopperUser.clear();
+    if (stopperUser == null) {
+      return;
     }
-  }
 
-  public void releasePipeline(UserSession session) {
-    String sessionId = session.getSessionId();
-    // set to null the endpoint of the other user
+    // Both users can stop the communication. Only the first one to do so ends the call (releasing
+    // its pipeline) and sends a 'stopCommunication' message to the other peer.
+    Call call = stopperUser.getCall();
+    if (call != null && call.end()) {
+      leaveCall(call);
 
-    if (pipelines.containsKey(sessionId)) {
-      pipelines.get(sessionId).release();
-      pipelines.remove(sessionId);
+      JsonObject message = new JsonObject();
+      message.addProperty("id", "stopCommunication");
+      call.getPeer(stopperUser).sendMessage(message);
     }
-    session.setWebRtcEndpoint(null);
-    session.setPlayingWebRtcEndpoint(null);
+  }
 
-    UserSession stoppedUser =
-        (session.getCallingFrom() != null) ? registry.getByName(session.getCallingFrom())
-            : registry.getByName(session.getCallingTo());
-        stoppedUser.setWebRtcEndpoint(null);
-        stoppedUser.setPlayingWebRtcEndpoint(null);
+  private void leaveCall(Call call) {
+    call.getCaller().leaveCall(call);
+    call.getCallee().leaveCall(call);
   }
 
   private void play(final UserSession session, JsonObject jsonMessage) throws IOException {
@@ -284,52 +346,47 @@ public class CallHandler extends TextWebSocketHandler {
     response.addProperty("id", "playResponse");
 
     if (registry.getByName(user) != null && registry.getBySession(session.getSession()) != null) {
-      final PlayMediaPipeline playMediaPipeline =
-          new PlayMediaPipeline(kurento, user, session.getSession());
-
-      session.setPlayingWebRtcEndpoint(playMediaPipeline.getWebRtc());
-
-      playMediaPipeline.getPlayer().addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
-        @Override
-        public void onEvent(EndOfStreamEvent event) {
-          UserSession user = registry.getBySession(session.getSession());
-          releasePipeline(user);
-          playMediaPipeline.sendPlayEnd(session.getSession());
+      final String sessionId = session.getSessionId();
+      PlayMediaPipeline playMediaPipeline = playPipelines.get(sessionId);
+      String sdpAnswer = null;
+
+      if (jsonMessage.has("sdpOffer")) {
+        // New WebRTC connection from the browser: build a fresh playback pipeline
+        if (playMediaPipeline != null) {
+          playMediaPipeline.release();
         }
-      });
+        playMediaPipeline = createPlayMediaPipeline(session);
+        playPipelines.put(sessionId, playMediaPipeline);
 
-      playMediaPipeline.getWebRtc().addIceCandidateFoundListener(
-          new EventListener<IceCandidateFoundEvent>() {
-
-            @Override
-            public void onEvent(IceCandidateFoundEvent event) {
-              JsonObject response = new JsonObject();
-              response.addProperty("id", "iceCandidate");
-              response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-              try {
-                synchronized (session) {
-                  session.getSession().sendMessage(new TextMessage(response.toString()));
-                }
-              } catch (IOException e) {
-                log.debug(e.getMessage());
-              }
-            }
-          });
+        String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
+        sdpAnswer = playMediaPipeline.generateSdpAnswer(sdpOffer);
+      }
 
-      String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
-      String sdpAnswer = playMediaPipeline.generateSdpAnswer(sdpOffer);
+      // The pipeline may also expire between the lookup and the play
+      if (playMediaPipeline == null || !playMediaPipeline.play(user)) {
+        // The browser wants to reuse a playback pipeline that has already expired
+        if (playMediaPipeline != null) {
+          playPipelines.remove(sessionId, playMediaPipeline);
+        }
+        response.addProperty("response", "renegotiate");
+        synchronized (session.getSession()) {
+          session.sendMessage(response);
+        }
+        return;
+      }
 
       response.addProperty("response", "accepted");
+      if (sdpAnswer != null) {
+        response.addProperty("sdpAnswer", sdpAnswer);
+      }
 
-      response.addProperty("sdpAnswer", sdpAnswer);
-
-      playMediaPipeline.play();
-      pipelines.put(session.getSessionId(), playMediaPipeline.getPipeline());
       synchronized (session.getSession()) {
         session.sendMessage(response);
       }
 
-      playMediaPipeline.getWebRtc().gatherCandidates();
+      if (sdpAnswer != null) {
+        playMediaPipeline.getWebRtc().gatherCandidates();
+      }
 
     } else {
       response.addProperty("response", "rejected");
@@ -339,9 +396,78 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
+  private PlayMediaPipeline createPlayMediaPipeline(final UserSession session) {
+    final String sessionId = session.getSessionId();
+
+    PlayMediaPipeline playMediaPipeline =
+        new PlayMediaPipeline(kurento, session.getSession(), playScheduler, new Runnable() {
+          @Override
+          public void run() {
+            // Only forget the expired pipeline, not one created afterwards
+            PlayMediaPipeline current = playPipelines.get(sessionId);
+            if (current != null && current.isReleased()
+                && playPipelines.remove(sessionId, current)) {
+              session.setPlayingWebRtcEndpoint(null);
+              JsonObject message = new JsonObject();
+              message.addProperty("id", "playExpired");
+              try {
+                synchronized (session.getSession()) {
+                  session.sendMessage(message);
+                }
+              } catch (IOException e) {
+                log.debug(e.getMessage());
+              }
+            }
+          }
+        });
+
+    session.setPlayingWebRtcEndpoint(playMediaPipeline.getWebRtc());
+
+    playMediaPipeline.getWebRtc().addIceCandidateFoundListener(
+        new EventListener<IceCandidateFoundEvent>() {
+
+          @Override
+          public void onEvent(IceCandidateFoundEvent event) {
+            JsonObject response = new JsonObject();
+            response.addProperty("id", "iceCandidate");
+            response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
+            try {
+              synchronized (session.getSession()) {
+                session.getSession().sendMessage(new TextMessage(response.toString()));
+              }
+            } catch (IOException e) {
+              log.debug(e.getMessage());
+            }
+          }
+        });
+
+    return playMediaPipeline;
+  }
+
+  public void releasePlayPipeline(UserSession session) {
+    if (session == null) {
+      return;
+    }
+    PlayMediaPipeline playMediaPipeline = playPipelines.remove(session.getSessionId());
+    if (playMediaPipeline != null) {
+      playMediaPipeline.release();
+    }
+    session.setPlayingWebRtcEndpoint(null);
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    playScheduler.shutdownNow();
+    for (PlayMediaPipeline playMediaPipeline : playPipelines.values()) {
+      playMediaPipeline.release();
+    }
+    playPipelines.clear();
+  }
+
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     stop(session);
+    releasePlayPipeline(registry.getBySession(session));
     registry.removeBySession(session);
   }
 
@@ -18,12 +18,17 @@ package org.kurento.tutorial.one2onecalladv;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
 
 import org.kurento.client.FaceOverlayFilter;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.RecorderEndpoint;
+import org.kurento.client.Transaction;
 import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.assets.AssetCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Media Pipeline (connection of Media Elements) for the advanced one to one video communication.
@@ -34,6 +39,8 @@ import org.kurento.client.WebRtcEndpoint;
  */
 public class CallMediaPipeline {
 
+  private static final Logger log = LoggerFactory.getLogger(CallMediaPipeline.class);
+
   private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
   public static final String RECORDING_PATH = "file:///tmp/" + df.format(new Date()) + "-";
   public static final String RECORDING_EXT = ".webm";
@@ -44,39 +51,46 @@ public class CallMediaPipeline {
   private final RecorderEndpoint recorderCaller;
   private final RecorderEndpoint recorderCallee;
 
-  public CallMediaPipeline(KurentoClient kurento, String from, String to) {
+  public CallMediaPipeline(KurentoClient kurento, AssetCache assets, String from, String to) {
+    long startTime = System.nanoTime();
+
+    // All elements are created, configured and connected in a single transaction, so the whole
+    // graph is sent to KMS in one request instead of one blocking round trip per operation
+    Transaction tx = kurento.beginTransaction();
 
     // Media pipeline
-    pipeline = kurento.createMediaPipeline();
+    pipeline = kurento.createMediaPipeline(tx);
 
     // Media Elements (WebRtcEndpoint, RecorderEndpoint, FaceOverlayFilter)
-    webRtcCaller = new WebRtcEndpoint.Builder(pipeline).build();
-    webRtcCallee = new WebRtcEndpoint.Builder(pipeline).build();
+    webRtcCaller = new WebRtcEndpoint.Builder(pipeline).build(tx);
+    webRtcCallee = new WebRtcEndpoint.Builder(pipeline).build(tx);
 
     recorderCaller = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + from + RECORDING_EXT)
-        .build();
+        .build(tx);
     recorderCallee = new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + to + RECORDING_EXT)
-        .build();
+        .build(tx);
 
-    // String appServerUrl = System.getProperty("app.server.url",
-    //    One2OneCallAdvApp.DEFAULT_APP_SERVER_URL);
-    String appServerUrl = "http://files.openvidu.io";
-    FaceOverlayFilter faceOverlayFilterCaller = new FaceOverlayFilter.Builder(pipeline).build();
-    faceOverlayFilterCaller.setOverlayedImage(appServerUrl + "/img/mario-wings.png", -0.35F, -1.2F,
-        1.6F, 1.6F);
+    FaceOverlayFilter faceOverlayFilterCaller = new FaceOverlayFilter.Builder(pipeline).build(tx);
+    faceOverlayFilterCaller.setOverlayedImage(assets.getUrl("mario-wings.png"), -0.35F, -1.2F,
+        1.6F, 1.6F, tx);
 
-    FaceOverlayFilter faceOverlayFilterCallee = new FaceOverlayFilter.Builder(pipeline).build();
-    faceOverlayFilterCallee.setOverlayedImage(appServerUrl + "/img/Hat.png", -0.2F, -1.35F, 1.5F,
-        1.5F);
+    FaceOverlayFilter faceOverlayFilterCallee = new FaceOverlayFilter.Builder(pipeline).build(tx);
+    faceOverlayFilterCallee.setOverlayedImage(assets.getUrl("Hat.png"), -0.2F, -1.35F, 1.5F,
+        1.5F, tx);
 
     // Connections
-    webRtcCaller.connect(faceOverlayFilterCaller);
-    faceOverlayFilterCaller.connect(webRtcCallee);
-    faceOverlayFilterCaller.connect(recorderCaller);
+    webRtcCaller.connect(faceOverlayFilterCaller, tx);
+    faceOverlayFilterCaller.connect(webRtcCallee, tx);
+    faceOverlayFilterCaller.connect(recorderCaller, tx);
+
+    webRtcCallee.connect(faceOverlayFilterCallee, tx);
+    faceOverlayFilterCallee.connect(webRtcCaller, tx);
+    faceOverlayFilterCallee.connect(recorderCallee, tx);
 
-    webRtcCallee.connect(faceOverlayFilterCallee);
-    faceOverlayFilterCallee.connect(webRtcCaller);
-    faceOverlayFilterCallee.connect(recorderCallee);
+    tx.commit();
+
+    log.debug("Call pipeline from '{}' to '{}' built in {} ms", from, to,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
   }
 
   public void record() {
@@ -92,6 +106,10 @@ public class CallMediaPipeline {
     return webRtcCallee.processOffer(sdpOffer);
   }
 
+  public void release() {
+    pipeline.release();
+  }
+
   public MediaPipeline getPipeline() {
     return pipeline;
   }
@@ -17,7 +17,10 @@
 
 package org.kurento.tutorial.one2onecalladv;
 
+import java.io.IOException;
+
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.assets.AssetCache;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -49,6 +52,12 @@ public class One2OneCallAdvApp implements WebSocketConfigurer {
     return new UserRegistry();
   }
 
+  @Bean
+  public AssetCache assetCache() throws IOException {
+    return new AssetCache(System.getProperty("app.server.url", DEFAULT_APP_SERVER_URL),
+        "mario-wings.png", "Hat.png");
+  }
+
   @Bean
   public KurentoClient kurentoClient() {
     return KurentoClient.create();
@@ -21,7 +21,11 @@ import static org.kurento.tutorial.one2onecalladv.CallMediaPipeline.RECORDING_EX
 import static org.kurento.tutorial.one2onecalladv.CallMediaPipeline.RECORDING_PATH;
 
 import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.KurentoClient;
@@ -38,7 +42,11 @@ import com.google.gson.JsonObject;
 /**
  * Media Pipeline (connection of Media Elements) for playing the recorded one to one video
  * communication.
- * 
+ *
+ * The pipeline and its WebRtcEndpoint are kept alive across successive plays of the same user
+ * session: each play only swaps the PlayerEndpoint feeding the already negotiated WebRtcEndpoint.
+ * When no recording has been played for {@link #IDLE_TIMEOUT_MS} the whole pipeline is released.
+ *
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @since 5.0.0
  */
@@ -46,51 +54,142 @@ public class PlayMediaPipeline {
 
   private static final Logger log = LoggerFactory.getLogger(PlayMediaPipeline.class);
 
+  public static final long IDLE_TIMEOUT_MS = Long.getLong("play.idleTimeoutMs", 60000);
+
   private final MediaPipeline pipeline;
-  private WebRtcEndpoint webRtc;
-  private final PlayerEndpoint player;
+  private final WebRtcEndpoint webRtc;
+  private final WebSocketSession session;
+  private final ScheduledExecutorService scheduler;
+  private final Runnable onExpire;
+
+  private PlayerEndpoint player;
+  private ScheduledFuture<?> idleTask;
+  private boolean released;
+
+  public PlayMediaPipeline(KurentoClient kurento, final WebSocketSession session,
+      ScheduledExecutorService scheduler, Runnable onExpire) {
+    this.session = session;
+    this.scheduler = scheduler;
+    this.onExpire = onExpire;
 
-  public PlayMediaPipeline(KurentoClient kurento, String user, final WebSocketSession session) {
     // Media pipeline
     pipeline = kurento.createMediaPipeline();
 
-    // Media Elements (WebRtcEndpoint, PlayerEndpoint)
+    // Media Elements (WebRtcEndpoint). The PlayerEndpoint is created on each play
     webRtc = new WebRtcEndpoint.Builder(pipeline).build();
-    player = new PlayerEndpoint.Builder(pipeline, RECORDING_PATH + user + RECORDING_EXT).build();
+  }
 
-    // Connection
-    player.connect(webRtc);
+  /**
+   * Replaces the current source (if any) with a new PlayerEndpoint for the recording of the given
+   * user, and starts playing it. The WebRtcEndpoint is left untouched, so no SDP renegotiation is
+   * needed.
+   *
+   * @return {@code false} if the pipeline has been released in the meantime (e.g. it expired
+   *         after the caller looked it up), in which case nothing is played
+   */
+  public synchronized boolean play(String user) {
+    if (released) {
+      return false;
+    }
+    cancelIdleTask();
+    releasePlayer();
+
+    final PlayerEndpoint newPlayer =
+        new PlayerEndpoint.Builder(pipeline, RECORDING_PATH + user + RECORDING_EXT).build();
 
     // Player listeners
-    player.addErrorListener(new EventListener<ErrorEvent>() {
+    newPlayer.addErrorListener(new EventListener<ErrorEvent>() {
       @Override
       public void onEvent(ErrorEvent event) {
         log.info("ErrorEvent: {}", event.getDescription());
-        sendPlayEnd(session);
+        sendPlayEnd(newPlayer);
       }
     });
+    newPlayer.addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
+      @Override
+      public void onEvent(EndOfStreamEvent event) {
+        sendPlayEnd(newPlayer);
+      }
+    });
+
+    // Connection
+    newPlayer.connect(webRtc);
+    player = newPlayer;
+    player.play();
+    return true;
   }
 
-  public void sendPlayEnd(WebSocketSession session) {
+  private void sendPlayEnd(PlayerEndpoint endedPlayer) {
+    synchronized (this) {
+      if (endedPlayer != player || released) {
+        // Stale event from a source that has already been swapped out
+        return;
+      }
+      releasePlayer();
+      scheduleIdleRelease();
+    }
+
     try {
       JsonObject response = new JsonObject();
       response.addProperty("id", "playEnd");
-      session.sendMessage(new TextMessage(response.toString()));
+      synchronized (session) {
+        session.sendMessage(new TextMessage(response.toString()));
+      }
     } catch (IOException e) {
       log.error("Error sending playEndOfStream message", e);
     }
+  }
 
-    // Release pipeline
+  public String generateSdpAnswer(String sdpOffer) {
+    return webRtc.processOffer(sdpOffer);
+  }
+
+  public synchronized boolean isReleased() {
+    return released;
+  }
+
+  public synchronized void release() {
+    if (released) {
+      return;
+    }
+    released = true;
+    cancelIdleTask();
+    player = null;
     pipeline.release();
-    this.webRtc = null;
   }
 
-  public void play() {
-    player.play();
+  private void releasePlayer() {
+    if (player != null) {
+      player.stop();
+      player.release();
+      player = null;
+    }
   }
 
-  public String generateSdpAnswer(String sdpOffer) {
-    return webRtc.processOffer(sdpOffer);
+  private void scheduleIdleRelease() {
+    cancelIdleTask();
+    idleTask = scheduler.schedule(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (PlayMediaPipeline.this) {
+          // A new play may have started while this task was waiting for the lock
+          if (player != null || released) {
+            return;
+          }
+          log.debug("Playback pipeline of session {} idle for {} ms, releasing it",
+              session.getId(), IDLE_TIMEOUT_MS);
+          release();
+        }
+        onExpire.run();
+      }
+    }, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+
+  private void cancelIdleTask() {
+    if (idleTask != null) {
+      idleTask.cancel(false);
+      idleTask = null;
+    }
   }
 
   public MediaPipeline getPipeline() {
@@ -101,7 +200,7 @@ public class PlayMediaPipeline {
     return webRtc;
   }
 
-  public PlayerEndpoint getPlayer() {
+  public synchronized PlayerEndpoint getPlayer() {
     return player;
   }
 
@@ -20,6 +20,8 @@ var videoInput;
 var videoOutput;
 var webRtcPeer;
 var from;
+// True while webRtcPeer is a playback peer kept alive for the next play
+var playbackReady = false;
 
 var registerName = null;
 var registerState = null;
@@ -132,6 +134,9 @@ ws.onmessage = function(message) {
 	case 'playEnd':
 		playEnd();
 		break;
+	case 'playExpired':
+		playExpired();
+		break;
 	case 'iceCandidate':
 		webRtcPeer.addIceCandidate(parsedMessage.candidate, function(error) {
 			if (error)
@@ -183,7 +188,11 @@ function startCommunication(message) {
 }
 
 function playResponse(message) {
-	if (message.response != 'accepted') {
+	if (message.response == 'renegotiate') {
+		// The server released the playback pipeline; negotiate a new one
+		disposePlayback();
+		play();
+	} else if (message.response != 'accepted') {
 		hideSpinner(videoOutput);
 		document.getElementById('videoSmall').style.display = 'block';
 		alert(message.error);
@@ -191,10 +200,12 @@ function playResponse(message) {
 		setCallState(POST_CALL);
 	} else {
 		setCallState(IN_PLAY);
-		webRtcPeer.processAnswer(message.sdpAnswer, function(error) {
-			if (error)
-				return console.error(error);
-		});
+		if (message.sdpAnswer) {
+			webRtcPeer.processAnswer(message.sdpAnswer, function(error) {
+				if (error)
+					return console.error(error);
+			});
+		}
 	}
 }
 
@@ -211,6 +222,7 @@ function incomingCall(message) {
 	}
 
 	setCallState(DISABLED);
+	releasePlayback();
 	if (confirm('User ' + message.from
 			+ ' is calling you. Do you accept the call?')) {
 		showSpinner(videoInput, videoOutput);
@@ -275,6 +287,7 @@ function call() {
 		return;
 	}
 	setCallState(DISABLED);
+	releasePlayback();
 	showSpinner(videoInput, videoOutput);
 
 	var options = {
@@ -316,6 +329,16 @@ function play() {
 	setCallState(DISABLED);
 	showSpinner(videoOutput);
 
+	if (playbackReady) {
+		// Reuse the negotiated connection; the server only swaps the source
+		playbackReady = false;
+		var message = {
+			id : 'play',
+			user : peer
+		};
+		return sendMessage(message);
+	}
+
 	var options = {
 		remoteVideo : videoOutput,
 		onicecandidate : onIceCandidate
@@ -340,13 +363,38 @@ function onOfferPlay(error, offerSdp) {
 }
 
 function playEnd() {
+	playbackReady = true;
 	setCallState(POST_CALL);
 	hideSpinner(videoInput, videoOutput);
 	document.getElementById('videoSmall').style.display = 'block';
 }
 
+function playExpired() {
+	if (playbackReady) {
+		disposePlayback();
+	}
+}
+
+function releasePlayback() {
+	if (playbackReady) {
+		disposePlayback();
+		sendMessage({
+			id : 'stopPlay'
+		});
+	}
+}
+
+function disposePlayback() {
+	playbackReady = false;
+	if (webRtcPeer) {
+		webRtcPeer.dispose();
+		webRtcPeer = null;
+	}
+}
+
 function stop(message) {
 	var stopMessageId = (callState == IN_CALL) ? 'stop' : 'stopPlay';
+	playbackReady = false;
 	setCallState(POST_CALL);
 	if (webRtcPeer) {
 		webRtcPeer.dispose();
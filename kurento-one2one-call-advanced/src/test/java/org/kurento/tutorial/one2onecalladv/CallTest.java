@@ -0,0 +1,284 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * Stress tests of the call state machine: every round races several threads on the same call or
+ * user, and checks that each transition happens exactly once. No KMS is needed, as the media
+ * pipeline and endpoints are mocked.
+ */
+public class CallTest {
+
+  private static final int ROUNDS = 2000;
+  private static final int THREADS = 4;
+
+  private ExecutorService executor;
+
+  @BeforeEach
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @AfterEach
+  public void tearDown() throws InterruptedException {
+    executor.shutdownNow();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Runs the tasks at the same time, once all of them are ready, and returns their results.
+   */
+  private <T> List<T> race(List<Callable<T>> tasks) throws Exception {
+    final CyclicBarrier barrier = new CyclicBarrier(tasks.size());
+    List<Future<T>> futures = new ArrayList<>();
+    for (final Callable<T> task : tasks) {
+      futures.add(executor.submit(new Callable<T>() {
+        @Override
+        public T call() throws Exception {
+          barrier.await(10, TimeUnit.SECONDS);
+          return task.call();
+        }
+      }));
+    }
+    List<T> results = new ArrayList<>();
+    for (Future<T> future : futures) {
+      results.add(future.get(10, TimeUnit.SECONDS));
+    }
+    return results;
+  }
+
+  private static Call newCall() {
+    return new Call(new UserSession(null, "caller"), new UserSession(null, "callee"), "offer");
+  }
+
+  @Test
+  public void callIsEndedOnlyOnce() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final Call call = newCall();
+      CallMediaPipeline pipeline = mock(CallMediaPipeline.class);
+      assertTrue(call.accept());
+      assertTrue(call.setPipeline(pipeline));
+
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        tasks.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return call.end();
+          }
+        });
+      }
+
+      int ended = 0;
+      for (boolean result : race(tasks)) {
+        ended += result ? 1 : 0;
+      }
+      assertEquals(1, ended, "round " + round);
+      assertEquals(Call.State.ENDING, call.getState());
+      verify(pipeline, times(1)).release();
+    }
+  }
+
+  @Test
+  public void pipelineAttachedWhileEndingIsReleasedOnce() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final Call call = newCall();
+      final CallMediaPipeline pipeline = mock(CallMediaPipeline.class);
+      assertTrue(call.accept());
+
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return call.setPipeline(pipeline);
+        }
+      });
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return call.end();
+        }
+      });
+
+      List<Boolean> results = race(tasks);
+      assertTrue(results.get(1), "round " + round);
+      assertNull(call.getPipeline());
+      verify(pipeline, times(1)).release();
+    }
+  }
+
+  @Test
+  public void endedCallCannotBeAcceptedOrActivated() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final Call call = newCall();
+
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return call.accept() && call.activate();
+        }
+      });
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return call.end();
+        }
+      });
+
+      List<Boolean> results = race(tasks);
+      assertTrue(results.get(1), "round " + round);
+      assertEquals(Call.State.ENDING, call.getState());
+      assertFalse(call.accept());
+      assertFalse(call.activate());
+    }
+  }
+
+  @Test
+  public void userJoinsOnlyOneCall() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final UserSession user = new UserSession(null, "user");
+      final List<Call> calls = new ArrayList<>();
+
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      for (int i = 0; i < THREADS; i++) {
+        final Call call = newCall();
+        calls.add(call);
+        tasks.add(new Callable<Boolean>() {
+          @Override
+          public Boolean call() {
+            return user.joinCall(call);
+          }
+        });
+      }
+
+      List<Boolean> results = race(tasks);
+      int joined = 0;
+      for (int i = 0; i < results.size(); i++) {
+        if (results.get(i)) {
+          joined++;
+          assertSame(calls.get(i), user.getCall());
+        }
+      }
+      assertEquals(1, joined, "round " + round);
+
+      // Leaving a call the user is not in must not free the slot
+      for (Call call : calls) {
+        if (call != user.getCall()) {
+          assertFalse(user.leaveCall(call));
+        }
+      }
+      assertTrue(user.leaveCall(user.getCall()));
+      assertNull(user.getCall());
+    }
+  }
+
+  @Test
+  public void leavingOldCallKeepsMediaOfNextCall() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final UserSession user = new UserSession(null, "user");
+      final Call oldCall = newCall();
+      final Call newCall = newCall();
+      final WebRtcEndpoint webRtcEndpoint = mock(WebRtcEndpoint.class);
+      assertTrue(user.joinCall(oldCall));
+
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return user.leaveCall(oldCall);
+        }
+      });
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          // The next call can only be joined once the old one has been left
+          while (!user.joinCall(newCall)) {
+            Thread.yield();
+          }
+          assertTrue(user.setWebRtcEndpoint(newCall, webRtcEndpoint));
+          return true;
+        }
+      });
+
+      race(tasks);
+      assertSame(newCall, user.getCall());
+
+      // The endpoint of the new call must still be there to take the candidate
+      IceCandidate candidate = new IceCandidate("candidate:" + round, "0", 0);
+      user.addCandidate(candidate);
+      verify(webRtcEndpoint, times(1)).addIceCandidate(candidate);
+    }
+  }
+
+  @Test
+  public void endpointOfLeftCallIsNotKept() throws Exception {
+    for (int round = 0; round < ROUNDS; round++) {
+      final UserSession user = new UserSession(null, "user");
+      final Call call = newCall();
+      final WebRtcEndpoint webRtcEndpoint = mock(WebRtcEndpoint.class);
+      assertTrue(user.joinCall(call));
+
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return user.leaveCall(call);
+        }
+      });
+      tasks.add(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          return user.setWebRtcEndpoint(call, webRtcEndpoint);
+        }
+      });
+
+      assertTrue(race(tasks).get(0), "round " + round);
+
+      // The candidates of the next call must be buffered, not fed to the released endpoint
+      assertTrue(user.joinCall(newCall()));
+      IceCandidate candidate = new IceCandidate("candidate:" + round, "0", 0);
+      user.addCandidate(candidate);
+      verify(webRtcEndpoint, never()).addIceCandidate(candidate);
+    }
+  }
+}
@@ -78,6 +78,10 @@ public class CallMediaPipeline {
     return webRtcCallee.processOffer(sdpOffer);
   }
 
+  public void release() {
+    pipeline.release();
+  }
+
   public MediaPipeline getPipeline() {
     return pipeline;
   }
@@ -0,0 +1,130 @@
+/*
+ * (C) Copyright 2014 Kurento (http://kurento.org/)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A call between two users. Its state only moves forward (RINGING, CONNECTING, ACTIVE, ENDING)
+ * through atomic compare-and-set, so the first thread that ends a call is the only one that
+ * releases its media pipeline and notifies the peer, whatever the interleaving of the two users.
+ *
+ * @since 6.18.0
+ */
+public class Call {
+
+  public enum State {
+    RINGING, CONNECTING, ACTIVE, ENDING
+  }
+
+  private final UserSession caller;
+  private final UserSession callee;
+  private final String callerSdpOffer;
+
+  private final AtomicReference<State> state = new AtomicReference<>(State.RINGING);
+  private final AtomicReference<CallMediaPipeline> pipeline = new AtomicReference<>();
+
+  public Call(UserSession caller, UserSession callee, String callerSdpOffer) {
+    this.caller = caller;
+    this.callee = callee;
+    this.callerSdpOffer = callerSdpOffer;
+  }
+
+  public UserSession getCaller() {
+    return caller;
+  }
+
+  public UserSession getCallee() {
+    return callee;
+  }
+
+  public String getCallerSdpOffer() {
+    return callerSdpOffer;
+  }
+
+  public State getState() {
+    return state.get();
+  }
+
+  /**
+   * RINGING to CONNECTING. Fails if the call was ended before the callee answered.
+   */
+  public boolean accept() {
+    return state.compareAndSet(State.RINGING, State.CONNECTING);
+  }
+
+  /**
+   * CONNECTING to ACTIVE, once both SDP answers have been sent.
+   */
+  public boolean activate() {
+    return state.compareAndSet(State.CONNECTING, State.ACTIVE);
+  }
+
+  /**
+   * Hands the media pipeline over to this call. If the call was ended concurrently the pipeline
+   * is released right away and {@code false} is returned.
+   */
+  public boolean setPipeline(CallMediaPipeline callPipeline) {
+    pipeline.set(callPipeline);
+    if (state.get() == State.ENDING) {
+      if (pipeline.compareAndSet(callPipeline, null)) {
+        callPipeline.release();
+      }
+      return false;
+    }
+    return true;
+  }
+
+  public CallMediaPipeline getPipeline() {
+    return pipeline.get();
+  }
+
+  /**
+   * Moves the call to ENDING and releases its pipeline. Returns {@code true} only for the one
+   * caller that performed the transition.
+   */
+  public boolean end() {
+    State current;
+    do {
+      current = state.get();
+      if (current == State.ENDING) {
+        return false;
+      }
+    } while (!state.compareAndSet(current, State.ENDING));
+
+    CallMediaPipeline callPipeline = pipeline.getAndSet(null);
+    if (callPipeline != null) {
+      callPipeline.release();
+    }
+    return true;
+  }
+
+  public UserSession getPeer(UserSession user) {
+    return user == caller ? callee : caller;
+  }
+
+  /**
+   * Sends a signaling message of the given user to the instance hosting this call, if it is not
+   * this one. Returns {@code false} when the message must be handled locally.
+   */
+  public boolean relay(UserSession user, JsonObject message) {
+    return false;
+  }
+}
@@ -18,7 +18,8 @@
 package org.kurento.tutorial.one2onecall;
 
 import java.io.IOException;
-import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
 
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
@@ -44,19 +45,22 @@ import com.google.gson.JsonObject;
  * @author Micael Gallego (micael.gallego@gmail.com)
  * @since 4.3.1
  */
-public class CallHandler extends TextWebSocketHandler {
+public class CallHandler extends TextWebSocketHandler implements RemoteMessageListener {
 
   private static final Logger log = LoggerFactory.getLogger(CallHandler.class);
   private static final Gson gson = new GsonBuilder().create();
 
-  private final ConcurrentHashMap<String, CallMediaPipeline> pipelines = new ConcurrentHashMap<>();
-
   @Autowired
   private KurentoClient kurento;
 
   @Autowired
   private UserRegistry registry;
 
+  @PostConstruct
+  public void init() {
+    registry.setRemoteMessageListener(this);
+  }
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -64,6 +68,12 @@ public class CallHandler extends TextWebSocketHandler {
 
     if (user != null) {
       log.debug("Incoming message from user '{}': {}", user.getName(), jsonMessage);
+
+      // Signaling of calls hosted by another instance is handled over there
+      Call call = user.getCall();
+      if (call != null && call.relay(user, jsonMessage)) {
+        return;
+      }
     } else {
       log.debug("Incoming message from new user: {}", jsonMessage);
     }
@@ -86,16 +96,9 @@ public class CallHandler extends TextWebSocketHandler {
       case "incomingCallResponse":
         incomingCallResponse(user, jsonMessage);
         break;
-      case "onIceCandidate": {
-        JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
-        if (user != null) {
-          IceCandidate cand =
-              new IceCandidate(candidate.get("candidate").getAsString(), candidate.get("sdpMid")
-                  .getAsString(), candidate.get("sdpMLineIndex").getAsInt());
-          user.addCandidate(cand);
-        }
+      case "onIceCandidate":
+        onIceCandidate(user, jsonMessage);
         break;
-      }
       case "stop":
         stop(session);
         break;
@@ -104,6 +107,39 @@ public class CallHandler extends TextWebSocketHandler {
     }
   }
 
+  @Override
+  public void onRemoteMessage(UserSession user, JsonObject jsonMessage) {
+    log.debug("Incoming message from remote user '{}': {}", user.getName(), jsonMessage);
+
+    try {
+      switch (jsonMessage.get("id").getAsString()) {
+        case "incomingCallResponse":
+          incomingCallResponse(user, jsonMessage);
+          break;
+        case "onIceCandidate":
+          onIceCandidate(user, jsonMessage);
+          break;
+        case "stop":
+          stop(user);
+          break;
+        default:
+          break;
+      }
+    } catch (IOException e) {
+      log.error(e.getMessage(), e);
+    }
+  }
+
+  private void onIceCandidate(UserSession user, JsonObject jsonMessage) {
+    JsonObject candidate = jsonMessage.get("candidate").getAsJsonObject();
+    if (user != null) {
+      IceCandidate cand =
+          new IceCandidate(candidate.get("candidate").getAsString(), candidate.get("sdpMid")
+              .getAsString(), candidate.get("sdpMLineIndex").getAsInt());
+      user.addCandidate(cand);
+    }
+  }
+
   private void handleErrorResponse(Throwable throwable, WebSocketSession session, String responseId)
       throws IOException {
     stop(session);
@@ -122,10 +158,8 @@ public class CallHandler extends TextWebSocketHandler {
     String responseMsg = "accepted";
     if (name.isEmpty()) {
       responseMsg = "rejected: empty user name";
-    } else if (registry.exists(name)) {
+    } else if (!registry.register(caller)) {
       responseMsg = "rejected: user '" + name + "' already registered";
-    } else {
-      registry.register(caller);
     }
 
     JsonObject response = new JsonObject();
@@ -139,41 +173,75 @@ public class CallHandler extends TextWebSocketHandler {
     String from = jsonMessage.get("from").getAsString();
     JsonObject response = new JsonObject();
 
-    if (registry.exists(to)) {
-      caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
-      caller.setCallingTo(to);
+    UserSession callee = registry.getByName(to);
+    if (callee == null) {
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", "rejected: user '" + to + "' is not registered");
 
-      response.addProperty("id", "incomingCall");
-      response.addProperty("from", from);
+      caller.sendMessage(response);
+      return;
+    }
 
-      UserSession callee = registry.getByName(to);
-      callee.sendMessage(response);
-      callee.setCallingFrom(from);
-    } else {
+    Call call =
+        new Call(caller, callee, jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
+    if (!caller.joinCall(call)) {
       response.addProperty("id", "callResponse");
-      response.addProperty("response", "rejected: user '" + to + "' is not registered");
+      response.addProperty("response", "rejected: you are already in a call");
 
       caller.sendMessage(response);
+      return;
     }
+    if (callee == caller || !callee.joinCall(call)) {
+      caller.leaveCall(call);
+      response.addProperty("id", "callResponse");
+      response.addProperty("response", "rejected: user '" + to + "' is busy");
+
+      caller.sendMessage(response);
+      return;
+    }
+
+    response.addProperty("id", "incomingCall");
+    response.addProperty("from", from);
+    callee.sendMessage(response);
   }
 
   private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage)
       throws IOException {
     String callResponse = jsonMessage.get("callResponse").getAsString();
     String from = jsonMessage.get("from").getAsString();
-    final UserSession calleer = registry.getByName(from);
-    String to = calleer.getCallingTo();
+
+    Call call = (callee != null) ? callee.getCall() : null;
+    if (call == null || call.getCallee() != callee
+        || !call.getCaller().getName().equals(from)) {
+      log.debug("Ignoring response to a call from '{}' that is no longer ringing", from);
+      return;
+    }
+
+    final UserSession calleer = call.getCaller();
+    String to = callee.getName();
 
     if ("accept".equals(callResponse)) {
+      if (!call.accept()) {
+        log.debug("Call from '{}' to '{}' was ended before being accepted", from, to);
+        return;
+      }
       log.debug("Accepted call from '{}' to '{}'", from, to);
 
-      CallMediaPipeline pipeline = null;
       try {
-        pipeline = new CallMediaPipeline(kurento);
-        pipelines.put(calleer.getSessionId(), pipeline);
-        pipelines.put(callee.getSessionId(), pipeline);
+        CallMediaPipeline pipeline = createPipeline();
+        if (!call.setPipeline(pipeline)) {
+          log.debug("Call from '{}' to '{}' was ended while connecting", from, to);
+          return;
+        }
 
-        callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEp());
+        if (!callee.setWebRtcEndpoint(call, pipeline.getCalleeWebRtcEp())) {
+          log.debug("Call from '{}' to '{}' was left while connecting", from, to);
+          // Releases the pipeline, unless it was released when the call was ended
+          if (call.end()) {
+            leaveCall(call);
+          }
+          return;
+        }
         pipeline.getCalleeWebRtcEp().addIceCandidateFoundListener(
             new EventListener<IceCandidateFoundEvent>() {
 
@@ -183,16 +251,21 @@ public class CallHandler extends TextWebSocketHandler {
                 response.addProperty("id", "iceCandidate");
                 response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
                 try {
-                  synchronized (callee.getSession()) {
-                    callee.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
+                  callee.sendMessage(response);
                 } catch (IOException e) {
                   log.debug(e.getMessage());
                 }
               }
             });
 
-        calleer.setWebRtcEndpoint(pipeline.getCallerWebRtcEp());
+        if (!calleer.setWebRtcEndpoint(call, pipeline.getCallerWebRtcEp())) {
+          log.debug("Call from '{}' to '{}' was left while connecting", from, to);
+          // Releases the pipeline, unless it was released when the call was ended
+          if (call.end()) {
+            leaveCall(call);
+          }
+          return;
+        }
         pipeline.getCallerWebRtcEp().addIceCandidateFoundListener(
             new EventListener<IceCandidateFoundEvent>() {
 
@@ -202,9 +275,7 @@ public class CallHandler extends TextWebSocketHandler {
                 response.addProperty("id", "iceCandidate");
                 response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
                 try {
-                  synchronized (calleer.getSession()) {
-                    calleer.getSession().sendMessage(new TextMessage(response.toString()));
-                  }
+                  calleer.sendMessage(response);
                 } catch (IOException e) {
                   log.debug(e.getMessage());
                 }
@@ -216,82 +287,92 @@ public class CallHandler extends TextWebSocketHandler {
         JsonObject startCommunication = new JsonObject();
         startCommunication.addProperty("id", "startCommunication");
         startCommunication.addProperty("sdpAnswer", calleeSdpAnswer);
-
-        synchronized (callee) {
-          callee.sendMessage(startCommunication);
-        }
+        callee.sendMessage(startCommunication);
 
         pipeline.getCalleeWebRtcEp().gatherCandidates();
 
-        String callerSdpOffer = registry.getByName(from).getSdpOffer();
-        String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
+        String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(call.getCallerSdpOffer());
         JsonObject response = new JsonObject();
         response.addProperty("id", "callResponse");
         response.addProperty("response", "accepted");
         response.addProperty("sdpAnswer", callerSdpAnswer);
-
-        synchronized (calleer) {
-          calleer.sendMessage(response);
-        }
+        calleer.sendMessage(response);
 
         pipeline.getCallerWebRtcEp().gatherCandidates();
 
+        call.activate();
+
       } catch (Throwable t) {
         log.error(t.getMessage(), t);
 
-        if (pipeline != null) {
-          pipeline.release();
+        if (call.end()) {
+          leaveCall(call);
+
+          JsonObject response = new JsonObject();
+          response.addProperty("id", "callResponse");
+          response.addProperty("response", "rejected");
+          calleer.sendMessage(response);
+
+          response = new JsonObject();
+          response.addProperty("id", "stopCommunication");
+          callee.sendMessage(response);
         }
+      }
 
-        pipelines.remove(calleer.getSessionId());
-        pipelines.remove(callee.getSessionId());
+    } else {
+      if (call.end()) {
+        leaveCall(call);
 
         JsonObject response = new JsonObject();
         response.addProperty("id", "callResponse");
         response.addProperty("response", "rejected");
         calleer.sendMessage(response);
-
-        response = new JsonObject();
-        response.addProperty("id", "stopCommunication");
-        callee.sendMessage(response);
       }
-
-    } else {
-      JsonObject response = new JsonObject();
-      response.addProperty("id", "callResponse");
-      response.addProperty("response", "rejected");
-      calleer.sendMessage(response);
     }
   }
 
+  /**
+   * Creates the media pipeline of a call being accepted on this instance.
+   */
+  protected CallMediaPipeline createPipeline() {
+    return new CallMediaPipeline(kurento);
+  }
+
   public void stop(WebSocketSession session) throws IOException {
-    String sessionId = session.getId();
-    if (pipelines.containsKey(sessionId)) {
-      pipelines.get(sessionId).release();
-      CallMediaPipeline pipeline = pipelines.remove(sessionId);
-      pipeline.release();
-
-      // Both users can stop the communication. A 'stopCommunication'
-      // message will be sent to the other peer.
-      UserSession stopperUser = registry.getBySession(session);
-      if (stopperUser != null) {
-        UserSession stoppedUser =
-            (stopperUser.getCallingFrom() != null) ? registry.getByName(stopperUser
-                .getCallingFrom()) : stopperUser.getCallingTo() != null ? registry
-                    .getByName(stopperUser.getCallingTo()) : null;
-
-                    if (stoppedUser != null) {
-                      JsonObject message = new JsonObject();
-                      message.addProperty("id", "stopCommunication");
-                      stoppedUser.sendMessage(message);
-                      stoppedUser.clear();
-                    }
-                    stopperUser.clear();
-      }
+    UserSession stopperUser = registry.getBySession(session);
+    if (stopperUser != null) {
+      stop(stopperUser);
+    }
+  }
+
+  private void stop(UserSession stopperUser) throws IOException {
+    Call call = stopperUser.getCall();
+    if (call == null) {
+      return;
+    }
+
+    JsonObject stopMessage = new JsonObject();
+    stopMessage.addProperty("id", "stop");
+    if (call.relay(stopperUser, stopMessage)) {
+      return;
+    }
+
+    // Both users can stop the communication. Only the first one to do so ends the call and sends
+    // a 'stopCommunication' message to the other peer.
+    if (call.end()) {
+      leaveCall(call);
 
+      JsonObject message = new JsonObject();
+      message.addProperty("id", "stopCommunication");
+      call.getPeer(stopperUser).sendMessage(message);
     }
   }
 
+  private void leaveCall(Call call) {
+    call.getCaller().leaveCall(call);
+    call.getCallee().leaveCall(call);
+  }
+
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     stop(session);
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Map of users registered in the system. This class has a concurrent hash map to store users, using
+ * its name as key in the map. Only users connected to this application instance are known.
+ * 
+ * @author Boni Garcia (bgarcia@gsyc.es)
+ * @author Micael Gallego (micael.gallego@gmail.com)
+ * @since 4.3.1
+ */
+public class LocalUserRegistry implements UserRegistry {
+
+  private ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
+  private ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
+
+  @Override
+  public boolean register(UserSession user) {
+    if (usersByName.putIfAbsent(user.getName(), user) != null) {
+      return false;
+    }
+    usersBySessionId.put(user.getSession().getId(), user);
+    return true;
+  }
+
+  @Override
+  public UserSession getByName(String name) {
+    return usersByName.get(name);
+  }
+
+  @Override
+  public UserSession getBySession(WebSocketSession session) {
+    return usersBySessionId.get(session.getId());
+  }
+
+  @Override
+  public boolean exists(String name) {
+    return usersByName.keySet().contains(name);
+  }
+
+  @Override
+  public UserSession removeBySession(WebSocketSession session) {
+    final UserSession user = getBySession(session);
+    if (user != null) {
+      usersByName.remove(user.getName());
+      usersBySessionId.remove(session.getId());
+    }
+    return user;
+  }
+
+  @Override
+  public void setRemoteMessageListener(RemoteMessageListener listener) {
+    // Calls never span more than this instance, so there are no remote messages
+  }
+
+}
@@ -17,7 +17,13 @@
 
 package org.kurento.tutorial.one2onecall;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Map;
+
 import org.kurento.client.KurentoClient;
+import org.kurento.tutorial.one2onecall.cluster.ClusteredUserRegistry;
+import org.kurento.tutorial.one2onecall.cluster.HttpClusterTransport;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
@@ -43,8 +49,17 @@ public class One2OneCallApp implements WebSocketConfigurer {
   }
 
   @Bean
-  public UserRegistry registry() {
-    return new UserRegistry();
+  public UserRegistry registry() throws IOException {
+    String clusterNodes = System.getProperty("cluster.nodes");
+    if (clusterNodes == null) {
+      return new LocalUserRegistry();
+    }
+
+    // e.g. -Dcluster.nodeId=node1 -Dcluster.nodes=node1=10.0.0.1:7900,node2=10.0.0.2:7900
+    // -Dcluster.secret=<same secret on every node>
+    Map<String, InetSocketAddress> nodes = HttpClusterTransport.parseNodes(clusterNodes);
+    return new ClusteredUserRegistry(System.getProperty("cluster.nodeId"), nodes.keySet(),
+        new HttpClusterTransport(nodes, System.getProperty("cluster.secret")));
   }
 
   @Bean
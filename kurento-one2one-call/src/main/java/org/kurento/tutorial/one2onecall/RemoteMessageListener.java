@@ -0,0 +1,31 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Receives the signaling messages that a user connected to another instance sends about a call
+ * hosted by this one.
+ *
+ * @since 6.18.0
+ */
+public interface RemoteMessageListener {
+
+  void onRemoteMessage(UserSession user, JsonObject message);
+
+}
@@ -17,47 +17,38 @@
 
 package org.kurento.tutorial.one2onecall;
 
-import java.util.concurrent.ConcurrentHashMap;
-
 import org.springframework.web.socket.WebSocketSession;
 
 /**
- * Map of users registered in the system. This class has a concurrent hash map to store users, using
- * its name as key in the map.
- * 
- * @author Boni Garcia (bgarcia@gsyc.es)
- * @author Micael Gallego (micael.gallego@gmail.com)
- * @since 4.3.1
+ * Registry of the users that can be called. Implementations decide how far the registry reaches:
+ * {@link LocalUserRegistry} only knows the users connected to this instance, while
+ * {@link org.kurento.tutorial.one2onecall.cluster.ClusteredUserRegistry} spans several instances
+ * and returns proxies for users connected elsewhere.
+ *
+ * @since 6.18.0
  */
-public class UserRegistry {
-
-  private ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
-  private ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
-
-  public void register(UserSession user) {
-    usersByName.put(user.getName(), user);
-    usersBySessionId.put(user.getSession().getId(), user);
-  }
-
-  public UserSession getByName(String name) {
-    return usersByName.get(name);
-  }
-
-  public UserSession getBySession(WebSocketSession session) {
-    return usersBySessionId.get(session.getId());
-  }
-
-  public boolean exists(String name) {
-    return usersByName.keySet().contains(name);
-  }
-
-  public UserSession removeBySession(WebSocketSession session) {
-    final UserSession user = getBySession(session);
-    if (user != null) {
-      usersByName.remove(user.getName());
-      usersBySessionId.remove(session.getId());
-    }
-    return user;
-  }
+public interface UserRegistry {
+
+  /**
+   * Registers a user connected to this instance. Returns {@code false} if the name is taken.
+   */
+  boolean register(UserSession user);
+
+  /**
+   * Returns the user with the given name, or {@code null} if nobody is registered with it.
+   */
+  UserSession getByName(String name);
+
+  UserSession getBySession(WebSocketSession session);
+
+  boolean exists(String name);
+
+  UserSession removeBySession(WebSocketSession session);
+
+  /**
+   * Sets the listener for the signaling messages that other instances forward to the calls hosted
+   * by this one.
+   */
+  void setRemoteMessageListener(RemoteMessageListener listener);
 
 }
@@ -20,6 +20,7 @@ package org.kurento.tutorial.one2onecall;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
@@ -44,9 +45,7 @@ public class UserSession {
   private final String name;
   private final WebSocketSession session;
 
-  private String sdpOffer;
-  private String callingTo;
-  private String callingFrom;
+  private final AtomicReference<Call> call = new AtomicReference<>();
   private WebRtcEndpoint webRtcEndpoint;
   private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
 
@@ -63,58 +62,70 @@ public class UserSession {
     return name;
   }
 
-  public String getSdpOffer() {
-    return sdpOffer;
+  public Call getCall() {
+    return call.get();
   }
 
-  public void setSdpOffer(String sdpOffer) {
-    this.sdpOffer = sdpOffer;
+  /**
+   * Joins the given call, unless this user is already in another one.
+   */
+  public boolean joinCall(Call newCall) {
+    return call.compareAndSet(null, newCall);
   }
 
-  public String getCallingTo() {
-    return callingTo;
-  }
-
-  public void setCallingTo(String callingTo) {
-    this.callingTo = callingTo;
-  }
-
-  public String getCallingFrom() {
-    return callingFrom;
-  }
-
-  public void setCallingFrom(String callingFrom) {
-    this.callingFrom = callingFrom;
+  /**
+   * Leaves the given call, dropping its endpoint and pending ICE candidates. Does nothing if the
+   * user has already moved on to another call. The media state is cleared before the call slot is
+   * freed, so it can never wipe the one of a call joined right afterwards.
+   */
+  public synchronized boolean leaveCall(Call oldCall) {
+    if (call.get() != oldCall) {
+      return false;
+    }
+    this.webRtcEndpoint = null;
+    this.candidateList.clear();
+    return call.compareAndSet(oldCall, null);
   }
 
   public void sendMessage(JsonObject message) throws IOException {
     log.debug("Sending message from user '{}': {}", name, message);
-    session.sendMessage(new TextMessage(message.toString()));
+    synchronized (session) {
+      session.sendMessage(new TextMessage(message.toString()));
+    }
   }
 
   public String getSessionId() {
     return session.getId();
   }
 
-  public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
+  /**
+   * Hands the endpoint of the given call to this user, and feeds it the ICE candidates received
+   * so far. Holds the same lock as {@link #leaveCall}, so the endpoint of a call that the user has
+   * already left, and whose pipeline is being released, is never kept.
+   *
+   * @return false if the user is no longer in that call
+   */
+  public synchronized boolean setWebRtcEndpoint(Call currentCall,
+      WebRtcEndpoint webRtcEndpoint) {
+    if (call.get() != currentCall) {
+      return false;
+    }
+
     this.webRtcEndpoint = webRtcEndpoint;
 
     for (IceCandidate e : candidateList) {
       this.webRtcEndpoint.addIceCandidate(e);
     }
     this.candidateList.clear();
+    return true;
   }
 
-  public void addCandidate(IceCandidate candidate) {
+
+  public synchronized void addCandidate(IceCandidate candidate) {
     if (this.webRtcEndpoint != null) {
       this.webRtcEndpoint.addIceCandidate(candidate);
     } else {
       candidateList.add(candidate);
     }
   }
-
-  public void clear() {
-    this.webRtcEndpoint = null;
-    this.candidateList.clear();
-  }
 }
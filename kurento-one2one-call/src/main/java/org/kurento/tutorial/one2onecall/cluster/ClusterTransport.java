@@ -0,0 +1,47 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import java.io.IOException;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Request/response channel between the nodes of a {@link ClusteredUserRegistry}.
+ *
+ * @since 6.18.0
+ */
+public interface ClusterTransport {
+
+  interface Receiver {
+
+    /**
+     * Handles a message sent by another node. Must never return {@code null}.
+     */
+    JsonObject onClusterMessage(JsonObject message);
+  }
+
+  /**
+   * Starts delivering the messages addressed to the given node to the receiver.
+   */
+  void bind(String nodeId, Receiver receiver) throws IOException;
+
+  void unbind(String nodeId);
+
+  JsonObject send(String nodeId, JsonObject message) throws IOException;
+
+}
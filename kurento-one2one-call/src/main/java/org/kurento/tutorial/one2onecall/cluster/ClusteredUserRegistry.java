@@ -0,0 +1,303 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.kurento.tutorial.one2onecall.Call;
+import org.kurento.tutorial.one2onecall.RemoteMessageListener;
+import org.kurento.tutorial.one2onecall.UserRegistry;
+import org.kurento.tutorial.one2onecall.UserSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * User registry spanning several application instances (nodes).
+ *
+ * Each user name is owned by one node, chosen by consistent hashing, which records the node the
+ * user's WebSocket is connected to (its home node). Looking up a user connected elsewhere returns a
+ * {@link RemoteUserSession} proxy, so calls are always hosted by the caller's node: the callee's
+ * node relays {@code incomingCall}, {@code callResponse}, ICE candidates and the rest of the
+ * signaling between its local WebSocket and the hosting node.
+ *
+ * @since 6.18.0
+ */
+public class ClusteredUserRegistry implements UserRegistry, ClusterTransport.Receiver {
+
+  private static final Logger log = LoggerFactory.getLogger(ClusteredUserRegistry.class);
+
+  private static final String REGISTER = "register";
+  private static final String UNREGISTER = "unregister";
+  private static final String LOOKUP = "lookup";
+  private static final String JOIN = "join";
+  private static final String LEAVE = "leave";
+  private static final String DELIVER = "deliver";
+  private static final String FORWARD = "forward";
+
+  private final String nodeId;
+  private final ConsistentHashRing ring;
+  private final ClusterTransport transport;
+
+  // Users whose WebSocket is connected to this node
+  private final ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, UserSession> usersBySessionId =
+      new ConcurrentHashMap<>();
+
+  // Home node of the user names owned by this node
+  private final ConcurrentHashMap<String, String> homeNodes = new ConcurrentHashMap<>();
+
+  // Proxies of the users connected to other nodes
+  private final ConcurrentHashMap<String, RemoteUserSession> remoteUsers =
+      new ConcurrentHashMap<>();
+
+  private volatile RemoteMessageListener listener;
+
+  public ClusteredUserRegistry(String nodeId, Collection<String> nodeIds,
+      ClusterTransport transport) throws IOException {
+    if (!nodeIds.contains(nodeId)) {
+      throw new IllegalArgumentException("Node '" + nodeId + "' is not part of the cluster");
+    }
+    this.nodeId = nodeId;
+    this.ring = new ConsistentHashRing(nodeIds);
+    this.transport = transport;
+    transport.bind(nodeId, this);
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  @Override
+  public boolean register(UserSession user) {
+    String name = user.getName();
+    if (usersByName.putIfAbsent(name, user) != null) {
+      return false;
+    }
+
+    JsonObject request = message(REGISTER, name);
+    request.addProperty("node", nodeId);
+    boolean accepted;
+    try {
+      accepted = request(ring.getNode(name), request).get("accepted").getAsBoolean();
+    } catch (RuntimeException e) {
+      // Do not keep the name reserved if its owner node could not be asked
+      usersByName.remove(name, user);
+      throw e;
+    }
+    if (!accepted) {
+      usersByName.remove(name, user);
+      return false;
+    }
+    usersBySessionId.put(user.getSessionId(), user);
+    return true;
+  }
+
+  @Override
+  public UserSession getByName(String name) {
+    UserSession user = usersByName.get(name);
+    if (user != null) {
+      return user;
+    }
+
+    String homeNode = lookup(name);
+    if (homeNode == null) {
+      remoteUsers.remove(name);
+      return null;
+    }
+    if (homeNode.equals(nodeId)) {
+      return usersByName.get(name);
+    }
+
+    RemoteUserSession proxy = remoteUsers.get(name);
+    if (proxy == null || !proxy.getNodeId().equals(homeNode)) {
+      proxy = new RemoteUserSession(name, homeNode, this);
+      remoteUsers.put(name, proxy);
+    }
+    return proxy;
+  }
+
+  @Override
+  public UserSession getBySession(WebSocketSession session) {
+    return usersBySessionId.get(session.getId());
+  }
+
+  @Override
+  public boolean exists(String name) {
+    return usersByName.containsKey(name) || lookup(name) != null;
+  }
+
+  @Override
+  public UserSession removeBySession(WebSocketSession session) {
+    UserSession user = usersBySessionId.remove(session.getId());
+    if (user != null) {
+      usersByName.remove(user.getName(), user);
+      JsonObject request = message(UNREGISTER, user.getName());
+      request.addProperty("node", nodeId);
+      try {
+        request(ring.getNode(user.getName()), request);
+      } catch (UncheckedIOException e) {
+        log.warn("Cannot unregister user '{}': {}", user.getName(), e.getMessage());
+      }
+    }
+    return user;
+  }
+
+  @Override
+  public void setRemoteMessageListener(RemoteMessageListener listener) {
+    this.listener = listener;
+  }
+
+  public void close() {
+    transport.unbind(nodeId);
+  }
+
+  private String lookup(String name) {
+    JsonObject response = request(ring.getNode(name), message(LOOKUP, name));
+    return response.has("node") ? response.get("node").getAsString() : null;
+  }
+
+  boolean join(RemoteUserSession user, Call call) {
+    JsonObject request = message(JOIN, user.getName());
+    request.addProperty("callNode", nodeId);
+    try {
+      return send(user.getNodeId(), request).get("accepted").getAsBoolean();
+    } catch (IOException e) {
+      log.warn("Cannot reach node '{}' of user '{}': {}", user.getNodeId(), user.getName(),
+          e.getMessage());
+      return false;
+    }
+  }
+
+  void leave(RemoteUserSession user) {
+    JsonObject request = message(LEAVE, user.getName());
+    request.addProperty("callNode", nodeId);
+    try {
+      send(user.getNodeId(), request);
+    } catch (IOException e) {
+      log.warn("Cannot reach node '{}' of user '{}': {}", user.getNodeId(), user.getName(),
+          e.getMessage());
+    }
+  }
+
+  void deliver(RemoteUserSession user, JsonObject message) throws IOException {
+    JsonObject request = message(DELIVER, user.getName());
+    request.add("message", message);
+    send(user.getNodeId(), request);
+  }
+
+  void forward(String callNodeId, UserSession user, JsonObject message) throws IOException {
+    JsonObject request = message(FORWARD, user.getName());
+    request.addProperty("node", nodeId);
+    request.add("message", message);
+    send(callNodeId, request);
+  }
+
+  @Override
+  public JsonObject onClusterMessage(JsonObject message) {
+    String name = message.get("name").getAsString();
+    JsonObject response = new JsonObject();
+
+    switch (message.get("type").getAsString()) {
+      case REGISTER: {
+        String node = message.get("node").getAsString();
+        String current = homeNodes.putIfAbsent(name, node);
+        response.addProperty("accepted", current == null || current.equals(node));
+        break;
+      }
+      case UNREGISTER:
+        homeNodes.remove(name, message.get("node").getAsString());
+        break;
+      case LOOKUP: {
+        String node = homeNodes.get(name);
+        if (node != null) {
+          response.addProperty("node", node);
+        }
+        break;
+      }
+      case JOIN: {
+        UserSession user = usersByName.get(name);
+        boolean accepted = user != null
+            && user.joinCall(new RemoteCall(message.get("callNode").getAsString(), this));
+        response.addProperty("accepted", accepted);
+        break;
+      }
+      case LEAVE: {
+        UserSession user = usersByName.get(name);
+        Call call = (user != null) ? user.getCall() : null;
+        if (call instanceof RemoteCall
+            && ((RemoteCall) call).getCallNodeId().equals(message.get("callNode").getAsString())) {
+          user.leaveCall(call);
+        }
+        break;
+      }
+      case DELIVER: {
+        UserSession user = usersByName.get(name);
+        if (user != null) {
+          try {
+            user.sendMessage(message.getAsJsonObject("message"));
+          } catch (IOException e) {
+            log.debug("Cannot deliver message to user '{}': {}", name, e.getMessage());
+          }
+        }
+        break;
+      }
+      case FORWARD: {
+        RemoteUserSession proxy = remoteUsers.get(name);
+        RemoteMessageListener currentListener = listener;
+        if (proxy != null && proxy.getNodeId().equals(message.get("node").getAsString())
+            && currentListener != null) {
+          currentListener.onRemoteMessage(proxy, message.getAsJsonObject("message"));
+        } else {
+          log.debug("Dropping message forwarded by unknown remote user '{}'", name);
+        }
+        break;
+      }
+      default:
+        log.warn("Unknown cluster message {}", message);
+        break;
+    }
+    return response;
+  }
+
+  private static JsonObject message(String type, String name) {
+    JsonObject message = new JsonObject();
+    message.addProperty("type", type);
+    message.addProperty("name", name);
+    return message;
+  }
+
+  private JsonObject send(String node, JsonObject message) throws IOException {
+    if (node.equals(nodeId)) {
+      return onClusterMessage(message);
+    }
+    return transport.send(node, message);
+  }
+
+  private JsonObject request(String node, JsonObject message) {
+    try {
+      return send(node, message);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cluster node '" + node + "' is not reachable", e);
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring mapping user names to the node that owns their registration. Each node is
+ * placed on the ring several times, so names spread evenly and adding or removing a node only
+ * moves the names of its neighbours.
+ *
+ * @since 6.18.0
+ */
+public class ConsistentHashRing {
+
+  private static final int VIRTUAL_NODES = 128;
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+
+  public ConsistentHashRing(Collection<String> nodeIds) {
+    if (nodeIds.isEmpty()) {
+      throw new IllegalArgumentException("A hash ring needs at least one node");
+    }
+    for (String nodeId : nodeIds) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(hash(nodeId + "#" + i), nodeId);
+      }
+    }
+  }
+
+  public String getNode(String key) {
+    Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+    if (entry == null) {
+      entry = ring.firstEntry();
+    }
+    return entry.getValue();
+  }
+
+  private static long hash(String key) {
+    try {
+      byte[] digest =
+          MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long hash = 0;
+      for (int i = 0; i < 8; i++) {
+        hash = (hash << 8) | (digest[i] & 0xff);
+      }
+      return hash;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
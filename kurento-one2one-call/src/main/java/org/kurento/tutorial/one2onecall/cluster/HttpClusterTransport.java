@@ -0,0 +1,232 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Transport exchanging cluster messages as JSON over plain HTTP. Every node listens on its own
+ * cluster address, separate from the public HTTPS port of the application.
+ *
+ * Messages are authenticated with a secret shared by all the nodes: each request carries a
+ * timestamp and an HMAC-SHA256 of the timestamp and body, so the secret never travels on the wire
+ * and a captured request can only be replayed for {@link #MAX_CLOCK_SKEW_MS}. Requests without a
+ * valid signature are rejected with 403. Messages are not encrypted, so the cluster addresses
+ * should still be kept on a private network.
+ *
+ * @since 6.18.0
+ */
+public class HttpClusterTransport implements ClusterTransport {
+
+  private static final Logger log = LoggerFactory.getLogger(HttpClusterTransport.class);
+  private static final Gson gson = new GsonBuilder().create();
+
+  private static final String PATH = "/cluster";
+  private static final int TIMEOUT_MS = 5000;
+  private static final long MAX_CLOCK_SKEW_MS = 30000;
+
+  private static final String HMAC = "HmacSHA256";
+  private static final String TIMESTAMP_HEADER = "X-Cluster-Timestamp";
+  private static final String SIGNATURE_HEADER = "X-Cluster-Signature";
+
+  private final Map<String, InetSocketAddress> addresses;
+  private final SecretKeySpec secret;
+
+  private HttpServer server;
+  private ExecutorService executor;
+
+  public HttpClusterTransport(Map<String, InetSocketAddress> addresses, String secret) {
+    if (secret == null || secret.length() < 16) {
+      throw new IllegalArgumentException(
+          "A cluster secret of at least 16 characters is required");
+    }
+    this.addresses = addresses;
+    this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), HMAC);
+  }
+
+  /**
+   * Parses a node list such as {@code node1=10.0.0.1:7900,node2=10.0.0.2:7900}.
+   */
+  public static Map<String, InetSocketAddress> parseNodes(String nodes) {
+    Map<String, InetSocketAddress> addresses = new LinkedHashMap<>();
+    for (String node : nodes.split(",")) {
+      String[] idAndAddress = node.trim().split("=");
+      String[] hostAndPort = idAndAddress[1].split(":");
+      addresses.put(idAndAddress[0],
+          InetSocketAddress.createUnresolved(hostAndPort[0], Integer.parseInt(hostAndPort[1])));
+    }
+    return addresses;
+  }
+
+  @Override
+  public synchronized void bind(String nodeId, final Receiver receiver) throws IOException {
+    InetSocketAddress address = addresses.get(nodeId);
+    if (address == null) {
+      throw new IllegalArgumentException("Unknown cluster node '" + nodeId + "'");
+    }
+
+    // Only listen on the configured address of this node, not on all the interfaces
+    server = HttpServer.create(
+        new InetSocketAddress(address.getHostString(), address.getPort()), 0);
+    server.createContext(PATH, new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          byte[] body;
+          try (InputStream in = exchange.getRequestBody()) {
+            body = readAll(in);
+          }
+          if (!isAuthentic(exchange.getRequestHeaders().getFirst(TIMESTAMP_HEADER),
+              exchange.getRequestHeaders().getFirst(SIGNATURE_HEADER), body)) {
+            log.warn("Rejected unauthenticated cluster message from {}",
+                exchange.getRemoteAddress());
+            exchange.sendResponseHeaders(403, -1);
+            return;
+          }
+          JsonObject message =
+              gson.fromJson(new String(body, StandardCharsets.UTF_8), JsonObject.class);
+          byte[] response =
+              receiver.onClusterMessage(message).toString().getBytes(StandardCharsets.UTF_8);
+          exchange.getResponseHeaders().set("Content-Type", "application/json");
+          exchange.sendResponseHeaders(200, response.length);
+          try (OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+          }
+        } catch (RuntimeException e) {
+          log.error("Error handling cluster message", e);
+          exchange.sendResponseHeaders(500, -1);
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    executor = Executors.newCachedThreadPool();
+    server.setExecutor(executor);
+    server.start();
+    log.info("Cluster node '{}' listening on {}", nodeId, server.getAddress());
+  }
+
+  @Override
+  public synchronized void unbind(String nodeId) {
+    if (server != null) {
+      server.stop(0);
+      executor.shutdown();
+      server = null;
+    }
+  }
+
+  @Override
+  public JsonObject send(String nodeId, JsonObject message) throws IOException {
+    InetSocketAddress address = addresses.get(nodeId);
+    if (address == null) {
+      throw new IOException("Unknown cluster node '" + nodeId + "'");
+    }
+
+    byte[] body = message.toString().getBytes(StandardCharsets.UTF_8);
+    String timestamp = Long.toString(System.currentTimeMillis());
+
+    URL url = new URL("http", address.getHostString(), address.getPort(), PATH);
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    try {
+      connection.setConnectTimeout(TIMEOUT_MS);
+      connection.setReadTimeout(TIMEOUT_MS);
+      connection.setRequestMethod("POST");
+      connection.setRequestProperty("Content-Type", "application/json");
+      connection.setRequestProperty(TIMESTAMP_HEADER, timestamp);
+      connection.setRequestProperty(SIGNATURE_HEADER, sign(timestamp, body));
+      connection.setDoOutput(true);
+      try (OutputStream out = connection.getOutputStream()) {
+        out.write(body);
+      }
+
+      if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+        throw new IOException("Node '" + nodeId + "' answered with HTTP "
+            + connection.getResponseCode());
+      }
+      try (InputStream in = connection.getInputStream()) {
+        return gson.fromJson(new String(readAll(in), StandardCharsets.UTF_8), JsonObject.class);
+      }
+    } finally {
+      connection.disconnect();
+    }
+  }
+
+  private boolean isAuthentic(String timestamp, String signature, byte[] body) {
+    if (timestamp == null || signature == null) {
+      return false;
+    }
+    try {
+      if (Math.abs(System.currentTimeMillis() - Long.parseLong(timestamp)) > MAX_CLOCK_SKEW_MS) {
+        return false;
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    return MessageDigest.isEqual(sign(timestamp, body).getBytes(StandardCharsets.US_ASCII),
+        signature.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private String sign(String timestamp, byte[] body) {
+    try {
+      Mac mac = Mac.getInstance(HMAC);
+      mac.init(secret);
+      mac.update(timestamp.getBytes(StandardCharsets.US_ASCII));
+      mac.update((byte) '\n');
+      mac.update(body);
+      return Base64.getEncoder().encodeToString(mac.doFinal());
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Transport connecting several {@link ClusteredUserRegistry} instances that live in the same JVM.
+ * Sharing one instance among N registries gives a multi-node cluster without any networking, to
+ * exercise the relay logic. Messages are serialized on every hop, as they would be on the wire,
+ * and {@link #unbind(String)} simulates a node going down.
+ *
+ * @since 6.18.0
+ */
+public class InProcessClusterTransport implements ClusterTransport {
+
+  private static final Gson gson = new GsonBuilder().create();
+
+  private final ConcurrentHashMap<String, Receiver> receivers = new ConcurrentHashMap<>();
+
+  @Override
+  public void bind(String nodeId, Receiver receiver) {
+    receivers.put(nodeId, receiver);
+  }
+
+  @Override
+  public void unbind(String nodeId) {
+    receivers.remove(nodeId);
+  }
+
+  @Override
+  public JsonObject send(String nodeId, JsonObject message) throws IOException {
+    Receiver receiver = receivers.get(nodeId);
+    if (receiver == null) {
+      throw new IOException("Node '" + nodeId + "' is not reachable");
+    }
+    JsonObject response = receiver.onClusterMessage(copy(message));
+    return copy(response);
+  }
+
+  private static JsonObject copy(JsonObject message) {
+    return gson.fromJson(message.toString(), JsonObject.class);
+  }
+}
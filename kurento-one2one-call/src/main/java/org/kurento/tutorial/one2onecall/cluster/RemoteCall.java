@@ -0,0 +1,70 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import java.io.IOException;
+
+import org.kurento.tutorial.one2onecall.Call;
+import org.kurento.tutorial.one2onecall.UserSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Placeholder joined by a local user taking part in a call hosted by another node. It keeps the
+ * user busy and relays the user's call signaling to that node.
+ *
+ * @since 6.18.0
+ */
+public class RemoteCall extends Call {
+
+  private static final Logger log = LoggerFactory.getLogger(RemoteCall.class);
+
+  private final String callNodeId;
+  private final ClusteredUserRegistry registry;
+
+  RemoteCall(String callNodeId, ClusteredUserRegistry registry) {
+    super(null, null, null);
+    this.callNodeId = callNodeId;
+    this.registry = registry;
+  }
+
+  public String getCallNodeId() {
+    return callNodeId;
+  }
+
+  @Override
+  public boolean relay(UserSession user, JsonObject message) {
+    switch (message.get("id").getAsString()) {
+      case "incomingCallResponse":
+      case "onIceCandidate":
+      case "stop":
+        try {
+          registry.forward(callNodeId, user, message);
+        } catch (IOException e) {
+          // The hosting node is gone, and the call with it
+          log.warn("Cannot relay message of user '{}' to node '{}': {}", user.getName(),
+              callNodeId, e.getMessage());
+          user.leaveCall(this);
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+}
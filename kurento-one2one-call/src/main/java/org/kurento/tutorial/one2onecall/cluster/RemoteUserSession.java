@@ -0,0 +1,78 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import java.io.IOException;
+
+import org.kurento.tutorial.one2onecall.Call;
+import org.kurento.tutorial.one2onecall.UserSession;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Proxy of a user whose WebSocket is connected to another node. The call hosted on this node
+ * treats it like any local user: messages sent to it are relayed to its node, and joining or
+ * leaving a call also marks the real user as busy or free over there.
+ *
+ * @since 6.18.0
+ */
+public class RemoteUserSession extends UserSession {
+
+  private final String nodeId;
+  private final ClusteredUserRegistry registry;
+
+  RemoteUserSession(String name, String nodeId, ClusteredUserRegistry registry) {
+    super(null, name);
+    this.nodeId = nodeId;
+    this.registry = registry;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  @Override
+  public String getSessionId() {
+    return nodeId + "/" + getName();
+  }
+
+  @Override
+  public void sendMessage(JsonObject message) throws IOException {
+    registry.deliver(this, message);
+  }
+
+  @Override
+  public boolean joinCall(Call call) {
+    if (!super.joinCall(call)) {
+      return false;
+    }
+    if (!registry.join(this, call)) {
+      super.leaveCall(call);
+      return false;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean leaveCall(Call call) {
+    if (!super.leaveCall(call)) {
+      return false;
+    }
+    registry.leave(this);
+    return true;
+  }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.kurento.client.EventListener;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.WebRtcEndpoint;
+import org.kurento.tutorial.one2onecall.CallHandler;
+import org.kurento.tutorial.one2onecall.CallMediaPipeline;
+import org.kurento.tutorial.one2onecall.UserSession;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+
+/**
+ * Three registries connected through an {@link InProcessClusterTransport}, so the registration,
+ * lookup and failure paths run exactly as across nodes, but without any networking. The call flow
+ * tests also put a {@link CallHandler} on top of two of them, with mocked media pipelines.
+ */
+public class ClusteredUserRegistryTest {
+
+  private static final List<String> NODES = Arrays.asList("node1", "node2", "node3");
+  private static final Gson gson = new GsonBuilder().create();
+
+  private InProcessClusterTransport transport;
+  private ClusteredUserRegistry node1;
+  private ClusteredUserRegistry node2;
+  private ClusteredUserRegistry node3;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    transport = new InProcessClusterTransport();
+    node1 = new ClusteredUserRegistry("node1", NODES, transport);
+    node2 = new ClusteredUserRegistry("node2", NODES, transport);
+    node3 = new ClusteredUserRegistry("node3", NODES, transport);
+  }
+
+  private static UserSession newUser(String sessionId, String name) {
+    WebSocketSession session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn(sessionId);
+    return new UserSession(session, name);
+  }
+
+  private static WebSocketSession newSession(String sessionId) {
+    WebSocketSession session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn(sessionId);
+    return session;
+  }
+
+  /**
+   * Returns a handler on top of the given registry, which records the pipelines it creates.
+   */
+  private static CallHandler newHandler(ClusteredUserRegistry registry,
+      final List<CallMediaPipeline> pipelines) {
+    CallHandler handler = new CallHandler() {
+      @Override
+      protected CallMediaPipeline createPipeline() {
+        CallMediaPipeline pipeline = mock(CallMediaPipeline.class);
+        when(pipeline.getCallerWebRtcEp()).thenReturn(mock(WebRtcEndpoint.class));
+        when(pipeline.getCalleeWebRtcEp()).thenReturn(mock(WebRtcEndpoint.class));
+        when(pipeline.generateSdpAnswerForCaller("callerOffer")).thenReturn("callerAnswer");
+        when(pipeline.generateSdpAnswerForCallee("calleeOffer")).thenReturn("calleeAnswer");
+        pipelines.add(pipeline);
+        return pipeline;
+      }
+    };
+    ReflectionTestUtils.setField(handler, "registry", registry);
+    handler.init();
+    return handler;
+  }
+
+  private static TextMessage message(String... properties) {
+    JsonObject message = new JsonObject();
+    for (int i = 0; i < properties.length; i += 2) {
+      message.addProperty(properties[i], properties[i + 1]);
+    }
+    return new TextMessage(message.toString());
+  }
+
+  private static TextMessage iceCandidate(String candidate) {
+    JsonObject iceCandidate = new JsonObject();
+    iceCandidate.addProperty("candidate", candidate);
+    iceCandidate.addProperty("sdpMid", "0");
+    iceCandidate.addProperty("sdpMLineIndex", 0);
+    JsonObject message = new JsonObject();
+    message.addProperty("id", "onIceCandidate");
+    message.add("candidate", iceCandidate);
+    return new TextMessage(message.toString());
+  }
+
+  /**
+   * Returns the messages sent so far to the given WebSocket.
+   */
+  private static List<JsonObject> received(WebSocketSession session) throws IOException {
+    ArgumentCaptor<TextMessage> captor = ArgumentCaptor.forClass(TextMessage.class);
+    verify(session, atLeast(0)).sendMessage(captor.capture());
+    List<JsonObject> messages = new ArrayList<>();
+    for (TextMessage message : captor.getAllValues()) {
+      messages.add(gson.fromJson(message.getPayload(), JsonObject.class));
+    }
+    return messages;
+  }
+
+  private static List<String> receivedIds(WebSocketSession session) throws IOException {
+    List<String> ids = new ArrayList<>();
+    for (JsonObject message : received(session)) {
+      ids.add(message.get("id").getAsString());
+    }
+    return ids;
+  }
+
+  private static JsonObject lastReceived(WebSocketSession session) throws IOException {
+    List<JsonObject> messages = received(session);
+    return messages.get(messages.size() - 1);
+  }
+
+  /**
+   * Returns a user name whose registration is owned by the given node.
+   */
+  private static String nameOwnedBy(String nodeId) {
+    ConsistentHashRing ring = new ConsistentHashRing(NODES);
+    for (int i = 0;; i++) {
+      String name = "user" + i;
+      if (ring.getNode(name).equals(nodeId)) {
+        return name;
+      }
+    }
+  }
+
+  @Test
+  public void usersAreVisibleFromEveryNode() {
+    UserSession alice = newUser("s1", "alice");
+    assertTrue(node1.register(alice));
+
+    assertSame(alice, node1.getByName("alice"));
+    assertSame(alice, node1.getBySession(alice.getSession()));
+
+    UserSession remote = node2.getByName("alice");
+    assertTrue(remote instanceof RemoteUserSession);
+    assertEquals("node1", ((RemoteUserSession) remote).getNodeId());
+    assertTrue(node3.exists("alice"));
+    assertNull(node3.getByName("bob"));
+  }
+
+  @Test
+  public void nameIsRegisteredOnlyOnceInTheCluster() {
+    UserSession alice = newUser("s1", "alice");
+    assertTrue(node1.register(alice));
+    assertFalse(node3.register(newUser("s2", "alice")));
+    assertFalse(node1.register(newUser("s3", "alice")));
+
+    // Once unregistered, the name can be taken on another node
+    assertSame(alice, node1.removeBySession(alice.getSession()));
+    assertFalse(node2.exists("alice"));
+    assertTrue(node3.register(newUser("s4", "alice")));
+    assertTrue(node1.getByName("alice") instanceof RemoteUserSession);
+  }
+
+  @Test
+  public void nameIsNotReservedWhenItsOwnerIsDown() throws Exception {
+    String name = nameOwnedBy("node2");
+    transport.unbind("node2");
+
+    UserSession user = newUser("s1", name);
+    assertThrows(UncheckedIOException.class, () -> node1.register(user));
+    assertNull(node1.getBySession(user.getSession()));
+
+    // The owner comes back: the name must not have stayed taken on node1
+    transport.bind("node2", node2);
+    assertTrue(node1.register(newUser("s2", name)));
+    assertTrue(node3.exists(name));
+  }
+
+  @Test
+  public void proxyFollowsUserToAnotherNode() {
+    UserSession alice = newUser("s1", "alice");
+    assertTrue(node1.register(alice));
+    assertEquals("node1", ((RemoteUserSession) node3.getByName("alice")).getNodeId());
+
+    node1.removeBySession(alice.getSession());
+    assertTrue(node2.register(newUser("s2", "alice")));
+    assertEquals("node2", ((RemoteUserSession) node3.getByName("alice")).getNodeId());
+  }
+
+  /**
+   * Alice, on node1, calls Bob, on node2. The call is hosted by node1, and node2 relays the
+   * signaling between Bob's WebSocket and node1.
+   */
+  private void connectCall(CallHandler handler1, CallHandler handler2,
+      WebSocketSession aliceSession, WebSocketSession bobSession) throws Exception {
+    handler1.handleTextMessage(aliceSession, message("id", "register", "name", "alice"));
+    handler2.handleTextMessage(bobSession, message("id", "register", "name", "bob"));
+
+    handler1.handleTextMessage(aliceSession,
+        message("id", "call", "from", "alice", "to", "bob", "sdpOffer", "callerOffer"));
+    JsonObject incomingCall = lastReceived(bobSession);
+    assertEquals("incomingCall", incomingCall.get("id").getAsString());
+    assertEquals("alice", incomingCall.get("from").getAsString());
+
+    handler2.handleTextMessage(bobSession, message("id", "incomingCallResponse", "from", "alice",
+        "callResponse", "accept", "sdpOffer", "calleeOffer"));
+    JsonObject startCommunication = lastReceived(bobSession);
+    assertEquals("startCommunication", startCommunication.get("id").getAsString());
+    assertEquals("calleeAnswer", startCommunication.get("sdpAnswer").getAsString());
+    JsonObject callResponse = lastReceived(aliceSession);
+    assertEquals("callResponse", callResponse.get("id").getAsString());
+    assertEquals("accepted", callResponse.get("response").getAsString());
+    assertEquals("callerAnswer", callResponse.get("sdpAnswer").getAsString());
+  }
+
+  @Test
+  public void callIsRelayedBetweenNodes() throws Exception {
+    List<CallMediaPipeline> pipelines1 = new ArrayList<>();
+    List<CallMediaPipeline> pipelines2 = new ArrayList<>();
+    CallHandler handler1 = newHandler(node1, pipelines1);
+    CallHandler handler2 = newHandler(node2, pipelines2);
+    WebSocketSession aliceSession = newSession("s1");
+    WebSocketSession bobSession = newSession("s2");
+
+    connectCall(handler1, handler2, aliceSession, bobSession);
+    assertEquals(1, pipelines1.size());
+    assertTrue(pipelines2.isEmpty());
+    CallMediaPipeline pipeline = pipelines1.get(0);
+    WebRtcEndpoint bobEndpoint = pipeline.getCalleeWebRtcEp();
+
+    // Bob's candidates reach his endpoint on node1
+    handler2.handleTextMessage(bobSession, iceCandidate("bobCandidate"));
+    ArgumentCaptor<IceCandidate> candidate = ArgumentCaptor.forClass(IceCandidate.class);
+    verify(bobEndpoint).addIceCandidate(candidate.capture());
+    assertEquals("bobCandidate", candidate.getValue().getCandidate());
+
+    // And the candidates of his endpoint reach his WebSocket on node2
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    ArgumentCaptor<EventListener<IceCandidateFoundEvent>> listener =
+        ArgumentCaptor.forClass((Class) EventListener.class);
+    verify(bobEndpoint).addIceCandidateFoundListener(listener.capture());
+    listener.getValue().onEvent(new IceCandidateFoundEvent(null, "0", "0", null,
+        "IceCandidateFound", new IceCandidate("kmsCandidate", "0", 0)));
+    JsonObject iceCandidate = lastReceived(bobSession);
+    assertEquals("iceCandidate", iceCandidate.get("id").getAsString());
+    assertEquals("kmsCandidate",
+        iceCandidate.getAsJsonObject("candidate").get("candidate").getAsString());
+
+    handler1.handleTextMessage(aliceSession, message("id", "stop"));
+    verify(pipeline, times(1)).release();
+    assertEquals(Arrays.asList("registerResponse", "callResponse"), receivedIds(aliceSession));
+    assertEquals(Arrays.asList("registerResponse", "incomingCall", "startCommunication",
+        "iceCandidate", "stopCommunication"), receivedIds(bobSession));
+
+    // Both users are free again on their own node
+    assertNull(node1.getBySession(aliceSession).getCall());
+    assertNull(node2.getBySession(bobSession).getCall());
+  }
+
+  @Test
+  public void calleeStopIsRelayedToTheHostingNode() throws Exception {
+    List<CallMediaPipeline> pipelines1 = new ArrayList<>();
+    CallHandler handler1 = newHandler(node1, pipelines1);
+    CallHandler handler2 = newHandler(node2, new ArrayList<CallMediaPipeline>());
+    WebSocketSession aliceSession = newSession("s1");
+    WebSocketSession bobSession = newSession("s2");
+
+    connectCall(handler1, handler2, aliceSession, bobSession);
+    handler2.handleTextMessage(bobSession, message("id", "stop"));
+
+    verify(pipelines1.get(0), times(1)).release();
+    assertEquals("stopCommunication", lastReceived(aliceSession).get("id").getAsString());
+    assertEquals("startCommunication", lastReceived(bobSession).get("id").getAsString());
+    assertNull(node1.getBySession(aliceSession).getCall());
+    assertNull(node2.getBySession(bobSession).getCall());
+  }
+}
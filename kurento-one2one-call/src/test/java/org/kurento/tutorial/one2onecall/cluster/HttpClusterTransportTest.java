@@ -0,0 +1,113 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.one2onecall.cluster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Two HTTP transports on the loopback interface: signed messages go through, anything else is
+ * rejected before reaching the receiver.
+ */
+public class HttpClusterTransportTest {
+
+  private static final String SECRET = "0123456789abcdef-cluster";
+
+  private Map<String, InetSocketAddress> nodes;
+  private HttpClusterTransport server;
+
+  @BeforeEach
+  public void setUp() throws Exception {
+    nodes = HttpClusterTransport.parseNodes("node1=127.0.0.1:" + freePort()
+        + ",node2=127.0.0.1:" + freePort());
+    server = new HttpClusterTransport(nodes, SECRET);
+    server.bind("node2", new ClusterTransport.Receiver() {
+      @Override
+      public JsonObject onClusterMessage(JsonObject message) {
+        JsonObject response = new JsonObject();
+        response.addProperty("echo", message.get("name").getAsString());
+        return response;
+      }
+    });
+  }
+
+  @AfterEach
+  public void tearDown() {
+    server.unbind("node2");
+  }
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static JsonObject message(String name) {
+    JsonObject message = new JsonObject();
+    message.addProperty("type", "lookup");
+    message.addProperty("name", name);
+    return message;
+  }
+
+  @Test
+  public void signedMessageIsDelivered() throws Exception {
+    HttpClusterTransport client = new HttpClusterTransport(nodes, SECRET);
+    assertEquals("alice", client.send("node2", message("alice")).get("echo").getAsString());
+  }
+
+  @Test
+  public void messageSignedWithAnotherSecretIsRejected() {
+    final HttpClusterTransport client =
+        new HttpClusterTransport(nodes, "another-secret-of-16-chars");
+    assertThrows(IOException.class, () -> client.send("node2", message("alice")));
+  }
+
+  @Test
+  public void unsignedMessageIsRejected() throws Exception {
+    InetSocketAddress address = nodes.get("node2");
+    URL url = new URL("http", address.getHostString(), address.getPort(), "/cluster");
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write(message("alice").toString().getBytes(StandardCharsets.UTF_8));
+    }
+    assertEquals(403, connection.getResponseCode());
+    connection.disconnect();
+  }
+
+  @Test
+  public void shortSecretIsRefused() {
+    assertThrows(IllegalArgumentException.class, () -> new HttpClusterTransport(nodes, "short"));
+    assertThrows(IllegalArgumentException.class, () -> new HttpClusterTransport(nodes, null));
+  }
+}
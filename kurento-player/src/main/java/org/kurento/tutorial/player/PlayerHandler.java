@@ -20,6 +20,11 @@ package org.kurento.tutorial.player;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.PreDestroy;
 
 import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
@@ -58,6 +63,13 @@ import com.google.gson.JsonObject;
  */
 public class PlayerHandler extends TextWebSocketHandler {
 
+  // Limits of the outbound messages of each WebSocket session
+  private static final int SEND_TIME_LIMIT_MS = Integer.getInteger("ws.sendTimeLimitMs", 10000);
+  private static final int BUFFER_SIZE_LIMIT =
+      Integer.getInteger("ws.bufferSizeLimit", 512 * 1024);
+  private static final int SEND_THREADS =
+      Integer.getInteger("ws.sendThreads", Runtime.getRuntime().availableProcessors());
+
   @Autowired
   private KurentoClient kurento;
 
@@ -65,6 +77,25 @@ public class PlayerHandler extends TextWebSocketHandler {
   private final Gson gson = new GsonBuilder().create();
   private final ConcurrentHashMap<String, UserSession> users = new ConcurrentHashMap<>();
 
+  // Outbound messages of each session, written by the send threads, so a slow client only delays
+  // its own messages and Kurento event threads never write to a socket
+  private final ConcurrentHashMap<String, OutboundQueue> outbound = new ConcurrentHashMap<>();
+  private final ExecutorService sender =
+      Executors.newFixedThreadPool(SEND_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ws-send");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+    outbound.put(session.getId(),
+        new OutboundQueue(session, sender, SEND_TIME_LIMIT_MS, BUFFER_SIZE_LIMIT));
+  }
+
   @Override
   public void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
     JsonObject jsonMessage = gson.fromJson(message.getPayload(), JsonObject.class);
@@ -130,13 +161,7 @@ public class PlayerHandler extends TextWebSocketHandler {
         JsonObject response = new JsonObject();
         response.addProperty("id", "iceCandidate");
         response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-        try {
-          synchronized (session) {
-            session.sendMessage(new TextMessage(response.toString()));
-          }
-        } catch (IOException e) {
-          log.debug(e.getMessage());
-        }
+        sendMessage(session, response.toString());
       }
     });
 
@@ -307,16 +332,26 @@ public class PlayerHandler extends TextWebSocketHandler {
     }
   }
 
-  private synchronized void sendMessage(WebSocketSession session, String message) {
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException e) {
-      log.error("Exception sending message", e);
+  private void sendMessage(WebSocketSession session, String message) {
+    OutboundQueue out = outbound.get(session.getId());
+    if (out == null) {
+      log.debug("Skip message to closed session {}", session.getId());
+      return;
     }
+    out.send(message);
   }
 
   @Override
   public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
     stop(session.getId());
+    OutboundQueue out = outbound.remove(session.getId());
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  @PreDestroy
+  private void shutdown() {
+    sender.shutdownNow();
   }
 }
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+// Kurento client
+import org.kurento.client.BaseRtpEndpoint;
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaType;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.RTCOutboundRTPStreamStats;
+import org.kurento.client.Stats;
+
+/**
+ * Adapts the video bandwidth of RTP endpoints to the state of their links,
+ * from their WebRTC statistics.
+ *
+ * Every {@code bwe.intervalMs} milliseconds (2000), the video stats of each
+ * endpoint are requested, with at most {@code bwe.concurrency} (8) requests
+ * in flight; endpoints whose previous request has not finished are skipped.
+ * The loss rate, jitter and bitrate of each direction are smoothed with an
+ * exponential moving average, and drive its limit:
+ * <ul>
+ * <li>Loss above {@code bwe.highLoss} (0.10) decreases it in proportion to
+ * the loss, and growing jitter above {@code bwe.jitterMs} (30) decreases it
+ * by 15%.</li>
+ * <li>Loss below {@code bwe.lowLoss} (0.02) increases it by 8%, as long as the
+ * media uses most of the current limit.</li>
+ * <li>On sending, it never goes over the REMB estimate of the receiver.</li>
+ * </ul>
+ * Limits stay between {@code bwe.minKbps} (150) and {@code bwe.maxKbps}
+ * (2500), and are only applied to KMS, with {@code setMaxVideoRecvBandwidth}
+ * or {@code setMaxVideoSendBandwidth}, when they change by 5% or more.
+ *
+ * The state of each endpoint is served under {@code /bandwidth}.
+ */
+@RestController
+public class BandwidthController
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(BandwidthController.class);
+
+  private static final long INTERVAL_MS = Long.getLong("bwe.intervalMs", 2000);
+  private static final int CONCURRENCY = Integer.getInteger("bwe.concurrency", 8);
+  private static final int MIN_KBPS = Integer.getInteger("bwe.minKbps", 150);
+  private static final int MAX_KBPS = Integer.getInteger("bwe.maxKbps", 2500);
+  private static final double HIGH_LOSS =
+      Double.parseDouble(System.getProperty("bwe.highLoss", "0.10"));
+  private static final double LOW_LOSS =
+      Double.parseDouble(System.getProperty("bwe.lowLoss", "0.02"));
+  private static final double JITTER_MS =
+      Double.parseDouble(System.getProperty("bwe.jitterMs", "30"));
+
+  // Weight of each new measurement in the moving averages
+  private static final double SMOOTHING = 0.3;
+  private static final double INCREASE = 1.08;
+  private static final double JITTER_DECREASE = 0.85;
+  private static final double HYSTERESIS = 0.05;
+
+  /**
+   * Control loop of one direction of an endpoint.
+   */
+  private static class Direction
+  {
+    private final boolean send;
+    private final int maxKbps;
+    private int limitKbps;
+    private int appliedKbps;
+
+    // Counters of the previous stats
+    private long bytes = -1;
+    private long packets;
+    private long lost;
+
+    // Smoothed measurements
+    private double bitrateKbps;
+    private double loss;
+    private double jitterMs;
+    private double estimateKbps;
+
+    Direction(boolean send, int maxKbps)
+    {
+      this.send = send;
+      this.maxKbps = maxKbps;
+      this.limitKbps = maxKbps;
+    }
+
+    /**
+     * @return true if the first measurement was taken
+     */
+    boolean measure(long bytes, long packets, long lost, double jitterMs,
+        double estimateKbps, double seconds)
+    {
+      boolean first = this.bytes < 0 || bytes < this.bytes;
+      if (!first && seconds > 0) {
+        long packetsDelta = packets - this.packets;
+        long lostDelta = Math.max(0, lost - this.lost);
+        double newLoss = packetsDelta + lostDelta > 0
+            ? (double) lostDelta / (packetsDelta + lostDelta) : 0;
+        double newBitrate = (bytes - this.bytes) * 8 / 1000.0 / seconds;
+
+        this.loss += SMOOTHING * (newLoss - this.loss);
+        this.bitrateKbps += SMOOTHING * (newBitrate - this.bitrateKbps);
+        this.jitterMs += SMOOTHING * (jitterMs - this.jitterMs);
+        this.estimateKbps = estimateKbps;
+      }
+      this.bytes = bytes;
+      this.packets = packets;
+      this.lost = lost;
+      return !first;
+    }
+
+    /**
+     * @return The new limit, or 0 to keep the applied one
+     */
+    int control(double previousJitterMs)
+    {
+      double target = limitKbps;
+      if (loss > HIGH_LOSS) {
+        target = limitKbps * (1 - 0.5 * loss);
+      } else if (jitterMs > JITTER_MS && jitterMs > previousJitterMs) {
+        target = limitKbps * JITTER_DECREASE;
+      } else if (loss < LOW_LOSS && bitrateKbps > 0.7 * limitKbps) {
+        target = limitKbps * INCREASE;
+      }
+      if (estimateKbps > 0) {
+        target = Math.min(target, estimateKbps);
+      }
+      limitKbps = (int) Math.max(MIN_KBPS, Math.min(maxKbps, target));
+
+      if (appliedKbps == 0
+          || Math.abs(limitKbps - appliedKbps) >= HYSTERESIS * appliedKbps) {
+        appliedKbps = limitKbps;
+        return limitKbps;
+      }
+      return 0;
+    }
+
+    Map<String, Object> getInfo()
+    {
+      Map<String, Object> info = new LinkedHashMap<>();
+      info.put("limitKbps", appliedKbps);
+      info.put("bitrateKbps", Math.round(bitrateKbps));
+      info.put("loss", Math.round(loss * 1000) / 1000.0);
+      if (!send) {
+        info.put("jitterMs", Math.round(jitterMs * 10) / 10.0);
+      } else {
+        info.put("rembKbps", Math.round(estimateKbps));
+      }
+      return info;
+    }
+  }
+
+  /**
+   * An endpoint under control.
+   */
+  private static class Controlled
+  {
+    private final String name;
+    private final BaseRtpEndpoint endpoint;
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+
+    // Guarded by this
+    private Direction recv;
+    private Direction send;
+    private long lastMillis;
+
+    Controlled(String name, BaseRtpEndpoint endpoint)
+    {
+      this.name = name;
+      this.endpoint = endpoint;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Controlled> endpoints =
+      new ConcurrentHashMap<>();
+  private final Semaphore permits = new Semaphore(CONCURRENCY);
+  private ScheduledExecutorService executor;
+
+  private final AtomicLong polls = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong adjustments = new AtomicLong();
+
+  @PostConstruct
+  private void init()
+  {
+    executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "bandwidth-controller");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        poll();
+      }
+    }, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @PreDestroy
+  private void shutdown()
+  {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Controls the bandwidth that an endpoint receives.
+   *
+   * @param maxKbps
+   *          Upper limit for this endpoint, or 0 for {@code bwe.maxKbps}
+   */
+  public void controlRecv(String name, BaseRtpEndpoint endpoint, int maxKbps)
+  {
+    Controlled controlled = getControlled(name, endpoint);
+    synchronized (controlled) {
+      controlled.recv = new Direction(false, getMaxKbps(maxKbps));
+    }
+  }
+
+  /**
+   * Controls the bandwidth that an endpoint sends.
+   *
+   * @param maxKbps
+   *          Upper limit for this endpoint, or 0 for {@code bwe.maxKbps}
+   */
+  public void controlSend(String name, BaseRtpEndpoint endpoint, int maxKbps)
+  {
+    Controlled controlled = getControlled(name, endpoint);
+    synchronized (controlled) {
+      controlled.send = new Direction(true, getMaxKbps(maxKbps));
+    }
+  }
+
+  /**
+   * Stops controlling an endpoint, before releasing it.
+   */
+  public void release(BaseRtpEndpoint endpoint)
+  {
+    endpoints.remove(endpoint.getId());
+  }
+
+  private Controlled getControlled(String name, BaseRtpEndpoint endpoint)
+  {
+    Controlled controlled = endpoints.get(endpoint.getId());
+    if (controlled == null) {
+      Controlled newControlled = new Controlled(name, endpoint);
+      controlled = endpoints.putIfAbsent(endpoint.getId(), newControlled);
+      if (controlled == null) {
+        controlled = newControlled;
+      }
+    }
+    return controlled;
+  }
+
+  private static int getMaxKbps(int maxKbps)
+  {
+    return maxKbps > 0 ? Math.max(MIN_KBPS, Math.min(MAX_KBPS, maxKbps))
+        : MAX_KBPS;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private void poll()
+  {
+    long deadline = System.currentTimeMillis() + INTERVAL_MS;
+    List<Controlled> list = new ArrayList<>(endpoints.values());
+    for (int i = 0; i < list.size(); i++) {
+      Controlled controlled = list.get(i);
+      if (!controlled.inFlight.compareAndSet(false, true)) {
+        skipped.incrementAndGet();
+        continue;
+      }
+
+      boolean acquired = false;
+      try {
+        acquired = permits.tryAcquire(
+            Math.max(0, deadline - System.currentTimeMillis()),
+            TimeUnit.MILLISECONDS);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      if (!acquired) {
+        // Too slow to poll them all within an interval
+        controlled.inFlight.set(false);
+        skipped.addAndGet(list.size() - i);
+        return;
+      }
+
+      requestStats(controlled);
+    }
+  }
+
+  private void requestStats(final Controlled controlled)
+  {
+    polls.incrementAndGet();
+    try {
+      controlled.endpoint.getStats(MediaType.VIDEO,
+          new Continuation<Map<String, Stats>>() {
+        @Override
+        public void onSuccess(Map<String, Stats> stats) {
+          finish(controlled);
+          try {
+            onStats(controlled, stats);
+          } catch (RuntimeException ex) {
+            log.warn("[BandwidthController::onStats] {}: {}", controlled.name,
+                ex.getMessage());
+          }
+        }
+
+        @Override
+        public void onError(Throwable cause) {
+          finish(controlled);
+          onStatsError(controlled, cause);
+        }
+      });
+    } catch (RuntimeException ex) {
+      finish(controlled);
+      onStatsError(controlled, ex);
+    }
+  }
+
+  private void finish(Controlled controlled)
+  {
+    controlled.inFlight.set(false);
+    permits.release();
+  }
+
+  private void onStatsError(Controlled controlled, Throwable cause)
+  {
+    errors.incrementAndGet();
+    log.debug("[BandwidthController::onStatsError] {}: {}", controlled.name,
+        cause.getMessage());
+  }
+
+  private void onStats(Controlled controlled, Map<String, Stats> stats)
+  {
+    long inBytes = 0;
+    long inPackets = 0;
+    long inLost = 0;
+    double jitterMs = 0;
+    long outBytes = 0;
+    long outPackets = 0;
+    long outLost = 0;
+    double rembKbps = 0;
+
+    for (Stats stat : stats.values()) {
+      if (stat instanceof RTCInboundRTPStreamStats) {
+        RTCInboundRTPStreamStats in = (RTCInboundRTPStreamStats) stat;
+        inBytes += in.getBytesReceived();
+        inPackets += in.getPacketsReceived();
+        inLost += in.getPacketsLost();
+        // In seconds
+        jitterMs = Math.max(jitterMs, in.getJitter() * 1000);
+      } else if (stat instanceof RTCOutboundRTPStreamStats) {
+        RTCOutboundRTPStreamStats out = (RTCOutboundRTPStreamStats) stat;
+        outBytes += out.getBytesSent();
+        outPackets += out.getPacketsSent();
+        outLost += out.getPacketsLost();
+        // In bps
+        rembKbps = Math.max(rembKbps, out.getRemb() / 1000.0);
+      }
+    }
+
+    int newRecvKbps = 0;
+    int newSendKbps = 0;
+    synchronized (controlled) {
+      long now = System.currentTimeMillis();
+      double seconds = (now - controlled.lastMillis) / 1000.0;
+      controlled.lastMillis = now;
+
+      Direction recv = controlled.recv;
+      if (recv != null) {
+        double previousJitterMs = recv.jitterMs;
+        if (recv.measure(inBytes, inPackets, inLost, jitterMs, 0, seconds)) {
+          newRecvKbps = recv.control(previousJitterMs);
+        }
+      }
+      Direction send = controlled.send;
+      if (send != null) {
+        if (send.measure(outBytes, outPackets, outLost, 0, rembKbps, seconds)) {
+          newSendKbps = send.control(0);
+        }
+      }
+    }
+
+    if (newRecvKbps > 0) {
+      apply(controlled, false, newRecvKbps);
+    }
+    if (newSendKbps > 0) {
+      apply(controlled, true, newSendKbps);
+    }
+  }
+
+  private void apply(final Controlled controlled, final boolean send,
+      final int kbps)
+  {
+    adjustments.incrementAndGet();
+    log.debug("[BandwidthController::apply] {}: max video {} bandwidth: {} kbps",
+        controlled.name, send ? "send" : "recv", kbps);
+
+    Continuation<Void> continuation = new Continuation<Void>() {
+      @Override
+      public void onSuccess(Void result) {}
+
+      @Override
+      public void onError(Throwable cause) {
+        errors.incrementAndGet();
+        log.warn("[BandwidthController::apply] {}: {}", controlled.name,
+            cause.getMessage());
+      }
+    };
+    if (send) {
+      controlled.endpoint.setMaxVideoSendBandwidth(kbps, continuation);
+    } else {
+      controlled.endpoint.setMaxVideoRecvBandwidth(kbps, continuation);
+    }
+  }
+
+  // REST API ------------------------------------------------------------------
+
+  @GetMapping("/bandwidth")
+  public Map<String, Object> getInfo()
+  {
+    Map<String, Object> info = new LinkedHashMap<>();
+    info.put("endpoints", endpoints.size());
+    info.put("polls", polls.get());
+    info.put("skipped", skipped.get());
+    info.put("errors", errors.get());
+    info.put("adjustments", adjustments.get());
+
+    Map<String, Object> list = new LinkedHashMap<>();
+    for (Controlled controlled : endpoints.values()) {
+      Map<String, Object> endpoint = new LinkedHashMap<>();
+      synchronized (controlled) {
+        if (controlled.recv != null) {
+          endpoint.put("recv", controlled.recv.getInfo());
+        }
+        if (controlled.send != null) {
+          endpoint.put("send", controlled.send.getInfo());
+        }
+      }
+      list.put(controlled.name, endpoint);
+    }
+    info.put("byEndpoint", list);
+    return info;
+  }
+}
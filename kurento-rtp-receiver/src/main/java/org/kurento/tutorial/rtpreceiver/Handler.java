@@ -21,9 +21,12 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Base64;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,16 +39,9 @@ import org.springframework.web.socket.handler.TextWebSocketHandler;
 import org.kurento.client.BaseRtpEndpoint;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
-import org.kurento.client.KurentoClient;
-import org.kurento.client.MediaPipeline;
-import org.kurento.client.RtpEndpoint;
 import org.kurento.client.WebRtcEndpoint;
 import org.kurento.jsonrpc.JsonUtils;
 
-// Kurento crypto
-import org.kurento.client.CryptoSuite;
-import org.kurento.client.SDES;
-
 // Kurento events
 import org.kurento.client.ConnectionStateChangedEvent;
 import org.kurento.client.ErrorEvent;
@@ -57,7 +53,6 @@ import org.kurento.client.MediaFlowOutStateChangedEvent;
 import org.kurento.client.MediaStateChangedEvent;
 import org.kurento.client.MediaTranscodingStateChangedEvent;
 import org.kurento.client.NewCandidatePairSelectedEvent;
-import org.kurento.client.OnKeySoftLimitEvent;
 
 
 /**
@@ -68,11 +63,45 @@ public class Handler extends TextWebSocketHandler
   private final Logger log = LoggerFactory.getLogger(Handler.class);
   private final Gson gson = new GsonBuilder().create();
 
+  // Limits of the outbound messages of each WebSocket session
+  private static final int SEND_TIME_LIMIT_MS =
+      Integer.getInteger("ws.sendTimeLimitMs", 10000);
+  private static final int BUFFER_SIZE_LIMIT =
+      Integer.getInteger("ws.bufferSizeLimit", 512 * 1024);
+  private static final int SEND_THREADS = Integer.getInteger("ws.sendThreads",
+      Runtime.getRuntime().availableProcessors());
+
   private final ConcurrentHashMap<String, UserSession> users =
       new ConcurrentHashMap<>();
 
+  // Outbound messages of each session, written by the send threads, so a
+  // slow client only delays its own messages and Kurento event threads
+  // never write to a socket
+  private final ConcurrentHashMap<String, OutboundQueue> outbound =
+      new ConcurrentHashMap<>();
+  private final ExecutorService sender =
+      Executors.newFixedThreadPool(SEND_THREADS, new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "ws-send");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
   @Autowired
-  private KurentoClient kurento;
+  private IngestManager ingests;
+
+  @Autowired
+  private BandwidthController bandwidth;
+
+  @Override
+  public void afterConnectionEstablished(WebSocketSession session)
+      throws Exception
+  {
+    outbound.put(session.getId(), new OutboundQueue(session, sender,
+        SEND_TIME_LIMIT_MS, BUFFER_SIZE_LIMIT));
+  }
 
   @Override
   public void afterConnectionClosed(final WebSocketSession session,
@@ -82,6 +111,16 @@ public class Handler extends TextWebSocketHandler
         status, session.getId());
 
     stop(session);
+    OutboundQueue out = outbound.remove(session.getId());
+    if (out != null) {
+      out.close();
+    }
+  }
+
+  @PreDestroy
+  private void shutdown()
+  {
+    sender.shutdownNow();
   }
 
   @Override
@@ -300,224 +339,117 @@ public class Handler extends TextWebSocketHandler
     webRtcEp.gatherCandidates();
   }
 
-  private RtpEndpoint makeRtpEndpoint(MediaPipeline pipeline, Boolean useSrtp)
-  {
-    if (!useSrtp) {
-      return new RtpEndpoint.Builder(pipeline).build();
-    }
-
-    // ---- SRTP configuration BEGIN ----
-    // This is used by KMS to encrypt its SRTP/SRTCP packets.
-    // Encryption key used by receiver (ASCII): "4321ZYXWVUTSRQPONMLKJIHGFEDCBA"
-    // In Base64: "NDMyMVpZWFdWVVRTUlFQT05NTEtKSUhHRkVEQ0JB"
-    CryptoSuite srtpCrypto = CryptoSuite.AES_128_CM_HMAC_SHA1_80;
-    // CryptoSuite crypto = CryptoSuite.AES_256_CM_HMAC_SHA1_80;
-
-    // You can provide the SRTP Master Key in either plain text or Base64.
-    // The second form allows providing binary, non-ASCII keys.
-    String srtpMasterKeyAscii = "4321ZYXWVUTSRQPONMLKJIHGFEDCBA";
-    // String srtpMasterKeyBase64 = "NDMyMVpZWFdWVVRTUlFQT05NTEtKSUhHRkVEQ0JB";
-    // ---- SRTP configuration END ----
-
-    SDES sdes = new SDES();
-    sdes.setCrypto(srtpCrypto);
-    sdes.setKey(srtpMasterKeyAscii);
-    // sdes.setKeyBase64(srtpMasterKeyBase64);
-
-    return new RtpEndpoint.Builder(pipeline).withCrypto(sdes).build();
-  }
-
   /*
-  RtpEndpoint configuration.
-  Controls the SDP Offer/Answer negotiation between a 3rd-party RTP sender
-  and KMS. A fake SDP Offer simulates the features that our RTP sender
-  will have; then, the SDP Answer is parsed to extract the RTP and RTCP ports
-  that KMS will use to listen for packets.
+  Source of the demo RTP sender.
+  Viewers with the same options share the same ingest, so the stream is
+  received and depacketized only once, no matter how many viewers there are.
   */
-  private void startRtpEndpoint(final WebSocketSession session,
-      RtpEndpoint rtpEp, Boolean useComedia, Boolean useSrtp)
+  private IngestSource makeDemoSource(Boolean useComedia, Boolean useSrtp)
   {
-    log.info("[Handler::startRtpEndpoint] Configure RtpEndpoint, port discovery: {}, SRTP: {}",
-        useComedia, useSrtp);
-
-    addBaseEventListeners(session, rtpEp, "RtpEndpoint");
-
-    // Event: The SRTP key is about to expire
-    rtpEp.addOnKeySoftLimitListener(
-        new EventListener<OnKeySoftLimitEvent>() {
-      @Override
-      public void onEvent(OnKeySoftLimitEvent ev) {
-        log.info("[RtpEndpoint::{}] source: {}, timestamp: {}, tags: {}, mediaType: {}",
-            ev.getType(), ev.getSource(), ev.getTimestampMillis(), ev.getTags(),
-            ev.getMediaType());
-      }
-    });
-
     // ---- RTP configuration BEGIN ----
     // Set the appropriate values for your setup
-    String senderIp = "127.0.0.1";
-    int senderRtpPortA = 5006;
-    int senderRtpPortV = 5004;
-    int senderSsrcA = 445566;
-    int senderSsrcV = 112233;
-    String senderCname = "user@example.com";
-    String senderCodecV = "H264";
-    // String senderCodecV = "VP8";
+    IngestSource source = new IngestSource();
+    source.setSenderIp("127.0.0.1");
+    source.setAudioPort(5006);
+    source.setVideoPort(5004);
+    // SSRCs are left to IngestManager, which picks unused ones for each
+    // variant, and shown in the connection info
+    // source.setAudioSsrc(445566);
+    // source.setVideoSsrc(112233);
+    source.setCname("user@example.com");
+    source.setVideoCodec("H264");
+    // source.setVideoCodec("VP8");
     // ---- RTP configuration END ----
 
     /*
     OPTIONAL: Set maximum bandwidth on reception.
     This can be useful if there is some limitation on the incoming bandwidth
-    that the receiver is able to process.
+    that the receiver is able to process. The BandwidthController adapts the
+    bandwidth to the link below this maximum.
     */
-    // log.info("[Handler::startRtpEndpoint] Limit output bandwidth: 1024 kbps");
-    // rtpEp.setMaxVideoRecvBandwidth(1024); // In kbps (1000 bps)
+    // source.setMaxVideoRecvBandwidth(1024); // In kbps (1000 bps)
 
-    String sdpComediaAttr = "";
-    if (useComedia) {
-      // Use Discard port (9)
-      senderRtpPortA = 9;
-      senderRtpPortV = 9;
+    source.setComedia(useComedia);
 
-      // Inspired by RFC 4145 Draft 05 ("COMEDIA")
-      sdpComediaAttr = "a=direction:active\r\n";
+    String id = "demo";
+    if (useComedia) {
+      id += "-comedia";
     }
 
-    Boolean useAudio = true;
-    String senderProtocol = "RTP/AVPF";
-    String sdpCryptoAttr = "";
     if (useSrtp) {
-      // Use SRTP protocol
-      useAudio = false;  // This demo uses audio only for non-SRTP streams
-      senderProtocol = "RTP/SAVPF";
-
-      // This is used by KMS to decrypt the sender's SRTP/SRTCP
-      // Encryption key used by sender (ASCII): "ABCDEFGHIJKLMNOPQRSTUVWXYZ1234"
-      // In Base64: "QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVoxMjM0"
-      sdpCryptoAttr = "a=crypto:2 AES_CM_128_HMAC_SHA1_80 inline:QUJDREVGR0hJSktMTU5PUFFSU1RVVldYWVoxMjM0|2^31|1:1\r\n";
-    }
+      id += "-srtp";
 
-/*
-# SDP quick reference
-SDP structure is composed of levels: session > media > source.
-Each level can contain one or more of the next ones.
-Typically, one session contains several medias, and each media contains one source.
-
----- Session-level information ----
-v=
-o=
-s=
-c=
-t=
----- Media-level attributes ----
-m=
-a=
----- Source-level attributes ----
-a=ssrc
-
-Some default values are defined by different RFCs:
-- RFC 3264 defines recommended values for "s=", "t=", "a=sendonly".
-- RFC 5576 defines source-level attribute "a=ssrc".
-*/
-
-    String rtpSdpOffer =
-        "v=0\r\n"
-        + "o=- 0 0 IN IP4 " + senderIp + "\r\n"
-        + "s=Kurento Tutorial - RTP Receiver\r\n"
-        + "c=IN IP4 " + senderIp + "\r\n"
-        + "t=0 0\r\n";
-
-    if (useAudio) {
-      rtpSdpOffer +=
-          "m=audio " + senderRtpPortA + " RTP/AVPF 96\r\n"
-          + "a=rtpmap:96 opus/48000/2\r\n"
-          + "a=sendonly\r\n"
-          + sdpComediaAttr
-          + "a=ssrc:" + senderSsrcA + " cname:" + senderCname + "\r\n";
-    }
-
-    rtpSdpOffer +=
-        "m=video " + senderRtpPortV + " " + senderProtocol + " 103\r\n"
-        + sdpCryptoAttr
-        + "a=rtpmap:103 " + senderCodecV + "/90000\r\n"
-        + "a=rtcp-fb:103 goog-remb\r\n"
-        + "a=sendonly\r\n"
-        + sdpComediaAttr
-        + "a=ssrc:" + senderSsrcV + " cname:" + senderCname + "\r\n"
-        + "";
-
-    // Send the SDP Offer to KMS, and get its negotiated SDP Answer
-    String rtpSdpAnswer = rtpEp.processOffer(rtpSdpOffer);
-
-    log.info("[Handler::startRtpEndpoint] Fake SDP Offer from App to KMS:\n{}",
-        rtpSdpOffer);
-    log.info("[Handler::startRtpEndpoint] SDP Answer from KMS to App:\n{}",
-        rtpSdpAnswer);
-
-    // Parse SDP Answer
-    // NOTE: No error checking; this code assumes that the SDP Answer from KMS
-    // is always well formed.
-    Pattern p; Matcher m;
-
-    int kmsRtpPortA = 0;
-    int senderRtcpPortA = 0;
-    if (useAudio) {
-      p = Pattern.compile("m=audio (\\d+) RTP");
-      m = p.matcher(rtpSdpAnswer);
-      m.find();
-      kmsRtpPortA = Integer.parseInt(m.group(1));
-      senderRtcpPortA = senderRtpPortA + 1;
-    }
+      // This demo uses audio only for non-SRTP streams
+      source.setAudioPort(0);
 
-    p = Pattern.compile("m=video (\\d+) RTP");
-    m = p.matcher(rtpSdpAnswer);
-    m.find();
-    int kmsRtpPortV = Integer.parseInt(m.group(1));
-    int senderRtcpPortV = senderRtpPortV + 1;
+      // ---- SRTP configuration BEGIN ----
+      source.setCryptoSuite("AES_128_CM_HMAC_SHA1_80");
+      // source.setCryptoSuite("AES_256_CM_HMAC_SHA1_80");
 
-    p = Pattern.compile("a=ssrc:(\\d+)");
-    m = p.matcher(rtpSdpAnswer);
-    m.find();
-    String kmsSsrcV = m.group(1);
+      // The keys used by KMS to encrypt its SRTP/SRTCP packets, and to
+      // decrypt those of the sender, are generated for each ingest, and
+      // shown in the connection info. They change when the ingest is rekeyed.
+      // ---- SRTP configuration END ----
+    }
 
-    p = Pattern.compile("c=IN IP4 (([0-9]{1,3}\\.){3}[0-9]{1,3})");
-    m = p.matcher(rtpSdpAnswer);
-    m.find();
-    String kmsIp = m.group(1);
+    source.setId(id);
+    return source;
+  }
 
-    // Check if KMS accepted the use of "direction" attribute
-    useComedia = rtpSdpAnswer.contains("a=direction:passive");
+  private void sendConnInfo(final WebSocketSession session, Ingest ingest)
+  {
+    IngestSource source = ingest.getSource();
+    RtpSdp.Answer answer = ingest.getAnswer();
 
     String msgConnInfo = "SDP negotiation finished\n";
-    if (useAudio) {
+    msgConnInfo += String.format("* Ingest: %s, viewers: %d\n",
+        ingest.getId(), ingest.getViewers());
+    if (source.hasAudio()) {
       msgConnInfo += String.format(
-          "* KMS listens for Audio RTP at port: %d\n", kmsRtpPortA);
+          "* KMS listens for Audio RTP at port: %d\n", answer.getKmsAudioPort());
     }
-    msgConnInfo += String.format(
-        "* KMS listens for Video RTP at port: %d\n", kmsRtpPortV);
-    if (useSrtp) {
+    if (source.hasVideo()) {
       msgConnInfo += String.format(
-          "* KMS uses Video SSRC: %s\n", kmsSsrcV);
+          "* KMS listens for Video RTP at port: %d\n", answer.getKmsVideoPort());
     }
-    if (useAudio) {
+    if (source.isSrtp()) {
       msgConnInfo += String.format(
-          "* KMS expects Audio SSRC from sender: %d\n", senderSsrcA);
+          "* KMS uses Video SSRC: %d\n", answer.getKmsSsrc());
+      msgConnInfo += String.format(
+          "* SRTP crypto suite: %s\n", source.getCryptoSuite());
+      // Only the demo sources show their keys; those of ingests registered
+      // through the REST API are only known to the client that registered them
+      if (ingest.isOnDemand()) {
+        msgConnInfo += String.format(
+            "* SRTP key for the sender (hex): %s\n", toHex(source.getSenderKey()));
+        msgConnInfo += String.format(
+            "* SRTP key of KMS (hex): %s\n", toHex(source.getKmsKey()));
+      }
     }
-    msgConnInfo += String.format(
-        "* KMS expects Video SSRC from sender: %d\n", senderSsrcV);
-    msgConnInfo += String.format("* KMS local IP address: %s\n", kmsIp);
-    if (useComedia) {
+    if (source.hasAudio()) {
+      msgConnInfo += String.format(
+          "* KMS expects Audio SSRC from sender: %d\n", source.getAudioSsrc());
+    }
+    if (source.hasVideo()) {
+      msgConnInfo += String.format(
+          "* KMS expects Video SSRC from sender: %d\n", source.getVideoSsrc());
+    }
+    msgConnInfo += String.format("* KMS local IP address: %s\n",
+        answer.getKmsIp());
+    if (answer.isComedia()) {
       msgConnInfo += "* KMS will discover remote IP and port to send RTCP\n";
     } else {
-      if (useAudio) {
-        msgConnInfo += String.format(
-            "* KMS sends Audio RTCP to: %s:%d\n", senderIp, senderRtcpPortA);
+      if (source.hasAudio()) {
+        msgConnInfo += String.format("* KMS sends Audio RTCP to: %s:%d\n",
+            source.getSenderIp(), source.getAudioPort() + 1);
+      }
+      if (source.hasVideo()) {
+        msgConnInfo += String.format("* KMS sends Video RTCP to: %s:%d\n",
+            source.getSenderIp(), source.getVideoPort() + 1);
       }
-      msgConnInfo += String.format(
-          "* KMS sends Video RTCP to: %s:%d\n", senderIp, senderRtcpPortV);
     }
 
-    log.info("[Handler::startRtpEndpoint] " + msgConnInfo);
+    log.info("[Handler::sendConnInfo] " + msgConnInfo);
 
     // Send info to UI
     {
@@ -529,11 +461,23 @@ Some default values are defined by different RFCs:
     {
       JsonObject message = new JsonObject();
       message.addProperty("id", "SHOW_SDP_ANSWER");
-      message.addProperty("text", rtpSdpAnswer);
+      message.addProperty("text", ingest.getSdpAnswer());
       sendMessage(session, message.toString());
     }
   }
 
+  /**
+   * @return A Base64 SRTP key in hexadecimal, as GStreamer takes it
+   */
+  private static String toHex(String keyBase64)
+  {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : Base64.getDecoder().decode(keyBase64)) {
+      hex.append(String.format("%02X", b));
+    }
+    return hex.toString();
+  }
+
   private void handleProcessSdpOffer(final WebSocketSession session,
       JsonObject jsonMessage)
   {
@@ -544,39 +488,59 @@ Some default values are defined by different RFCs:
     log.info("[Handler::handleStart] User count: {}", users.size());
     log.info("[Handler::handleStart] New user: {}", sessionId);
 
+    // A new offer replaces the playback of this session, if any, so its
+    // viewer endpoint and its share of the ingest are released first
     final UserSession user = new UserSession();
-    users.put(session.getId(), user);
-
+    UserSession previous = users.put(sessionId, user);
+    if (previous != null) {
+      log.info("[Handler::handleStart] Replace the previous playback, sessionId: {}",
+          sessionId);
+      release(previous);
+    }
 
-    // ---- Media pipeline
 
-    log.info("[Handler::handleStart] Create Media Pipeline");
-    final MediaPipeline pipeline = kurento.createMediaPipeline();
-    user.setMediaPipeline(pipeline);
+    // ---- RTP ingest
+    // Either an ingest registered through the REST API, or the demo source
 
-    final WebRtcEndpoint webRtcEp =
-        new WebRtcEndpoint.Builder(pipeline).build();
-    user.setWebRtcEndpoint(webRtcEp);
-
-    Boolean useSrtp = jsonMessage.get("useSrtp").getAsBoolean();
-    final RtpEndpoint rtpEp = makeRtpEndpoint(pipeline, useSrtp);
-    user.setRtpEndpoint(rtpEp);
+    Ingest ingest;
+    if (jsonMessage.has("ingestId")) {
+      String ingestId = jsonMessage.get("ingestId").getAsString();
+      ingest = ingests.acquire(ingestId);
+      if (ingest == null) {
+        sendError(session, "Unknown ingest: " + ingestId);
+        return;
+      }
+    } else {
+      Boolean useComedia = jsonMessage.get("useComedia").getAsBoolean();
+      Boolean useSrtp = jsonMessage.get("useSrtp").getAsBoolean();
+      log.info("[Handler::handleStart] Demo RTP source, port discovery: {}, SRTP: {}",
+          useComedia, useSrtp);
+      ingest = ingests.acquire(makeDemoSource(useComedia, useSrtp));
+    }
+    user.setIngest(ingest);
 
 
     // ---- Endpoint configuration
+    // The viewer joins the Media Pipeline of the ingest
 
-    rtpEp.connect(webRtcEp);
+    final WebRtcEndpoint webRtcEp =
+        new WebRtcEndpoint.Builder(ingest.getMediaPipeline()).build();
+    user.setWebRtcEndpoint(webRtcEp);
+
+    ingest.getOutput().connect(webRtcEp);
 
     String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
     initWebRtcEndpoint(session, webRtcEp, sdpOffer);
     startWebRtcEndpoint(webRtcEp);
 
-    Boolean useComedia = jsonMessage.get("useComedia").getAsBoolean();
-    startRtpEndpoint(session, rtpEp, useComedia, useSrtp);
+    // Adapt the video sent to the viewer to its link
+    bandwidth.controlSend("viewer-" + sessionId, webRtcEp, 0);
+
+    sendConnInfo(session, ingest);
 
 
     // ---- Debug
-    // String pipelineDot = pipeline.getGstreamerDot();
+    // String pipelineDot = ingest.getMediaPipeline().getGstreamerDot();
     // try (PrintWriter out = new PrintWriter("pipeline.dot")) {
     //   out.println(pipelineDot);
     // } catch (IOException ex) {
@@ -626,11 +590,23 @@ Some default values are defined by different RFCs:
     String sessionId = session.getId();
     UserSession user = users.remove(sessionId);
     if (user != null) {
-      MediaPipeline mediaPipeline = user.getMediaPipeline();
-      if (mediaPipeline != null) {
-        log.info("[Handler::stop] Release the Media Pipeline");
-        mediaPipeline.release();
-      }
+      release(user);
+    }
+  }
+
+  private void release(UserSession user)
+  {
+    WebRtcEndpoint webRtcEp = user.getWebRtcEndpoint();
+    if (webRtcEp != null) {
+      bandwidth.release(webRtcEp);
+      webRtcEp.release();
+    }
+
+    // The ingest is released when its last viewer leaves
+    Ingest ingest = user.getIngest();
+    if (ingest != null) {
+      log.info("[Handler::release] Release the ingest: {}", ingest.getId());
+      ingests.release(ingest);
     }
   }
 
@@ -652,18 +628,14 @@ Some default values are defined by different RFCs:
     }
   }
 
-  private synchronized void sendMessage(final WebSocketSession session,
-      String message)
+  void sendMessage(final WebSocketSession session, String message)
   {
-    if (!session.isOpen()) {
+    OutboundQueue out = outbound.get(session.getId());
+    if (out == null || !out.isOpen()) {
       log.error("[Handler::sendMessage] WebSocket session is closed");
       return;
     }
 
-    try {
-      session.sendMessage(new TextMessage(message));
-    } catch (IOException ex) {
-      log.error("[Handler::sendMessage] Exception: {}", ex.getMessage());
-    }
+    out.send(message);
   }
 }
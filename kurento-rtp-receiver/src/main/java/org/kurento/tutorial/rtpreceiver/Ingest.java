@@ -0,0 +1,378 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.PassThrough;
+import org.kurento.client.RtpEndpoint;
+
+/**
+ * An RTP source being received by KMS, with its own RtpEndpoint.
+ *
+ * Any number of viewers can watch an ingest, connected to its RtpEndpoint,
+ * so each source is depacketized once. Ingests created on demand for viewers
+ * are released when their last viewer leaves; those registered through the
+ * REST API stay until they are deleted.
+ *
+ * Viewers are connected to a PassThrough fed by the RtpEndpoint, so an SRTP
+ * ingest can be rekeyed by negotiating a new RtpEndpoint with new keys on the
+ * same pipeline, and switching the PassThrough over to it once the sender
+ * sends with them.
+ */
+public class Ingest
+{
+  /**
+   * Media state of an ingest.
+   */
+  public enum State
+  {
+    /** Waiting for the first packets from the sender */
+    WAITING,
+    /** Media is flowing into KMS */
+    FLOWING,
+    /** Media stopped flowing after it had started */
+    STALLED,
+    /** KMS reported an error on the endpoint */
+    FAILED
+  }
+
+  /**
+   * New keys and RtpEndpoint of an ingest being rekeyed, waiting for the
+   * sender to use them.
+   */
+  public static class Rekey
+  {
+    private final IngestSource source;
+    private final RtpEndpoint rtpEp;
+    private final String sdpAnswer;
+    private final RtpSdp.Answer answer;
+    private final long startMillis = System.currentTimeMillis();
+
+    public Rekey(IngestSource source, RtpEndpoint rtpEp, String sdpAnswer)
+    {
+      this.source = source;
+      this.rtpEp = rtpEp;
+      this.sdpAnswer = sdpAnswer;
+      this.answer = RtpSdp.parseAnswer(sdpAnswer);
+    }
+
+    public IngestSource getSource()
+    {
+      return source;
+    }
+
+    public RtpEndpoint getRtpEndpoint()
+    {
+      return rtpEp;
+    }
+
+    public RtpSdp.Answer getAnswer()
+    {
+      return answer;
+    }
+
+    public long getStartMillis()
+    {
+      return startMillis;
+    }
+  }
+
+  private final String id;
+  private final MediaPipeline pipeline;
+  private final PassThrough output;
+  private final boolean onDemand;
+  private final String token;
+
+  // Replaced when a rekey completes
+  private volatile IngestSource source;
+  private volatile RtpEndpoint rtpEp;
+  private volatile String sdpAnswer;
+  private volatile RtpSdp.Answer answer;
+
+  // Guarded by this
+  private Rekey rekey;
+  private boolean rekeying;
+  private int rekeys;
+  private int expiredRekeys;
+  private long lastRekeyMs = -1;
+  private long maxRekeyMs;
+
+  private final long createdMillis = System.currentTimeMillis();
+  private volatile State state = State.WAITING;
+  private volatile long stateMillis = createdMillis;
+
+  // Guarded by the IngestManager
+  private volatile int viewers;
+
+  public Ingest(String id, IngestSource source, MediaPipeline pipeline,
+      RtpEndpoint rtpEp, PassThrough output, String sdpAnswer, boolean onDemand,
+      String token)
+  {
+    this.id = id;
+    this.source = source;
+    this.pipeline = pipeline;
+    this.rtpEp = rtpEp;
+    this.output = output;
+    this.sdpAnswer = sdpAnswer;
+    this.answer = RtpSdp.parseAnswer(sdpAnswer);
+    this.onDemand = onDemand;
+    this.token = token;
+  }
+
+  public String getId()
+  {
+    return id;
+  }
+
+  public IngestSource getSource()
+  {
+    return source;
+  }
+
+  public MediaPipeline getMediaPipeline()
+  {
+    return pipeline;
+  }
+
+  /**
+   * @return Endpoint receiving the source, which changes on rekeys
+   */
+  public RtpEndpoint getRtpEndpoint()
+  {
+    return rtpEp;
+  }
+
+  /**
+   * @return Element that viewers connect to
+   */
+  public PassThrough getOutput()
+  {
+    return output;
+  }
+
+  public String getSdpAnswer()
+  {
+    return sdpAnswer;
+  }
+
+  public RtpSdp.Answer getAnswer()
+  {
+    return answer;
+  }
+
+  /**
+   * @return true if this ingest was created for a viewer, and is released
+   *         with its last viewer
+   */
+  public boolean isOnDemand()
+  {
+    return onDemand;
+  }
+
+  /**
+   * @return Secret that authorizes rekeys of this ingest, only handed to the
+   *         client that registered it, or null if it was created on demand
+   */
+  String getToken()
+  {
+    return token;
+  }
+
+  /**
+   * @return true if the given token is the one of this ingest
+   */
+  boolean isToken(String token)
+  {
+    return this.token != null && token != null
+        && MessageDigest.isEqual(this.token.getBytes(StandardCharsets.UTF_8),
+            token.getBytes(StandardCharsets.UTF_8));
+  }
+
+  int getViewers()
+  {
+    return viewers;
+  }
+
+  void setViewers(int viewers)
+  {
+    this.viewers = viewers;
+  }
+
+  /**
+   * Marks the start of a rekey.
+   *
+   * @return false if a rekey is already in progress
+   */
+  synchronized boolean beginRekey()
+  {
+    if (rekeying) {
+      return false;
+    }
+    rekeying = true;
+    return true;
+  }
+
+  /**
+   * Publishes the new keys and endpoint, for the sender to switch to.
+   */
+  synchronized void setRekey(Rekey rekey)
+  {
+    this.rekey = rekey;
+  }
+
+  /**
+   * Ends a rekey that could not be prepared, or of a removed ingest.
+   *
+   * @return The pending rekey, whose endpoint must be released, or null
+   */
+  synchronized Rekey abortRekey()
+  {
+    Rekey pending = rekey;
+    rekey = null;
+    rekeying = false;
+    return pending;
+  }
+
+  /**
+   * Ends a rekey that the sender never switched to.
+   *
+   * @return The rekey, whose endpoint must be released, or null if the one
+   *         of that endpoint is not pending anymore
+   */
+  synchronized Rekey expireRekey(RtpEndpoint newRtpEp)
+  {
+    if (rekey == null || rekey.rtpEp != newRtpEp) {
+      return null;
+    }
+    expiredRekeys++;
+    return abortRekey();
+  }
+
+  public synchronized Rekey getRekey()
+  {
+    return rekey;
+  }
+
+  /**
+   * Switches to the endpoint of the rekey, which the sender already uses.
+   *
+   * @return The previous endpoint, or null if that rekey is not pending
+   */
+  synchronized RtpEndpoint completeRekey(RtpEndpoint newRtpEp, long flowMillis)
+  {
+    if (rekey == null || rekey.rtpEp != newRtpEp) {
+      return null;
+    }
+    RtpEndpoint oldRtpEp = rtpEp;
+    source = rekey.source;
+    rtpEp = rekey.rtpEp;
+    sdpAnswer = rekey.sdpAnswer;
+    answer = rekey.answer;
+
+    rekeys++;
+    lastRekeyMs = flowMillis - rekey.startMillis;
+    maxRekeyMs = Math.max(maxRekeyMs, lastRekeyMs);
+    rekey = null;
+    rekeying = false;
+    return oldRtpEp;
+  }
+
+  /**
+   * @return Time from the last rekey being published to the first packet
+   *         under the new keys, or -1 if there was none
+   */
+  public synchronized long getLastRekeyMs()
+  {
+    return lastRekeyMs;
+  }
+
+  public State getState()
+  {
+    return state;
+  }
+
+  public void setState(State state)
+  {
+    if (this.state != state) {
+      this.state = state;
+      this.stateMillis = System.currentTimeMillis();
+    }
+  }
+
+  /**
+   * @param withKeys
+   *          Whether to include the SRTP keys, only for the client that
+   *          registered or rekeyed this ingest
+   * @return Info about this ingest, to be served by the REST API
+   */
+  public synchronized Map<String, Object> getInfo(boolean withKeys)
+  {
+    Map<String, Object> info = new LinkedHashMap<>();
+    info.put("id", id);
+    info.put("state", state);
+    info.put("stateSince", stateMillis);
+    info.put("created", createdMillis);
+    info.put("onDemand", onDemand);
+    info.put("viewers", viewers);
+    info.put("senderIp", source.getSenderIp());
+    info.put("comedia", answer.isComedia());
+    info.put("srtp", source.isSrtp());
+    info.put("kmsIp", answer.getKmsIp());
+    if (source.hasAudio()) {
+      info.put("kmsAudioPort", answer.getKmsAudioPort());
+      info.put("audioSsrc", source.getAudioSsrc());
+    }
+    if (source.hasVideo()) {
+      info.put("kmsVideoPort", answer.getKmsVideoPort());
+      info.put("videoSsrc", source.getVideoSsrc());
+      info.put("videoCodec", source.getVideoCodec());
+    }
+    info.put("kmsSsrc", answer.getKmsSsrc());
+    if (source.isSrtp()) {
+      info.put("cryptoSuite", source.getCryptoSuite());
+      if (withKeys) {
+        info.put("senderKey", source.getSenderKey());
+        info.put("kmsKey", source.getKmsKey());
+      }
+      info.put("rekeys", rekeys);
+      info.put("expiredRekeys", expiredRekeys);
+      info.put("lastRekeyMs", lastRekeyMs);
+      info.put("maxRekeyMs", maxRekeyMs);
+      if (rekey != null) {
+        Map<String, Object> pending = new LinkedHashMap<>();
+        pending.put("since", rekey.startMillis);
+        if (source.hasAudio()) {
+          pending.put("kmsAudioPort", rekey.answer.getKmsAudioPort());
+        }
+        if (source.hasVideo()) {
+          pending.put("kmsVideoPort", rekey.answer.getKmsVideoPort());
+        }
+        if (withKeys) {
+          pending.put("senderKey", rekey.source.getSenderKey());
+          pending.put("kmsKey", rekey.source.getKmsKey());
+        }
+        info.put("rekey", pending);
+      }
+    }
+    return info;
+  }
+}
@@ -0,0 +1,853 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RestController;
+
+// Kurento client
+import org.kurento.client.CryptoSuite;
+import org.kurento.client.ErrorEvent;
+import org.kurento.client.EventListener;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaFlowInStateChangedEvent;
+import org.kurento.client.MediaFlowState;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
+import org.kurento.client.OnKeySoftLimitEvent;
+import org.kurento.client.PassThrough;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.SDES;
+
+/**
+ * Registry of the RTP sources received by this application.
+ *
+ * Each source gets its own RtpEndpoint, negotiated with a fake SDP Offer
+ * built from its description. Endpoints are placed on the least loaded
+ * Media Pipeline, with at most {@code ingest.perPipeline} sources each, and
+ * pipelines are released when their last source is removed. SSRCs are unique
+ * across all sources, so incoming streams can be told apart, and the ports
+ * that KMS allocated for each source are tracked.
+ *
+ * Viewers acquire an ingest to connect to its RtpEndpoint, and release it
+ * when they leave. Ingests created on demand for a viewer are released with
+ * their last viewer. Viewers that ask for a source while it is being started
+ * wait for it, instead of starting it again.
+ *
+ * The lock of the manager only guards its bookkeeping: Media Pipelines and
+ * endpoints are created and released outside of it, so a slow KMS never
+ * blocks the viewers of other ingests.
+ *
+ * SRTP keys not given are generated for each ingest. When KMS reports that a
+ * key is about to expire, the ingest is rekeyed without rebuilding its
+ * pipeline: a new RtpEndpoint is negotiated with new keys, and published
+ * under "rekey" in the ingest info. The sender takes the new keys from
+ * {@code POST /ingests/{id}/rekey}, and starts sending with them to the new
+ * ports, while it keeps the old stream; when the new stream flows, viewers
+ * are switched to it and the old RtpEndpoint is released, so the sender can
+ * stop the old stream once the "rekey" is gone. A rekey that
+ * the sender doesn't pick up within {@code ingest.rekeyTimeoutMs} is dropped,
+ * with its RtpEndpoint, and the ingest can be rekeyed again.
+ *
+ * Ingests registered through the REST API get a token, only returned when
+ * they are registered, that must be given in the {@code X-Ingest-Token}
+ * header to rekey them. SRTP keys are only returned to the client that
+ * registers or rekeys a source, never by {@code GET}.
+ *
+ * REST API:
+ * <ul>
+ * <li>{@code POST /ingests}: registers a source, described by an
+ * {@link IngestSource}, and returns where to send it.</li>
+ * <li>{@code GET /ingests}, {@code GET /ingests/{id}}: live ingests,
+ * without their keys.</li>
+ * <li>{@code DELETE /ingests/{id}}: stops receiving a source.</li>
+ * <li>{@code POST /ingests/{id}/rekey}: rekeys an SRTP source now, or
+ * picks up the rekey in progress, and returns the new keys. Needs the token
+ * of the ingest.</li>
+ * </ul>
+ */
+@RestController
+public class IngestManager
+{
+  private static final Logger log = LoggerFactory.getLogger(IngestManager.class);
+
+  private static final int SOURCES_PER_PIPELINE =
+      Integer.getInteger("ingest.perPipeline", 16);
+  private static final int MAX_INGESTS = Integer.getInteger("ingest.max", 1000);
+  private static final String TOKEN_HEADER = "X-Ingest-Token";
+  private static final long REKEY_TIMEOUT_MS =
+      Long.getLong("ingest.rekeyTimeoutMs", 60000);
+
+  private class IngestPipeline
+  {
+    private volatile MediaPipeline pipeline;
+
+    // Guarded by the manager
+    private int sources;
+
+    /**
+     * Creates the Media Pipeline when the first source placed on it needs
+     * it. Only the sources placed on it wait for KMS meanwhile.
+     */
+    synchronized MediaPipeline get()
+    {
+      if (pipeline == null) {
+        pipeline = kurento.createMediaPipeline();
+        log.info("[IngestManager::IngestPipeline] New Media Pipeline");
+      }
+      return pipeline;
+    }
+  }
+
+  @Autowired
+  private KurentoClient kurento;
+
+  @Autowired
+  private BandwidthController bandwidth;
+
+  private final SecureRandom random = new SecureRandom();
+
+  // Rekeys are started from KMS events, without blocking their delivery, and
+  // expired from the same thread
+  private final ScheduledExecutorService rekeyExecutor =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "ingest-rekey");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final ConcurrentHashMap<String, Ingest> ingests =
+      new ConcurrentHashMap<>();
+
+  // SSRC -> ingest id, and KMS port -> ingest id
+  private final ConcurrentHashMap<Long, String> ssrcs = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, String> kmsPorts =
+      new ConcurrentHashMap<>();
+
+  // Guarded by this
+  private final List<IngestPipeline> pipelines = new ArrayList<>();
+  private final Set<String> pendingIds = new HashSet<>();
+
+  // Sources being started on demand, by id, completed once they are live or
+  // have failed. Guarded by this
+  private final Map<String, CompletableFuture<Void>> starting =
+      new HashMap<>();
+
+  /**
+   * Starts receiving a source.
+   *
+   * @throws IllegalArgumentException if the source description is not valid
+   * @throws IllegalStateException if its id or SSRCs are already in use, or
+   *           there are too many ingests
+   */
+  public Ingest register(IngestSource source)
+  {
+    return register(source, false);
+  }
+
+  /**
+   * Acquires an existing ingest for a new viewer.
+   *
+   * @return null if there is no such ingest
+   */
+  public synchronized Ingest acquire(String id)
+  {
+    Ingest ingest = ingests.get(id);
+    if (ingest != null) {
+      ingest.setViewers(ingest.getViewers() + 1);
+    }
+    return ingest;
+  }
+
+  /**
+   * Acquires the ingest of a source for a new viewer, starting to receive it
+   * if it is not being received yet. Sources are identified by their id.
+   */
+  public Ingest acquire(IngestSource source)
+  {
+    String id = source.getId();
+    CompletableFuture<Void> start = new CompletableFuture<>();
+    while (true) {
+      CompletableFuture<Void> other;
+      synchronized (this) {
+        Ingest ingest = id != null ? acquire(id) : null;
+        if (ingest != null) {
+          return ingest;
+        }
+        other = id != null ? starting.putIfAbsent(id, start) : null;
+      }
+      if (other == null) {
+        break;
+      }
+
+      // Another viewer is starting the source: once it is done, acquire it
+      // like any live ingest, or start it again if that failed
+      other.join();
+    }
+
+    try {
+      return register(source, true);
+    } finally {
+      synchronized (this) {
+        starting.remove(id, start);
+      }
+      start.complete(null);
+    }
+  }
+
+  /**
+   * Releases an ingest acquired by a viewer that left.
+   */
+  public void release(Ingest ingest)
+  {
+    boolean last;
+    synchronized (this) {
+      int viewers = ingest.getViewers() - 1;
+      ingest.setViewers(Math.max(0, viewers));
+      log.info("[IngestManager::release] id: {}, viewers: {}", ingest.getId(),
+          ingest.getViewers());
+      // Only this very ingest, not a newer one registered with the same id
+      last = viewers <= 0 && ingest.isOnDemand()
+          && ingests.remove(ingest.getId(), ingest);
+    }
+    if (last) {
+      release(ingest.getId(), ingest);
+    }
+  }
+
+  private Ingest register(IngestSource source, boolean onDemand)
+  {
+    validate(source);
+
+    String id = source.getId() != null ? source.getId()
+        : UUID.randomUUID().toString();
+    IngestPipeline ingestPipeline = reserve(id, source);
+
+    RtpEndpoint rtpEp = null;
+    PassThrough output = null;
+    try {
+      MediaPipeline pipeline = ingestPipeline.get();
+      rtpEp = makeRtpEndpoint(pipeline, source);
+      String sdpAnswer = negotiate(id, rtpEp, source);
+
+      output = new PassThrough.Builder(pipeline).build();
+      rtpEp.connect(output);
+
+      Ingest ingest = new Ingest(id, source, pipeline, rtpEp, output,
+          sdpAnswer, onDemand, onDemand ? null : newToken());
+      addEventListeners(ingest, rtpEp);
+      trackPorts(ingest.getId(), ingest.getAnswer());
+      bandwidth.controlRecv(id, rtpEp, source.getMaxVideoRecvBandwidth());
+
+      synchronized (this) {
+        // An ingest started on demand is published with its first viewer
+        ingest.setViewers(onDemand ? 1 : 0);
+        pendingIds.remove(id);
+        ingests.put(id, ingest);
+      }
+
+      log.info("[IngestManager::register] id: {}, kmsIp: {}, audio port: {}, video port: {}, ingests: {}",
+          id, ingest.getAnswer().getKmsIp(),
+          ingest.getAnswer().getKmsAudioPort(),
+          ingest.getAnswer().getKmsVideoPort(), ingests.size());
+      return ingest;
+    } catch (RuntimeException ex) {
+      if (output != null) {
+        output.release();
+      }
+      if (rtpEp != null) {
+        rtpEp.release();
+      }
+      synchronized (this) {
+        pendingIds.remove(id);
+      }
+      unreserve(id, source, ingestPipeline);
+      throw ex;
+    }
+  }
+
+  /**
+   * Negotiates the fake SDP Offer of a source with its RtpEndpoint.
+   *
+   * @return The SDP Answer
+   */
+  private String negotiate(String id, RtpEndpoint rtpEp, IngestSource source)
+  {
+    if (source.getMaxVideoRecvBandwidth() > 0) {
+      rtpEp.setMaxVideoRecvBandwidth(source.getMaxVideoRecvBandwidth());
+    }
+
+    String sdpOffer = RtpSdp.buildOffer(source, sdpCryptoSuite(source));
+    String sdpAnswer = rtpEp.processOffer(sdpOffer);
+    log.debug("[IngestManager::negotiate] id: {}, SDP Offer:\n{}\nSDP Answer:\n{}",
+        id, sdpOffer, sdpAnswer);
+    return sdpAnswer;
+  }
+
+  /**
+   * Starts rekeying an SRTP ingest, with new keys and a new RtpEndpoint on
+   * the same pipeline. The switch happens when media flows into the new
+   * endpoint.
+   *
+   * @return false if the ingest doesn't use SRTP, or is already being rekeyed
+   */
+  public boolean rekey(Ingest ingest)
+  {
+    if (!ingest.getSource().isSrtp() || !ingest.beginRekey()) {
+      return false;
+    }
+
+    IngestSource source = new IngestSource(ingest.getSource());
+    source.setSenderKey(null);
+    source.setKmsKey(null);
+
+    RtpEndpoint rtpEp = null;
+    try {
+      rtpEp = makeRtpEndpoint(ingest.getMediaPipeline(), source);
+      String sdpAnswer = negotiate(ingest.getId(), rtpEp, source);
+      Ingest.Rekey rekey = new Ingest.Rekey(source, rtpEp, sdpAnswer);
+      addEventListeners(ingest, rtpEp);
+      ingest.setRekey(rekey);
+
+      log.info("[IngestManager::rekey] id: {}, new audio port: {}, new video port: {}",
+          ingest.getId(), rekey.getAnswer().getKmsAudioPort(),
+          rekey.getAnswer().getKmsVideoPort());
+    } catch (RuntimeException ex) {
+      if (rtpEp != null) {
+        rtpEp.release();
+      }
+      ingest.abortRekey();
+      throw ex;
+    }
+
+    if (!ingests.containsKey(ingest.getId())) {
+      // Removed meanwhile
+      Ingest.Rekey pending = ingest.abortRekey();
+      if (pending != null) {
+        pending.getRtpEndpoint().release();
+      }
+      return true;
+    }
+
+    final RtpEndpoint newRtpEp = rtpEp;
+    rekeyExecutor.schedule(new Runnable() {
+      @Override
+      public void run() {
+        expireRekey(ingest, newRtpEp);
+      }
+    }, REKEY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  /**
+   * Drops the rekey of an ingest, if the sender never switched to its
+   * endpoint.
+   */
+  private void expireRekey(Ingest ingest, RtpEndpoint newRtpEp)
+  {
+    Ingest.Rekey rekey = ingest.expireRekey(newRtpEp);
+    if (rekey == null) {
+      return;
+    }
+    try {
+      newRtpEp.release();
+    } catch (RuntimeException ex) {
+      log.warn("[IngestManager::expireRekey] id: {}, could not release endpoint: {}",
+          ingest.getId(), ex.getMessage());
+    }
+    log.warn("[IngestManager::expireRekey] id: {}, sender didn't use the new keys in {} ms",
+        ingest.getId(), REKEY_TIMEOUT_MS);
+  }
+
+  /**
+   * Switches the viewers of an ingest to the endpoint of its rekey, once the
+   * sender uses the new keys.
+   *
+   * @param flowMillis
+   *          Time the first packet under the new keys was received at
+   */
+  private void completeRekey(Ingest ingest, RtpEndpoint newRtpEp,
+      long flowMillis)
+  {
+    Ingest.Rekey rekey = ingest.getRekey();
+    if (rekey == null || rekey.getRtpEndpoint() != newRtpEp) {
+      return;
+    }
+
+    // A sink has a single source, so this disconnects the old endpoint
+    newRtpEp.connect(ingest.getOutput());
+
+    RtpSdp.Answer oldAnswer = ingest.getAnswer();
+    RtpEndpoint oldRtpEp = ingest.completeRekey(newRtpEp, flowMillis);
+    if (oldRtpEp == null) {
+      return;
+    }
+    bandwidth.release(oldRtpEp);
+    bandwidth.controlRecv(ingest.getId(), newRtpEp,
+        ingest.getSource().getMaxVideoRecvBandwidth());
+    oldRtpEp.release();
+    kmsPorts.remove(oldAnswer.getKmsAudioPort(), ingest.getId());
+    kmsPorts.remove(oldAnswer.getKmsVideoPort(), ingest.getId());
+    trackPorts(ingest.getId(), ingest.getAnswer());
+
+    log.info("[IngestManager::completeRekey] id: {}, rekey to first packet: {} ms",
+        ingest.getId(), ingest.getLastRekeyMs());
+  }
+
+  /**
+   * Stops receiving a source.
+   *
+   * @return false if there is no such ingest
+   */
+  public boolean remove(String id)
+  {
+    Ingest ingest = ingests.remove(id);
+    if (ingest == null) {
+      return false;
+    }
+    release(id, ingest);
+    return true;
+  }
+
+  /**
+   * Releases the media elements and reservations of an ingest that has
+   * already been taken out of the map.
+   */
+  private void release(String id, Ingest ingest)
+  {
+    // Before the endpoint, as its ports may go to a new ingest with this id
+    kmsPorts.remove(ingest.getAnswer().getKmsAudioPort(), id);
+    kmsPorts.remove(ingest.getAnswer().getKmsVideoPort(), id);
+    bandwidth.release(ingest.getRtpEndpoint());
+    ingest.getOutput().release();
+    ingest.getRtpEndpoint().release();
+    Ingest.Rekey rekey = ingest.abortRekey();
+    if (rekey != null) {
+      rekey.getRtpEndpoint().release();
+    }
+
+    IngestPipeline ingestPipeline = null;
+    synchronized (this) {
+      for (IngestPipeline candidate : pipelines) {
+        if (candidate.pipeline == ingest.getMediaPipeline()) {
+          ingestPipeline = candidate;
+          break;
+        }
+      }
+    }
+    unreserve(id, ingest.getSource(), ingestPipeline);
+
+    log.info("[IngestManager::remove] id: {}, ingests: {}", id, ingests.size());
+  }
+
+  public Ingest getIngest(String id)
+  {
+    return ingests.get(id);
+  }
+
+  public Collection<Ingest> getIngests()
+  {
+    return ingests.values();
+  }
+
+  @PreDestroy
+  private synchronized void shutdown()
+  {
+    rekeyExecutor.shutdownNow();
+    for (IngestPipeline ingestPipeline : pipelines) {
+      if (ingestPipeline.pipeline != null) {
+        ingestPipeline.pipeline.release();
+      }
+    }
+    pipelines.clear();
+    ingests.clear();
+  }
+
+  // ---------------------------------------------------------------------------
+
+  private static void validate(IngestSource source)
+  {
+    if (!source.hasAudio() && !source.hasVideo()) {
+      throw new IllegalArgumentException("Source has neither audio nor video");
+    }
+    if (source.getSenderIp() == null && !source.isComedia()) {
+      throw new IllegalArgumentException("Sender IP required without COMEDIA");
+    }
+  }
+
+  /**
+   * Reserves the id and SSRCs of a source, choosing any SSRC not given, and
+   * a slot on a Media Pipeline, which is only created when first used.
+   */
+  private synchronized IngestPipeline reserve(String id, IngestSource source)
+  {
+    if (ingests.containsKey(id) || pendingIds.contains(id)) {
+      throw new IllegalStateException("Ingest '" + id + "' already exists");
+    }
+    if (ingests.size() + pendingIds.size() >= MAX_INGESTS) {
+      throw new IllegalStateException("Too many ingests: " + MAX_INGESTS);
+    }
+    if (source.hasAudio() && source.getAudioSsrc() != 0
+        && ssrcs.containsKey(source.getAudioSsrc())) {
+      throw new IllegalStateException("Audio SSRC already in use: " + source.getAudioSsrc());
+    }
+    if (source.hasVideo() && source.getVideoSsrc() != 0
+        && ssrcs.containsKey(source.getVideoSsrc())) {
+      throw new IllegalStateException("Video SSRC already in use: " + source.getVideoSsrc());
+    }
+
+    if (source.hasAudio()) {
+      if (source.getAudioSsrc() == 0) {
+        source.setAudioSsrc(newSsrc());
+      }
+      ssrcs.put(source.getAudioSsrc(), id);
+    }
+    if (source.hasVideo()) {
+      if (source.getVideoSsrc() == 0) {
+        source.setVideoSsrc(newSsrc());
+      }
+      ssrcs.put(source.getVideoSsrc(), id);
+    }
+
+    IngestPipeline selected = null;
+    for (IngestPipeline candidate : pipelines) {
+      if (candidate.sources < SOURCES_PER_PIPELINE
+          && (selected == null || candidate.sources < selected.sources)) {
+        selected = candidate;
+      }
+    }
+    if (selected == null) {
+      selected = new IngestPipeline();
+      pipelines.add(selected);
+      log.info("[IngestManager::reserve] New Media Pipeline slot, pipelines: {}",
+          pipelines.size());
+    }
+    selected.sources++;
+    pendingIds.add(id);
+    return selected;
+  }
+
+  /**
+   * Gives back the SSRCs and the pipeline slot of a source, and releases its
+   * Media Pipeline if no other source is left on it.
+   */
+  private void unreserve(String id, IngestSource source,
+      IngestPipeline ingestPipeline)
+  {
+    MediaPipeline empty = null;
+    synchronized (this) {
+      ssrcs.remove(source.getAudioSsrc(), id);
+      ssrcs.remove(source.getVideoSsrc(), id);
+
+      if (ingestPipeline != null && --ingestPipeline.sources == 0) {
+        pipelines.remove(ingestPipeline);
+        empty = ingestPipeline.pipeline;
+        log.info("[IngestManager::unreserve] Released empty Media Pipeline, pipelines: {}",
+            pipelines.size());
+      }
+    }
+    if (empty != null) {
+      empty.release();
+    }
+  }
+
+  private long newSsrc()
+  {
+    long ssrc;
+    do {
+      ssrc = random.nextInt() & 0xFFFFFFFFL;
+    } while (ssrc == 0 || ssrcs.containsKey(ssrc));
+    return ssrc;
+  }
+
+  private void trackPorts(String id, RtpSdp.Answer answer)
+  {
+    int[] ports = { answer.getKmsAudioPort(), answer.getKmsVideoPort() };
+    for (int port : ports) {
+      if (port == 0) {
+        continue;
+      }
+      String previous = kmsPorts.put(port, id);
+      if (previous != null && !previous.equals(id)) {
+        log.warn("[IngestManager::trackPorts] KMS port {} of ingest {} was in use by ingest {}",
+            port, id, previous);
+      }
+    }
+  }
+
+  private RtpEndpoint makeRtpEndpoint(MediaPipeline pipeline,
+      IngestSource source)
+  {
+    if (!source.isSrtp()) {
+      return new RtpEndpoint.Builder(pipeline).build();
+    }
+
+    // The KMS key is used by KMS to encrypt its SRTP/SRTCP packets, and the
+    // sender key to decrypt those of the sender
+    CryptoSuite suite = CryptoSuite.valueOf(source.getCryptoSuite());
+    if (source.getKmsKey() == null) {
+      source.setKmsKey(newKey(suite));
+    }
+    if (source.getSenderKey() == null) {
+      source.setSenderKey(newKey(suite));
+    }
+
+    SDES sdes = new SDES();
+    sdes.setCrypto(suite);
+    sdes.setKeyBase64(source.getKmsKey());
+
+    return new RtpEndpoint.Builder(pipeline).withCrypto(sdes).build();
+  }
+
+  /**
+   * @return A random master key and salt, in Base64
+   */
+  private String newKey(CryptoSuite suite)
+  {
+    byte[] key = new byte[is256(suite) ? 46 : 30];
+    random.nextBytes(key);
+    return Base64.getEncoder().encodeToString(key);
+  }
+
+  /**
+   * @return A random token for the REST API, in URL-safe Base64
+   */
+  private String newToken()
+  {
+    byte[] token = new byte[24];
+    random.nextBytes(token);
+    return Base64.getUrlEncoder().withoutPadding().encodeToString(token);
+  }
+
+  private static boolean is256(CryptoSuite suite)
+  {
+    return suite == CryptoSuite.AES_256_CM_HMAC_SHA1_32
+        || suite == CryptoSuite.AES_256_CM_HMAC_SHA1_80;
+  }
+
+  /**
+   * @return Name of the crypto suite of a source in SDP, or null for RTP
+   */
+  private static String sdpCryptoSuite(IngestSource source)
+  {
+    if (!source.isSrtp()) {
+      return null;
+    }
+    switch (CryptoSuite.valueOf(source.getCryptoSuite())) {
+      case AES_128_CM_HMAC_SHA1_32:
+        return "AES_CM_128_HMAC_SHA1_32";
+      case AES_128_CM_HMAC_SHA1_80:
+        return "AES_CM_128_HMAC_SHA1_80";
+      case AES_256_CM_HMAC_SHA1_32:
+        return "AES_256_CM_HMAC_SHA1_32";
+      case AES_256_CM_HMAC_SHA1_80:
+        return "AES_256_CM_HMAC_SHA1_80";
+      default:
+        throw new IllegalArgumentException("Unsupported crypto suite: "
+            + source.getCryptoSuite());
+    }
+  }
+
+  private void addEventListeners(final Ingest ingest, final RtpEndpoint rtpEp)
+  {
+    final MediaType mainType =
+        ingest.getSource().hasVideo() ? MediaType.VIDEO : MediaType.AUDIO;
+
+    // Event: Some error happened
+    rtpEp.addErrorListener(new EventListener<ErrorEvent>() {
+      @Override
+      public void onEvent(ErrorEvent ev) {
+        log.error("[IngestManager::{}] id: {}, description: {}, errorCode: {}",
+            ev.getType(), ingest.getId(), ev.getDescription(), ev.getErrorCode());
+        if (rtpEp == ingest.getRtpEndpoint()) {
+          ingest.setState(Ingest.State.FAILED);
+        }
+      }
+    });
+
+    // Event: The SRTP key is about to expire
+    rtpEp.addOnKeySoftLimitListener(new EventListener<OnKeySoftLimitEvent>() {
+      @Override
+      public void onEvent(OnKeySoftLimitEvent ev) {
+        log.info("[IngestManager::{}] id: {}, mediaType: {}", ev.getType(),
+            ingest.getId(), ev.getMediaType());
+        if (rtpEp != ingest.getRtpEndpoint()) {
+          return;
+        }
+        rekeyExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              rekey(ingest);
+            } catch (RuntimeException ex) {
+              log.error("[IngestManager::rekey] id: {}, could not rekey: {}",
+                  ingest.getId(), ex.getMessage());
+            }
+          }
+        });
+      }
+    });
+
+    // Event: Media is flowing into this sink
+    rtpEp.addMediaFlowInStateChangedListener(
+        new EventListener<MediaFlowInStateChangedEvent>() {
+      @Override
+      public void onEvent(MediaFlowInStateChangedEvent ev) {
+        if (ev.getMediaType() != mainType) {
+          return;
+        }
+        log.info("[IngestManager::{}] id: {}, state: {}, mediaType: {}",
+            ev.getType(), ingest.getId(), ev.getState(), ev.getMediaType());
+        if (rtpEp != ingest.getRtpEndpoint()) {
+          // The sender uses the keys of a rekey
+          if (ev.getState() == MediaFlowState.FLOWING) {
+            final long flowMillis = System.currentTimeMillis();
+            rekeyExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  completeRekey(ingest, rtpEp, flowMillis);
+                } catch (RuntimeException ex) {
+                  log.error("[IngestManager::completeRekey] id: {}, could not switch: {}",
+                      ingest.getId(), ex.getMessage());
+                }
+              }
+            });
+          }
+          return;
+        }
+        if (ev.getState() == MediaFlowState.FLOWING) {
+          ingest.setState(Ingest.State.FLOWING);
+        } else if (ingest.getState() == Ingest.State.FLOWING) {
+          ingest.setState(Ingest.State.STALLED);
+        }
+      }
+    });
+  }
+
+  // REST API ------------------------------------------------------------------
+
+  @PostMapping("/ingests")
+  public ResponseEntity<Map<String, Object>> createIngest(
+      @RequestBody IngestSource source)
+  {
+    try {
+      Ingest ingest = register(source);
+      Map<String, Object> info = ingest.getInfo(true);
+      info.put("token", ingest.getToken());
+      return new ResponseEntity<>(info, HttpStatus.CREATED);
+    } catch (RtpSdp.ParseException ex) {
+      // Not a fault of the request, but of the SDP Answer from KMS
+      return error(HttpStatus.BAD_GATEWAY, ex.getMessage());
+    } catch (IllegalArgumentException ex) {
+      return error(HttpStatus.BAD_REQUEST, ex.getMessage());
+    } catch (IllegalStateException ex) {
+      return error(HttpStatus.CONFLICT, ex.getMessage());
+    }
+  }
+
+  @GetMapping("/ingests")
+  public List<Map<String, Object>> listIngests()
+  {
+    List<Map<String, Object>> list = new ArrayList<>(ingests.size());
+    for (Ingest ingest : ingests.values()) {
+      list.add(ingest.getInfo(false));
+    }
+    return list;
+  }
+
+  @GetMapping("/ingests/{id}")
+  public ResponseEntity<Map<String, Object>> getIngestInfo(@PathVariable String id)
+  {
+    Ingest ingest = ingests.get(id);
+    if (ingest == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return new ResponseEntity<>(ingest.getInfo(false), HttpStatus.OK);
+  }
+
+  @DeleteMapping("/ingests/{id}")
+  public ResponseEntity<Void> deleteIngest(@PathVariable String id)
+  {
+    return new ResponseEntity<>(
+        remove(id) ? HttpStatus.NO_CONTENT : HttpStatus.NOT_FOUND);
+  }
+
+  @PostMapping("/ingests/{id}/rekey")
+  public ResponseEntity<Map<String, Object>> rekeyIngest(@PathVariable String id,
+      @RequestHeader(value = TOKEN_HEADER, required = false) String token)
+  {
+    Ingest ingest = ingests.get(id);
+    if (ingest == null) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    if (!ingest.isToken(token)) {
+      return error(HttpStatus.FORBIDDEN, "Missing or wrong " + TOKEN_HEADER);
+    }
+    try {
+      // A rekey started by KMS is picked up by the sender here, with its keys
+      if (!rekey(ingest) && ingest.getRekey() == null) {
+        return error(HttpStatus.CONFLICT,
+            "Ingest '" + id + "' doesn't use SRTP, or is being rekeyed");
+      }
+    } catch (RtpSdp.ParseException ex) {
+      return error(HttpStatus.BAD_GATEWAY, ex.getMessage());
+    }
+    return new ResponseEntity<>(ingest.getInfo(true), HttpStatus.ACCEPTED);
+  }
+
+  private static ResponseEntity<Map<String, Object>> error(HttpStatus status,
+      String message)
+  {
+    Map<String, Object> body = new LinkedHashMap<>();
+    body.put("error", message);
+    return new ResponseEntity<>(body, status);
+  }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+/**
+ * Description of an RTP sender, as registered through the ingest REST API.
+ *
+ * A port of 0 disables that media; an SSRC of 0 lets the ingest manager
+ * choose one. With COMEDIA, the sender ports only tell which media are sent,
+ * and KMS discovers where to send RTCP from the first packets received.
+ */
+public class IngestSource
+{
+  private String id;
+  private String senderIp = "127.0.0.1";
+  private int audioPort;
+  private int videoPort = 5004;
+  private long audioSsrc;
+  private long videoSsrc;
+  private String cname = "user@example.com";
+  private String audioCodec = "opus/48000/2";
+  private String videoCodec = "H264";
+  private boolean comedia;
+
+  // SRTP: suite name of org.kurento.client.CryptoSuite, and the master keys
+  // in Base64. Keys not given are generated, and replaced on each rekey.
+  private String cryptoSuite;
+  private String senderKey;
+  private String kmsKey;
+
+  // Maximum bandwidth on reception, in kbps; 0 for the KMS default
+  private int maxVideoRecvBandwidth;
+
+  public IngestSource()
+  {}
+
+  public IngestSource(IngestSource other)
+  {
+    this.id = other.id;
+    this.senderIp = other.senderIp;
+    this.audioPort = other.audioPort;
+    this.videoPort = other.videoPort;
+    this.audioSsrc = other.audioSsrc;
+    this.videoSsrc = other.videoSsrc;
+    this.cname = other.cname;
+    this.audioCodec = other.audioCodec;
+    this.videoCodec = other.videoCodec;
+    this.comedia = other.comedia;
+    this.cryptoSuite = other.cryptoSuite;
+    this.senderKey = other.senderKey;
+    this.kmsKey = other.kmsKey;
+    this.maxVideoRecvBandwidth = other.maxVideoRecvBandwidth;
+  }
+
+  public String getId()
+  {
+    return id;
+  }
+
+  public void setId(String id)
+  {
+    this.id = id;
+  }
+
+  public String getSenderIp()
+  {
+    return senderIp;
+  }
+
+  public void setSenderIp(String senderIp)
+  {
+    this.senderIp = senderIp;
+  }
+
+  public int getAudioPort()
+  {
+    return audioPort;
+  }
+
+  public void setAudioPort(int audioPort)
+  {
+    this.audioPort = audioPort;
+  }
+
+  public int getVideoPort()
+  {
+    return videoPort;
+  }
+
+  public void setVideoPort(int videoPort)
+  {
+    this.videoPort = videoPort;
+  }
+
+  public long getAudioSsrc()
+  {
+    return audioSsrc;
+  }
+
+  public void setAudioSsrc(long audioSsrc)
+  {
+    this.audioSsrc = audioSsrc;
+  }
+
+  public long getVideoSsrc()
+  {
+    return videoSsrc;
+  }
+
+  public void setVideoSsrc(long videoSsrc)
+  {
+    this.videoSsrc = videoSsrc;
+  }
+
+  public String getCname()
+  {
+    return cname;
+  }
+
+  public void setCname(String cname)
+  {
+    this.cname = cname;
+  }
+
+  public String getAudioCodec()
+  {
+    return audioCodec;
+  }
+
+  public void setAudioCodec(String audioCodec)
+  {
+    this.audioCodec = audioCodec;
+  }
+
+  public String getVideoCodec()
+  {
+    return videoCodec;
+  }
+
+  public void setVideoCodec(String videoCodec)
+  {
+    this.videoCodec = videoCodec;
+  }
+
+  public boolean isComedia()
+  {
+    return comedia;
+  }
+
+  public void setComedia(boolean comedia)
+  {
+    this.comedia = comedia;
+  }
+
+  public String getCryptoSuite()
+  {
+    return cryptoSuite;
+  }
+
+  public void setCryptoSuite(String cryptoSuite)
+  {
+    this.cryptoSuite = cryptoSuite;
+  }
+
+  public String getSenderKey()
+  {
+    return senderKey;
+  }
+
+  public void setSenderKey(String senderKey)
+  {
+    this.senderKey = senderKey;
+  }
+
+  public String getKmsKey()
+  {
+    return kmsKey;
+  }
+
+  public void setKmsKey(String kmsKey)
+  {
+    this.kmsKey = kmsKey;
+  }
+
+  public int getMaxVideoRecvBandwidth()
+  {
+    return maxVideoRecvBandwidth;
+  }
+
+  public void setMaxVideoRecvBandwidth(int maxVideoRecvBandwidth)
+  {
+    this.maxVideoRecvBandwidth = maxVideoRecvBandwidth;
+  }
+
+  public boolean hasAudio()
+  {
+    return audioPort > 0;
+  }
+
+  public boolean hasVideo()
+  {
+    return videoPort > 0;
+  }
+
+  public boolean isSrtp()
+  {
+    return cryptoSuite != null;
+  }
+}
@@ -0,0 +1,502 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SDP negotiation with KMS on behalf of a 3rd-party RTP sender.
+ *
+ * The SDP Offer describes the features of the sender; the SDP Answer from KMS
+ * tells the IP address, ports and SSRC that KMS uses for the stream. Offers
+ * are written in a single buffer, and answers are parsed in a single scan,
+ * without regular expressions.
+ */
+public final class RtpSdp
+{
+  /**
+   * Error in an SDP Answer, with the line where it was found.
+   */
+  public static class ParseException extends IllegalArgumentException
+  {
+    private static final long serialVersionUID = 1L;
+
+    private final int line;
+
+    public ParseException(int line, String message)
+    {
+      super(line > 0 ? "SDP line " + line + ": " + message : "SDP: " + message);
+      this.line = line;
+    }
+
+    /**
+     * @return Number of the line with the error, starting at 1, or 0 if the
+     *         error is about the whole description
+     */
+    public int getLine()
+    {
+      return line;
+    }
+  }
+
+  /**
+   * Media description ("m=" section) of an SDP Answer.
+   */
+  public static class Media
+  {
+    private final String type;
+    private final int port;
+    private final String protocol;
+    private String connection;
+    private String direction;
+    private String comediaDirection;
+    private final List<Long> ssrcs = new ArrayList<>(1);
+
+    Media(String type, int port, String protocol)
+    {
+      this.type = type;
+      this.port = port;
+      this.protocol = protocol;
+    }
+
+    /**
+     * @return "audio", "video", etc.
+     */
+    public String getType()
+    {
+      return type;
+    }
+
+    public int getPort()
+    {
+      return port;
+    }
+
+    public String getProtocol()
+    {
+      return protocol;
+    }
+
+    /**
+     * @return Address of the media-level "c=" line, or null if there is none
+     */
+    public String getConnection()
+    {
+      return connection;
+    }
+
+    /**
+     * @return "sendonly", "recvonly", "sendrecv" or "inactive", or null if
+     *         not given
+     */
+    public String getDirection()
+    {
+      return direction;
+    }
+
+    /**
+     * @return Value of the COMEDIA "a=direction:" attribute, or null
+     */
+    public String getComediaDirection()
+    {
+      return comediaDirection;
+    }
+
+    public List<Long> getSsrcs()
+    {
+      return Collections.unmodifiableList(ssrcs);
+    }
+  }
+
+  /**
+   * Connection info negotiated by KMS.
+   */
+  public static class Answer
+  {
+    private String connection;
+    private final List<Media> medias = new ArrayList<>(2);
+
+    /**
+     * @return Address of the session-level "c=" line, or null if every media
+     *         has its own
+     */
+    public String getConnection()
+    {
+      return connection;
+    }
+
+    public List<Media> getMedias()
+    {
+      return Collections.unmodifiableList(medias);
+    }
+
+    /**
+     * @return First media of the given type, or null if there is none
+     */
+    public Media getMedia(String type)
+    {
+      for (Media media : medias) {
+        if (media.type.equals(type)) {
+          return media;
+        }
+      }
+      return null;
+    }
+
+    public String getKmsIp()
+    {
+      if (connection != null) {
+        return connection;
+      }
+      return medias.get(0).connection;
+    }
+
+    public int getKmsAudioPort()
+    {
+      Media media = getMedia("audio");
+      return media != null ? media.port : 0;
+    }
+
+    public int getKmsVideoPort()
+    {
+      Media media = getMedia("video");
+      return media != null ? media.port : 0;
+    }
+
+    /**
+     * @return SSRC of the video if there is one, otherwise of the audio, or 0
+     */
+    public long getKmsSsrc()
+    {
+      Media media = getMedia("video");
+      if (media == null || media.ssrcs.isEmpty()) {
+        media = getMedia("audio");
+      }
+      return media != null && !media.ssrcs.isEmpty() ? media.ssrcs.get(0) : 0;
+    }
+
+    /**
+     * @return true if KMS accepted to discover the sender address (COMEDIA)
+     */
+    public boolean isComedia()
+    {
+      for (Media media : medias) {
+        if ("passive".equals(media.comediaDirection)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private RtpSdp()
+  {}
+
+/*
+# SDP quick reference
+SDP structure is composed of levels: session > media > source.
+Each level can contain one or more of the next ones.
+Typically, one session contains several medias, and each media contains one source.
+
+---- Session-level information ----
+v=
+o=
+s=
+c=
+t=
+---- Media-level attributes ----
+m=
+a=
+---- Source-level attributes ----
+a=ssrc
+
+Some default values are defined by different RFCs:
+- RFC 3264 defines recommended values for "s=", "t=", "a=sendonly".
+- RFC 5576 defines source-level attribute "a=ssrc".
+*/
+
+  /**
+   * Makes the SDP Offer of a sender.
+   *
+   * @param sdpCryptoSuite
+   *          Name of the SRTP crypto suite in SDP, or null for plain RTP
+   */
+  public static String buildOffer(IngestSource source, String sdpCryptoSuite)
+  {
+    String senderIp = source.getSenderIp();
+    int audioPort = source.getAudioPort();
+    int videoPort = source.getVideoPort();
+    boolean comedia = source.isComedia();
+    if (comedia) {
+      // Use Discard port (9)
+      audioPort = 9;
+      videoPort = 9;
+    }
+    String protocol = sdpCryptoSuite != null ? "RTP/SAVPF" : "RTP/AVPF";
+
+    StringBuilder sb = new StringBuilder(512);
+    sb.append("v=0\r\n")
+        .append("o=- 0 0 IN IP4 ").append(senderIp).append("\r\n")
+        .append("s=Kurento Tutorial - RTP Receiver\r\n")
+        .append("c=IN IP4 ").append(senderIp).append("\r\n")
+        .append("t=0 0\r\n");
+
+    if (source.hasAudio()) {
+      sb.append("m=audio ").append(audioPort).append(' ').append(protocol)
+          .append(" 96\r\n");
+      appendCrypto(sb, sdpCryptoSuite, source.getSenderKey());
+      sb.append("a=rtpmap:96 ").append(source.getAudioCodec()).append("\r\n")
+          .append("a=sendonly\r\n");
+      appendSource(sb, comedia, source.getAudioSsrc(), source.getCname());
+    }
+
+    if (source.hasVideo()) {
+      sb.append("m=video ").append(videoPort).append(' ').append(protocol)
+          .append(" 103\r\n");
+      appendCrypto(sb, sdpCryptoSuite, source.getSenderKey());
+      sb.append("a=rtpmap:103 ").append(source.getVideoCodec())
+          .append("/90000\r\n")
+          .append("a=rtcp-fb:103 goog-remb\r\n")
+          .append("a=sendonly\r\n");
+      appendSource(sb, comedia, source.getVideoSsrc(), source.getCname());
+    }
+
+    return sb.toString();
+  }
+
+  private static void appendCrypto(StringBuilder sb, String sdpCryptoSuite,
+      String key)
+  {
+    if (sdpCryptoSuite != null) {
+      sb.append("a=crypto:2 ").append(sdpCryptoSuite).append(" inline:")
+          .append(key).append("|2^31|1:1\r\n");
+    }
+  }
+
+  private static void appendSource(StringBuilder sb, boolean comedia,
+      long ssrc, String cname)
+  {
+    if (comedia) {
+      // Inspired by RFC 4145 Draft 05 ("COMEDIA")
+      sb.append("a=direction:active\r\n");
+    }
+    sb.append("a=ssrc:").append(ssrc).append(" cname:").append(cname)
+        .append("\r\n");
+  }
+
+  /**
+   * Parses the SDP Answer from KMS.
+   *
+   * @throws ParseException if the answer is malformed, or lacks the
+   *           connection info
+   */
+  public static Answer parseAnswer(String sdp)
+  {
+    Answer answer = new Answer();
+    Media media = null;
+    int lineNumber = 0;
+    int length = sdp.length();
+    int pos = 0;
+
+    while (pos < length) {
+      int end = sdp.indexOf('\n', pos);
+      if (end < 0) {
+        end = length;
+      }
+      int next = end + 1;
+      if (end > pos && sdp.charAt(end - 1) == '\r') {
+        end--;
+      }
+      lineNumber++;
+
+      if (end == pos) {
+        // Tolerate empty lines, as after the last CRLF
+        pos = next;
+        continue;
+      }
+      if (end - pos < 2 || sdp.charAt(pos + 1) != '=') {
+        throw new ParseException(lineNumber, "expected <type>=<value>");
+      }
+
+      char type = sdp.charAt(pos);
+      int value = pos + 2;
+      if (lineNumber == 1 && type != 'v') {
+        throw new ParseException(lineNumber, "must start with v=");
+      }
+
+      switch (type) {
+        case 'v':
+          if (end - value != 1 || sdp.charAt(value) != '0') {
+            throw new ParseException(lineNumber, "unsupported version");
+          }
+          break;
+        case 'c': {
+          String address = parseConnection(sdp, value, end, lineNumber);
+          if (media != null) {
+            media.connection = address;
+          } else {
+            answer.connection = address;
+          }
+          break;
+        }
+        case 'm':
+          media = parseMedia(sdp, value, end, lineNumber);
+          answer.medias.add(media);
+          break;
+        case 'a':
+          if (media != null) {
+            parseMediaAttribute(media, sdp, value, end, lineNumber);
+          }
+          break;
+        default:
+          // Other lines don't matter to the RTP sender
+          break;
+      }
+
+      pos = next;
+    }
+
+    if (lineNumber == 0) {
+      throw new ParseException(0, "empty description");
+    }
+    if (answer.medias.isEmpty()) {
+      throw new ParseException(0, "no media descriptions");
+    }
+    if (answer.connection == null) {
+      for (Media m : answer.medias) {
+        if (m.connection == null) {
+          throw new ParseException(0, "no connection address for " + m.type);
+        }
+      }
+    }
+    return answer;
+  }
+
+  /**
+   * Parses "c=IN IP4 address[/ttl]".
+   */
+  private static String parseConnection(String sdp, int start, int end,
+      int lineNumber)
+  {
+    if (!sdp.startsWith("IN IP", start) || end - start < 9
+        || (sdp.charAt(start + 5) != '4' && sdp.charAt(start + 5) != '6')
+        || sdp.charAt(start + 6) != ' ') {
+      throw new ParseException(lineNumber, "expected c=IN IP4|IP6 <address>");
+    }
+    int addressStart = start + 7;
+    int addressEnd = addressStart;
+    while (addressEnd < end && sdp.charAt(addressEnd) != '/'
+        && sdp.charAt(addressEnd) != ' ') {
+      addressEnd++;
+    }
+    if (addressEnd == addressStart) {
+      throw new ParseException(lineNumber, "empty connection address");
+    }
+    return sdp.substring(addressStart, addressEnd);
+  }
+
+  /**
+   * Parses "m=type port[/count] protocol format...".
+   */
+  private static Media parseMedia(String sdp, int start, int end,
+      int lineNumber)
+  {
+    int typeEnd = sdp.indexOf(' ', start);
+    if (typeEnd <= start || typeEnd >= end) {
+      throw new ParseException(lineNumber, "expected m=<media> <port> <proto>");
+    }
+
+    int port = 0;
+    int i = typeEnd + 1;
+    int digits = 0;
+    while (i < end && isDigit(sdp.charAt(i))) {
+      port = port * 10 + (sdp.charAt(i) - '0');
+      if (port > 65535) {
+        throw new ParseException(lineNumber, "port out of range");
+      }
+      i++;
+      digits++;
+    }
+    if (digits == 0) {
+      throw new ParseException(lineNumber, "expected a port number");
+    }
+    if (i < end && sdp.charAt(i) == '/') {
+      // Skip the number of ports
+      i++;
+      while (i < end && isDigit(sdp.charAt(i))) {
+        i++;
+      }
+    }
+    if (i >= end || sdp.charAt(i) != ' ') {
+      throw new ParseException(lineNumber, "expected a transport protocol");
+    }
+
+    int protocolStart = i + 1;
+    int protocolEnd = sdp.indexOf(' ', protocolStart);
+    if (protocolEnd < 0 || protocolEnd > end) {
+      protocolEnd = end;
+    }
+    if (protocolEnd == protocolStart) {
+      throw new ParseException(lineNumber, "expected a transport protocol");
+    }
+
+    return new Media(sdp.substring(start, typeEnd), port,
+        sdp.substring(protocolStart, protocolEnd));
+  }
+
+  private static void parseMediaAttribute(Media media, String sdp, int start,
+      int end, int lineNumber)
+  {
+    if (sdp.startsWith("ssrc:", start)) {
+      long ssrc = 0;
+      int i = start + 5;
+      while (i < end && isDigit(sdp.charAt(i))) {
+        ssrc = ssrc * 10 + (sdp.charAt(i) - '0');
+        if (ssrc > 0xFFFFFFFFL) {
+          throw new ParseException(lineNumber, "SSRC out of range");
+        }
+        i++;
+      }
+      if (i == start + 5) {
+        throw new ParseException(lineNumber, "expected an SSRC");
+      }
+      // Every source has several "a=ssrc" lines, one per attribute
+      if (!media.ssrcs.contains(ssrc)) {
+        media.ssrcs.add(ssrc);
+      }
+    } else if (sdp.startsWith("direction:", start)) {
+      media.comediaDirection = sdp.substring(start + 10, end);
+    } else if (isDirection(sdp, start, end)) {
+      media.direction = sdp.substring(start, end);
+    }
+  }
+
+  private static boolean isDirection(String sdp, int start, int end)
+  {
+    return end - start == 8 && (sdp.startsWith("sendonly", start)
+        || sdp.startsWith("recvonly", start)
+        || sdp.startsWith("sendrecv", start)
+        || sdp.startsWith("inactive", start));
+  }
+
+  private static boolean isDigit(char c)
+  {
+    return c >= '0' && c <= '9';
+  }
+}
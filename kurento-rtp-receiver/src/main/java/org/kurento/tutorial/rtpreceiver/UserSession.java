@@ -16,37 +16,24 @@
 
 package org.kurento.tutorial.rtpreceiver;
 
-import org.kurento.client.MediaPipeline;
-import org.kurento.client.RtpEndpoint;
 import org.kurento.client.WebRtcEndpoint;
 
 public class UserSession
 {
-  private MediaPipeline mediaPipeline;
-  private RtpEndpoint rtpEp;
+  private Ingest ingest;
   private WebRtcEndpoint webRtcEp;
 
   public UserSession()
   {}
 
-  public MediaPipeline getMediaPipeline()
+  public Ingest getIngest()
   {
-    return mediaPipeline;
+    return ingest;
   }
 
-  public void setMediaPipeline(MediaPipeline mediaPipeline)
+  public void setIngest(Ingest ingest)
   {
-    this.mediaPipeline = mediaPipeline;
-  }
-
-  public RtpEndpoint getRtpEndpoint()
-  {
-    return rtpEp;
-  }
-
-  public void setRtpEndpoint(RtpEndpoint rtpEp)
-  {
-    this.rtpEp = rtpEp;
+    this.ingest = ingest;
   }
 
   public WebRtcEndpoint getWebRtcEndpoint()
@@ -19,6 +19,9 @@ const ws = new WebSocket('wss://' + location.host + '/rtpreceiver');
 let videoRtp;
 let webRtcPeer;
 
+// Ingest to watch, chosen with the 'ingest' query parameter
+const ingestId = new URLSearchParams(location.search).get('ingest');
+
 // UI
 let uiState = null;
 const UI_IDLE = 0;
@@ -221,12 +224,16 @@ function start()
       console.log("[start/WebRtcPeerRecvonly/generateOffer] Use SRTP: "
           + useSrtp);
 
-      sendMessage({
+      const message = {
         id: 'PROCESS_SDP_OFFER',
         sdpOffer: sdpOffer,
         useComedia: useComedia,
         useSrtp: useSrtp,
-      });
+      };
+      if (ingestId) {
+        message.ingestId = ingestId;
+      }
+      sendMessage(message);
 
       console.log("[start/WebRtcPeerRecvonly/generateOffer] Done!");
       uiSetState(UI_STARTED);
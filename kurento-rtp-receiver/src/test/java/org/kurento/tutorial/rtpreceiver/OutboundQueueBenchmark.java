@@ -0,0 +1,220 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * ICE candidates sent by many threads to 1,000 WebSocket sessions, through
+ * the {@link OutboundQueue} of each session, and through a single
+ * handler-wide lock, as {@code sendMessage} used to be synchronized. Each
+ * write to a session takes {@code writeTokens} of CPU, like a socket write.
+ *
+ * The queues are drained by the sending threads here, instead of the send
+ * threads of {@link Handler}, so the writes are measured too and the queues
+ * stay bounded. The hello-world and player handlers send the same way, so
+ * this measures them too.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(16)
+@Fork(1)
+public class OutboundQueueBenchmark
+{
+  private static final int SESSIONS = 1000;
+
+  private static final String CANDIDATE = "{\"id\":\"ADD_ICE_CANDIDATE\","
+      + "\"webRtcEpId\":\"3f1c2b9e-7a55-4f0e-9f3b-1b7c9e0d2a41_kurento.MediaPipeline/"
+      + "8e0c5f4a-2b6d-4c1e-a7f9-3d2e1c0b9a87_kurento.WebRtcEndpoint\","
+      + "\"candidate\":{\"candidate\":\"candidate:1 1 UDP 2015363327 192.168.1.10"
+      + " 46721 typ host\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}}";
+
+  @Param({ "100", "1000" })
+  public long writeTokens;
+
+  private final Object handlerLock = new Object();
+  private WebSocketSession[] sessions;
+  private OutboundQueue[] queues;
+
+  /**
+   * Session whose writes only burn some CPU.
+   */
+  private static class FakeSession implements WebSocketSession
+  {
+    private final String id;
+    private final long writeTokens;
+
+    FakeSession(String id, long writeTokens)
+    {
+      this.id = id;
+      this.writeTokens = writeTokens;
+    }
+
+    @Override
+    public String getId()
+    {
+      return id;
+    }
+
+    @Override
+    public URI getUri()
+    {
+      return null;
+    }
+
+    @Override
+    public HttpHeaders getHandshakeHeaders()
+    {
+      return new HttpHeaders();
+    }
+
+    @Override
+    public Map<String, Object> getAttributes()
+    {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public Principal getPrincipal()
+    {
+      return null;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress()
+    {
+      return null;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress()
+    {
+      return null;
+    }
+
+    @Override
+    public String getAcceptedProtocol()
+    {
+      return null;
+    }
+
+    @Override
+    public void setTextMessageSizeLimit(int messageSizeLimit)
+    {}
+
+    @Override
+    public int getTextMessageSizeLimit()
+    {
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public void setBinaryMessageSizeLimit(int messageSizeLimit)
+    {}
+
+    @Override
+    public int getBinaryMessageSizeLimit()
+    {
+      return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public List<WebSocketExtension> getExtensions()
+    {
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void sendMessage(WebSocketMessage<?> message) throws IOException
+    {
+      Blackhole.consumeCPU(writeTokens);
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException
+    {}
+
+    @Override
+    public void close(CloseStatus status) throws IOException
+    {}
+  }
+
+  @Setup
+  public void setUp()
+  {
+    sessions = new WebSocketSession[SESSIONS];
+    queues = new OutboundQueue[SESSIONS];
+    for (int i = 0; i < SESSIONS; i++) {
+      sessions[i] = new FakeSession(Integer.toString(i), writeTokens);
+      queues[i] = new OutboundQueue(sessions[i], Runnable::run, 10000,
+          512 * 1024);
+    }
+  }
+
+  @Benchmark
+  public void handlerLock() throws IOException
+  {
+    WebSocketSession session =
+        sessions[ThreadLocalRandom.current().nextInt(SESSIONS)];
+    synchronized (handlerLock) {
+      session.sendMessage(new TextMessage(CANDIDATE));
+    }
+  }
+
+  @Benchmark
+  public void perSessionQueue()
+  {
+    queues[ThreadLocalRandom.current().nextInt(SESSIONS)].send(CANDIDATE);
+  }
+}
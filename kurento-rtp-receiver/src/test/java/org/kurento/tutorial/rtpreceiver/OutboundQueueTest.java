@@ -0,0 +1,120 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Runs the executor by hand, so the test sees exactly what the sending
+ * thread does, and what is left to the executor.
+ */
+public class OutboundQueueTest
+{
+  private final List<Runnable> tasks = new ArrayList<>();
+  private WebSocketSession session;
+
+  @BeforeEach
+  public void setUp()
+  {
+    session = mock(WebSocketSession.class);
+    when(session.getId()).thenReturn("s1");
+    when(session.isOpen()).thenReturn(true);
+  }
+
+  private OutboundQueue newQueue(int bufferSizeLimit)
+  {
+    return new OutboundQueue(session, tasks::add, 10000, bufferSizeLimit);
+  }
+
+  private void runTasks()
+  {
+    while (!tasks.isEmpty()) {
+      tasks.remove(0).run();
+    }
+  }
+
+  private List<String> written() throws Exception
+  {
+    ArgumentCaptor<TextMessage> captor = ArgumentCaptor.forClass(TextMessage.class);
+    verify(session, atLeast(0)).sendMessage(captor.capture());
+    List<String> payloads = new ArrayList<>();
+    for (TextMessage message : captor.getAllValues()) {
+      payloads.add(message.getPayload());
+    }
+    return payloads;
+  }
+
+  @Test
+  public void sendOnlyQueues() throws Exception
+  {
+    OutboundQueue out = newQueue(1024);
+    out.send("first");
+    out.send("second");
+
+    assertTrue(written().isEmpty());
+    assertEquals(1, tasks.size());
+
+    runTasks();
+    assertEquals(Arrays.asList("first", "second"), written());
+  }
+
+  @Test
+  public void drainsAgainForLaterMessages() throws Exception
+  {
+    OutboundQueue out = newQueue(1024);
+    out.send("first");
+    runTasks();
+    out.send("second");
+    runTasks();
+
+    assertEquals(Arrays.asList("first", "second"), written());
+  }
+
+  @Test
+  public void slowClientIsClosed() throws Exception
+  {
+    OutboundQueue out = newQueue(10);
+    out.send("12345");
+    out.send("678901");
+
+    assertFalse(out.isOpen());
+    runTasks();
+    verify(session).close(CloseStatus.SESSION_NOT_RELIABLE);
+    assertTrue(written().isEmpty());
+
+    out.send("late");
+    runTasks();
+    assertTrue(written().isEmpty());
+  }
+}
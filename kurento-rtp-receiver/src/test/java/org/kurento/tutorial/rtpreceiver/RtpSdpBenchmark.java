@@ -0,0 +1,122 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building of the SDP Offer of a sender, and parsing of the SDP Answer of
+ * KMS, against the regular expressions that were used before to get the same
+ * connection info out of the answer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RtpSdpBenchmark
+{
+  private static final Pattern AUDIO_PORT = Pattern.compile("m=audio (\\d+) RTP");
+  private static final Pattern VIDEO_PORT = Pattern.compile("m=video (\\d+) RTP");
+  private static final Pattern SSRC = Pattern.compile("a=ssrc:(\\d+)");
+  private static final Pattern CONNECTION =
+      Pattern.compile("c=IN IP4 (([0-9]{1,3}\\.){3}[0-9]{1,3})");
+
+  private IngestSource source;
+  private IngestSource srtpSource;
+
+  @Setup
+  public void setUp()
+  {
+    source = new IngestSource();
+    source.setSenderIp("192.168.1.20");
+    source.setAudioPort(5006);
+    source.setVideoPort(5004);
+    source.setAudioSsrc(445566);
+    source.setVideoSsrc(112233);
+    source.setCname("user@example.com");
+    source.setVideoCodec("H264");
+
+    srtpSource = new IngestSource(source);
+    srtpSource.setAudioPort(0);
+    srtpSource.setCryptoSuite("AES_128_CM_HMAC_SHA1_80");
+    srtpSource.setSenderKey("4A8bRzXk3xX8yIKVQ1ZWL0q7u0JgNjR3bHhGVaZ5");
+  }
+
+  @Benchmark
+  public String buildOffer()
+  {
+    return RtpSdp.buildOffer(source, null);
+  }
+
+  @Benchmark
+  public String buildSrtpOffer()
+  {
+    return RtpSdp.buildOffer(srtpSource, "AES_CM_128_HMAC_SHA1_80");
+  }
+
+  @Benchmark
+  public RtpSdp.Answer parseAnswer()
+  {
+    return RtpSdp.parseAnswer(RtpSdpTest.ANSWER);
+  }
+
+  @Benchmark
+  public void parseAnswerWithRegex(Blackhole blackhole)
+  {
+    String sdp = RtpSdpTest.ANSWER;
+    Matcher m = CONNECTION.matcher(sdp);
+    if (!m.find()) {
+      throw new IllegalArgumentException("No IPv4 connection in SDP Answer");
+    }
+    blackhole.consume(m.group(1));
+
+    m = AUDIO_PORT.matcher(sdp);
+    if (m.find()) {
+      blackhole.consume(Integer.parseInt(m.group(1)));
+    }
+
+    int videoStart = 0;
+    m = VIDEO_PORT.matcher(sdp);
+    if (m.find()) {
+      blackhole.consume(Integer.parseInt(m.group(1)));
+      videoStart = m.end();
+    }
+
+    m = SSRC.matcher(sdp);
+    if (m.find(videoStart)) {
+      blackhole.consume(Long.parseLong(m.group(1)));
+    }
+
+    blackhole.consume(sdp.contains("a=direction:passive"));
+  }
+}
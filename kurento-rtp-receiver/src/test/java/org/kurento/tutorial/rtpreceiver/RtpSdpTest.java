@@ -0,0 +1,150 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parsing of SDP Answers like the ones of KMS, and the errors reported for
+ * malformed ones, with the line where they were found.
+ */
+public class RtpSdpTest
+{
+  static final String ANSWER = "v=0\r\n"
+      + "o=- 3849148391 3849148391 IN IP4 192.168.1.10\r\n"
+      + "s=Kurento Media Server\r\n"
+      + "c=IN IP4 192.168.1.10\r\n"
+      + "t=0 0\r\n"
+      + "m=audio 42334 RTP/AVPF 96\r\n"
+      + "a=rtpmap:96 opus/48000/2\r\n"
+      + "a=recvonly\r\n"
+      + "a=direction:passive\r\n"
+      + "a=ssrc:3358711046 cname:user1419196318@host-7e2c\r\n"
+      + "m=video 59762 RTP/AVPF 103\r\n"
+      + "a=rtpmap:103 H264/90000\r\n"
+      + "a=rtcp-fb:103 goog-remb\r\n"
+      + "a=recvonly\r\n"
+      + "a=direction:passive\r\n"
+      + "a=ssrc:1271506862 cname:user1419196318@host-7e2c\r\n"
+      + "a=ssrc:1271506862 msid:stream track\r\n";
+
+  private static RtpSdp.ParseException parseError(String sdp)
+  {
+    return assertThrows(RtpSdp.ParseException.class, () -> RtpSdp.parseAnswer(sdp));
+  }
+
+  @Test
+  public void parsesKmsAnswer()
+  {
+    RtpSdp.Answer answer = RtpSdp.parseAnswer(ANSWER);
+
+    assertEquals("192.168.1.10", answer.getKmsIp());
+    assertEquals(42334, answer.getKmsAudioPort());
+    assertEquals(59762, answer.getKmsVideoPort());
+    assertEquals(1271506862L, answer.getKmsSsrc());
+    assertTrue(answer.isComedia());
+
+    RtpSdp.Media video = answer.getMedia("video");
+    assertEquals("RTP/AVPF", video.getProtocol());
+    assertEquals("recvonly", video.getDirection());
+    assertEquals(Arrays.asList(1271506862L), video.getSsrcs());
+    assertNull(video.getConnection());
+  }
+
+  @Test
+  public void parsesOwnOffer()
+  {
+    IngestSource source = new IngestSource();
+    source.setSenderIp("10.0.0.2");
+    source.setAudioPort(5006);
+    source.setVideoPort(5004);
+    source.setAudioSsrc(445566);
+    source.setVideoSsrc(4294967295L);
+    source.setCname("user@example.com");
+    source.setVideoCodec("H264");
+
+    RtpSdp.Answer offer = RtpSdp.parseAnswer(RtpSdp.buildOffer(source, null));
+    assertEquals("10.0.0.2", offer.getConnection());
+    assertEquals(5006, offer.getKmsAudioPort());
+    assertEquals(5004, offer.getKmsVideoPort());
+    assertEquals(4294967295L, offer.getKmsSsrc());
+    assertEquals("sendonly", offer.getMedia("audio").getDirection());
+  }
+
+  @Test
+  public void acceptsMediaLevelConnectionsAndBareNewlines()
+  {
+    RtpSdp.Answer answer = RtpSdp.parseAnswer("v=0\n"
+        + "m=video 5004/2 RTP/SAVPF 103\n"
+        + "c=IN IP6 ::1\n"
+        + "\n");
+    assertNull(answer.getConnection());
+    assertEquals("::1", answer.getKmsIp());
+    assertEquals(5004, answer.getKmsVideoPort());
+    assertEquals(0, answer.getKmsSsrc());
+  }
+
+  @Test
+  public void rejectsMalformedLines()
+  {
+    assertEquals(1, parseError("v=1\r\n").getLine());
+    assertEquals(1, parseError("o=- 0 0 IN IP4 1.2.3.4\r\nv=0\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nnot a line\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nc\r\n").getLine());
+  }
+
+  @Test
+  public void rejectsMalformedConnections()
+  {
+    assertEquals(2, parseError("v=0\r\nc=IN IP5 1.2.3.4\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nc=IN IP4\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nc=IN IP4  /127\r\n").getLine());
+  }
+
+  @Test
+  public void rejectsMalformedMedias()
+  {
+    assertEquals(2, parseError("v=0\r\nm=video\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nm=video x RTP/AVPF 103\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nm=video 65536 RTP/AVPF 103\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nm=video 5004\r\n").getLine());
+    assertEquals(2, parseError("v=0\r\nm=video 5004  103\r\n").getLine());
+  }
+
+  @Test
+  public void rejectsMalformedSsrcs()
+  {
+    String media = "v=0\r\nc=IN IP4 1.2.3.4\r\nm=video 5004 RTP/AVPF 103\r\n";
+    assertEquals(4, parseError(media + "a=ssrc:4294967296 cname:x\r\n").getLine());
+    assertEquals(4, parseError(media + "a=ssrc:cname:x\r\n").getLine());
+  }
+
+  @Test
+  public void rejectsIncompleteDescriptions()
+  {
+    assertEquals(0, parseError("").getLine());
+    assertEquals(0, parseError("v=0\r\nc=IN IP4 1.2.3.4\r\n").getLine());
+    assertEquals(0, parseError("v=0\r\nm=audio 5006 RTP/AVPF 96\r\n").getLine());
+  }
+}
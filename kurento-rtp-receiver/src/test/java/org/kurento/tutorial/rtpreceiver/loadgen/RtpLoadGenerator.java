@@ -0,0 +1,664 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver.loadgen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Synthetic RTP/RTCP sender, to load-test the RTP Receiver without external
+ * GStreamer or ffmpeg senders.
+ *
+ * The streams to send are found in one of these ways:
+ * <ul>
+ * <li>{@code loadgen.connInfo}: a file with the text shown by the
+ * application in "Connection info" (the SHOW_CONN_INFO message), one block
+ * per ingest.</li>
+ * <li>{@code loadgen.api} and {@code loadgen.ingests} &gt; 0: registers that
+ * many COMEDIA ingests through the ingest REST API, and deletes them on
+ * exit unless {@code loadgen.keep} is set.</li>
+ * <li>{@code loadgen.api} alone: sends to every ingest already registered.
+ * </li>
+ * </ul>
+ *
+ * Traffic: {@code loadgen.videoKbps} (1000) at {@code loadgen.fps} (30),
+ * {@code loadgen.audioKbps} (0, no audio), {@code loadgen.packetSize} (1200
+ * bytes of payload), {@code loadgen.loss} (mean loss rate, 0) in bursts of
+ * {@code loadgen.lossBurst} (1) packets, and {@code loadgen.jitterMs} (0).
+ * SRTP is used with {@code loadgen.cryptoSuite}, like
+ * "AES_128_CM_HMAC_SHA1_80", and {@code loadgen.senderKey} (generated for
+ * registered ingests); the suite and sender key shown in the connection info
+ * take precedence over them. The streams are spread over {@code loadgen.threads}
+ * (1) sender threads, for {@code loadgen.durationS} seconds (0, until
+ * stopped), and totals are logged every {@code loadgen.reportS} (5) seconds.
+ * {@code loadgen.kmsIp} overrides the address announced by KMS.
+ *
+ * The REST API is reached with the default TLS verification of the JVM;
+ * {@code loadgen.insecure} trusts any certificate and host name instead, like
+ * the self-signed one of the tutorials. Only use it against a test server.
+ *
+ * It is kept in the test sources, out of the application jar. Run with:
+ * {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.kurento.tutorial.rtpreceiver.loadgen.RtpLoadGenerator
+ * -Dloadgen.api=https://localhost:8443 -Dloadgen.ingests=50
+ * -Dloadgen.insecure=true}
+ */
+public class RtpLoadGenerator
+{
+  private static final Logger log =
+      LoggerFactory.getLogger(RtpLoadGenerator.class);
+
+  private static final String CONN_INFO = System.getProperty("loadgen.connInfo");
+  private static final String API = System.getProperty("loadgen.api");
+  private static final int INGESTS = Integer.getInteger("loadgen.ingests", 0);
+  private static final String PREFIX =
+      System.getProperty("loadgen.prefix", "loadgen");
+  private static final boolean KEEP = Boolean.getBoolean("loadgen.keep");
+  private static final String KMS_IP = System.getProperty("loadgen.kmsIp");
+  private static final boolean INSECURE = Boolean.getBoolean("loadgen.insecure");
+
+  private static final int VIDEO_KBPS = Integer.getInteger("loadgen.videoKbps", 1000);
+  private static final int AUDIO_KBPS = Integer.getInteger("loadgen.audioKbps", 0);
+  private static final int FPS = Integer.getInteger("loadgen.fps", 30);
+  private static final int PACKET_SIZE =
+      Integer.getInteger("loadgen.packetSize", 1200);
+  private static final double LOSS =
+      Double.parseDouble(System.getProperty("loadgen.loss", "0"));
+  private static final int LOSS_BURST = Integer.getInteger("loadgen.lossBurst", 1);
+  private static final int JITTER_MS = Integer.getInteger("loadgen.jitterMs", 0);
+
+  private static final String CRYPTO_SUITE =
+      System.getProperty("loadgen.cryptoSuite");
+  private static final String SENDER_KEY =
+      System.getProperty("loadgen.senderKey");
+
+  private static final int THREADS = Integer.getInteger("loadgen.threads", 1);
+  private static final long DURATION_S = Long.getLong("loadgen.durationS", 0);
+  private static final long REPORT_S = Long.getLong("loadgen.reportS", 5);
+
+  // Frames sent later than this are counted as late
+  private static final long LATE_NANOS = 2000000L;
+
+  /**
+   * Where and what to send for one ingest.
+   */
+  static class Target
+  {
+    String id;
+    String kmsIp;
+    int kmsAudioPort;
+    int kmsVideoPort;
+    long audioSsrc;
+    long videoSsrc;
+    boolean srtp;
+    String cryptoSuite;
+    String senderKey;
+  }
+
+  /**
+   * Sends the streams assigned to one thread, each one when it is due.
+   */
+  private static class SenderLoop implements Runnable
+  {
+    private final PriorityQueue<RtpStream> queue =
+        new PriorityQueue<>(16, new Comparator<RtpStream>() {
+      @Override
+      public int compare(RtpStream a, RtpStream b) {
+        return Long.compare(a.getNextSendNanos(), b.getNextSendNanos());
+      }
+    });
+    private final CountDownLatch done;
+    private volatile boolean running = true;
+
+    // Read by the reporter thread
+    private volatile long lateSends;
+    private volatile long maxLagNanos;
+
+    SenderLoop(CountDownLatch done)
+    {
+      this.done = done;
+    }
+
+    @Override
+    public void run()
+    {
+      try {
+        while (running && !queue.isEmpty()) {
+          RtpStream stream = queue.peek();
+          long now = System.nanoTime();
+          long wait = stream.getNextSendNanos() - now;
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+            continue;
+          }
+
+          queue.poll();
+          long lag = -wait;
+          if (lag > LATE_NANOS) {
+            lateSends++;
+          }
+          if (lag > maxLagNanos) {
+            maxLagNanos = lag;
+          }
+          try {
+            stream.send(now);
+          } catch (IOException ex) {
+            log.warn("[RtpLoadGenerator::SenderLoop] Stream {} stopped: {}",
+                stream.getName(), ex.getMessage());
+            stream.close();
+            continue;
+          }
+          queue.add(stream);
+        }
+      } finally {
+        for (RtpStream stream : queue) {
+          stream.close();
+        }
+        done.countDown();
+      }
+    }
+  }
+
+  private final List<Target> targets = new ArrayList<>();
+  private final List<String> createdIds = new ArrayList<>();
+  private final List<RtpStream> streams = new ArrayList<>();
+  private final List<SenderLoop> loops = new ArrayList<>();
+  private CountDownLatch done;
+
+  private long lastReportNanos;
+  private long lastPackets;
+  private long lastBytes;
+
+  public static void main(String[] args) throws Exception
+  {
+    if (CONN_INFO == null && API == null) {
+      System.err.println("Set -Dloadgen.connInfo=<file> or -Dloadgen.api=<url>");
+      System.exit(1);
+    }
+
+    final RtpLoadGenerator generator = new RtpLoadGenerator();
+    Runtime.getRuntime().addShutdownHook(new Thread("loadgen-shutdown") {
+      @Override
+      public void run() {
+        generator.stop();
+      }
+    });
+    generator.run();
+  }
+
+  private void run() throws Exception
+  {
+    if (CONN_INFO != null) {
+      readConnInfo(new String(Files.readAllBytes(Paths.get(CONN_INFO)),
+          StandardCharsets.UTF_8));
+    } else if (INGESTS > 0) {
+      createIngests();
+    } else {
+      listIngests();
+    }
+    if (targets.isEmpty()) {
+      log.error("[RtpLoadGenerator::run] No ingests to send to");
+      return;
+    }
+
+    startStreams();
+
+    long endNanos = DURATION_S > 0
+        ? System.nanoTime() + TimeUnit.SECONDS.toNanos(DURATION_S) : Long.MAX_VALUE;
+    lastReportNanos = System.nanoTime();
+    while (done.getCount() > 0) {
+      long now = System.nanoTime();
+      if (now >= endNanos) {
+        break;
+      }
+      Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(REPORT_S),
+          TimeUnit.NANOSECONDS.toMillis(endNanos - now) + 1));
+      report();
+    }
+    stop();
+  }
+
+  // Targets -------------------------------------------------------------------
+
+  /**
+   * Parses the "Connection info" text of the RTP Receiver, with a block per
+   * ingest.
+   */
+  void readConnInfo(String text)
+  {
+    Target target = null;
+    for (String line : text.split("\r?\n")) {
+      line = line.trim();
+      if (line.startsWith("SDP negotiation finished") || target == null) {
+        target = newTarget(null);
+        targets.add(target);
+      }
+      String value = line.substring(line.lastIndexOf(':') + 1).trim();
+      if (line.startsWith("* Ingest:")) {
+        target.id = line.substring(9, line.indexOf(',')).trim();
+      } else if (line.startsWith("* KMS listens for Audio RTP at port:")) {
+        target.kmsAudioPort = Integer.parseInt(value);
+      } else if (line.startsWith("* KMS listens for Video RTP at port:")) {
+        target.kmsVideoPort = Integer.parseInt(value);
+      } else if (line.startsWith("* KMS expects Audio SSRC from sender:")) {
+        target.audioSsrc = Long.parseLong(value);
+      } else if (line.startsWith("* KMS expects Video SSRC from sender:")) {
+        target.videoSsrc = Long.parseLong(value);
+      } else if (line.startsWith("* KMS local IP address:")) {
+        target.kmsIp = KMS_IP != null ? KMS_IP : value;
+      } else if (line.startsWith("* KMS uses Video SSRC:")) {
+        target.srtp = true;
+      } else if (line.startsWith("* SRTP crypto suite:")) {
+        target.srtp = true;
+        target.cryptoSuite = value;
+      } else if (line.startsWith("* SRTP key for the sender (hex):")) {
+        target.srtp = true;
+        target.senderKey = fromHex(value);
+      }
+    }
+
+    for (int i = targets.size() - 1; i >= 0; i--) {
+      Target t = targets.get(i);
+      if (t.kmsIp == null || (t.kmsAudioPort == 0 && t.kmsVideoPort == 0)) {
+        targets.remove(i);
+        continue;
+      }
+      if (t.id == null) {
+        t.id = "conninfo-" + i;
+      }
+      if (t.srtp && (t.cryptoSuite == null || t.senderKey == null)) {
+        log.warn("[RtpLoadGenerator::readConnInfo] Skipping SRTP ingest {}: set loadgen.cryptoSuite and loadgen.senderKey",
+            t.id);
+        targets.remove(i);
+      }
+    }
+    log.info("[RtpLoadGenerator::readConnInfo] Ingests: {}", targets.size());
+  }
+
+  /**
+   * @return A hexadecimal SRTP key, as shown in the connection info, in
+   *         Base64
+   */
+  static String fromHex(String hex)
+  {
+    byte[] key = new byte[hex.length() / 2];
+    for (int i = 0; i < key.length; i++) {
+      key[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return Base64.getEncoder().encodeToString(key);
+  }
+
+  List<Target> getTargets()
+  {
+    return targets;
+  }
+
+  private void createIngests() throws IOException
+  {
+    SecureRandom random = new SecureRandom();
+    for (int i = 0; i < INGESTS; i++) {
+      JsonObject source = new JsonObject();
+      source.addProperty("id", PREFIX + "-" + i);
+      source.addProperty("comedia", true);
+      source.addProperty("videoPort", VIDEO_KBPS > 0 ? 5004 : 0);
+      source.addProperty("audioPort", AUDIO_KBPS > 0 ? 5006 : 0);
+      String senderKey = null;
+      if (CRYPTO_SUITE != null) {
+        senderKey = SENDER_KEY;
+        if (senderKey == null) {
+          byte[] key = new byte[CRYPTO_SUITE.startsWith("AES_256") ? 46 : 30];
+          random.nextBytes(key);
+          senderKey = Base64.getEncoder().encodeToString(key);
+        }
+        source.addProperty("cryptoSuite", CRYPTO_SUITE);
+        source.addProperty("senderKey", senderKey);
+      }
+
+      JsonElement info = request("POST", "/ingests", source.toString());
+      if (info == null) {
+        log.error("[RtpLoadGenerator::createIngests] Could not create ingest {}",
+            PREFIX + "-" + i);
+        break;
+      }
+      Target target = fromInfo(info.getAsJsonObject());
+      target.senderKey = senderKey;
+      createdIds.add(target.id);
+      targets.add(target);
+    }
+    log.info("[RtpLoadGenerator::createIngests] Ingests: {}", targets.size());
+  }
+
+  private void listIngests() throws IOException
+  {
+    JsonElement list = request("GET", "/ingests", null);
+    if (list == null) {
+      return;
+    }
+    for (JsonElement element : list.getAsJsonArray()) {
+      JsonObject info = element.getAsJsonObject();
+      Target target = fromInfo(info);
+      if (info.get("srtp").getAsBoolean()
+          && (target.cryptoSuite == null || target.senderKey == null)) {
+        log.warn("[RtpLoadGenerator::listIngests] Skipping SRTP ingest {}: set loadgen.cryptoSuite and loadgen.senderKey",
+            target.id);
+        continue;
+      }
+      targets.add(target);
+    }
+    log.info("[RtpLoadGenerator::listIngests] Ingests: {}", targets.size());
+  }
+
+  private Target fromInfo(JsonObject info)
+  {
+    Target target = newTarget(info.get("id").getAsString());
+    target.kmsIp = KMS_IP != null ? KMS_IP : info.get("kmsIp").getAsString();
+    if (info.has("kmsAudioPort")) {
+      target.kmsAudioPort = info.get("kmsAudioPort").getAsInt();
+      target.audioSsrc = info.get("audioSsrc").getAsLong();
+    }
+    if (info.has("kmsVideoPort")) {
+      target.kmsVideoPort = info.get("kmsVideoPort").getAsInt();
+      target.videoSsrc = info.get("videoSsrc").getAsLong();
+    }
+    return target;
+  }
+
+  private static Target newTarget(String id)
+  {
+    Target target = new Target();
+    target.id = id;
+    target.cryptoSuite = CRYPTO_SUITE;
+    target.senderKey = SENDER_KEY;
+    return target;
+  }
+
+  // Sending -------------------------------------------------------------------
+
+  private void startStreams() throws IOException
+  {
+    RtpStream.Profile video = new RtpStream.Profile();
+    video.bitrateKbps = VIDEO_KBPS;
+    video.fps = FPS;
+    video.packetSize = PACKET_SIZE;
+    video.loss = LOSS;
+    video.lossBurst = Math.max(1, LOSS_BURST);
+    video.jitterMs = JITTER_MS;
+
+    RtpStream.Profile audio = new RtpStream.Profile();
+    audio.video = false;
+    audio.bitrateKbps = AUDIO_KBPS;
+    audio.packetSize = PACKET_SIZE;
+    audio.loss = LOSS;
+    audio.lossBurst = Math.max(1, LOSS_BURST);
+    audio.jitterMs = JITTER_MS;
+
+    done = new CountDownLatch(THREADS);
+    for (int i = 0; i < THREADS; i++) {
+      loops.add(new SenderLoop(done));
+    }
+
+    // Spread the first frames over a frame interval, so the streams don't
+    // send in lockstep
+    long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+    long spread = TimeUnit.SECONDS.toNanos(1) / Math.max(1, FPS);
+    int n = 0;
+    for (Target target : targets) {
+      SrtpContext videoSrtp = null;
+      SrtpContext audioSrtp = null;
+      if (target.cryptoSuite != null) {
+        videoSrtp = new SrtpContext(target.cryptoSuite, target.senderKey);
+        audioSrtp = new SrtpContext(target.cryptoSuite, target.senderKey);
+      }
+      long offset = start + spread * n / targets.size();
+      String cname = PREFIX + "@" + target.id;
+      if (target.kmsVideoPort > 0 && VIDEO_KBPS > 0) {
+        addStream(new RtpStream(target.id + "/video", video, target.videoSsrc,
+            cname, videoSrtp,
+            new InetSocketAddress(target.kmsIp, target.kmsVideoPort), offset));
+      }
+      if (target.kmsAudioPort > 0 && AUDIO_KBPS > 0) {
+        addStream(new RtpStream(target.id + "/audio", audio, target.audioSsrc,
+            cname, audioSrtp,
+            new InetSocketAddress(target.kmsIp, target.kmsAudioPort), offset));
+      }
+      n++;
+    }
+
+    for (int i = 0; i < loops.size(); i++) {
+      Thread thread = new Thread(loops.get(i), "loadgen-sender-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+    log.info("[RtpLoadGenerator::startStreams] Streams: {}, threads: {}",
+        streams.size(), loops.size());
+  }
+
+  private void addStream(RtpStream stream)
+  {
+    loops.get(streams.size() % loops.size()).queue.add(stream);
+    streams.add(stream);
+  }
+
+  private synchronized void stop()
+  {
+    for (SenderLoop loop : loops) {
+      loop.running = false;
+    }
+    if (!loops.isEmpty()) {
+      report();
+      loops.clear();
+    }
+
+    if (!KEEP) {
+      for (String id : createdIds) {
+        try {
+          request("DELETE", "/ingests/" + id, null);
+        } catch (IOException ex) {
+          log.warn("[RtpLoadGenerator::stop] Could not delete ingest {}: {}",
+              id, ex.getMessage());
+        }
+      }
+      createdIds.clear();
+    }
+  }
+
+  private synchronized void report()
+  {
+    long packets = 0;
+    long bytes = 0;
+    long lost = 0;
+    long overflows = 0;
+    for (RtpStream stream : streams) {
+      packets += stream.getPacketsSent();
+      bytes += stream.getBytesSent();
+      lost += stream.getPacketsLost();
+      overflows += stream.getSendOverflows();
+    }
+    long late = 0;
+    long maxLag = 0;
+    for (SenderLoop loop : loops) {
+      late += loop.lateSends;
+      maxLag = Math.max(maxLag, loop.maxLagNanos);
+      loop.maxLagNanos = 0;
+    }
+
+    long now = System.nanoTime();
+    double seconds = Math.max(1, now - lastReportNanos) / 1e9;
+    log.info("[RtpLoadGenerator::report] streams: {}, packets: {} ({} pps, {} Mbps), simulated loss: {}, send overflows: {}, late frames: {}, max lag: {} ms{}",
+        streams.size(), packets, Math.round((packets - lastPackets) / seconds),
+        String.format("%.1f", (bytes - lastBytes) * 8 / seconds / 1e6), lost,
+        overflows, late, TimeUnit.NANOSECONDS.toMillis(maxLag),
+        getIngestStates());
+    lastReportNanos = now;
+    lastPackets = packets;
+    lastBytes = bytes;
+  }
+
+  /**
+   * @return States of the ingests as seen by the RTP Receiver, if its API is
+   *         known
+   */
+  private String getIngestStates()
+  {
+    if (API == null) {
+      return "";
+    }
+    Map<String, Integer> states = new HashMap<>();
+    try {
+      JsonElement list = request("GET", "/ingests", null);
+      if (list == null) {
+        return "";
+      }
+      JsonArray array = list.getAsJsonArray();
+      for (JsonElement element : array) {
+        JsonObject info = element.getAsJsonObject();
+        if (isTarget(info.get("id").getAsString())) {
+          String state = info.get("state").getAsString();
+          Integer count = states.get(state);
+          states.put(state, count == null ? 1 : count + 1);
+        }
+      }
+    } catch (IOException ex) {
+      return ", ingests: " + ex.getMessage();
+    }
+    return ", ingests: " + states;
+  }
+
+  private boolean isTarget(String id)
+  {
+    for (Target target : targets) {
+      if (target.id.equals(id)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // REST API ------------------------------------------------------------------
+
+  /**
+   * @return The JSON response, or null if there is none or the request
+   *         failed
+   */
+  private static JsonElement request(String method, String path, String body)
+      throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection) new URL(API + path).openConnection();
+    if (INSECURE && conn instanceof HttpsURLConnection) {
+      trustAll((HttpsURLConnection) conn);
+    }
+    conn.setRequestMethod(method);
+    conn.setConnectTimeout(5000);
+    conn.setReadTimeout(30000);
+    if (body != null) {
+      conn.setDoOutput(true);
+      conn.setRequestProperty("Content-Type", "application/json");
+      try (OutputStream out = conn.getOutputStream()) {
+        out.write(body.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    int status = conn.getResponseCode();
+    InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+    String response = "";
+    if (in != null) {
+      try (InputStream input = in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = input.read(buffer)) > 0) {
+          out.write(buffer, 0, n);
+        }
+        response = new String(out.toByteArray(), StandardCharsets.UTF_8);
+      }
+    }
+    if (status >= 400) {
+      log.warn("[RtpLoadGenerator::request] {} {}: {} {}", method, path,
+          status, response);
+      return null;
+    }
+    return response.isEmpty() ? null : new JsonParser().parse(response);
+  }
+
+  /**
+   * The tutorials serve HTTPS with a self-signed certificate, so
+   * {@code loadgen.insecure} skips the certificate and host name checks.
+   */
+  private static void trustAll(HttpsURLConnection conn) throws IOException
+  {
+    try {
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, new TrustManager[] { new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String auth) {}
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String auth) {}
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+          return new X509Certificate[0];
+        }
+      } }, null);
+      conn.setSSLSocketFactory(context.getSocketFactory());
+    } catch (GeneralSecurityException ex) {
+      throw new IOException(ex);
+    }
+    conn.setHostnameVerifier(new HostnameVerifier() {
+      @Override
+      public boolean verify(String hostname, SSLSession session) {
+        return true;
+      }
+    });
+  }
+}
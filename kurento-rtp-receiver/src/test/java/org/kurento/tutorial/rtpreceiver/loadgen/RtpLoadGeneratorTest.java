@@ -0,0 +1,109 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver.loadgen;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Parses connection info as the RTP Receiver shows it, one block per ingest.
+ */
+public class RtpLoadGeneratorTest
+{
+  private static final String PLAIN = "SDP negotiation finished\n"
+      + "* Ingest: demo-comedia, viewers: 1\n"
+      + "* KMS listens for Audio RTP at port: 40000\n"
+      + "* KMS listens for Video RTP at port: 40002\n"
+      + "* KMS expects Audio SSRC from sender: 445566\n"
+      + "* KMS expects Video SSRC from sender: 112233\n"
+      + "* KMS local IP address: 10.0.0.1\n"
+      + "* KMS will discover remote IP and port to send RTCP\n";
+
+  private static List<RtpLoadGenerator.Target> read(String text)
+  {
+    RtpLoadGenerator generator = new RtpLoadGenerator();
+    generator.readConnInfo(text);
+    return generator.getTargets();
+  }
+
+  private static String srtp(String id, boolean withKeys)
+  {
+    String text = "SDP negotiation finished\n"
+        + "* Ingest: " + id + ", viewers: 1\n"
+        + "* KMS listens for Video RTP at port: 40004\n"
+        + "* KMS uses Video SSRC: 778899\n"
+        + "* SRTP crypto suite: AES_128_CM_HMAC_SHA1_80\n";
+    if (withKeys) {
+      text += "* SRTP key for the sender (hex): "
+          + "000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D\n"
+          + "* SRTP key of KMS (hex): "
+          + "FFFEFDFCFBFAF9F8F7F6F5F4F3F2F1F0EFEEEDECEBEAE9E8E7E6E5E4E3E2\n";
+    }
+    return text + "* KMS expects Video SSRC from sender: 112244\n"
+        + "* KMS local IP address: 10.0.0.1\n";
+  }
+
+  @Test
+  public void readsPlainIngest()
+  {
+    List<RtpLoadGenerator.Target> targets = read(PLAIN);
+
+    assertEquals(1, targets.size());
+    RtpLoadGenerator.Target target = targets.get(0);
+    assertEquals("demo-comedia", target.id);
+    assertEquals("10.0.0.1", target.kmsIp);
+    assertEquals(40000, target.kmsAudioPort);
+    assertEquals(40002, target.kmsVideoPort);
+    assertEquals(445566, target.audioSsrc);
+    assertEquals(112233, target.videoSsrc);
+    assertFalse(target.srtp);
+    assertNull(target.senderKey);
+  }
+
+  @Test
+  public void readsSenderKeyOfSrtpIngest()
+  {
+    List<RtpLoadGenerator.Target> targets = read(PLAIN + srtp("demo-srtp", true));
+
+    assertEquals(2, targets.size());
+    RtpLoadGenerator.Target target = targets.get(1);
+    assertEquals("demo-srtp", target.id);
+    assertTrue(target.srtp);
+    assertEquals("AES_128_CM_HMAC_SHA1_80", target.cryptoSuite);
+    byte[] key = Base64.getDecoder().decode(target.senderKey);
+    assertEquals(30, key.length);
+    for (int i = 0; i < key.length; i++) {
+      assertEquals(i, key[i]);
+    }
+  }
+
+  @Test
+  public void skipsSrtpIngestWithoutKey()
+  {
+    List<RtpLoadGenerator.Target> targets = read(srtp("api-srtp", false) + PLAIN);
+
+    assertEquals(1, targets.size());
+    assertEquals("demo-comedia", targets.get(0).id);
+  }
+}
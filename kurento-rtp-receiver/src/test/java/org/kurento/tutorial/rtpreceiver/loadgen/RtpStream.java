@@ -0,0 +1,391 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver.loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One synthetic RTP stream, audio or video, sent with its RTCP through a pair
+ * of non-blocking DatagramChannels.
+ *
+ * Video is sent as frames of {@code bitrate / fps} bytes, each one split into
+ * H.264 FU-A fragments of at most {@code packetSize} bytes of payload, and
+ * audio as one packet per 20 ms frame, with the payload types of the SDP
+ * Offer of the RTP Receiver. Payloads are filler, so KMS can depacketize the
+ * stream but not decode it. An RTCP Sender Report is sent about every
+ * second.
+ *
+ * Loss is simulated by skipping the sending of whole bursts of packets, which
+ * still use their sequence numbers, and jitter by delaying each frame a
+ * random time, which doesn't change its RTP timestamp.
+ */
+public class RtpStream
+{
+  /**
+   * Traffic profile of a stream.
+   */
+  public static class Profile
+  {
+    public boolean video = true;
+    public int bitrateKbps = 1000;
+    public int fps = 30;
+    public int packetSize = 1200;
+    public double loss;
+    public int lossBurst = 1;
+    public int jitterMs;
+  }
+
+  private static final int RTP_HEADER_LENGTH = 12;
+  private static final int VIDEO_PAYLOAD_TYPE = 103;
+  private static final int AUDIO_PAYLOAD_TYPE = 96;
+  private static final int VIDEO_CLOCK_RATE = 90000;
+  private static final int AUDIO_CLOCK_RATE = 48000;
+  private static final int AUDIO_FRAME_MS = 20;
+  private static final long RTCP_INTERVAL_NANOS = 1000000000L;
+
+  // NTP time of the Unix epoch, in seconds
+  private static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+  // H.264 NAL unit header of a non-IDR slice, with NRI 2
+  private static final int NAL_SLICE = 0x41;
+  private static final int NAL_FU_A = 0x5C;
+
+  // Filler for the payloads, shared by all streams
+  private static final byte[] FILLER = new byte[2048];
+
+  static {
+    new Random(0).nextBytes(FILLER);
+  }
+
+  private final String name;
+  private final Profile profile;
+  private final long ssrc;
+  private final byte[] cname;
+  private final SrtpContext srtp;
+  private final DatagramChannel rtpChannel;
+  private final DatagramChannel rtcpChannel;
+
+  private final byte[] packet;
+  private final ByteBuffer packetBuffer;
+
+  private final int frameBytes;
+  private final long frameNanos;
+  private final int clockRate;
+  private final int timestampStep;
+
+  private int seq = ThreadLocalRandom.current().nextInt(0x10000);
+  private int timestamp = ThreadLocalRandom.current().nextInt();
+  private final long startNanos;
+  private final long startMillis;
+  private long frames;
+  private long nextFrameNanos;
+  private long nextRtcpNanos;
+  private int lossLeft;
+  private long payloadBytes;
+
+  // Counters, read by the reporter thread
+  private volatile long packetsSent;
+  private volatile long bytesSent;
+  private volatile long packetsLost;
+  private volatile long sendOverflows;
+
+  /**
+   * @param srtp
+   *          SRTP context of this stream, or null to send plain RTP
+   */
+  public RtpStream(String name, Profile profile, long ssrc, String cname,
+      SrtpContext srtp, InetSocketAddress rtpAddress, long startNanos)
+      throws IOException
+  {
+    this.name = name;
+    this.profile = profile;
+    this.ssrc = ssrc;
+    this.cname = cname.getBytes(StandardCharsets.UTF_8);
+    this.srtp = srtp;
+
+    // Room for the largest payload or Sender Report, and the SRTP overhead
+    this.packet = new byte[Math.max(profile.packetSize, 512)
+        + RTP_HEADER_LENGTH + 2 + 32];
+    this.packetBuffer = ByteBuffer.wrap(packet);
+
+    if (profile.video) {
+      clockRate = VIDEO_CLOCK_RATE;
+      frameNanos = 1000000000L / profile.fps;
+      timestampStep = VIDEO_CLOCK_RATE / profile.fps;
+      frameBytes = (int) ((long) profile.bitrateKbps * 1000 / 8 / profile.fps);
+    } else {
+      clockRate = AUDIO_CLOCK_RATE;
+      frameNanos = AUDIO_FRAME_MS * 1000000L;
+      timestampStep = AUDIO_CLOCK_RATE * AUDIO_FRAME_MS / 1000;
+      frameBytes = Math.min(profile.packetSize,
+          profile.bitrateKbps * AUDIO_FRAME_MS / 8);
+    }
+
+    // RTCP goes to the next port, from the next channel, as KMS expects
+    // without rtcp-mux
+    rtpChannel = open(rtpAddress);
+    rtcpChannel = open(new InetSocketAddress(rtpAddress.getAddress(),
+        rtpAddress.getPort() + 1));
+
+    this.startNanos = startNanos;
+    this.startMillis = System.currentTimeMillis();
+    this.nextFrameNanos = startNanos;
+    this.nextRtcpNanos = startNanos + RTCP_INTERVAL_NANOS;
+  }
+
+  private static DatagramChannel open(InetSocketAddress address)
+      throws IOException
+  {
+    DatagramChannel channel = DatagramChannel.open();
+    channel.configureBlocking(false);
+    channel.connect(address);
+    return channel;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  /**
+   * @return Time to send the next frame or report at, in System.nanoTime()
+   */
+  public long getNextSendNanos()
+  {
+    return Math.min(nextFrameNanos, nextRtcpNanos);
+  }
+
+  /**
+   * Sends whatever is due at the given time: the next frame, and the next
+   * Sender Report.
+   */
+  public void send(long nowNanos) throws IOException
+  {
+    if (nowNanos >= nextRtcpNanos) {
+      sendSenderReport(nowNanos);
+      // Randomized between 0.5 and 1.5 times the interval, as RFC 3550 asks
+      nextRtcpNanos = nowNanos + RTCP_INTERVAL_NANOS / 2
+          + ThreadLocalRandom.current().nextLong(RTCP_INTERVAL_NANOS);
+    }
+    if (nowNanos >= nextFrameNanos) {
+      sendFrame();
+      frames++;
+      timestamp += timestampStep;
+      nextFrameNanos = startNanos + frames * frameNanos;
+      if (profile.jitterMs > 0) {
+        nextFrameNanos += ThreadLocalRandom.current().nextLong(
+            profile.jitterMs * 1000000L);
+      }
+    }
+  }
+
+  private void sendFrame() throws IOException
+  {
+    if (!profile.video) {
+      int length = writeHeader(AUDIO_PAYLOAD_TYPE, true);
+      length = writeFiller(length, frameBytes);
+      sendRtp(length);
+      return;
+    }
+
+    int maxPayload = profile.packetSize;
+    if (frameBytes + 1 <= maxPayload) {
+      // Single NAL unit
+      int length = writeHeader(VIDEO_PAYLOAD_TYPE, true);
+      packet[length++] = (byte) NAL_SLICE;
+      length = writeFiller(length, frameBytes);
+      sendRtp(length);
+      return;
+    }
+
+    // FU-A fragments of the NAL unit, without its header byte
+    int left = frameBytes;
+    boolean first = true;
+    while (left > 0) {
+      int chunk = Math.min(left, maxPayload - 2);
+      left -= chunk;
+      boolean last = left == 0;
+
+      int length = writeHeader(VIDEO_PAYLOAD_TYPE, last);
+      packet[length++] = (byte) NAL_FU_A;
+      packet[length++] = (byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0)
+          | (NAL_SLICE & 0x1F));
+      length = writeFiller(length, chunk);
+      sendRtp(length);
+      first = false;
+    }
+  }
+
+  private int writeHeader(int payloadType, boolean marker)
+  {
+    packet[0] = (byte) 0x80;
+    packet[1] = (byte) ((marker ? 0x80 : 0) | payloadType);
+    putShort(2, seq);
+    putInt(4, timestamp);
+    putInt(8, (int) ssrc);
+    seq = (seq + 1) & 0xFFFF;
+    return RTP_HEADER_LENGTH;
+  }
+
+  private int writeFiller(int offset, int length)
+  {
+    int end = offset + length;
+    while (offset < end) {
+      int n = Math.min(FILLER.length, end - offset);
+      System.arraycopy(FILLER, 0, packet, offset, n);
+      offset += n;
+    }
+    return end;
+  }
+
+  private void sendRtp(int length) throws IOException
+  {
+    if (isLost()) {
+      packetsLost++;
+      return;
+    }
+    if (srtp != null) {
+      length = srtp.protectRtp(packet, RTP_HEADER_LENGTH, length);
+    }
+    packetBuffer.clear().limit(length);
+    if (rtpChannel.write(packetBuffer) == 0) {
+      // The socket buffer is full
+      sendOverflows++;
+      return;
+    }
+    packetsSent++;
+    bytesSent += length;
+    payloadBytes += length - RTP_HEADER_LENGTH
+        - (srtp != null ? srtp.getRtpOverhead() : 0);
+  }
+
+  /**
+   * Loss as independent bursts of {@code lossBurst} packets, which start with
+   * a probability such that the mean loss rate is {@code loss}.
+   */
+  private boolean isLost()
+  {
+    if (lossLeft > 0) {
+      lossLeft--;
+      return true;
+    }
+    if (profile.loss > 0 && ThreadLocalRandom.current().nextDouble()
+        < profile.loss / profile.lossBurst) {
+      lossLeft = profile.lossBurst - 1;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Compound RTCP packet with a Sender Report and the CNAME (RFC 3550).
+   */
+  private void sendSenderReport(long nowNanos) throws IOException
+  {
+    long elapsedNanos = nowNanos - startNanos;
+    long nowMicros = startMillis * 1000 + elapsedNanos / 1000;
+    long ntpSeconds = nowMicros / 1000000 + NTP_EPOCH_OFFSET;
+    long ntpFraction = ((nowMicros % 1000000) << 32) / 1000000;
+    int rtpTimestamp = timestamp
+        + (int) ((elapsedNanos - frames * frameNanos) * clockRate / 1000000000L);
+
+    // SR: header, SSRC, NTP timestamp, RTP timestamp, packet and octet count
+    packet[0] = (byte) 0x80;
+    packet[1] = (byte) 200;
+    putShort(2, 6);
+    putInt(4, (int) ssrc);
+    putInt(8, (int) ntpSeconds);
+    putInt(12, (int) ntpFraction);
+    putInt(16, rtpTimestamp);
+    putInt(20, (int) packetsSent);
+    putInt(24, (int) payloadBytes);
+
+    // SDES: one chunk with the CNAME, padded to 32 bits
+    int sdes = 28;
+    int sdesLength = 4 + 2 + cname.length + 1;
+    sdesLength = (sdesLength + 3) & ~3;
+    packet[sdes] = (byte) 0x81;
+    packet[sdes + 1] = (byte) 202;
+    putShort(sdes + 2, (4 + sdesLength) / 4 - 1);
+    putInt(sdes + 4, (int) ssrc);
+    packet[sdes + 8] = 1;
+    packet[sdes + 9] = (byte) cname.length;
+    System.arraycopy(cname, 0, packet, sdes + 10, cname.length);
+    int length = sdes + 4 + sdesLength;
+    for (int i = sdes + 10 + cname.length; i < length; i++) {
+      packet[i] = 0;
+    }
+
+    if (srtp != null) {
+      length = srtp.protectRtcp(packet, length);
+    }
+    packetBuffer.clear().limit(length);
+    if (rtcpChannel.write(packetBuffer) == 0) {
+      sendOverflows++;
+    }
+  }
+
+  private void putShort(int offset, int value)
+  {
+    packet[offset] = (byte) (value >>> 8);
+    packet[offset + 1] = (byte) value;
+  }
+
+  private void putInt(int offset, int value)
+  {
+    packet[offset] = (byte) (value >>> 24);
+    packet[offset + 1] = (byte) (value >>> 16);
+    packet[offset + 2] = (byte) (value >>> 8);
+    packet[offset + 3] = (byte) value;
+  }
+
+  public long getPacketsSent()
+  {
+    return packetsSent;
+  }
+
+  public long getBytesSent()
+  {
+    return bytesSent;
+  }
+
+  public long getPacketsLost()
+  {
+    return packetsLost;
+  }
+
+  public long getSendOverflows()
+  {
+    return sendOverflows;
+  }
+
+  public void close()
+  {
+    try {
+      rtpChannel.close();
+      rtcpChannel.close();
+    } catch (IOException ex) {
+      // Nothing to do
+    }
+  }
+}
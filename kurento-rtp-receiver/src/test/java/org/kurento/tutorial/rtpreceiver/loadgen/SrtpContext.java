@@ -0,0 +1,273 @@
+/*
+ * Copyright 2018 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.rtpreceiver.loadgen;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * SRTP and SRTCP protection of the packets of one sender (RFC 3711), with
+ * the AES Counter Mode and HMAC-SHA1 suites that KMS supports through SDES.
+ *
+ * The session keys are derived once from the master key, with no key
+ * derivation rate. RTCP uses the same authentication tag length as RTP, as
+ * KMS configures it. Not thread-safe: each stream has its own context.
+ */
+public class SrtpContext
+{
+  private static final int SALT_LENGTH = 14;
+  private static final int AUTH_KEY_LENGTH = 20;
+
+  private static final int LABEL_RTP_ENCRYPTION = 0;
+  private static final int LABEL_RTP_AUTH = 1;
+  private static final int LABEL_RTP_SALT = 2;
+  private static final int LABEL_RTCP_ENCRYPTION = 3;
+  private static final int LABEL_RTCP_AUTH = 4;
+  private static final int LABEL_RTCP_SALT = 5;
+
+  private final int tagLength;
+
+  private final Cipher rtpCipher;
+  private final byte[] rtpSalt;
+  private final Mac rtpMac;
+
+  private final Cipher rtcpCipher;
+  private final byte[] rtcpSalt;
+  private final Mac rtcpMac;
+
+  // Scratch buffers, reused for every packet
+  private final byte[] iv = new byte[16];
+  private final byte[] keystream = new byte[16];
+  private final byte[] digest = new byte[AUTH_KEY_LENGTH];
+  private final byte[] roc = new byte[4];
+
+  private int rolloverCounter;
+  private int lastSeq = -1;
+  private int rtcpIndex;
+
+  /**
+   * @param cryptoSuite
+   *          Name of the suite in org.kurento.client.CryptoSuite, like
+   *          "AES_128_CM_HMAC_SHA1_80"
+   * @param keyBase64
+   *          Master key and master salt, concatenated and in Base64
+   */
+  public SrtpContext(String cryptoSuite, String keyBase64)
+  {
+    int keyLength;
+    if (cryptoSuite.startsWith("AES_128_CM_")) {
+      keyLength = 16;
+    } else if (cryptoSuite.startsWith("AES_256_CM_")) {
+      keyLength = 32;
+    } else {
+      throw new IllegalArgumentException("Unsupported crypto suite: "
+          + cryptoSuite);
+    }
+    if (cryptoSuite.endsWith("_HMAC_SHA1_80")) {
+      tagLength = 10;
+    } else if (cryptoSuite.endsWith("_HMAC_SHA1_32")) {
+      tagLength = 4;
+    } else {
+      throw new IllegalArgumentException("Unsupported crypto suite: "
+          + cryptoSuite);
+    }
+
+    byte[] master = Base64.getDecoder().decode(keyBase64);
+    if (master.length != keyLength + SALT_LENGTH) {
+      throw new IllegalArgumentException("Master key and salt of "
+          + cryptoSuite + " must be " + (keyLength + SALT_LENGTH)
+          + " bytes, got " + master.length);
+    }
+
+    try {
+      Cipher masterCipher = newCipher(Arrays.copyOf(master, keyLength));
+      byte[] masterSalt = Arrays.copyOfRange(master, keyLength, master.length);
+
+      rtpCipher = newCipher(derive(masterCipher, masterSalt,
+          LABEL_RTP_ENCRYPTION, keyLength));
+      rtpMac = newMac(derive(masterCipher, masterSalt, LABEL_RTP_AUTH,
+          AUTH_KEY_LENGTH));
+      rtpSalt = derive(masterCipher, masterSalt, LABEL_RTP_SALT, SALT_LENGTH);
+
+      rtcpCipher = newCipher(derive(masterCipher, masterSalt,
+          LABEL_RTCP_ENCRYPTION, keyLength));
+      rtcpMac = newMac(derive(masterCipher, masterSalt, LABEL_RTCP_AUTH,
+          AUTH_KEY_LENGTH));
+      rtcpSalt = derive(masterCipher, masterSalt, LABEL_RTCP_SALT,
+          SALT_LENGTH);
+    } catch (GeneralSecurityException ex) {
+      throw new IllegalStateException("AES or HMAC-SHA1 not available", ex);
+    }
+  }
+
+  /**
+   * @return Bytes added to an RTP packet by {@link #protectRtp}
+   */
+  public int getRtpOverhead()
+  {
+    return tagLength;
+  }
+
+  /**
+   * @return Bytes added to an RTCP packet by {@link #protectRtcp}
+   */
+  public int getRtcpOverhead()
+  {
+    return 4 + tagLength;
+  }
+
+  /**
+   * Encrypts and authenticates an RTP packet in place. The buffer must have
+   * room for {@link #getRtpOverhead()} more bytes.
+   *
+   * @param headerLength
+   *          Length of the RTP header, which is not encrypted
+   * @return Length of the SRTP packet
+   */
+  public int protectRtp(byte[] packet, int headerLength, int length)
+  {
+    int seq = ((packet[2] & 0xFF) << 8) | (packet[3] & 0xFF);
+    if (lastSeq >= 0 && seq < lastSeq && lastSeq - seq > 0x8000) {
+      rolloverCounter++;
+    }
+    lastSeq = seq;
+    long index = ((rolloverCounter & 0xFFFFFFFFL) << 16) | seq;
+
+    setIv(rtpSalt, packet, index);
+    encrypt(rtpCipher, packet, headerLength, length);
+
+    putInt(roc, 0, rolloverCounter);
+    rtpMac.update(packet, 0, length);
+    rtpMac.update(roc, 0, 4);
+    appendTag(rtpMac, packet, length);
+    return length + tagLength;
+  }
+
+  /**
+   * Encrypts and authenticates a compound RTCP packet in place. The buffer
+   * must have room for {@link #getRtcpOverhead()} more bytes.
+   *
+   * @return Length of the SRTCP packet
+   */
+  public int protectRtcp(byte[] packet, int length)
+  {
+    int index = rtcpIndex;
+    rtcpIndex = (rtcpIndex + 1) & 0x7FFFFFFF;
+
+    setIv(rtcpSalt, packet, index);
+    encrypt(rtcpCipher, packet, 8, length);
+
+    // E flag and SRTCP index
+    putInt(packet, length, 0x80000000 | index);
+    length += 4;
+
+    rtcpMac.update(packet, 0, length);
+    appendTag(rtcpMac, packet, length);
+    return length + tagLength;
+  }
+
+  // ---------------------------------------------------------------------------
+
+  /**
+   * IV = (salt * 2^16) XOR (SSRC * 2^64) XOR (index * 2^16). The SSRC is at
+   * the same offset of RTP and RTCP packets.
+   */
+  private void setIv(byte[] salt, byte[] packet, long index)
+  {
+    System.arraycopy(salt, 0, iv, 0, SALT_LENGTH);
+    iv[14] = 0;
+    iv[15] = 0;
+    for (int i = 0; i < 4; i++) {
+      iv[4 + i] ^= packet[8 + i];
+    }
+    for (int i = 0; i < 6; i++) {
+      iv[13 - i] ^= (byte) (index >>> (8 * i));
+    }
+  }
+
+  /**
+   * AES Counter Mode, with the block counter in the last two bytes of the IV.
+   */
+  private void encrypt(Cipher cipher, byte[] data, int offset, int end)
+  {
+    try {
+      int block = 0;
+      for (int pos = offset; pos < end; pos += 16, block++) {
+        iv[14] = (byte) (block >>> 8);
+        iv[15] = (byte) block;
+        cipher.update(iv, 0, 16, keystream, 0);
+        int n = Math.min(16, end - pos);
+        for (int i = 0; i < n; i++) {
+          data[pos + i] ^= keystream[i];
+        }
+      }
+    } catch (ShortBufferException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+  private void appendTag(Mac mac, byte[] packet, int offset)
+  {
+    try {
+      mac.doFinal(digest, 0);
+    } catch (ShortBufferException ex) {
+      throw new IllegalStateException(ex);
+    }
+    System.arraycopy(digest, 0, packet, offset, tagLength);
+  }
+
+  /**
+   * Key derivation of RFC 3711 section 4.3, with a key derivation rate of 0.
+   */
+  private byte[] derive(Cipher masterCipher, byte[] masterSalt, int label,
+      int length)
+  {
+    System.arraycopy(masterSalt, 0, iv, 0, SALT_LENGTH);
+    iv[7] ^= (byte) label;
+    byte[] key = new byte[length];
+    encrypt(masterCipher, key, 0, length);
+    return key;
+  }
+
+  private static Cipher newCipher(byte[] key) throws GeneralSecurityException
+  {
+    Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+    return cipher;
+  }
+
+  private static Mac newMac(byte[] key) throws GeneralSecurityException
+  {
+    Mac mac = Mac.getInstance("HmacSHA1");
+    mac.init(new SecretKeySpec(key, "HmacSHA1"));
+    return mac;
+  }
+
+  private static void putInt(byte[] data, int offset, int value)
+  {
+    data[offset] = (byte) (value >>> 24);
+    data[offset + 1] = (byte) (value >>> 16);
+    data[offset + 2] = (byte) (value >>> 8);
+    data[offset + 3] = (byte) value;
+  }
+}
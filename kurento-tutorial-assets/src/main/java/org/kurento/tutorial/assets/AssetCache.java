@@ -0,0 +1,157 @@
+/*
+ * Copyright 2026 Kurento (https://www.kurento.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.kurento.tutorial.assets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * URLs of the images used by the media filters, which KMS fetches by itself.
+ *
+ * By default the images bundled with the application are loaded from the classpath at startup
+ * into a content-addressed, in-memory cache and served under {@code /assets/<sha256>/<name>}, so
+ * the filters need no external server. As the URL changes whenever the content does, responses
+ * are marked as immutable. KMS fetches them from {@code app.assets.url}, or from the application
+ * server URL given to the constructor if it is not set; when KMS runs on another host or in a
+ * container, set it to a URL of this application that KMS can reach.
+ *
+ * To fetch the images from a public server instead, serving them under {@code /img/}, set
+ * {@code app.assets.remoteUrl}, like {@code http://files.openvidu.io}.
+ *
+ * @since 6.18.0
+ */
+@RestController
+public class AssetCache {
+
+  private static final Logger log = LoggerFactory.getLogger(AssetCache.class);
+
+  public static final String ASSETS_PATH = "/assets";
+  private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+  private final ConcurrentHashMap<String, Asset> assetsByHash = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> urlsByName = new ConcurrentHashMap<>();
+
+  /**
+   * @param appServerUrl
+   *          base URL of this application, used to serve the images unless
+   *          {@code app.assets.url} or {@code app.assets.remoteUrl} is set
+   * @param images
+   *          names of the images, found under {@code static/img/} in the classpath
+   */
+  public AssetCache(String appServerUrl, String... images) throws IOException {
+    String remoteUrl = System.getProperty("app.assets.remoteUrl");
+    if (remoteUrl != null && !remoteUrl.isEmpty()) {
+      String base = stripSlash(remoteUrl);
+      for (String image : images) {
+        urlsByName.put(image, base + "/img/" + image);
+      }
+      log.info("Filter images are fetched by KMS from {}", base);
+    } else {
+      String assetsUrl = System.getProperty("app.assets.url");
+      String base =
+          stripSlash(assetsUrl == null || assetsUrl.isEmpty() ? appServerUrl : assetsUrl);
+      for (String image : images) {
+        preload(base, image);
+      }
+    }
+  }
+
+  private static String stripSlash(String url) {
+    return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+  }
+
+  private void preload(String base, String name) throws IOException {
+    byte[] content;
+    try (InputStream in = new ClassPathResource("static/img/" + name).getInputStream()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      content = out.toByteArray();
+    }
+
+    String hash = sha256(content);
+    assetsByHash.put(hash, new Asset(name, content));
+    urlsByName.put(name, base + ASSETS_PATH + "/" + hash + "/" + name);
+    log.info("Cached asset '{}' ({} bytes) as {}", name, content.length, hash);
+  }
+
+  /**
+   * Returns the URL of an image, to be handed to KMS.
+   */
+  public String getUrl(String name) {
+    String url = urlsByName.get(name);
+    if (url == null) {
+      throw new IllegalArgumentException("Asset '" + name + "' has not been registered");
+    }
+    return url;
+  }
+
+  @GetMapping(ASSETS_PATH + "/{hash}/{name:.+}")
+  public ResponseEntity<byte[]> getAsset(@PathVariable String hash, @PathVariable String name) {
+    Asset asset = assetsByHash.get(hash);
+    if (asset == null || !asset.name.equals(name)) {
+      return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+    }
+    return ResponseEntity.ok().header(HttpHeaders.CACHE_CONTROL, CACHE_CONTROL)
+        .eTag("\"" + hash + "\"").contentType(asset.contentType).body(asset.content);
+  }
+
+  private static String sha256(byte[] content) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+      StringBuilder sb = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Asset {
+    private final String name;
+    private final byte[] content;
+    private final MediaType contentType;
+
+    Asset(String name, byte[] content) {
+      this.name = name;
+      this.content = content;
+      this.contentType = name.endsWith(".png") ? MediaType.IMAGE_PNG
+          : name.endsWith(".jpg") || name.endsWith(".jpeg") ? MediaType.IMAGE_JPEG
+              : MediaType.APPLICATION_OCTET_STREAM;
+    }
+  }
+}